@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * このモジュールのベンチマークを、単一スレッドと複数スレッドのそれぞれで実行する。
+ * <p>
+ * 引数はJMHのコマンドライン引数と同じ形式で、実行するベンチマークの絞り込みなどに利用できる。
+ * ただし、スレッド数 ({@code -t}) はこのクラスが設定する。
+ * 複数スレッドでの実行は、利用可能なプロセッサの数 (最低2) のスレッドで行う。
+ * いずれの実行でも{@link GCProfiler}を有効にし、計測中の割り当て量
+ * ({@code gc.alloc.rate}, {@code gc.alloc.rate.norm}) を報告する。
+ * </p>
+ * <pre><code>
+ * mvn -Pbenchmarks package
+ * java -jar hot-reload-benchmarks/target/benchmarks.jar ClassLoadingBenchmark
+ * </code></pre>
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+        throw new AssertionError();
+    }
+
+    /**
+     * ベンチマークを実行する。
+     * @param args JMHのコマンドライン引数
+     * @throws Exception 実行に失敗した場合
+     */
+    public static void main(String... args) throws Exception {
+        Options base = new CommandLineOptions(args);
+        int concurrency = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int threads : new int[] { 1, concurrency }) {
+            Options options = new OptionsBuilder()
+                .parent(base)
+                .threads(threads)
+                .addProfiler(GCProfiler.class)
+                .build();
+            new Runner(options).run();
+        }
+    }
+}
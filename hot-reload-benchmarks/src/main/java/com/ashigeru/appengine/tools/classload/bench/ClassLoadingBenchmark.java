@@ -0,0 +1,305 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ashigeru.appengine.tools.classload.ClassLoaderDelegate;
+import com.ashigeru.appengine.tools.classload.InterceptClassLoader;
+
+/**
+ * {@link InterceptClassLoader}のクラスやリソースの探索にかかる時間を計測する。
+ * <p>
+ * 委譲先はメモリ上にクラスファイルやリソースを保持し、外部のサービスには問い合わせない。
+ * そのため、計測される時間はクラスローダ自身の探索 (パスの判定、委譲先の選択、排他制御など) にかかる時間となる。
+ * 次のクラスをそれぞれロードする。
+ * </p>
+ * <ul>
+ * <li> {@code defined} - 委譲先が保持するクラス (ロード済み) </li>
+ * <li> {@code parentOnly} - 親クラスローダのみが保持するクラス (ロード済み) </li>
+ * <li> {@code missing} - いずれも保持しないクラス </li>
+ * <li> {@code defineFresh} - 委譲先が保持するクラスを、新しいクラスローダで定義する </li>
+ * </ul>
+ * <p>
+ * 複数スレッドでの計測と割り当て量の報告は{@link BenchmarkRunner}を参照。
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoadingBenchmark {
+
+    private static final String PACKAGE_PATH = "com/ashigeru/appengine/tools/classload/bench/"; //$NON-NLS-1$
+
+    private static final String DEFINED = Defined.class.getName();
+
+    private static final String PARENT_ONLY = ParentOnly.class.getName();
+
+    private static final String MISSING = PACKAGE_PATH.replace('/', '.') + "Missing"; //$NON-NLS-1$
+
+    private static final String RESOURCE = PACKAGE_PATH + "sample.properties"; //$NON-NLS-1$
+
+    private static final String MISSING_RESOURCE = PACKAGE_PATH + "missing.properties"; //$NON-NLS-1$
+
+    private static final String EXCLUDED = "java/lang/String.class"; //$NON-NLS-1$
+
+    private MemoryDelegate delegate;
+
+    private Probe loader;
+
+    /**
+     * クラスローダを準備し、対象のクラスをあらかじめロードしておく。
+     * @throws Exception if occur
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        delegate = new MemoryDelegate();
+        delegate.add(InterceptClassLoader.toClassFilePath(DEFINED), load(Defined.class));
+        delegate.add(RESOURCE, "key=value\n".getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+        loader = new Probe(delegate);
+        loader.loadClass(DEFINED);
+        loader.loadClass(PARENT_ONLY);
+    }
+
+    /**
+     * 委譲先が保持する、ロード済みのクラスをロードする。
+     * @return ロードしたクラス
+     * @throws ClassNotFoundException if occur
+     */
+    @Benchmark
+    public Class<?> defined() throws ClassNotFoundException {
+        return loader.loadClass(DEFINED);
+    }
+
+    /**
+     * 親クラスローダのみが保持する、ロード済みのクラスをロードする。
+     * @return ロードしたクラス
+     * @throws ClassNotFoundException if occur
+     */
+    @Benchmark
+    public Class<?> parentOnly() throws ClassNotFoundException {
+        return loader.loadClass(PARENT_ONLY);
+    }
+
+    /**
+     * 存在しないクラスをロードする。
+     * @return 例外
+     */
+    @Benchmark
+    public Object missing() {
+        try {
+            return loader.loadClass(MISSING);
+        }
+        catch (ClassNotFoundException e) {
+            return e;
+        }
+    }
+
+    /**
+     * 委譲先が保持するクラスを、新しいクラスローダで定義する。
+     * @return ロードしたクラス
+     * @throws ClassNotFoundException if occur
+     */
+    @Benchmark
+    public Class<?> defineFresh() throws ClassNotFoundException {
+        return new Probe(delegate).loadClass(DEFINED);
+    }
+
+    /**
+     * 委譲先が保持するリソースの位置を取得する。
+     * @return 取得した位置
+     */
+    @Benchmark
+    public URL getResource() {
+        return loader.getResource(RESOURCE);
+    }
+
+    /**
+     * 存在しないリソースの位置を取得する。
+     * @return 取得した位置
+     */
+    @Benchmark
+    public URL getResourceMissing() {
+        return loader.getResource(MISSING_RESOURCE);
+    }
+
+    /**
+     * 委譲先と親クラスローダが保持するリソースの位置をすべて取得する。
+     * @return 取得した位置の数
+     * @throws IOException if occur
+     */
+    @Benchmark
+    public int getResources() throws IOException {
+        int count = 0;
+        for (Enumeration<URL> e = loader.getResources(RESOURCE); e.hasMoreElements();) {
+            e.nextElement();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 委譲先が保持するリソースの内容を読み出す。
+     * @return 読み出した内容の先頭のバイト
+     * @throws IOException if occur
+     */
+    @Benchmark
+    public int getResourceAsStream() throws IOException {
+        InputStream in = loader.getResourceAsStream(RESOURCE);
+        try {
+            return in.read();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 対象とするパスと、規約で除外されるパスを判定する。
+     * @return 対象となったパスの数
+     */
+    @Benchmark
+    public int accepts() {
+        int count = 0;
+        if (loader.accepts(RESOURCE)) {
+            count++;
+        }
+        if (loader.accepts(EXCLUDED)) {
+            count++;
+        }
+        return count;
+    }
+
+    static byte[] load(Class<?> aClass) throws IOException {
+        assert aClass != null;
+        String path = InterceptClassLoader.toClassFilePath(aClass.getName());
+        InputStream input = aClass.getClassLoader().getResourceAsStream(path);
+        if (input == null) {
+            throw new IOException(path);
+        }
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            while (true) {
+                int read = input.read(buf);
+                if (read < 0) {
+                    break;
+                }
+                output.write(buf, 0, read);
+            }
+            return output.toByteArray();
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * 委譲先から定義されるクラス。
+     */
+    public static class Defined {
+        // no members
+    }
+
+    /**
+     * 親クラスローダのみが保持するクラス。
+     */
+    public static class ParentOnly {
+        // no members
+    }
+
+    /**
+     * {@link InterceptClassLoader#accepts(String)}を公開する。
+     */
+    static class Probe extends InterceptClassLoader {
+
+        Probe(ClassLoaderDelegate delegate) {
+            super(
+                ClassLoadingBenchmark.class.getClassLoader(),
+                Pattern.compile(Pattern.quote(PACKAGE_PATH) + ".*"), //$NON-NLS-1$
+                Collections.singletonList(delegate));
+        }
+
+        @Override
+        public boolean accepts(String path) {
+            return super.accepts(path);
+        }
+    }
+
+    /**
+     * メモリ上に内容を保持する委譲先。
+     */
+    static class MemoryDelegate extends ClassLoaderDelegate {
+
+        private final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+
+        private final Map<String, URL> locations = new HashMap<String, URL>();
+
+        void add(String path, byte[] content) throws MalformedURLException {
+            contents.put(path, content);
+            locations.put(path, new URL("http", "localhost", "/" + path)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        @Override
+        protected URL findResource(String path) {
+            return locations.get(path);
+        }
+
+        @Override
+        protected Iterable<URL> findAllResources(String path) {
+            URL location = locations.get(path);
+            if (location == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(location);
+        }
+
+        @Override
+        protected InputStream findResourceAsStream(String path) {
+            byte[] content = contents.get(path);
+            if (content == null) {
+                return null;
+            }
+            return new ByteArrayInputStream(content);
+        }
+    }
+}
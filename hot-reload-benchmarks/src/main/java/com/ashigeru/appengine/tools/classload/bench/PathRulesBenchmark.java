@@ -0,0 +1,181 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ashigeru.appengine.tools.classload.ClassLoaderDelegate;
+import com.ashigeru.appengine.tools.classload.InterceptClassLoader;
+import com.ashigeru.appengine.tools.classload.PathRules;
+
+/**
+ * {@link InterceptClassLoader}がパスを対象とするかどうかの判定にかかる時間を、
+ * 正規表現による判定と{@link PathRules#compile(java.util.Collection, java.util.Collection) 規則の集合}による判定とで比較する。
+ * <p>
+ * 入力は、起動時にロードされるクラスやリソースを模したパスの列で、
+ * JDKのクラス、ライブラリのクラス、アプリケーションのクラス、およびリソースファイルを含む。
+ * 両者の判定は同じパスに対して同じ結果を返す。
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathRulesBenchmark {
+
+    private static final String[] APPLICATION_PACKAGES = {
+        "com/example/app/",
+        "com/example/app/model/",
+        "com/example/app/service/",
+        "com/example/app/service/impl/",
+        "com/example/app/web/",
+        "com/example/app/web/controller/",
+        "com/example/app/internal/",
+    };
+
+    private static final String[] LIBRARY_PACKAGES = {
+        "java/lang/",
+        "java/util/",
+        "java/util/concurrent/",
+        "javax/servlet/http/",
+        "sun/reflect/",
+        "com/google/appengine/api/datastore/",
+        "com/google/apphosting/api/",
+        "org/slf4j/",
+        "org/apache/commons/lang/",
+    };
+
+    private static final String[] SIMPLE_NAMES = {
+        "Main", "Config", "User", "UserService", "UserServiceImpl", "Controller",
+        "Repository", "Entity", "Key", "Query", "Filter", "Util", "Helper",
+        "AbstractBase", "Factory", "Builder",
+    };
+
+    private static final String[] RESOURCES = {
+        "messages.properties",
+        "logging.properties",
+        "template.html",
+    };
+
+    /**
+     * 入力のパスのうち、アプリケーションのパスが占める割合 (百分率)。
+     */
+    @Param({ "20", "80" })
+    public int applicationPercent;
+
+    private Probe regex;
+
+    private Probe rules;
+
+    private String[] paths;
+
+    /**
+     * 入力を準備する。
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        regex = new Probe(PathRules.of(Pattern.compile(
+            "com/example/app/(?!internal/).*"))); //$NON-NLS-1$
+        rules = new Probe(PathRules.compile(
+            Arrays.asList("com/example/app/"), //$NON-NLS-1$
+            Arrays.asList("com/example/app/internal/"))); //$NON-NLS-1$
+        Random random = new Random(12345);
+        List<String> results = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            String[] packages = random.nextInt(100) < applicationPercent
+                ? APPLICATION_PACKAGES
+                : LIBRARY_PACKAGES;
+            String packageName = packages[random.nextInt(packages.length)];
+            String fileName = random.nextInt(10) == 0
+                ? RESOURCES[random.nextInt(RESOURCES.length)]
+                : SIMPLE_NAMES[random.nextInt(SIMPLE_NAMES.length)] + ".class";
+            results.add(packageName + fileName);
+        }
+        paths = results.toArray(new String[results.size()]);
+        for (String path : paths) {
+            if (regex.accepts(path) != rules.accepts(path)) {
+                throw new IllegalStateException(path);
+            }
+        }
+    }
+
+    /**
+     * 正規表現ですべてのパスを判定する。
+     * @return 対象となったパスの数
+     */
+    @Benchmark
+    public int regex() {
+        return count(regex);
+    }
+
+    /**
+     * 規則の集合ですべてのパスを判定する。
+     * @return 対象となったパスの数
+     */
+    @Benchmark
+    public int rules() {
+        return count(rules);
+    }
+
+    private int count(Probe probe) {
+        int count = 0;
+        for (String path : paths) {
+            if (probe.accepts(path)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * {@link InterceptClassLoader#accepts(String)}を公開する。
+     */
+    static class Probe extends InterceptClassLoader {
+
+        Probe(PathRules includes) {
+            super(
+                PathRulesBenchmark.class.getClassLoader(),
+                includes,
+                Collections.<ClassLoaderDelegate>emptyList());
+        }
+
+        @Override
+        public boolean accepts(String path) {
+            return super.accepts(path);
+        }
+    }
+}
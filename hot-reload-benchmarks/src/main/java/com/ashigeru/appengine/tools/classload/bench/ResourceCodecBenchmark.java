@@ -0,0 +1,196 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ashigeru.appengine.tools.classload.InterceptClassLoader;
+import com.ashigeru.appengine.tools.classload.ResourceCodec;
+import com.ashigeru.appengine.tools.classload.ResourceStore;
+
+/**
+ * {@link ResourceCodec}による変換の、転送量とCPU時間のトレードオフを計測する。
+ * <p>
+ * 実際のクラスファイルを入力とし、{@code encode}と{@code decode}にかかる時間と、
+ * 変換前と変換後それぞれで扱ったバイト数の合計 ({@code rawBytes}, {@code storedBytes}) を報告する。
+ * 両者の比が、データストアとの間で転送するバイト数の削減率となる。
+ * {@link ResourceStore}と同様に、変換しても縮まないファイルは変換前の内容をそのまま保存したものとして数える。
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceCodecBenchmark {
+
+    /**
+     * 入力に利用するクラス。
+     */
+    private static final Class<?>[] SAMPLES = {
+        String.class,
+        java.util.HashMap.class,
+        java.util.ArrayList.class,
+        java.util.concurrent.ConcurrentHashMap.class,
+        java.util.regex.Pattern.class,
+        java.text.MessageFormat.class,
+        java.io.ObjectInputStream.class,
+        java.net.URL.class,
+        java.lang.Integer.class,
+        java.util.Collections.class,
+        InterceptClassLoader.class,
+        ResourceStore.class,
+        ResourceCodec.class,
+    };
+
+    /**
+     * 利用する変換方式の名前 ({@link ResourceCodec}の定数名)。
+     */
+    @Param({ "NONE", "DEFLATE" })
+    public String codecName;
+
+    private ResourceCodec codec;
+
+    private List<byte[]> raw;
+
+    private List<byte[]> stored;
+
+    private List<ResourceCodec> storedCodecs;
+
+    /**
+     * 入力を準備する。
+     * @throws Exception if occur
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        codec = (ResourceCodec) ResourceCodec.class.getField(codecName).get(null);
+        raw = new ArrayList<byte[]>();
+        stored = new ArrayList<byte[]>();
+        storedCodecs = new ArrayList<ResourceCodec>();
+        for (Class<?> aClass : SAMPLES) {
+            byte[] contents = load(aClass);
+            byte[] encoded = codec.encode(contents);
+            raw.add(contents);
+            if (encoded.length < contents.length) {
+                stored.add(encoded);
+                storedCodecs.add(codec);
+            }
+            else {
+                stored.add(contents);
+                storedCodecs.add(ResourceCodec.NONE);
+            }
+        }
+    }
+
+    /**
+     * すべての入力を変換する。
+     * @param counters 扱ったバイト数
+     * @return 変換後の合計バイト数
+     */
+    @Benchmark
+    public long encode(Bytes counters) {
+        long total = 0;
+        for (int i = 0, n = raw.size(); i < n; i++) {
+            byte[] contents = raw.get(i);
+            byte[] encoded = codec.encode(contents);
+            counters.rawBytes += contents.length;
+            counters.storedBytes += Math.min(encoded.length, contents.length);
+            total += encoded.length;
+        }
+        return total;
+    }
+
+    /**
+     * すべての変換済みの入力を復元する。
+     * @param counters 扱ったバイト数
+     * @return 復元後の合計バイト数
+     * @throws IOException if occur
+     */
+    @Benchmark
+    public long decode(Bytes counters) throws IOException {
+        long total = 0;
+        for (int i = 0, n = stored.size(); i < n; i++) {
+            byte[] encoded = stored.get(i);
+            byte[] contents = storedCodecs.get(i).decode(encoded);
+            counters.rawBytes += contents.length;
+            counters.storedBytes += encoded.length;
+            total += contents.length;
+        }
+        return total;
+    }
+
+    private static byte[] load(Class<?> aClass) throws IOException {
+        assert aClass != null;
+        String path = aClass.getName().replace('.', '/') + ".class";
+        InputStream input = ClassLoader.getSystemResourceAsStream(path);
+        if (input == null) {
+            throw new IOException(path);
+        }
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            while (true) {
+                int read = input.read(buf);
+                if (read < 0) {
+                    break;
+                }
+                output.write(buf, 0, read);
+            }
+            return output.toByteArray();
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * 計測期間中に扱ったバイト数。
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Bytes {
+
+        /**
+         * 変換前のバイト数。
+         */
+        public long rawBytes;
+
+        /**
+         * 保存される (転送される) バイト数。
+         */
+        public long storedBytes;
+    }
+}
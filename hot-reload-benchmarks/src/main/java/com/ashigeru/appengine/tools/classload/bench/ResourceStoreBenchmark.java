@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ashigeru.appengine.tools.classload.ResourceStore;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * {@link ResourceStore}の読み出しと書き出しにかかる時間を、ローカルのデータストアに対して計測する。
+ * <p>
+ * 単一のファイルと、{@link #BATCH_SIZE}個のファイルをまとめて扱う場合をそれぞれ計測する。
+ * 書き出しはスレッドごとに異なるパスに対して行う。
+ * ローカルのデータストアはネットワークを経由しないため、
+ * 計測される時間は主に変換や分割、一覧の更新など{@link ResourceStore}自身の処理にかかる時間となる。
+ * </p>
+ * <p>
+ * 複数スレッドでの計測と割り当て量の報告は{@link BenchmarkRunner}を参照。
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceStoreBenchmark {
+
+    /**
+     * まとめて扱うファイルの数。
+     */
+    static final int BATCH_SIZE = 20;
+
+    private static final String PREFIX = "bench/"; //$NON-NLS-1$
+
+    /**
+     * それぞれのファイルの大きさ (バイト)。
+     */
+    @Param({ "1024", "65536" })
+    public int contentSize;
+
+    private LocalServiceTestHelper testing;
+
+    private ApiProxy.Environment environment;
+
+    private ResourceStore store;
+
+    private byte[] content;
+
+    private List<String> batchPaths;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    /**
+     * ローカルのデータストアを起動し、読み出す対象のファイルを書き出す。
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        testing = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setNoStorage(true));
+        testing.setEnvAppId(getClass().getSimpleName());
+        testing.setUp();
+        environment = ApiProxy.getCurrentEnvironment();
+        store = new ResourceStore(DatastoreServiceFactory.getDatastoreService(), "Bench"); //$NON-NLS-1$
+        content = new byte[contentSize];
+        new Random(12345).nextBytes(content);
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        batchPaths = new ArrayList<String>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            String path = PREFIX + "file" + i + ".bin"; //$NON-NLS-1$ //$NON-NLS-2$
+            contents.put(path, content);
+            batchPaths.add(path);
+        }
+        store.put(contents);
+    }
+
+    /**
+     * ローカルのデータストアを停止する。
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        testing.tearDown();
+    }
+
+    /**
+     * 単一のファイルを読み出す。
+     * @param worker 実行中のスレッドの情報
+     * @return 読み出した内容
+     */
+    @Benchmark
+    public byte[] getSingle(Worker worker) {
+        return store.get(batchPaths.get(0));
+    }
+
+    /**
+     * 複数のファイルをまとめて読み出す。
+     * @param worker 実行中のスレッドの情報
+     * @return 読み出した内容
+     */
+    @Benchmark
+    public Map<String, byte[]> getBatch(Worker worker) {
+        return store.get(batchPaths);
+    }
+
+    /**
+     * 単一のファイルを書き出す。
+     * @param worker 実行中のスレッドの情報
+     */
+    @Benchmark
+    public void putSingle(Worker worker) {
+        store.put(worker.singlePath, content);
+    }
+
+    /**
+     * 複数のファイルをまとめて書き出す。
+     * @param worker 実行中のスレッドの情報
+     */
+    @Benchmark
+    public void putBatch(Worker worker) {
+        store.put(worker.batchContents);
+    }
+
+    /**
+     * 計測を行うスレッドごとの情報。
+     * <p>
+     * データストアの呼び出しに必要な環境をスレッドに設定し、書き出し先のパスを保持する。
+     * </p>
+     */
+    @State(Scope.Thread)
+    public static class Worker {
+
+        String singlePath;
+
+        Map<String, byte[]> batchContents;
+
+        /**
+         * スレッドを準備する。
+         * @param bench 計測の対象
+         */
+        @Setup(Level.Trial)
+        public void setUp(ResourceStoreBenchmark bench) {
+            ApiProxy.setEnvironmentForCurrentThread(bench.environment);
+            String prefix = PREFIX + "thread" + bench.threads.incrementAndGet() + "/"; //$NON-NLS-1$ //$NON-NLS-2$
+            singlePath = prefix + "single.bin"; //$NON-NLS-1$
+            batchContents = new LinkedHashMap<String, byte[]>();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batchContents.put(prefix + "file" + i + ".bin", bench.content); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+
+        /**
+         * スレッドの環境を破棄する。
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            ApiProxy.clearEnvironmentForCurrentThread();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+
+/**
+ * {@link ApiProxy}の実行環境を他のスレッドに引き継ぐ。
+ * <p>
+ * App Engineのサービスはスレッドごとに設定された実行環境を利用するため、
+ * 別のスレッドでサービスを呼び出す場合には、呼び出し元の実行環境をそのスレッドに設定する必要がある。
+ * </p>
+ */
+final class ApiEnvironments {
+
+    /**
+     * 現在のスレッドの実行環境を引き継いで、指定の処理を実行するオブジェクトを返す。
+     * <p>
+     * 返されたオブジェクトを実行するスレッドにすでに実行環境が設定されている場合、
+     * そのスレッドの実行環境をそのまま利用する。
+     * </p>
+     * @param task 対象の処理
+     * @return 実行環境を引き継いで処理を実行するオブジェクト
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    static Runnable inherit(final Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("task must not be null"); //$NON-NLS-1$
+        }
+        final Environment environment = ApiProxy.getCurrentEnvironment();
+        if (environment == null) {
+            return task;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (ApiProxy.getCurrentEnvironment() != null) {
+                    task.run();
+                    return;
+                }
+                ApiProxy.setEnvironmentForCurrentThread(environment);
+                try {
+                    task.run();
+                }
+                finally {
+                    ApiProxy.clearEnvironmentForCurrentThread();
+                }
+            }
+        };
+    }
+
+    /**
+     * 現在のスレッドの実行環境を引き継いで、指定のエグゼキュータ上ですべての処理を実行し、その完了を待つ。
+     * <p>
+     * 呼び出し元のスレッドは、エグゼキュータ上でまだ開始されていない処理を自身で実行してから待機する。
+     * このため、エグゼキュータ上の処理からこのメソッドを呼び出しても、スレッドの枯渇によってデッドロックしない。
+     * </p>
+     * <p>
+     * いずれかの処理が実行時例外やエラーをスローした場合、残りの処理の完了を待ってから、
+     * 最初に失敗した処理の例外を再スローする。
+     * 待機中に割り込まれた場合、割り込み状態を設定して直ちに復帰する。
+     * </p>
+     * @param executor 処理を実行するエグゼキュータ
+     * @param tasks 対象の処理
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    static void runAll(Executor executor, List<? extends Runnable> tasks) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null"); //$NON-NLS-1$
+        }
+        if (tasks == null) {
+            throw new IllegalArgumentException("tasks must not be null"); //$NON-NLS-1$
+        }
+        List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>();
+        for (Runnable task : tasks) {
+            FutureTask<Void> future = new FutureTask<Void>(task, null);
+            executor.execute(inherit(future));
+            futures.add(future);
+        }
+        for (FutureTask<Void> future : futures) {
+            // does nothing if the task was already started on the executor
+            future.run();
+        }
+        Throwable failure = null;
+        for (FutureTask<Void> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * 現在のスレッドの実行環境を引き継いで、指定のエグゼキュータ上で処理を開始し、その結果を表す{@link Future}を返す。
+     * <p>
+     * エグゼキュータに{@code null}が指定された場合、処理は呼び出し元のスレッドで直ちに実行され、
+     * 完了済みの{@link Future}が返される。
+     * 処理の中でスローされた例外は、{@link Future#get()}の{@link ExecutionException}として通知される。
+     * </p>
+     * @param <T> 処理結果の型
+     * @param executor 処理を実行するエグゼキュータ、呼び出し元のスレッドで実行する場合は{@code null}
+     * @param task 対象の処理
+     * @return 処理の結果
+     * @throws IllegalArgumentException 処理に{@code null}が指定された場合
+     */
+    static <T> Future<T> submit(Executor executor, Callable<T> task) {
+        if (task == null) {
+            throw new IllegalArgumentException("task must not be null"); //$NON-NLS-1$
+        }
+        FutureTask<T> future = new FutureTask<T>(task);
+        if (executor == null) {
+            future.run();
+        }
+        else {
+            executor.execute(inherit(future));
+        }
+        return future;
+    }
+
+    private ApiEnvironments() {
+        throw new AssertionError();
+    }
+}
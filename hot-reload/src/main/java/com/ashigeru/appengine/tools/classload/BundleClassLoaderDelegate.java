@@ -0,0 +1,216 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link ResourceStore}に保存された{@link ClassBundle}からクラスパス上の情報を取得する。
+ * <p>
+ * 連結された内容は最初に必要になった時点で{@link ResourceStore#loadBundle()}によってまとめて読み出され、
+ * 以降の探索ではデータストアにアクセスしない。
+ * {@link #findResourceAsStream(String)}や{@link #findAllResources(String)}は、
+ * 読み出した内容を複製せずに参照するストリームやURLを返す。
+ * </p>
+ * <p>
+ * 保存された内容のリビジョンが指定のリビジョンと異なる場合、この委譲先はなにも発見しない。
+ * 連結された内容に含まれないファイルを扱うため、通常は{@link DatastoreClassLoaderDelegate}の前に配置して利用する。
+ * </p>
+ * @see ResourceUploader#setBundle(boolean)
+ */
+public class BundleClassLoaderDelegate extends ClassLoaderDelegate {
+
+    private final ResourceStore datastore;
+
+    private final String revision;
+
+    private volatile ClassBundle bundle;
+
+    private final Object loadLock = new Object();
+
+    /**
+     * インスタンスを生成する。
+     * @param datastore 連結された内容を保持する
+     * @param revision 利用する内容のリビジョン、リビジョンによらず利用する場合は{@code null}
+     * @throws IllegalArgumentException {@code datastore}に{@code null}が指定された場合
+     */
+    public BundleClassLoaderDelegate(ResourceStore datastore, String revision) {
+        if (datastore == null) {
+            throw new IllegalArgumentException("datastore must not be null"); //$NON-NLS-1$
+        }
+        this.datastore = datastore;
+        this.revision = revision;
+    }
+
+    /**
+     * 読み出した内容を返す。
+     * <p>
+     * まだ読み出していない場合、このメソッドはデータストアから内容を読み出す。
+     * </p>
+     * @return 読み出した内容、存在しない場合やリビジョンが異なる場合は{@code null}
+     */
+    public ClassBundle getBundle() {
+        ClassBundle loaded = bundle;
+        if (loaded != null) {
+            return toAvailable(loaded);
+        }
+        synchronized (loadLock) {
+            loaded = bundle;
+            if (loaded == null) {
+                loaded = datastore.loadBundle();
+                if (loaded == null) {
+                    loaded = ClassBundle.empty();
+                }
+                bundle = loaded;
+            }
+        }
+        return toAvailable(loaded);
+    }
+
+    private ClassBundle toAvailable(ClassBundle loaded) {
+        assert loaded != null;
+        if (loaded.size() == 0) {
+            return null;
+        }
+        if (revision != null && revision.equals(loaded.getRevision()) == false) {
+            return null;
+        }
+        return loaded;
+    }
+
+    private ByteBuffer find(String path) {
+        assert path != null;
+        ClassBundle available = getBundle();
+        if (available == null) {
+            return null;
+        }
+        return available.get(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 連結された内容をすでに読み出している場合のみ、それに含まれないパスについて{@code true}を返す。
+     * </p>
+     */
+    @Override
+    public boolean isKnownMissing(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        ClassBundle loaded = bundle;
+        if (loaded == null) {
+            return false;
+        }
+        ClassBundle available = toAvailable(loaded);
+        return available == null || available.contains(path) == false;
+    }
+
+    @Override
+    public List<String> listResources(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        ClassBundle available = getBundle();
+        if (available == null) {
+            return Collections.emptyList();
+        }
+        return available.list(prefix);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 連結された内容をまだ読み出していない場合、このメソッドはそれをまとめて読み出す。
+     * </p>
+     */
+    @Override
+    public void prefetch(Collection<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+        }
+        if (paths.isEmpty() == false) {
+            getBundle();
+        }
+    }
+
+    @Override
+    public byte[] findClass(String binaryName) {
+        ByteBuffer contents = findClassBuffer(binaryName);
+        if (contents == null) {
+            return null;
+        }
+        byte[] results = new byte[contents.remaining()];
+        contents.get(results);
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 返されるバッファは連結した内容を複製せずに参照する。
+     * </p>
+     */
+    @Override
+    public ByteBuffer findClassBuffer(String binaryName) {
+        if (binaryName == null) {
+            throw new IllegalArgumentException("name must not be null"); //$NON-NLS-1$
+        }
+        return find(InterceptClassLoader.toClassFilePath(binaryName));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 返されるURLは読み出した内容を複製せずに参照しており、
+     * {@link URL#openStream()}はデータストアにアクセスせずにその内容を返す。
+     * </p>
+     */
+    @Override
+    public Iterable<URL> findAllResources(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        ByteBuffer contents = find(path);
+        if (contents == null) {
+            return Collections.emptyList();
+        }
+        URL url = ResourceURLStreamHandler.createUrl(datastore.getKindName(), path, contents);
+        return Collections.singletonList(url);
+    }
+
+    @Override
+    public InputStream findResourceAsStream(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        ByteBuffer contents = find(path);
+        if (contents == null) {
+            return null;
+        }
+        return new ByteBufferInputStream(contents);
+    }
+
+    @Override
+    public String toString() {
+        return "BundleClassLoaderDelegate(" + datastore.getKindName() + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ByteBuffer}の残りの内容を、複製せずに読み出すストリーム。
+ * <p>
+ * 読み出しは指定のバッファの{@link ByteBuffer#duplicate() 複製}に対して行うため、
+ * 元のバッファの位置は変化しない。
+ * </p>
+ */
+final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * インスタンスを生成する。
+     * @param buffer 読み出す内容
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    ByteBufferInputStream(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer must not be null"); //$NON-NLS-1$
+        }
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+        if (buffer.hasRemaining() == false) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int remaining = buffer.remaining();
+        if (remaining == 0) {
+            return -1;
+        }
+        int count = Math.min(len, remaining);
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        int count = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 他の{@link ClassLoaderDelegate}が返す内容を、サイズの上限付きでメモリ上にキャッシュする。
+ * <p>
+ * {@link #findClass(String)}や{@link #findResourceAsStream(String)}が返すバイナリと、
+ * {@link #findAllResources(String)}が返すURL一覧は、それぞれのおおよそのバイト数を重みとして、
+ * 最も長く利用されていないものから順に破棄される。
+ * このオブジェクトは複数の{@link InterceptClassLoader}から共有して利用でき、
+ * クラスローダの世代をまたいでキャッシュの内容を再利用できる。
+ * 世代ごとに委譲先を生成する場合は、{@link #withDelegate(ClassLoaderDelegate)}で
+ * キャッシュの内容を共有したまま委譲先のみを差し替えられる。
+ * </p>
+ * <p>
+ * 委譲先の内容が変更された場合、このオブジェクトはそれを自動的には検出しない。
+ * キャッシュした内容はそれぞれのハッシュ値 ({@link ResourceManifest#computeHash(byte[])}) とともに保持されるため、
+ * 新しいリビジョンの{@link ResourceManifest}を{@link #invalidate(ResourceManifest)}に渡せば、
+ * 変更されたファイルのみを破棄できる。
+ * 一覧が得られない場合は{@link #clear()}ですべてを破棄すること。
+ * また、見つからなかったクラスやリソースはキャッシュしない。
+ * </p>
+ * <p>
+ * キャッシュした配列は外部に公開されず、{@link #findClass(String)}は複製を、
+ * {@link #findClassBuffer(String)}は読み出し専用のバッファを返す。
+ * </p>
+ * <p>
+ * このクラスのメソッドはスレッド安全である。
+ * </p>
+ */
+public class CachingClassLoaderDelegate extends ClassLoaderDelegate {
+
+    /**
+     * キャッシュの各要素について、内容以外に加算する重み (バイト数)。
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final ClassLoaderDelegate delegate;
+
+    private final Storage storage;
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     * 単一の内容が容量の1/8を超える場合、その内容はキャッシュされない。
+     * </p>
+     * @param delegate 実際に内容を取得する委譲先
+     * @param capacity キャッシュに保持する内容の合計の最大バイト数
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合、
+     *     または容量に0以下の値が指定された場合
+     */
+    public CachingClassLoaderDelegate(ClassLoaderDelegate delegate, long capacity) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate must not be null"); //$NON-NLS-1$
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0"); //$NON-NLS-1$
+        }
+        this.delegate = delegate;
+        this.storage = new Storage(capacity);
+    }
+
+    private CachingClassLoaderDelegate(ClassLoaderDelegate delegate, Storage storage) {
+        assert delegate != null;
+        assert storage != null;
+        this.delegate = delegate;
+        this.storage = storage;
+    }
+
+    /**
+     * このオブジェクトとキャッシュの内容や統計情報を共有し、指定の委譲先に問い合わせる新しいオブジェクトを返す。
+     * <p>
+     * クラスローダの世代ごとに委譲先を生成しつつ、キャッシュの内容を世代をまたいで再利用する場合に利用する。
+     * </p>
+     * @param other 新しい委譲先
+     * @return キャッシュの内容を共有するオブジェクト
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public CachingClassLoaderDelegate withDelegate(ClassLoaderDelegate other) {
+        if (other == null) {
+            throw new IllegalArgumentException("other must not be null"); //$NON-NLS-1$
+        }
+        return new CachingClassLoaderDelegate(other, storage);
+    }
+
+    /**
+     * キャッシュから内容を返せた回数を返す。
+     * @return キャッシュから内容を返せた回数
+     */
+    public long getHitCount() {
+        return storage.hitCount.get();
+    }
+
+    /**
+     * キャッシュに内容がなく、委譲先に問い合わせた回数を返す。
+     * @return 委譲先に問い合わせた回数
+     */
+    public long getMissCount() {
+        return storage.missCount.get();
+    }
+
+    /**
+     * 現在キャッシュに保持している内容の合計のおおよそのバイト数を返す。
+     * @return 保持している内容の重み
+     */
+    public long getWeight() {
+        synchronized (storage) {
+            return storage.weight;
+        }
+    }
+
+    /**
+     * キャッシュに保持しているすべての内容を破棄する。
+     */
+    public void clear() {
+        synchronized (storage) {
+            storage.entries.clear();
+            storage.weight = 0;
+        }
+    }
+
+    /**
+     * キャッシュに保持している内容のうち、指定の一覧に記録されたハッシュ値と一致しないものを破棄する。
+     * <p>
+     * 一覧に含まれないパスの内容と、内容を持たないURL一覧のみの要素も破棄される。
+     * 一覧が{@link ResourceManifest#isComplete() 完全}でない場合、
+     * 記録されたハッシュ値が最新であることを保証できないため、すべての内容を破棄する。
+     * </p>
+     * @param manifest 新しいリビジョンのファイルの一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public void invalidate(ResourceManifest manifest) {
+        if (manifest == null) {
+            throw new IllegalArgumentException("manifest must not be null"); //$NON-NLS-1$
+        }
+        if (manifest.isComplete() == false) {
+            clear();
+            return;
+        }
+        synchronized (storage) {
+            Iterator<Map.Entry<String, Entry>> iter = storage.entries.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, Entry> next = iter.next();
+                Entry entry = next.getValue();
+                ResourceManifest.Entry current = manifest.get(next.getKey());
+                if (entry.hash == null || current == null || entry.hash.equals(current.getHash()) == false) {
+                    iter.remove();
+                    storage.weight -= entry.weight;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isKnownMissing(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        return delegate.isKnownMissing(path);
+    }
+
+    @Override
+    public Collection<String> getOwnedPrefixes() {
+        return delegate.getOwnedPrefixes();
+    }
+
+    @Override
+    public List<String> listResources(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        return delegate.listResources(prefix);
+    }
+
+    @Override
+    public void prefetch(Collection<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+        }
+        List<String> targets = new ArrayList<String>();
+        for (String path : paths) {
+            if (getEntry(path) == null) {
+                targets.add(path);
+            }
+        }
+        if (targets.isEmpty() == false) {
+            delegate.prefetch(targets);
+        }
+    }
+
+    @Override
+    public byte[] findClass(String binaryName) {
+        if (binaryName == null) {
+            throw new IllegalArgumentException("binaryName must not be null"); //$NON-NLS-1$
+        }
+        String path = InterceptClassLoader.toClassFilePath(binaryName);
+        Entry cached = getEntry(path);
+        if (cached != null && cached.contents != null) {
+            storage.hitCount.incrementAndGet();
+            return cached.contents.clone();
+        }
+        storage.missCount.incrementAndGet();
+        byte[] contents = delegate.findClass(binaryName);
+        if (contents != null && contents.length <= storage.maxEntryWeight) {
+            // the caller may modify the returned array
+            putContents(path, contents.clone());
+        }
+        return contents;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * キャッシュに保持した内容は複製せずに、読み出し専用のバッファで包んで返す。
+     * 委譲先から取得した内容は、キャッシュに保持する場合のみ一度だけ複製される。
+     * </p>
+     */
+    @Override
+    public ByteBuffer findClassBuffer(String binaryName) {
+        if (binaryName == null) {
+            throw new IllegalArgumentException("binaryName must not be null"); //$NON-NLS-1$
+        }
+        String path = InterceptClassLoader.toClassFilePath(binaryName);
+        Entry cached = getEntry(path);
+        if (cached != null && cached.contents != null) {
+            storage.hitCount.incrementAndGet();
+            return ByteBuffer.wrap(cached.contents).asReadOnlyBuffer();
+        }
+        storage.missCount.incrementAndGet();
+        ByteBuffer found = delegate.findClassBuffer(binaryName);
+        if (found == null || found.remaining() > storage.maxEntryWeight) {
+            return found;
+        }
+        byte[] contents = new byte[found.remaining()];
+        found.get(contents);
+        putContents(path, contents);
+        return ByteBuffer.wrap(contents).asReadOnlyBuffer();
+    }
+
+    @Override
+    public InputStream findResourceAsStream(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        Entry cached = getEntry(path);
+        if (cached != null && cached.contents != null) {
+            storage.hitCount.incrementAndGet();
+            return new ByteArrayInputStream(cached.contents);
+        }
+        storage.missCount.incrementAndGet();
+        InputStream stream = delegate.findResourceAsStream(path);
+        if (stream == null) {
+            return null;
+        }
+        return cacheStream(path, stream);
+    }
+
+    @Override
+    public Iterable<URL> findAllResources(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        Entry cached = getEntry(path);
+        if (cached != null && cached.locations != null) {
+            storage.hitCount.incrementAndGet();
+            return cached.locations;
+        }
+        storage.missCount.incrementAndGet();
+        Iterable<URL> found = delegate.findAllResources(path);
+        if (found == null) {
+            return Collections.emptyList();
+        }
+        List<URL> locations = new ArrayList<URL>();
+        for (URL url : found) {
+            locations.add(url);
+        }
+        if (locations.isEmpty() == false) {
+            putLocations(path, Collections.unmodifiableList(locations));
+        }
+        return locations;
+    }
+
+    private InputStream cacheStream(String path, InputStream stream) {
+        assert path != null;
+        assert stream != null;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        try {
+            while (true) {
+                int read = stream.read(chunk);
+                if (read < 0) {
+                    break;
+                }
+                buffer.write(chunk, 0, read);
+                if (buffer.size() > storage.maxEntryWeight) {
+                    // too large to cache, returns the rest without buffering
+                    return new SequenceInputStream(
+                        new ByteArrayInputStream(buffer.toByteArray()),
+                        stream);
+                }
+            }
+        }
+        catch (IOException e) {
+            close(stream);
+            return null;
+        }
+        close(stream);
+        byte[] contents = buffer.toByteArray();
+        putContents(path, contents);
+        return new ByteArrayInputStream(contents);
+    }
+
+    private static void close(InputStream stream) {
+        assert stream != null;
+        try {
+            stream.close();
+        }
+        catch (IOException e) {
+            // ignored.
+        }
+    }
+
+    private Entry getEntry(String path) {
+        assert path != null;
+        synchronized (storage) {
+            return storage.entries.get(path);
+        }
+    }
+
+    private void putContents(String path, byte[] contents) {
+        assert path != null;
+        assert contents != null;
+        String hash = ResourceManifest.computeHash(contents);
+        synchronized (storage) {
+            Entry current = storage.entries.get(path);
+            List<URL> locations = current == null ? null : current.locations;
+            storage.put(path, new Entry(path, contents, hash, locations));
+        }
+    }
+
+    private void putLocations(String path, List<URL> locations) {
+        assert path != null;
+        assert locations != null;
+        synchronized (storage) {
+            Entry current = storage.entries.get(path);
+            byte[] contents = current == null ? null : current.contents;
+            String hash = current == null ? null : current.hash;
+            storage.put(path, new Entry(path, contents, hash, locations));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CachingClassLoaderDelegate(" + delegate + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * {@link #withDelegate(ClassLoaderDelegate)}で生成したオブジェクト間で共有する、キャッシュの内容と統計情報。
+     */
+    private static class Storage {
+
+        final long capacity;
+
+        final long maxEntryWeight;
+
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        long weight;
+
+        final AtomicLong hitCount = new AtomicLong();
+
+        final AtomicLong missCount = new AtomicLong();
+
+        Storage(long capacity) {
+            assert capacity > 0;
+            this.capacity = capacity;
+            this.maxEntryWeight = Math.max(1L, capacity / 8);
+        }
+
+        void put(String path, Entry entry) {
+            assert Thread.holdsLock(this);
+            assert path != null;
+            assert entry != null;
+            if (entry.weight > maxEntryWeight) {
+                return;
+            }
+            Entry old = entries.put(path, entry);
+            if (old != null) {
+                weight -= old.weight;
+            }
+            weight += entry.weight;
+            Iterator<Entry> iter = entries.values().iterator();
+            while (weight > capacity && iter.hasNext()) {
+                Entry eldest = iter.next();
+                iter.remove();
+                weight -= eldest.weight;
+            }
+        }
+    }
+
+    /**
+     * キャッシュの要素。
+     */
+    private static class Entry {
+
+        final byte[] contents;
+
+        final String hash;
+
+        final List<URL> locations;
+
+        final long weight;
+
+        Entry(String path, byte[] contents, String hash, List<URL> locations) {
+            assert path != null;
+            assert (contents == null) == (hash == null);
+            this.contents = contents;
+            this.hash = hash;
+            this.locations = locations;
+            long total = ENTRY_OVERHEAD + path.length() * 2L;
+            if (contents != null) {
+                total += contents.length + hash.length() * 2L;
+            }
+            if (locations != null) {
+                for (URL url : locations) {
+                    total += ENTRY_OVERHEAD + url.toExternalForm().length() * 2L;
+                    // the URL may retain the whole contents
+                    total += ResourceURLStreamHandler.getRetainedSize(url);
+                }
+            }
+            this.weight = total;
+        }
+    }
+}
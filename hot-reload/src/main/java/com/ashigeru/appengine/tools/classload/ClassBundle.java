@@ -0,0 +1,294 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 複数のクラスファイルやリソースの内容を連結し、パスから内容の位置を引く索引を付けたもの。
+ * <p>
+ * 全体は単一のバイト列として{@link ResourceStore#putBundle(String, Map)}で保存され、
+ * {@link ResourceStore#loadBundle()}で少数のバッチ取得によってまとめて読み出される。
+ * 読み出した後の各ファイルの内容は、全体のバイト列を複製せずに参照する{@link ByteBuffer}として返される。
+ * </p>
+ * <p>
+ * バイト列の形式は次のとおりで、数値はすべてビッグエンディアンで表す。
+ * </p>
+ * <ol>
+ * <li> 識別子 ({@code int}) </li>
+ * <li> ファイルの数 ({@code int}) </li>
+ * <li> 索引のバイト数 ({@code int}) </li>
+ * <li> 索引 - パスの昇順に、パス ({@link DataOutputStream#writeUTF(String)}の形式)、
+ *     内容の開始位置 ({@code int})、内容のバイト数 ({@code int}) を並べたもの </li>
+ * <li> 内容 - 各ファイルの内容を連結したもの、開始位置は索引の直後からの相対位置 </li>
+ * </ol>
+ * <p>
+ * このクラスのオブジェクトは不変であり、複数のスレッドから同時に利用できる。
+ * </p>
+ * @see BundleClassLoaderDelegate
+ */
+public final class ClassBundle {
+
+    private static final int MAGIC = 0x48524231; // HRB1
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final ClassBundle EMPTY = new ClassBundle(
+        null,
+        ByteBuffer.allocate(0).asReadOnlyBuffer(),
+        new String[0],
+        new int[0],
+        new int[0]);
+
+    private final String revision;
+
+    private final ByteBuffer contents;
+
+    private final String[] paths;
+
+    private final int[] offsets;
+
+    private final int[] lengths;
+
+    private ClassBundle(
+            String revision,
+            ByteBuffer contents,
+            String[] paths,
+            int[] offsets,
+            int[] lengths) {
+        assert contents != null;
+        assert paths != null;
+        assert offsets != null;
+        assert lengths != null;
+        this.revision = revision;
+        this.contents = contents;
+        this.paths = paths;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * ファイルを含まない空のオブジェクトを返す。
+     * @return 空のオブジェクト
+     */
+    public static ClassBundle empty() {
+        return EMPTY;
+    }
+
+    /**
+     * 指定のファイル群を連結したバイト列を返す。
+     * @param pathAndContents パスと内容の一覧
+     * @return 連結したバイト列
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合、
+     *     または連結したバイト列が大きすぎる場合
+     */
+    static byte[] encode(Map<String, byte[]> pathAndContents) {
+        if (pathAndContents == null) {
+            throw new IllegalArgumentException("pathAndContents must not be null"); //$NON-NLS-1$
+        }
+        TreeMap<String, byte[]> sorted = new TreeMap<String, byte[]>(pathAndContents);
+        try {
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            long offset = 0;
+            for (Map.Entry<String, byte[]> entry : sorted.entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null) {
+                    throw new IllegalArgumentException("pathAndContents must not contain null"); //$NON-NLS-1$
+                }
+                index.writeUTF(entry.getKey());
+                index.writeInt((int) offset);
+                index.writeInt(entry.getValue().length);
+                offset += entry.getValue().length;
+            }
+            index.flush();
+            long total = HEADER_SIZE + indexBytes.size() + offset;
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(MessageFormat.format(
+                    "Bundle is too large: {0} bytes", //$NON-NLS-1$
+                    total));
+            }
+            ByteBuffer results = ByteBuffer.allocate((int) total);
+            results.putInt(MAGIC);
+            results.putInt(sorted.size());
+            results.putInt(indexBytes.size());
+            results.put(indexBytes.toByteArray());
+            for (byte[] bytes : sorted.values()) {
+                results.put(bytes);
+            }
+            assert results.hasRemaining() == false;
+            return results.array();
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * {@link #encode(Map)}で連結したバイト列を復元する。
+     * <p>
+     * 返されるオブジェクトは指定のバイト列を複製せずに参照する。
+     * </p>
+     * @param revision 対応するリビジョン、不明な場合は{@code null}
+     * @param bytes 連結したバイト列
+     * @return 復元したオブジェクト
+     * @throws IllegalArgumentException バイト列の形式が正しくない場合、
+     *     または{@code bytes}に{@code null}が指定された場合
+     */
+    static ClassBundle decode(String revision, byte[] bytes) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("bytes must not be null"); //$NON-NLS-1$
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Invalid bundle header"); //$NON-NLS-1$
+        }
+        int count = buffer.getInt();
+        int indexSize = buffer.getInt();
+        if (count < 0 || indexSize < 0 || indexSize > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid bundle header"); //$NON-NLS-1$
+        }
+        ByteBuffer indexBuffer = buffer.slice();
+        indexBuffer.limit(indexSize);
+        buffer.position(buffer.position() + indexSize);
+        ByteBuffer contents = buffer.slice().asReadOnlyBuffer();
+        String[] paths = new String[count];
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        DataInputStream index = new DataInputStream(new ByteBufferInputStream(indexBuffer));
+        try {
+            for (int i = 0; i < count; i++) {
+                paths[i] = index.readUTF();
+                offsets[i] = index.readInt();
+                lengths[i] = index.readInt();
+                if (offsets[i] < 0
+                        || lengths[i] < 0
+                        || (long) offsets[i] + lengths[i] > contents.capacity()
+                        || (i > 0 && paths[i - 1].compareTo(paths[i]) >= 0)) {
+                    throw new IllegalArgumentException(MessageFormat.format(
+                        "Invalid bundle entry: {0}", //$NON-NLS-1$
+                        paths[i]));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Invalid bundle index", e); //$NON-NLS-1$
+        }
+        return new ClassBundle(revision, contents, paths, offsets, lengths);
+    }
+
+    /**
+     * このオブジェクトに対応するリビジョンを返す。
+     * @return 対応するリビジョン、不明な場合は{@code null}
+     * @see ResourceStore#getRevision()
+     */
+    public String getRevision() {
+        return revision;
+    }
+
+    /**
+     * 指定のパスに対応するファイルが含まれる場合のみ{@code true}を返す。
+     * @param path 対象のパス
+     * @return 含まれる場合のみ{@code true}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public boolean contains(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        return Arrays.binarySearch(paths, path) >= 0;
+    }
+
+    /**
+     * 指定のパスに対応するファイルの内容を返す。
+     * <p>
+     * 返されるバッファは読み出し専用で、全体のバイト列を複製せずに参照する。
+     * バッファの位置や制限を変更しても、このオブジェクトには影響しない。
+     * </p>
+     * @param path 対象のパス
+     * @return 対応するファイルの内容、含まれない場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public ByteBuffer get(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        int index = Arrays.binarySearch(paths, path);
+        if (index < 0) {
+            return null;
+        }
+        ByteBuffer results = contents.duplicate();
+        results.position(offsets[index]);
+        results.limit(offsets[index] + lengths[index]);
+        return results.slice();
+    }
+
+    /**
+     * 指定の文字列から始まるパスの一覧を、パスの昇順に返す。
+     * @param prefix 対象のパスの接頭辞、すべてのファイルを対象とする場合は空文字列
+     * @return 対象のパス一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public List<String> list(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        int start = Arrays.binarySearch(paths, prefix);
+        if (start < 0) {
+            start = -(start + 1);
+        }
+        List<String> results = new ArrayList<String>();
+        for (int i = start; i < paths.length && paths[i].startsWith(prefix); i++) {
+            results.add(paths[i]);
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * 含まれるファイルの数を返す。
+     * @return 含まれるファイルの数
+     */
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * 含まれるファイルの内容の合計バイト数を返す。
+     * @return 内容の合計バイト数
+     */
+    public int getContentSize() {
+        return contents.capacity();
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format(
+            "ClassBundle(revision={0}, size={1}, bytes={2})", //$NON-NLS-1$
+            revision,
+            paths.length,
+            contents.capacity());
+    }
+}
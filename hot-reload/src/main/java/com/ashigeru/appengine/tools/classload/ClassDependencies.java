@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * {@link ResourceStore}に保存されたクラスファイル間の参照関係。
+ * <p>
+ * {@link #update(ResourceStore, ResourceManifest)}は一覧のハッシュ値が前回から変化したクラスファイルのみを読み出して解析するため、
+ * 2回目以降の更新にかかる時間は変更されたファイルの数に比例する。
+ * </p>
+ * <p>
+ * このクラスのオブジェクトはスレッドセーフではない。
+ * </p>
+ */
+final class ClassDependencies {
+
+    private static final String CLASS_EXTENSION = ".class"; //$NON-NLS-1$
+
+    private final Pattern includes;
+
+    private final Map<String, String> hashes = new HashMap<String, String>();
+
+    private final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+
+    private final Map<String, Set<String>> referrers = new HashMap<String, Set<String>>();
+
+    /**
+     * インスタンスを生成する。
+     * @param includes 対象とするクラスファイルのパスの形式
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    ClassDependencies(Pattern includes) {
+        if (includes == null) {
+            throw new IllegalArgumentException("includes must not be null"); //$NON-NLS-1$
+        }
+        this.includes = includes;
+    }
+
+    /**
+     * 対象とするクラスファイルの数を返す。
+     * @return 対象とするクラスファイルの数
+     */
+    int size() {
+        return hashes.size();
+    }
+
+    /**
+     * 指定のクラスファイルの一覧に合わせて参照関係を更新する。
+     * @param store クラスファイルを保持する
+     * @param manifest {@code store}に保存されたファイルの一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    void update(ResourceStore store, ResourceManifest manifest) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null"); //$NON-NLS-1$
+        }
+        if (manifest == null) {
+            throw new IllegalArgumentException("manifest must not be null"); //$NON-NLS-1$
+        }
+        Map<String, String> targets = getClassHashes(manifest);
+        for (String path : new ArrayList<String>(hashes.keySet())) {
+            if (targets.containsKey(path) == false) {
+                hashes.remove(path);
+                setReferences(path, Collections.<String>emptySet());
+            }
+        }
+        List<String> stale = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : targets.entrySet()) {
+            if (entry.getValue().equals(hashes.get(entry.getKey())) == false) {
+                stale.add(entry.getKey());
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, byte[]> entry : store.get(stale).entrySet()) {
+            String path = entry.getKey();
+            byte[] contents = entry.getValue();
+            hashes.put(path, ResourceManifest.computeHash(contents));
+            setReferences(path, parse(contents));
+        }
+    }
+
+    /**
+     * 指定のファイル一覧に含まれる、対象のクラスファイルのパスと内容のハッシュ値を返す。
+     * @param manifest 対象の一覧
+     * @return 対象のクラスファイルのパスと内容のハッシュ値
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    Map<String, String> getClassHashes(ResourceManifest manifest) {
+        if (manifest == null) {
+            throw new IllegalArgumentException("manifest must not be null"); //$NON-NLS-1$
+        }
+        Map<String, String> results = new HashMap<String, String>();
+        for (ResourceManifest.Entry entry : manifest.getEntries()) {
+            String path = entry.getPath();
+            if (path.endsWith(CLASS_EXTENSION) && includes.matcher(path).matches()) {
+                results.put(path, entry.getHash());
+            }
+        }
+        return results;
+    }
+
+    private static Set<String> parse(byte[] contents) {
+        assert contents != null;
+        try {
+            return ClassFileReferences.getReferencedPaths(contents);
+        }
+        catch (IllegalArgumentException e) {
+            // not a valid class file, it will fail to be defined anyway
+            return Collections.emptySet();
+        }
+    }
+
+    private void setReferences(String path, Set<String> targets) {
+        assert path != null;
+        assert targets != null;
+        Set<String> old = references.remove(path);
+        if (old != null) {
+            for (String target : old) {
+                Set<String> sources = referrers.get(target);
+                if (sources != null) {
+                    sources.remove(path);
+                    if (sources.isEmpty()) {
+                        referrers.remove(target);
+                    }
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        references.put(path, targets);
+        for (String target : targets) {
+            Set<String> sources = referrers.get(target);
+            if (sources == null) {
+                sources = new HashSet<String>();
+                referrers.put(target, sources);
+            }
+            sources.add(path);
+        }
+    }
+
+    /**
+     * 指定のクラスファイルと、それらを推移的に参照するクラスファイルのパスをすべて返す。
+     * @param changed 変更されたクラスファイルのパス
+     * @return 影響を受けるクラスファイルのパス ({@code changed}自身を含む)
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    Set<String> getAffected(Collection<String> changed) {
+        if (changed == null) {
+            throw new IllegalArgumentException("changed must not be null"); //$NON-NLS-1$
+        }
+        Set<String> results = new HashSet<String>(changed);
+        LinkedList<String> work = new LinkedList<String>(changed);
+        while (work.isEmpty() == false) {
+            Set<String> sources = referrers.get(work.removeFirst());
+            if (sources == null) {
+                continue;
+            }
+            for (String source : sources) {
+                if (results.add(source)) {
+                    work.add(source);
+                }
+            }
+        }
+        return results;
+    }
+}
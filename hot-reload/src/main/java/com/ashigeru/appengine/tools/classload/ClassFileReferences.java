@@ -0,0 +1,215 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * クラスファイルのコンスタントプールから、そのクラスが参照するクラスの一覧を取り出す。
+ * <p>
+ * 参照は、コンスタントプールのクラス情報 ({@code CONSTANT_Class}) と、
+ * 文字列情報 ({@code CONSTANT_Utf8}) に含まれる型記述子 ({@code Lcom/example/Hello;}の形式) から取り出す。
+ * 型記述子の判定は保守的に行うため、実際には参照しないクラスが含まれる場合がある。
+ * </p>
+ */
+final class ClassFileReferences {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static final int CONSTANT_INTEGER = 3;
+
+    private static final int CONSTANT_FLOAT = 4;
+
+    private static final int CONSTANT_LONG = 5;
+
+    private static final int CONSTANT_DOUBLE = 6;
+
+    private static final int CONSTANT_CLASS = 7;
+
+    private static final int CONSTANT_STRING = 8;
+
+    private static final int CONSTANT_FIELDREF = 9;
+
+    private static final int CONSTANT_METHODREF = 10;
+
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+
+    private static final int CONSTANT_METHOD_TYPE = 16;
+
+    private static final int CONSTANT_DYNAMIC = 17;
+
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+    private static final int CONSTANT_MODULE = 19;
+
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private ClassFileReferences() {
+        throw new AssertionError();
+    }
+
+    /**
+     * 指定のクラスファイルが参照するクラスのファイルパスを返す。
+     * <p>
+     * 返されるパスは{@link InterceptClassLoader#toClassFilePath(String)}と同じ形式で、
+     * クラス自身のパスは含まない。
+     * </p>
+     * @param contents クラスファイルの内容
+     * @return 参照するクラスのファイルパス
+     * @throws IllegalArgumentException 内容がクラスファイルとして解釈できない場合
+     */
+    static Set<String> getReferencedPaths(byte[] contents) {
+        if (contents == null) {
+            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        }
+        try {
+            return parse(new DataInputStream(new ByteArrayInputStream(contents)));
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("invalid class file", e); //$NON-NLS-1$
+        }
+    }
+
+    private static Set<String> parse(DataInputStream in) throws IOException {
+        assert in != null;
+        if (in.readInt() != MAGIC) {
+            throw new IOException("bad magic number"); //$NON-NLS-1$
+        }
+        in.readUnsignedShort(); // minor_version
+        in.readUnsignedShort(); // major_version
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNames = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case CONSTANT_UTF8:
+                utf8[i] = in.readUTF();
+                break;
+            case CONSTANT_CLASS:
+                classNames[i] = in.readUnsignedShort();
+                break;
+            case CONSTANT_STRING:
+            case CONSTANT_METHOD_TYPE:
+            case CONSTANT_MODULE:
+            case CONSTANT_PACKAGE:
+                in.skipBytes(2);
+                break;
+            case CONSTANT_METHOD_HANDLE:
+                in.skipBytes(3);
+                break;
+            case CONSTANT_INTEGER:
+            case CONSTANT_FLOAT:
+            case CONSTANT_FIELDREF:
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACE_METHODREF:
+            case CONSTANT_NAME_AND_TYPE:
+            case CONSTANT_DYNAMIC:
+            case CONSTANT_INVOKE_DYNAMIC:
+                in.skipBytes(4);
+                break;
+            case CONSTANT_LONG:
+            case CONSTANT_DOUBLE:
+                in.skipBytes(8);
+                i++; // occupies two entries
+                break;
+            default:
+                throw new IOException("unknown constant pool tag: " + tag); //$NON-NLS-1$
+            }
+        }
+        in.readUnsignedShort(); // access_flags
+        int thisClass = in.readUnsignedShort();
+
+        Set<String> results = new TreeSet<String>();
+        for (int i = 1; i < count; i++) {
+            if (classNames[i] == 0) {
+                continue;
+            }
+            String name = at(utf8, classNames[i]);
+            if (name.startsWith("[")) { //$NON-NLS-1$
+                addDescriptorTypes(name, results);
+            }
+            else {
+                results.add(name);
+            }
+        }
+        for (String value : utf8) {
+            if (value != null && value.indexOf(';') >= 0) {
+                addDescriptorTypes(value, results);
+            }
+        }
+        if (thisClass <= 0 || thisClass >= count || classNames[thisClass] == 0) {
+            throw new IOException("invalid this_class: " + thisClass); //$NON-NLS-1$
+        }
+        results.remove(at(utf8, classNames[thisClass]));
+        Set<String> paths = new TreeSet<String>();
+        for (String name : results) {
+            paths.add(name + ".class"); //$NON-NLS-1$
+        }
+        return paths;
+    }
+
+    private static String at(String[] utf8, int index) throws IOException {
+        assert utf8 != null;
+        if (index <= 0 || index >= utf8.length || utf8[index] == null) {
+            throw new IOException("invalid constant pool index: " + index); //$NON-NLS-1$
+        }
+        return utf8[index];
+    }
+
+    /**
+     * 型記述子やシグネチャに含まれる{@code L<name>;}の形式のクラス名を、すべて追加する。
+     * @param descriptor 対象の文字列
+     * @param results 追加先
+     */
+    private static void addDescriptorTypes(String descriptor, Set<String> results) {
+        assert descriptor != null;
+        assert results != null;
+        int i = 0;
+        int n = descriptor.length();
+        while (i < n) {
+            if (descriptor.charAt(i) != 'L') {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            while (end < n && isClassNamePart(descriptor.charAt(end))) {
+                end++;
+            }
+            if (end < n && end > i + 1) {
+                char terminator = descriptor.charAt(end);
+                if (terminator == ';' || terminator == '<') {
+                    results.add(descriptor.substring(i + 1, end));
+                }
+            }
+            i = end;
+        }
+    }
+
+    private static boolean isClassNamePart(char c) {
+        return c != ';' && c != '<' && c != '>' && c != '.' && c != '[' && c != '(' && c != ')';
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link InterceptClassLoader}のクラスやリソースの探索を通知される。
+ * <p>
+ * それぞれのメソッドはクラスローダの探索の途中で、探索を行ったスレッドから同期的に呼び出される。
+ * そのため、実装は複数のスレッドから同時に呼び出されても安全であり、かつ速やかに完了しなければならない。
+ * 既定の実装はいずれもなにも行わない。
+ * </p>
+ * @see InterceptClassLoader#setListener(ClassLoadListener)
+ */
+public abstract class ClassLoadListener {
+
+    /**
+     * 委譲先にクラスやリソースを問い合わせた際に呼び出される。
+     * <p>
+     * {@link ClassLoaderDelegate#isKnownMissing(String)}によって問い合わせを省略した場合、
+     * このメソッドは呼び出されない。
+     * </p>
+     * @param delegate 問い合わせた委譲先
+     * @param path 対象のパス
+     * @param found 委譲先が対象を発見した場合のみ{@code true}
+     * @param bytes 委譲先から取得したクラスファイルのバイト数、リソースの場合は{@code 0}
+     * @param elapsedNanos 問い合わせにかかった時間 (ナノ秒)
+     */
+    protected void delegateLookup(
+            ClassLoaderDelegate delegate,
+            String path,
+            boolean found,
+            long bytes,
+            long elapsedNanos) {
+        return;
+    }
+
+    /**
+     * いずれの委譲先も発見しなかったクラスファイルを、親クラスローダから読み出した際に呼び出される。
+     * @param path 対象のクラスファイルのパス
+     * @param found 親クラスローダが対象を発見した場合のみ{@code true}
+     * @param bytes 読み出したバイト数
+     * @param elapsedNanos 読み出しにかかった時間 (ナノ秒)
+     */
+    protected void parentLookup(String path, boolean found, long bytes, long elapsedNanos) {
+        return;
+    }
+
+    /**
+     * まだロードされていないクラスについて、クラスごとのロックを取得した際に呼び出される。
+     * @param binaryName 対象のクラスのバイナリ名
+     * @param waitNanos ロックの取得にかかった時間 (ナノ秒)
+     */
+    protected void lockAcquired(String binaryName, long waitNanos) {
+        return;
+    }
+
+    /**
+     * 指定のリスナーすべてに、指定の順序で通知するリスナーを返す。
+     * @param listeners 通知先のリスナー、{@code null}の要素は無視される
+     * @return すべてに通知するリスナー、通知先が存在しない場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が指定された場合
+     */
+    public static ClassLoadListener compose(ClassLoadListener... listeners) {
+        if (listeners == null) {
+            throw new IllegalArgumentException("listeners must not be null"); //$NON-NLS-1$
+        }
+        List<ClassLoadListener> elements = new ArrayList<ClassLoadListener>();
+        for (ClassLoadListener listener : listeners) {
+            if (listener != null) {
+                elements.add(listener);
+            }
+        }
+        if (elements.isEmpty()) {
+            return null;
+        }
+        if (elements.size() == 1) {
+            return elements.get(0);
+        }
+        return new Composite(elements.toArray(new ClassLoadListener[elements.size()]));
+    }
+
+    private static final class Composite extends ClassLoadListener {
+
+        private final ClassLoadListener[] elements;
+
+        Composite(ClassLoadListener[] elements) {
+            assert elements != null;
+            this.elements = elements;
+        }
+
+        @Override
+        protected void delegateLookup(
+                ClassLoaderDelegate delegate,
+                String path,
+                boolean found,
+                long bytes,
+                long elapsedNanos) {
+            for (ClassLoadListener element : elements) {
+                element.delegateLookup(delegate, path, found, bytes, elapsedNanos);
+            }
+        }
+
+        @Override
+        protected void parentLookup(String path, boolean found, long bytes, long elapsedNanos) {
+            for (ClassLoadListener element : elements) {
+                element.parentLookup(path, found, bytes, elapsedNanos);
+            }
+        }
+
+        @Override
+        protected void lockAcquired(String binaryName, long waitNanos) {
+            for (ClassLoadListener element : elements) {
+                element.lockAcquired(binaryName, waitNanos);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ClassLoadListener.compose" + Arrays.toString(elements); //$NON-NLS-1$
+        }
+    }
+}
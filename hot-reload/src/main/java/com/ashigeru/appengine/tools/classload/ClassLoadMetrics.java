@@ -0,0 +1,266 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.lang.management.ManagementFactory;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link InterceptClassLoader}のクラスやリソースの探索を集計するリスナー。
+ * <p>
+ * 委譲先ごと (委譲先の{@link Object#toString()}の結果ごと) に、
+ * 対象を発見した回数と発見しなかった回数、取得したクラスファイルのバイト数、および問い合わせにかかった時間の分布を記録する。
+ * 同様に親クラスローダからの読み出しと、クラスごとのロックの取得にかかった時間も記録する。
+ * 同じ名前の委譲先は同じものとして集計されるため、
+ * {@link ReloadManager}の世代ごとに生成された委譲先の記録もひとつにまとめられる。
+ * </p>
+ * <p>
+ * 集計結果は{@link #register(String)}でJMXのMBeanとして公開できる。
+ * このクラスのオブジェクトは、複数のスレッドから同時に利用できる。
+ * </p>
+ * <pre><code>
+ * ClassLoadMetrics metrics = new ClassLoadMetrics();
+ * metrics.register("app");
+ * loader.setListener(metrics);
+ * </code></pre>
+ */
+public class ClassLoadMetrics extends ClassLoadListener implements ClassLoadMetricsMBean {
+
+    /**
+     * {@link #register(String)}で登録するMBeanの名前の接頭辞。
+     */
+    public static final String OBJECT_NAME_PREFIX = "com.ashigeru.appengine.tools.classload:type=ClassLoadMetrics,name="; //$NON-NLS-1$
+
+    private final ConcurrentMap<String, Stats> delegates = new ConcurrentHashMap<String, Stats>();
+
+    private final Stats parent = new Stats();
+
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+
+    @Override
+    protected void delegateLookup(
+            ClassLoaderDelegate delegate,
+            String path,
+            boolean found,
+            long bytes,
+            long elapsedNanos) {
+        getStats(String.valueOf(delegate)).record(found, bytes, elapsedNanos);
+    }
+
+    @Override
+    protected void parentLookup(String path, boolean found, long bytes, long elapsedNanos) {
+        parent.record(found, bytes, elapsedNanos);
+    }
+
+    @Override
+    protected void lockAcquired(String binaryName, long waitNanos) {
+        lockWaits.record(waitNanos);
+    }
+
+    private Stats getStats(String name) {
+        assert name != null;
+        Stats stats = delegates.get(name);
+        if (stats != null) {
+            return stats;
+        }
+        Stats created = new Stats();
+        Stats other = delegates.putIfAbsent(name, created);
+        return other == null ? created : other;
+    }
+
+    private Stats findStats(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("delegateName must not be null"); //$NON-NLS-1$
+        }
+        Stats stats = delegates.get(name);
+        return stats == null ? new Stats() : stats;
+    }
+
+    /**
+     * このオブジェクトを、指定の名前でプラットフォームのMBeanサーバに登録する。
+     * <p>
+     * 登録されるMBeanの名前は、{@link #OBJECT_NAME_PREFIX}に指定の名前を連結したものとなる。
+     * </p>
+     * @param name 登録する名前
+     * @return 登録したMBeanの名前
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * @throws IllegalStateException 登録に失敗した場合
+     */
+    public ObjectName register(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null"); //$NON-NLS-1$
+        }
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, objectName);
+            return objectName;
+        }
+        catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String[] getDelegateNames() {
+        List<String> names = new ArrayList<String>(new TreeMap<String, Stats>(delegates).keySet());
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public long getHitCount(String delegateName) {
+        return findStats(delegateName).hits.get();
+    }
+
+    @Override
+    public long getMissCount(String delegateName) {
+        return findStats(delegateName).misses.get();
+    }
+
+    @Override
+    public long getBytesTransferred(String delegateName) {
+        return findStats(delegateName).bytes.get();
+    }
+
+    @Override
+    public long getLatencyPercentile(String delegateName, double percentile) {
+        return findStats(delegateName).latency.getPercentile(percentile);
+    }
+
+    /**
+     * 指定の委譲先への問い合わせにかかった時間の分布を返す。
+     * @param delegateName 委譲先の名前
+     * @return 問い合わせにかかった時間の分布
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public LatencyHistogram getLatency(String delegateName) {
+        return findStats(delegateName).latency;
+    }
+
+    @Override
+    public long getParentHitCount() {
+        return parent.hits.get();
+    }
+
+    @Override
+    public long getParentMissCount() {
+        return parent.misses.get();
+    }
+
+    @Override
+    public long getParentBytesTransferred() {
+        return parent.bytes.get();
+    }
+
+    @Override
+    public long getParentLatencyPercentile(double percentile) {
+        return parent.latency.getPercentile(percentile);
+    }
+
+    @Override
+    public long getLockCount() {
+        return lockWaits.getCount();
+    }
+
+    @Override
+    public long getLockWaitNanos() {
+        return lockWaits.getTotalNanos();
+    }
+
+    @Override
+    public long getLockWaitPercentile(double percentile) {
+        return lockWaits.getPercentile(percentile);
+    }
+
+    @Override
+    public String[] getSummary() {
+        List<String> results = new ArrayList<String>();
+        for (Map.Entry<String, Stats> entry : new TreeMap<String, Stats>(delegates).entrySet()) {
+            results.add(entry.getValue().summarize(entry.getKey()));
+        }
+        results.add(parent.summarize("(parent)")); //$NON-NLS-1$
+        results.add(MessageFormat.format(
+            "(lock): count={0}, wait={1}ns, p99={2}ns", //$NON-NLS-1$
+            String.valueOf(lockWaits.getCount()),
+            String.valueOf(lockWaits.getTotalNanos()),
+            String.valueOf(lockWaits.getPercentile(99.0))));
+        return results.toArray(new String[results.size()]);
+    }
+
+    @Override
+    public void reset() {
+        delegates.clear();
+        parent.reset();
+        lockWaits.reset();
+    }
+
+    private static final class Stats {
+
+        final AtomicLong hits = new AtomicLong();
+
+        final AtomicLong misses = new AtomicLong();
+
+        final AtomicLong bytes = new AtomicLong();
+
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Stats() {
+            return;
+        }
+
+        void record(boolean found, long size, long elapsedNanos) {
+            if (found) {
+                hits.incrementAndGet();
+                if (size > 0) {
+                    bytes.addAndGet(size);
+                }
+            }
+            else {
+                misses.incrementAndGet();
+            }
+            latency.record(elapsedNanos);
+        }
+
+        void reset() {
+            hits.set(0L);
+            misses.set(0L);
+            bytes.set(0L);
+            latency.reset();
+        }
+
+        String summarize(String name) {
+            return MessageFormat.format(
+                "{0}: hit={1}, miss={2}, bytes={3}, p50={4}ns, p99={5}ns", //$NON-NLS-1$
+                name,
+                String.valueOf(hits.get()),
+                String.valueOf(misses.get()),
+                String.valueOf(bytes.get()),
+                String.valueOf(latency.getPercentile(50.0)),
+                String.valueOf(latency.getPercentile(99.0)));
+        }
+    }
+}
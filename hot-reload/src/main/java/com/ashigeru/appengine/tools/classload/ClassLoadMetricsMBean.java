@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+/**
+ * {@link ClassLoadMetrics}をJMXで公開するためのインターフェース。
+ */
+public interface ClassLoadMetricsMBean {
+
+    /**
+     * 問い合わせを受けた委譲先の名前 ({@link Object#toString()}の結果) の一覧を返す。
+     * @return 委譲先の名前の一覧
+     */
+    String[] getDelegateNames();
+
+    /**
+     * 指定の委譲先が対象を発見した回数を返す。
+     * @param delegateName 委譲先の名前
+     * @return 発見した回数、問い合わせを受けていない場合は{@code 0}
+     */
+    long getHitCount(String delegateName);
+
+    /**
+     * 指定の委譲先が対象を発見しなかった回数を返す。
+     * @param delegateName 委譲先の名前
+     * @return 発見しなかった回数、問い合わせを受けていない場合は{@code 0}
+     */
+    long getMissCount(String delegateName);
+
+    /**
+     * 指定の委譲先から取得したクラスファイルのバイト数の合計を返す。
+     * @param delegateName 委譲先の名前
+     * @return 取得したバイト数の合計、問い合わせを受けていない場合は{@code 0}
+     */
+    long getBytesTransferred(String delegateName);
+
+    /**
+     * 指定の委譲先への問い合わせにかかった時間の百分位数を返す。
+     * @param delegateName 委譲先の名前
+     * @param percentile 百分位数 ({@code 0.0}から{@code 100.0}まで)
+     * @return 対応する所要時間の上限 (ナノ秒)
+     */
+    long getLatencyPercentile(String delegateName, double percentile);
+
+    /**
+     * 親クラスローダからクラスファイルを読み出した回数を返す。
+     * @return 読み出した回数
+     */
+    long getParentHitCount();
+
+    /**
+     * 親クラスローダにクラスファイルが存在しなかった回数を返す。
+     * @return 存在しなかった回数
+     */
+    long getParentMissCount();
+
+    /**
+     * 親クラスローダから読み出したクラスファイルのバイト数の合計を返す。
+     * @return 読み出したバイト数の合計
+     */
+    long getParentBytesTransferred();
+
+    /**
+     * 親クラスローダからの読み出しにかかった時間の百分位数を返す。
+     * @param percentile 百分位数 ({@code 0.0}から{@code 100.0}まで)
+     * @return 対応する所要時間の上限 (ナノ秒)
+     */
+    long getParentLatencyPercentile(double percentile);
+
+    /**
+     * クラスごとのロックを取得した回数を返す。
+     * @return ロックを取得した回数
+     */
+    long getLockCount();
+
+    /**
+     * クラスごとのロックの取得にかかった時間の合計を返す。
+     * @return ロックの取得にかかった時間の合計 (ナノ秒)
+     */
+    long getLockWaitNanos();
+
+    /**
+     * クラスごとのロックの取得にかかった時間の百分位数を返す。
+     * @param percentile 百分位数 ({@code 0.0}から{@code 100.0}まで)
+     * @return 対応する所要時間の上限 (ナノ秒)
+     */
+    long getLockWaitPercentile(double percentile);
+
+    /**
+     * すべての委譲先と親クラスローダの統計を、1行ずつの文字列で返す。
+     * @return 統計の一覧
+     */
+    String[] getSummary();
+
+    /**
+     * 記録をすべて破棄する。
+     */
+    void reset();
+}
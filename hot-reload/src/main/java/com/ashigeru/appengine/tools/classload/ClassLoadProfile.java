@@ -0,0 +1,281 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.ConcurrentModificationException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * 起動直後にロードされたクラスやリソースのパスを、ロードされた順に並べた一覧。
+ * <p>
+ * 一覧は{@link ClassLoadRecorder}で記録したパスを{@link #merge(List, int)}で統合したもので、
+ * データストア上で「カインド名{@code .Profile}」というカインドの単一のエンティティに保存される。
+ * 次回の起動時にこの一覧を{@link InterceptClassLoader#prefetch(java.util.Collection)}に渡すことで、
+ * アプリケーションが必要とするクラスファイルをまとめて先に取得できる。
+ * </p>
+ * <p>
+ * 一覧の各パスは重みを持ち、記録に含まれるたびに{@link #MAX_WEIGHT}に戻り、含まれないたびに1ずつ減る。
+ * 重みが{@code 0}になったパスは一覧から取り除かれるため、
+ * 利用されなくなったパスは{@link #MAX_WEIGHT}回の統合の後に一覧から消える。
+ * </p>
+ * <p>
+ * このクラスのオブジェクトは読み出した時点の一覧を表し、以降の変更は反映されない。
+ * </p>
+ * @see ResourceStore#loadProfile()
+ * @see ResourceStore#mergeProfile(List)
+ */
+public final class ClassLoadProfile {
+
+    /**
+     * 一覧に含めるパスの最大数の既定値。
+     */
+    public static final int DEFAULT_MAX_PATHS = 4096;
+
+    /**
+     * 記録に含まれたパスの重み。
+     */
+    public static final int MAX_WEIGHT = 4;
+
+    /**
+     * データストアに保存できるパスの最大の長さ。
+     */
+    private static final int MAX_PATH_LENGTH = 500;
+
+    private static final String KIND_SUFFIX = ".Profile"; //$NON-NLS-1$
+
+    private static final String NAME = "profile"; //$NON-NLS-1$
+
+    private static final String PROPERTY_PATHS = "p"; //$NON-NLS-1$
+
+    private static final String PROPERTY_WEIGHTS = "w"; //$NON-NLS-1$
+
+    /**
+     * 一覧の更新が競合した場合に再試行する最大の回数。
+     */
+    private static final int MAX_RETRY = 10;
+
+    private static final ClassLoadProfile EMPTY =
+        new ClassLoadProfile(new LinkedHashMap<String, Integer>());
+
+    private final LinkedHashMap<String, Integer> entries;
+
+    private ClassLoadProfile(LinkedHashMap<String, Integer> entries) {
+        assert entries != null;
+        this.entries = entries;
+    }
+
+    /**
+     * 空の一覧を返す。
+     * @return 空の一覧
+     */
+    public static ClassLoadProfile empty() {
+        return EMPTY;
+    }
+
+    /**
+     * 一覧に含まれるパスを、ロードされた順に返す。
+     * @return 一覧に含まれるパス
+     */
+    public List<String> getPaths() {
+        return Collections.unmodifiableList(new ArrayList<String>(entries.keySet()));
+    }
+
+    /**
+     * 指定のパスの重みを返す。
+     * @param path 対象のパス
+     * @return 対応する重み、一覧に含まれない場合は{@code 0}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public int getWeight(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        Integer weight = entries.get(path);
+        return weight == null ? 0 : weight.intValue();
+    }
+
+    /**
+     * 一覧に含まれるパスの数を返す。
+     * @return 一覧に含まれるパスの数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * この一覧に新しい記録を統合した一覧を返す。
+     * <p>
+     * 統合後の一覧は、記録されたパスを記録された順に並べ、その後にこの一覧の残りのパスを元の順で並べたものとなる。
+     * 記録されたパスの重みは{@link #MAX_WEIGHT}となり、残りのパスの重みは1ずつ減る。
+     * パスの数が{@code maxPaths}を超える場合、末尾のパスから取り除かれる。
+     * </p>
+     * @param recorded 記録されたパス
+     * @param maxPaths 統合後の一覧に含めるパスの最大数
+     * @return 統合した一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合、または最大数に負の値が指定された場合
+     */
+    public ClassLoadProfile merge(List<String> recorded, int maxPaths) {
+        if (recorded == null) {
+            throw new IllegalArgumentException("recorded must not be null"); //$NON-NLS-1$
+        }
+        if (maxPaths < 0) {
+            throw new IllegalArgumentException("maxPaths must be >= 0"); //$NON-NLS-1$
+        }
+        LinkedHashMap<String, Integer> results = new LinkedHashMap<String, Integer>();
+        for (String path : recorded) {
+            if (results.size() >= maxPaths) {
+                break;
+            }
+            if (path == null) {
+                throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+            }
+            if (path.length() <= MAX_PATH_LENGTH) {
+                results.put(path, MAX_WEIGHT);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+            if (results.size() >= maxPaths) {
+                break;
+            }
+            int weight = entry.getValue().intValue() - 1;
+            if (weight > 0 && results.containsKey(entry.getKey()) == false) {
+                results.put(entry.getKey(), weight);
+            }
+        }
+        return new ClassLoadProfile(results);
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format(
+            "ClassLoadProfile(size={0})", //$NON-NLS-1$
+            entries.size());
+    }
+
+    /**
+     * 指定のカインドに保存された一覧を、データストアから読み出して返す。
+     * @param service 利用するデータストアサービス
+     * @param kindName ファイルを保存したカインド名
+     * @return 読み出した一覧、保存されていない場合は空の一覧
+     */
+    static ClassLoadProfile load(DatastoreService service, String kindName) {
+        assert service != null;
+        assert kindName != null;
+        try {
+            return decode(service.get(null, createKey(kindName)));
+        }
+        catch (EntityNotFoundException e) {
+            return EMPTY;
+        }
+    }
+
+    /**
+     * 指定のカインドに保存された一覧に、新しい記録をトランザクション内で統合する。
+     * @param service 利用するデータストアサービス
+     * @param kindName ファイルを保存したカインド名
+     * @param recorded 記録されたパス
+     * @param maxPaths 統合後の一覧に含めるパスの最大数
+     * @return 統合した一覧
+     * @throws ConcurrentModificationException 再試行しても競合が解消しなかった場合
+     */
+    static ClassLoadProfile update(
+            DatastoreService service,
+            String kindName,
+            List<String> recorded,
+            int maxPaths) {
+        assert service != null;
+        assert kindName != null;
+        assert recorded != null;
+        Key key = createKey(kindName);
+        for (int retry = 0; ; retry++) {
+            Transaction txn = service.beginTransaction();
+            try {
+                ClassLoadProfile current;
+                try {
+                    current = decode(service.get(txn, key));
+                }
+                catch (EntityNotFoundException e) {
+                    current = EMPTY;
+                }
+                ClassLoadProfile merged = current.merge(recorded, maxPaths);
+                service.put(txn, encode(key, merged));
+                txn.commit();
+                return merged;
+            }
+            catch (ConcurrentModificationException e) {
+                if (retry >= MAX_RETRY) {
+                    throw e;
+                }
+            }
+            finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    private static Key createKey(String kindName) {
+        assert kindName != null;
+        return KeyFactory.createKey(kindName + KIND_SUFFIX, NAME);
+    }
+
+    private static Entity encode(Key key, ClassLoadProfile profile) {
+        assert key != null;
+        assert profile != null;
+        List<String> paths = new ArrayList<String>(profile.entries.size());
+        List<Long> weights = new ArrayList<Long>(profile.entries.size());
+        for (Map.Entry<String, Integer> entry : profile.entries.entrySet()) {
+            paths.add(entry.getKey());
+            weights.add(Long.valueOf(entry.getValue().longValue()));
+        }
+        Entity entity = new Entity(key);
+        entity.setUnindexedProperty(PROPERTY_PATHS, paths);
+        entity.setUnindexedProperty(PROPERTY_WEIGHTS, weights);
+        return entity;
+    }
+
+    private static ClassLoadProfile decode(Entity entity) {
+        assert entity != null;
+        List<?> paths = (List<?>) entity.getProperty(PROPERTY_PATHS);
+        List<?> weights = (List<?>) entity.getProperty(PROPERTY_WEIGHTS);
+        LinkedHashMap<String, Integer> results = new LinkedHashMap<String, Integer>();
+        if (paths == null || weights == null) {
+            return new ClassLoadProfile(results);
+        }
+        if (paths.size() != weights.size()) {
+            throw new IllegalStateException(MessageFormat.format(
+                "Broken profile: {0}", //$NON-NLS-1$
+                entity.getKey()));
+        }
+        for (int i = 0, n = paths.size(); i < n; i++) {
+            results.put((String) paths.get(i), ((Long) weights.get(i)).intValue());
+        }
+        return new ClassLoadProfile(results);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 委譲先から発見されたクラスやリソースのパスを、発見された順に記録するリスナー。
+ * <p>
+ * 記録はこのオブジェクトの生成から指定の時間が経過するまで、または指定の数のパスを記録するまで行われる。
+ * 記録したパスは{@link #save(ResourceStore)}で{@link ClassLoadProfile}に統合して保存でき、
+ * 次回の起動時に{@link InterceptClassLoader#prefetch(java.util.Collection)}で先読みに利用できる。
+ * </p>
+ * <p>
+ * このクラスのオブジェクトは、複数のスレッドから同時に利用できる。
+ * </p>
+ * @see ReloadManager#setProfileRecording(long)
+ */
+public class ClassLoadRecorder extends ClassLoadListener {
+
+    private final long deadline;
+
+    private final int maxPaths;
+
+    private final LinkedHashSet<String> paths = new LinkedHashSet<String>();
+
+    private final AtomicBoolean saved = new AtomicBoolean();
+
+    /**
+     * インスタンスを生成する。
+     * @param durationMillis 記録を行う時間 (ミリ秒)
+     * @param maxPaths 記録するパスの最大数
+     * @throws IllegalArgumentException 負の値が指定された場合
+     */
+    public ClassLoadRecorder(long durationMillis, int maxPaths) {
+        if (durationMillis < 0) {
+            throw new IllegalArgumentException("durationMillis must be >= 0"); //$NON-NLS-1$
+        }
+        if (maxPaths < 0) {
+            throw new IllegalArgumentException("maxPaths must be >= 0"); //$NON-NLS-1$
+        }
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.maxPaths = maxPaths;
+    }
+
+    @Override
+    protected void delegateLookup(
+            ClassLoaderDelegate delegate,
+            String path,
+            boolean found,
+            long bytes,
+            long elapsedNanos) {
+        if (found == false || isRecording() == false) {
+            return;
+        }
+        synchronized (paths) {
+            if (paths.size() < maxPaths) {
+                paths.add(path);
+            }
+        }
+    }
+
+    /**
+     * 記録を行う時間がまだ経過していない場合のみ{@code true}を返す。
+     * @return 記録を行う時間がまだ経過していない場合のみ{@code true}
+     */
+    public boolean isRecording() {
+        return System.nanoTime() - deadline < 0;
+    }
+
+    /**
+     * これまでに記録したパスを、発見された順に返す。
+     * @return 記録したパス
+     */
+    public List<String> getRecordedPaths() {
+        synchronized (paths) {
+            return new ArrayList<String>(paths);
+        }
+    }
+
+    /**
+     * これまでに記録したパスを、指定の{@link ResourceStore}に保存された一覧に統合する。
+     * <p>
+     * このメソッドは、このオブジェクトに対して最初に呼び出された場合のみ統合を行い、
+     * 以降の呼び出しではなにも行わずに{@code null}を返す。
+     * ただし統合に失敗した場合は、次回の呼び出しで再度統合を行う。
+     * </p>
+     * @param store 統合先
+     * @return 統合した一覧、すでに統合済みの場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public ClassLoadProfile save(ResourceStore store) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null"); //$NON-NLS-1$
+        }
+        if (saved.compareAndSet(false, true) == false) {
+            return null;
+        }
+        boolean succeeded = false;
+        try {
+            ClassLoadProfile result = store.mergeProfile(getRecordedPaths());
+            succeeded = true;
+            return result;
+        }
+        finally {
+            if (succeeded == false) {
+                saved.set(false);
+            }
+        }
+    }
+}
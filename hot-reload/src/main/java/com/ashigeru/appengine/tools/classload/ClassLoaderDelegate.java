@@ -15,12 +15,15 @@
  */
 package com.ashigeru.appengine.tools.classload;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * {@link InterceptClassLoader}から委譲されるクラスローダが実際にリソースを読み出す処理。
@@ -29,6 +32,10 @@ import java.util.Iterator;
  * </p>
  * <ol>
  * <li>
+ *     {@link #findClassBuffer(String)} → {@link #findClass(String)}が返すバイナリを、
+ *     複製せずに{@link ByteBuffer}で包んで返す
+ * </li>
+ * <li>
  *     {@link #findClass(String)} → バイナリ名に対応するパスを計算し、
  *     {@link #findResourceAsStream(String)}を利用してバイナリを取得する
  * </li>
@@ -48,7 +55,80 @@ import java.util.Iterator;
 public abstract class ClassLoaderDelegate {
 
     /**
-     * {@link InterceptClassLoader#loadClass(String, boolean)}から呼び出され、
+     * 内容の大きさが不明なストリームを読み出す際の、最初のバッファの大きさ。
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    /**
+     * 指定のパスに対応するクラスやリソースが、この委譲先に存在しないことが判明している場合のみ{@code true}を返す。
+     * <p>
+     * 委譲元の{@link InterceptClassLoader}は、クラスやリソースを探索する前にこのメソッドを呼び出し、
+     * {@code true}が返された場合にはこの委譲先への問い合わせを省略する。
+     * このメソッドは、外部のサービスへの問い合わせなどの重い処理を行ってはならない。
+     * </p>
+     * <p>
+     * この実装では常に{@code false}を返す。
+     * </p>
+     * @param path 対象のパス
+     * @return 存在しないことが判明している場合のみ{@code true}、不明な場合は{@code false}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    protected boolean isKnownMissing(String path) {
+        return false;
+    }
+
+    /**
+     * この委譲先が扱うパスの接頭辞の一覧を返す。
+     * <p>
+     * 一覧を返した場合、委譲元の{@link InterceptClassLoader}は、
+     * いずれの接頭辞からも始まらないパスについてこの委譲先に問い合わせない。
+     * この一覧は委譲元のクラスローダを生成する際に一度だけ参照されるため、
+     * その後にこの一覧を変更しても委譲元には反映されない。
+     * </p>
+     * <p>
+     * この実装では常に{@code null}を返す。
+     * </p>
+     * @return この委譲先が扱うパスの接頭辞 ({@code "com/example/"}など) の一覧、
+     *     すべてのパスを扱う可能性がある場合は{@code null}
+     */
+    protected Collection<String> getOwnedPrefixes() {
+        return null;
+    }
+
+    /**
+     * {@link InterceptClassLoader#prefetch(String)}から呼び出され、
+     * 指定の文字列から始まるパスを持つクラスやリソースの一覧を返す。
+     * <p>
+     * この実装では常に空のリストを返す。
+     * </p>
+     * @param prefix 対象のパスの接頭辞
+     * @return 対象のパス一覧、一覧を取得できない場合は空
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    protected List<String> listResources(String prefix) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * {@link InterceptClassLoader#prefetch(Collection)}から呼び出され、
+     * 指定のパスに対応するクラスやリソースをあらかじめ取得しておく。
+     * <p>
+     * このメソッドは、以降の{@link #findClass(String)}などの呼び出しで
+     * 外部のサービスへの問い合わせを省略できるよう、必要な内容をまとめて取得しておくために利用する。
+     * 委譲元の{@link InterceptClassLoader}が対象としないパスは、引数に含まれない。
+     * </p>
+     * <p>
+     * この実装ではなにも行わない。
+     * </p>
+     * @param paths 対象のパス一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    protected void prefetch(Collection<String> paths) {
+        return;
+    }
+
+    /**
+     * {@link #findClassBuffer(String)}から呼び出され、
      * 対応するクラスのバイナリ表現を返す。
      * <p>
      * 委譲元の{@link InterceptClassLoader}が当該クラス名のクラスを対象としない場合、
@@ -58,6 +138,9 @@ public abstract class ClassLoaderDelegate {
      * このメソッドが{@code null}を返す(見つからない)場合、次の委譲先に問い合わせる。
      * すべての委譲先が{@code null}を返す場合、クラスの探索は失敗する。
      * </p>
+     * <p>
+     * この実装では、{@link #findResourceAsStream(String)}が返すストリームの内容をすべて読み出して返す。
+     * </p>
      * @param binaryName ロードするクラスのバイナリ名
      * @return 対応するクラスのバイナリ、発見できない場合は{@code null}
      * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
@@ -67,17 +150,71 @@ public abstract class ClassLoaderDelegate {
         if (stream == null) {
             return null;
         }
+        return readFully(stream);
+    }
+
+    /**
+     * {@link InterceptClassLoader#loadClass(String, boolean)}から呼び出され、
+     * 対応するクラスのバイナリ表現を{@link ByteBuffer}で返す。
+     * <p>
+     * 委譲元の{@link InterceptClassLoader}は、返されたバッファの残りの内容をそのまま
+     * {@link ClassLoader#defineClass(String, ByteBuffer, java.security.ProtectionDomain)}に渡す。
+     * ファイルをマップした領域など、すでにバッファ上に存在する内容を返すことで、
+     * クラスの定義までの複製を省略できる。
+     * 返したバッファの位置は委譲元によって変更される場合があるため、
+     * 内容を保持し続ける場合には{@link ByteBuffer#duplicate() 複製}を返すこと。
+     * </p>
+     * <p>
+     * 委譲元の{@link InterceptClassLoader}が当該クラス名のクラスを対象としない場合、
+     * このメソッドは呼び出されない。
+     * このメソッドが{@code null}を返す(見つからない)場合、次の委譲先に問い合わせる。
+     * </p>
+     * <p>
+     * この実装では、{@link #findClass(String)}が返すバイナリを複製せずに包んで返す。
+     * </p>
+     * @param binaryName ロードするクラスのバイナリ名
+     * @return 対応するクラスのバイナリ、発見できない場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    protected ByteBuffer findClassBuffer(String binaryName) {
+        byte[] bytes = findClass(binaryName);
+        if (bytes == null) {
+            return null;
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * 指定のストリームの内容をすべて読み出して閉じる。
+     * <p>
+     * {@link InputStream#available()}が内容の大きさを正しく返すストリームの場合、
+     * 内容は単一の配列に直接読み出され、複製されない。
+     * </p>
+     * @param stream 対象のストリーム
+     * @return 読み出した内容、読み出しに失敗した場合は{@code null}
+     */
+    static byte[] readFully(InputStream stream) {
+        assert stream != null;
         try {
-            ByteArrayOutputStream result = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1000];
+            int estimated = stream.available();
+            byte[] buffer = new byte[estimated > 0 ? estimated : DEFAULT_BUFFER_SIZE];
+            int size = 0;
             while (true) {
-                int read = stream.read(buffer);
+                if (size == buffer.length) {
+                    int next = stream.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, DEFAULT_BUFFER_SIZE));
+                    buffer[size++] = (byte) next;
+                }
+                int read = stream.read(buffer, size, buffer.length - size);
                 if (read < 0) {
                     break;
                 }
-                result.write(buffer, 0, read);
+                size += read;
             }
-            return result.toByteArray();
+            return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
         }
         catch (IOException e) {
             return null;
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * データストアに対するバッチ操作を、制限に収まる大きさに分割して実行する。
+ * <p>
+ * 分割された各バッチは、エグゼキュータが設定されていればその上で並列に、
+ * そうでなければ呼び出し元のスレッドで順に実行される。
+ * タイムアウトなどの一時的な障害で失敗したバッチは、失敗したものだけが
+ * {@link #MAX_ATTEMPTS}回まで再実行される。
+ * </p>
+ */
+final class DatastoreBatch {
+
+    /**
+     * 一時的な障害で失敗したバッチを実行する最大の回数。
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * エンティティのキーやプロパティ名などにかかるバイト数の見積もり。
+     */
+    private static final int ENTITY_OVERHEAD = 64;
+
+    private static final int PROPERTY_OVERHEAD = 16;
+
+    private final DatastoreService service;
+
+    private volatile int maxCount;
+
+    private volatile int maxBytes;
+
+    private volatile Executor executor;
+
+    /**
+     * インスタンスを生成する。
+     * @param service 操作の対象とするデータストアサービス
+     * @param maxCount 一度に操作するエンティティの最大数
+     * @param maxBytes 一度に書き出すエンティティの合計の最大バイト数
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    DatastoreBatch(DatastoreService service, int maxCount, int maxBytes) {
+        if (service == null) {
+            throw new IllegalArgumentException("service must not be null"); //$NON-NLS-1$
+        }
+        this.service = service;
+        setMaxCount(maxCount);
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * 一度に操作するエンティティの最大数を設定する。
+     * @param count 一度に操作するエンティティの最大数
+     * @throws IllegalArgumentException 0以下の値が指定された場合
+     */
+    void setMaxCount(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be > 0"); //$NON-NLS-1$
+        }
+        this.maxCount = count;
+    }
+
+    /**
+     * 一度に書き出すエンティティの合計の最大バイト数を設定する。
+     * <p>
+     * 単体でこの大きさを超えるエンティティは、単独のバッチとして書き出される。
+     * </p>
+     * @param bytes 一度に書き出すエンティティの合計の最大バイト数
+     * @throws IllegalArgumentException 0以下の値が指定された場合
+     */
+    void setMaxBytes(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("bytes must be > 0"); //$NON-NLS-1$
+        }
+        this.maxBytes = bytes;
+    }
+
+    /**
+     * 分割したバッチを並列に実行するエグゼキュータを設定する。
+     * @param executor 利用するエグゼキュータ、呼び出し元のスレッドで順に実行する場合は{@code null}
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 指定のキーを持つエンティティをまとめて取得する。
+     * @param keys 対象のキー一覧
+     * @return キーと対応するエンティティの一覧、存在しないエンティティは含まれない
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    Map<Key, Entity> get(Collection<Key> keys) {
+        return get(keys, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 指定のキーを持つエンティティを、一度に取得する数を制限してまとめて取得する。
+     * @param keys 対象のキー一覧
+     * @param limit 一度に取得するエンティティの最大数、{@link #setMaxCount(int)}の値より大きい場合は無視される
+     * @return キーと対応するエンティティの一覧、存在しないエンティティは含まれない
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    Map<Key, Entity> get(Collection<Key> keys, int limit) {
+        if (keys == null) {
+            throw new IllegalArgumentException("keys must not be null"); //$NON-NLS-1$
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be > 0"); //$NON-NLS-1$
+        }
+        final Map<Key, Entity> results = Collections.synchronizedMap(new HashMap<Key, Entity>());
+        dispatch(splitByCount(keys, Math.min(maxCount, limit)), new Operation<Key>() {
+            @Override
+            public void run(List<Key> batch) {
+                results.putAll(service.get(null, batch));
+            }
+        });
+        return new HashMap<Key, Entity>(results);
+    }
+
+    /**
+     * 指定のエンティティをまとめて書き出す。
+     * @param entities 対象のエンティティ一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    void put(List<Entity> entities) {
+        if (entities == null) {
+            throw new IllegalArgumentException("entities must not be null"); //$NON-NLS-1$
+        }
+        dispatch(splitBySize(entities), new Operation<Entity>() {
+            @Override
+            public void run(List<Entity> batch) {
+                service.put(null, batch);
+            }
+        });
+    }
+
+    /**
+     * 指定のキーを持つエンティティをまとめて削除する。
+     * @param keys 対象のキー一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    void delete(Collection<Key> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("keys must not be null"); //$NON-NLS-1$
+        }
+        dispatch(splitByCount(keys, maxCount), new Operation<Key>() {
+            @Override
+            public void run(List<Key> batch) {
+                service.delete((Transaction) null, batch);
+            }
+        });
+    }
+
+    private List<List<Key>> splitByCount(Collection<Key> keys, int count) {
+        assert keys != null;
+        assert count > 0;
+        List<List<Key>> results = new ArrayList<List<Key>>();
+        List<Key> current = new ArrayList<Key>();
+        for (Key key : keys) {
+            current.add(key);
+            if (current.size() >= count) {
+                results.add(current);
+                current = new ArrayList<Key>();
+            }
+        }
+        if (current.isEmpty() == false) {
+            results.add(current);
+        }
+        return results;
+    }
+
+    private List<List<Entity>> splitBySize(List<Entity> entities) {
+        assert entities != null;
+        int count = maxCount;
+        int bytes = maxBytes;
+        List<List<Entity>> results = new ArrayList<List<Entity>>();
+        List<Entity> current = new ArrayList<Entity>();
+        long currentBytes = 0;
+        for (Entity entity : entities) {
+            long size = estimateSize(entity);
+            if (current.isEmpty() == false
+                    && (current.size() >= count || currentBytes + size > bytes)) {
+                results.add(current);
+                current = new ArrayList<Entity>();
+                currentBytes = 0;
+            }
+            current.add(entity);
+            currentBytes += size;
+        }
+        if (current.isEmpty() == false) {
+            results.add(current);
+        }
+        return results;
+    }
+
+    /**
+     * エンティティを書き出す際のおおよそのバイト数を返す。
+     * @param entity 対象のエンティティ
+     * @return 見積もったバイト数
+     */
+    static long estimateSize(Entity entity) {
+        assert entity != null;
+        long size = ENTITY_OVERHEAD;
+        for (Map.Entry<String, Object> entry : entity.getProperties().entrySet()) {
+            size += PROPERTY_OVERHEAD + entry.getKey().length();
+            Object value = entry.getValue();
+            if (value instanceof Blob) {
+                size += ((Blob) value).getBytes().length;
+            }
+            else if (value instanceof String) {
+                size += ((String) value).length();
+            }
+        }
+        return size;
+    }
+
+    private <T> void dispatch(List<List<T>> batches, final Operation<T> operation) {
+        assert batches != null;
+        assert operation != null;
+        List<List<T>> rest = batches;
+        for (int attempt = 1; rest.isEmpty() == false; attempt++) {
+            final List<List<T>> failed = Collections.synchronizedList(new ArrayList<List<T>>());
+            final List<RuntimeException> causes =
+                Collections.synchronizedList(new ArrayList<RuntimeException>());
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            for (final List<T> batch : rest) {
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            operation.run(batch);
+                        }
+                        catch (DatastoreTimeoutException e) {
+                            failed.add(batch);
+                            causes.add(e);
+                        }
+                        catch (DatastoreFailureException e) {
+                            failed.add(batch);
+                            causes.add(e);
+                        }
+                    }
+                });
+            }
+            Executor current = executor;
+            if (current == null || tasks.size() == 1) {
+                for (Runnable task : tasks) {
+                    task.run();
+                }
+            }
+            else {
+                ApiEnvironments.runAll(current, tasks);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IllegalStateException("Interrupted while waiting batch operations"); //$NON-NLS-1$
+                }
+            }
+            if (failed.isEmpty() == false && attempt >= MAX_ATTEMPTS) {
+                throw causes.get(0);
+            }
+            rest = new ArrayList<List<T>>(failed);
+        }
+    }
+
+    /**
+     * 分割されたバッチのそれぞれに対する操作。
+     * @param <T> 操作の対象
+     */
+    private interface Operation<T> {
+
+        /**
+         * 指定のバッチに対して操作を行う。
+         * @param batch 対象のバッチ
+         */
+        void run(List<T> batch);
+    }
+}
@@ -16,17 +16,67 @@
 package com.ashigeru.appengine.tools.classload;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * データストアからクラスパス上の情報を取得する。
+ * <p>
+ * {@link #prefetch(Collection)}によってあらかじめ取得された内容はこのオブジェクト内に保持され、
+ * 以降の{@link #findClass(String)}や{@link #findResourceAsStream(String)}、
+ * {@link #findAllResources(String)}で一度だけ利用される。
+ * 保持する内容の合計は{@link #setMaxPrefetchBytes(long) 一定のバイト数}までに制限される。
+ * </p>
+ * <p>
+ * {@link #findAllResources(String)}は、独自のプロトコル ({@code resourcestore://<kind>/<path>}) のURLを返す。
+ * 分割して保存されたファイルのURLは内容を保持せず、開くたびにデータストアから順に読み出す。
+ * </p>
  */
 public class DatastoreClassLoaderDelegate extends ClassLoaderDelegate {
 
+    /**
+     * 先読みの際に、一度のバッチ取得で読み出すファイル数の既定値。
+     */
+    public static final int DEFAULT_PREFETCH_CHUNK_SIZE = 100;
+
+    /**
+     * 先読みして保持するファイルの合計の最大バイト数の既定値。
+     */
+    public static final long DEFAULT_MAX_PREFETCH_BYTES = 32L * 1024 * 1024;
+
     private ResourceStore datastore;
 
+    private Executor executor;
+
+    private volatile int prefetchChunkSize = DEFAULT_PREFETCH_CHUNK_SIZE;
+
+    private volatile List<String> ownedPrefixes;
+
+    private volatile long maxPrefetchBytes = DEFAULT_MAX_PREFETCH_BYTES;
+
+    private final ConcurrentMap<String, byte[]> prefetched =
+        new ConcurrentHashMap<String, byte[]>();
+
+    private final AtomicLong prefetchedBytes = new AtomicLong();
+
     /**
      * インスタンスを生成する。
+     * <p>
+     * このコンストラクタで生成したオブジェクトは、先読みを呼び出し元のスレッドで順に行う。
+     * </p>
      * @param datastore リソースファイルを参照する
      * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
      */
@@ -37,24 +87,347 @@ public class DatastoreClassLoaderDelegate extends ClassLoaderDelegate {
         this.datastore = datastore;
     }
 
+    /**
+     * 先読みを並列に行うインスタンスを生成する。
+     * <p>
+     * 先読みの対象は{@link #setPrefetchChunkSize(int) 一定の数}ごとに分割され、
+     * それぞれ指定のエグゼキュータ上で並列に取得される。
+     * 呼び出し元のスレッドに設定されたApp Engineの実行環境は、エグゼキュータ上のスレッドにも引き継がれる。
+     * </p>
+     * @param datastore リソースファイルを参照する
+     * @param executor 先読みに利用するエグゼキュータ
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public DatastoreClassLoaderDelegate(ResourceStore datastore, Executor executor) {
+        this(datastore);
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null"); //$NON-NLS-1$
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * 先読みの際に、一度のバッチ取得で読み出すファイルの最大数を設定する。
+     * <p>
+     * 初期状態では{@link #DEFAULT_PREFETCH_CHUNK_SIZE}が設定されている。
+     * </p>
+     * @param size 一度に読み出すファイルの最大数
+     * @throws IllegalArgumentException 0以下の値が指定された場合
+     */
+    public void setPrefetchChunkSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be > 0"); //$NON-NLS-1$
+        }
+        this.prefetchChunkSize = size;
+    }
+
+    /**
+     * 先読みして保持するファイルの合計の最大バイト数を設定する。
+     * <p>
+     * 先読みした内容は利用されるまで保持されるため、利用されなかったファイルの内容が残り続けないよう、
+     * 保持する合計のバイト数が上限を超える場合はそれ以上を保持しない。
+     * 保持しなかったファイルは、利用する際にデータストアから読み出される。
+     * 初期状態では{@link #DEFAULT_MAX_PREFETCH_BYTES}が設定されている。
+     * </p>
+     * @param bytes 保持する合計の最大バイト数
+     * @throws IllegalArgumentException 負の値が指定された場合
+     */
+    public void setMaxPrefetchBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must be >= 0"); //$NON-NLS-1$
+        }
+        this.maxPrefetchBytes = bytes;
+    }
+
+    /**
+     * この委譲先が扱うパスの接頭辞を設定する。
+     * <p>
+     * 設定した場合、委譲元の{@link InterceptClassLoader}は、
+     * いずれの接頭辞からも始まらないパスについてデータストアに問い合わせなくなる。
+     * この値は委譲元のクラスローダを生成する前に設定すること。
+     * 初期状態では{@code null}が設定されており、すべてのパスを扱う。
+     * </p>
+     * @param prefixes 扱うパスの接頭辞 ({@code "com/example/"}など) の一覧、すべてのパスを扱う場合は{@code null}
+     * @see ClassLoaderDelegate#getOwnedPrefixes()
+     */
+    public void setOwnedPrefixes(Collection<String> prefixes) {
+        this.ownedPrefixes = prefixes == null
+            ? null
+            : Collections.unmodifiableList(new ArrayList<String>(prefixes));
+    }
+
+    @Override
+    public Collection<String> getOwnedPrefixes() {
+        return ownedPrefixes;
+    }
+
+    /**
+     * 先読みして保持しているファイルのうち、まだ利用されていないものの数を返す。
+     * @return まだ利用されていない先読み済みのファイルの数
+     */
+    public int getPrefetchedCount() {
+        return prefetched.size();
+    }
+
+    /**
+     * 先読みして保持しているファイルのうち、まだ利用されていないものの合計のバイト数を返す。
+     * @return まだ利用されていない先読み済みのファイルの合計のバイト数
+     */
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    /**
+     * 先読みして保持しているファイルの内容をすべて破棄する。
+     */
+    public void discardPrefetched() {
+        for (String path : prefetched.keySet()) {
+            take(path);
+        }
+    }
+
+    @Override
+    public boolean isKnownMissing(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        if (prefetched.containsKey(path)) {
+            return false;
+        }
+        return datastore.isKnownMissing(path);
+    }
+
+    @Override
+    public List<String> listResources(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        return datastore.list(prefix);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 対象のパスは一定の数ごとに分割して{@link ResourceStore#get(Iterable)}で取得され、
+     * このメソッドはすべての取得が完了するまで待機する。
+     * 存在しないことが判明したパスは、{@link ResourceStore}の設定に従って記憶される。
+     * </p>
+     */
+    @Override
+    public void prefetch(Collection<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+        }
+        List<List<String>> chunks = split(paths);
+        if (chunks.isEmpty()) {
+            return;
+        }
+        if (executor == null || chunks.size() == 1) {
+            for (List<String> chunk : chunks) {
+                fetch(chunk);
+            }
+            return;
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (final List<String> chunk : chunks) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(chunk);
+                }
+            });
+        }
+        ApiEnvironments.runAll(executor, tasks);
+    }
+
+    /**
+     * {@link #prefetch(Collection)}を非同期に実行する。
+     * <p>
+     * このメソッドは、起動時に他の初期化処理と並行してクラスファイルを先読みする場合などに利用できる。
+     * 先読みはこのオブジェクトに指定されたエグゼキュータ上で実行され、
+     * エグゼキュータが指定されていない場合は呼び出し時に完了する。
+     * 先読みの完了前に{@link #findClass(String)}などが呼び出された場合、
+     * そのファイルはデータストアから直接読み出される。
+     * </p>
+     * @param paths 先読みするリソースのパス一覧
+     * @return 先読みの完了を表す{@link Future}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Future<Void> prefetchAsync(Collection<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+        }
+        final List<String> targets = new ArrayList<String>(paths);
+        return ApiEnvironments.submit(executor, new Callable<Void>() {
+            @Override
+            public Void call() {
+                prefetch(targets);
+                return null;
+            }
+        });
+    }
+
+    private List<List<String>> split(Collection<String> paths) {
+        assert paths != null;
+        int size = prefetchChunkSize;
+        List<List<String>> results = new ArrayList<List<String>>();
+        List<String> current = new ArrayList<String>();
+        for (String path : paths) {
+            if (prefetched.containsKey(path)) {
+                continue;
+            }
+            current.add(path);
+            if (current.size() >= size) {
+                results.add(current);
+                current = new ArrayList<String>();
+            }
+        }
+        if (current.isEmpty() == false) {
+            results.add(current);
+        }
+        return results;
+    }
+
+    private void fetch(List<String> chunk) {
+        assert chunk != null;
+        if (prefetchedBytes.get() >= maxPrefetchBytes) {
+            return;
+        }
+        Map<String, byte[]> found = datastore.get(chunk);
+        for (Map.Entry<String, byte[]> entry : found.entrySet()) {
+            byte[] contents = entry.getValue();
+            if (reserve(contents.length) == false) {
+                // read on demand instead
+                continue;
+            }
+            if (prefetched.putIfAbsent(entry.getKey(), contents) != null) {
+                prefetchedBytes.addAndGet(-contents.length);
+            }
+        }
+    }
+
+    private boolean reserve(int size) {
+        long limit = maxPrefetchBytes;
+        while (true) {
+            long current = prefetchedBytes.get();
+            if (current + size > limit) {
+                return false;
+            }
+            if (prefetchedBytes.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 先読み済みの内容を取り出し、保持している内容から取り除く。
+     * @param path 対象のパス
+     * @return 先読み済みの内容、存在しない場合は{@code null}
+     */
+    private byte[] take(String path) {
+        assert path != null;
+        byte[] contents = prefetched.remove(path);
+        if (contents != null) {
+            prefetchedBytes.addAndGet(-contents.length);
+        }
+        return contents;
+    }
+
     @Override
     public byte[] findClass(String binaryName) {
         if (binaryName == null) {
             throw new IllegalArgumentException("name must not be null"); //$NON-NLS-1$
         }
         String path = InterceptClassLoader.toClassFilePath(binaryName);
+        byte[] contents = take(path);
+        if (contents != null) {
+            return contents;
+        }
         return datastore.get(path);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 先読み済みの内容は複製せずに包んで返し、
+     * それ以外は{@link ResourceStore#getBuffer(String)}で読み出した内容をそのまま返す。
+     * </p>
+     */
+    @Override
+    public ByteBuffer findClassBuffer(String binaryName) {
+        if (binaryName == null) {
+            throw new IllegalArgumentException("name must not be null"); //$NON-NLS-1$
+        }
+        String path = InterceptClassLoader.toClassFilePath(binaryName);
+        byte[] contents = take(path);
+        if (contents != null) {
+            return ByteBuffer.wrap(contents);
+        }
+        return datastore.getBuffer(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 単一のエンティティに保存されたファイルの場合、返されるURLは読み出した内容を保持しており、
+     * {@link URL#openStream()}はデータストアにアクセスせずにその内容を返す。
+     * 分割して保存されたファイルの場合、このメソッドは内容全体を読み出さず、
+     * 返されるURLは開くたびに{@link ResourceStore#openStream(String)}で内容を順に読み出す。
+     * 先読み済みのファイルについては、このメソッドもデータストアにアクセスせず、
+     * 先読み済みの内容は返されるURLに引き渡される。
+     * </p>
+     */
+    @Override
+    public Iterable<URL> findAllResources(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        byte[] contents = take(path);
+        if (contents != null) {
+            URL url = ResourceURLStreamHandler.createUrl(datastore.getKindName(), path, contents);
+            return Collections.singletonList(url);
+        }
+        InputStream stream = datastore.openStream(path);
+        if (stream == null) {
+            return Collections.emptyList();
+        }
+        if (stream instanceof ByteArrayInputStream) {
+            // the contents are already in memory
+            ByteArrayInputStream buffer = (ByteArrayInputStream) stream;
+            contents = new byte[buffer.available()];
+            buffer.read(contents, 0, contents.length);
+            URL url = ResourceURLStreamHandler.createUrl(datastore.getKindName(), path, contents);
+            return Collections.singletonList(url);
+        }
+        close(stream);
+        URL url = ResourceURLStreamHandler.createUrl(datastore, path);
+        return Collections.singletonList(url);
+    }
+
+    private static void close(InputStream stream) {
+        assert stream != null;
+        try {
+            stream.close();
+        }
+        catch (IOException e) {
+            // ignored.
+        }
+    }
+
     @Override
     public InputStream findResourceAsStream(String path) {
         if (path == null) {
             throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
         }
-        byte[] bytes = datastore.get(path);
-        if (bytes != null) {
-            return new ByteArrayInputStream(bytes);
+        byte[] contents = take(path);
+        if (contents != null) {
+            return new ByteArrayInputStream(contents);
         }
-        return null;
+        return datastore.openStream(path);
+    }
+
+    @Override
+    public String toString() {
+        return "DatastoreClassLoaderDelegate(" + datastore.getKindName() + ")"; //$NON-NLS-1$ //$NON-NLS-2$
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * パスごとに、問い合わせる可能性のある委譲先を絞り込む。
+ * <p>
+ * 各委譲先が{@link ClassLoaderDelegate#getOwnedPrefixes()}で公開した接頭辞を{@link PrefixTrie 接頭辞の木}にまとめ、
+ * パスに対してはその接頭辞のいずれかに一致する委譲先と、接頭辞を公開しない委譲先のみを、
+ * 元の優先順位のまま返す。
+ * 結果がパッケージ (最後の{@code /}までの部分) のみで決まる場合、その結果はパッケージごとに記憶される。
+ * </p>
+ */
+final class DelegateRouter {
+
+    private final ClassLoaderDelegate[] delegates;
+
+    private final boolean[] unrestricted;
+
+    private final Routes routes;
+
+    /**
+     * インスタンスを生成する。
+     * @param delegates 優先順位の順に並べた委譲先
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    DelegateRouter(ClassLoaderDelegate[] delegates) {
+        if (delegates == null) {
+            throw new IllegalArgumentException("delegates must not be null"); //$NON-NLS-1$
+        }
+        this.delegates = delegates.clone();
+        this.unrestricted = new boolean[delegates.length];
+        Routes tree = null;
+        for (int i = 0; i < delegates.length; i++) {
+            Collection<String> prefixes = delegates[i].getOwnedPrefixes();
+            if (prefixes == null) {
+                unrestricted[i] = true;
+                continue;
+            }
+            if (tree == null) {
+                tree = new Routes();
+            }
+            for (String prefix : prefixes) {
+                tree.add(prefix, i);
+            }
+        }
+        this.routes = tree;
+    }
+
+    /**
+     * 指定のパスに対して問い合わせる可能性のある委譲先を、優先順位の順に返す。
+     * <p>
+     * 返される配列を変更してはならない。
+     * </p>
+     * @param path 対象のパス
+     * @return 問い合わせる可能性のある委譲先
+     */
+    ClassLoaderDelegate[] route(String path) {
+        assert path != null;
+        if (routes == null) {
+            return delegates;
+        }
+        return routes.find(path);
+    }
+
+    /**
+     * 接頭辞に委譲先の番号を登録した木。
+     */
+    private final class Routes extends PrefixTrie<Integer, ClassLoaderDelegate[]> {
+
+        Routes() {
+            return;
+        }
+
+        @Override
+        protected Visitor<Integer, ClassLoaderDelegate[]> createVisitor(String path) {
+            final boolean[] owners = unrestricted.clone();
+            return new Visitor<Integer, ClassLoaderDelegate[]>() {
+                @Override
+                public boolean visit(Integer owner, int offset) {
+                    owners[owner] = true;
+                    return true;
+                }
+
+                @Override
+                public ClassLoaderDelegate[] getResult() {
+                    List<ClassLoaderDelegate> results = new ArrayList<ClassLoaderDelegate>();
+                    for (int i = 0; i < owners.length; i++) {
+                        if (owners[i]) {
+                            results.add(delegates[i]);
+                        }
+                    }
+                    return results.toArray(new ClassLoaderDelegate[results.size()]);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ディレクトリ上のクラスファイルやリソースからクラスパス上の情報を取得する。
+ * <p>
+ * 探索したディレクトリの一覧はメモリ上に保持され、
+ * 以降の探索ではファイルシステムに問い合わせずにファイルの有無を判定する。
+ * そのため、{@link #isKnownMissing(String)}は一度一覧を取得したディレクトリについて正確な結果を返す。
+ * 保持した一覧は{@link #clear()}で破棄するまで更新されないため、
+ * ディレクトリの内容を変更した場合には{@link #clear()}を呼び出すこと。
+ * </p>
+ * <p>
+ * {@code ..}などを含むパスや、{@code /}から始まるパスは、対象のディレクトリ外を指すものとして常に発見できない。
+ * {@link #findAllResources(String)}は{@code file:}形式のURLを返す。
+ * </p>
+ * <p>
+ * このクラスのオブジェクトは、複数のスレッドから同時に利用できる。
+ * </p>
+ */
+public class DirectoryClassLoaderDelegate extends ClassLoaderDelegate {
+
+    private static final char SEPARATOR = '/';
+
+    private static final String DIRECTORY_SUFFIX = "/"; //$NON-NLS-1$
+
+    private final File directory;
+
+    private final ConcurrentMap<String, Set<String>> listings =
+        new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * インスタンスを生成する。
+     * @param directory 対象のディレクトリ
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public DirectoryClassLoaderDelegate(File directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory must not be null"); //$NON-NLS-1$
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * 対象のディレクトリを返す。
+     * @return 対象のディレクトリ
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 保持しているディレクトリの一覧をすべて破棄する。
+     */
+    public void clear() {
+        listings.clear();
+    }
+
+    /**
+     * 指定のディレクトリに含まれるファイルとディレクトリの名前を返す。
+     * <p>
+     * ディレクトリの名前には末尾に{@code /}が付与される。
+     * </p>
+     * @param prefix 対象のディレクトリのパス (空または{@code /}で終わる)
+     * @return 含まれる名前の一覧、ディレクトリが存在しない場合は空
+     */
+    private Set<String> getListing(String prefix) {
+        assert prefix != null;
+        Set<String> cached = listings.get(prefix);
+        if (cached != null) {
+            return cached;
+        }
+        File[] files = new File(directory, prefix).listFiles();
+        Set<String> results;
+        if (files == null) {
+            results = Collections.emptySet();
+        }
+        else {
+            results = new HashSet<String>();
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    results.add(file.getName() + DIRECTORY_SUFFIX);
+                }
+                else {
+                    results.add(file.getName());
+                }
+            }
+            results = Collections.unmodifiableSet(results);
+        }
+        Set<String> raced = listings.putIfAbsent(prefix, results);
+        return raced == null ? results : raced;
+    }
+
+    /**
+     * 指定のパスに対応するファイルを返す。
+     * @param path 対象のパス
+     * @return 対応するファイル、存在しない場合やパスが不正な場合は{@code null}
+     */
+    private File resolve(String path) {
+        assert path != null;
+        int start = 0;
+        while (true) {
+            int end = path.indexOf(SEPARATOR, start);
+            String name = end < 0 ? path.substring(start) : path.substring(start, end + 1);
+            if (isValidName(name) == false) {
+                return null;
+            }
+            if (getListing(path.substring(0, start)).contains(name) == false) {
+                return null;
+            }
+            if (end < 0 || end + 1 == path.length()) {
+                return new File(directory, path);
+            }
+            start = end + 1;
+        }
+    }
+
+    private static boolean isValidName(String name) {
+        assert name != null;
+        return name.length() > 0
+            && name.equals(DIRECTORY_SUFFIX) == false
+            && name.equals(".") == false //$NON-NLS-1$
+            && name.equals("./") == false //$NON-NLS-1$
+            && name.equals("..") == false //$NON-NLS-1$
+            && name.equals("../") == false //$NON-NLS-1$
+            && name.indexOf('\\') < 0;
+    }
+
+    @Override
+    public boolean isKnownMissing(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        return resolve(path) == null;
+    }
+
+    @Override
+    public List<String> listResources(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        int last = prefix.lastIndexOf(SEPARATOR);
+        String base = prefix.substring(0, last + 1);
+        List<String> results = new ArrayList<String>();
+        if (base.length() == 0 || resolve(base) != null) {
+            collect(base, prefix, results);
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    private void collect(String base, String prefix, List<String> results) {
+        assert base != null;
+        assert prefix != null;
+        assert results != null;
+        for (String name : getListing(base)) {
+            String path = base + name;
+            if (path.startsWith(prefix) == false && prefix.startsWith(path) == false) {
+                continue;
+            }
+            if (name.endsWith(DIRECTORY_SUFFIX)) {
+                collect(path, prefix, results);
+            }
+            else if (path.startsWith(prefix)) {
+                results.add(path);
+            }
+        }
+    }
+
+    @Override
+    public byte[] findClass(String binaryName) {
+        if (binaryName == null) {
+            throw new IllegalArgumentException("name must not be null"); //$NON-NLS-1$
+        }
+        File file = resolve(InterceptClassLoader.toClassFilePath(binaryName));
+        if (file == null) {
+            return null;
+        }
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+            try {
+                long size = input.length();
+                if (size > Integer.MAX_VALUE) {
+                    return null;
+                }
+                byte[] results = new byte[(int) size];
+                input.readFully(results);
+                return results;
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Iterable<URL> findAllResources(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        File file = resolve(path);
+        if (file == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return Collections.singletonList(file.toURI().toURL());
+        }
+        catch (MalformedURLException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public InputStream findResourceAsStream(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        File file = resolve(path);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new FileInputStream(file);
+        }
+        catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryClassLoaderDelegate(" + directory + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
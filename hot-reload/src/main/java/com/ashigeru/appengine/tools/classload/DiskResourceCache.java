@@ -0,0 +1,446 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.text.MessageFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ファイルの内容を、内容のハッシュ値をキーとしてローカルのディスク上にキャッシュする。
+ * <p>
+ * キャッシュは指定のディレクトリ上の、内容を追記していくデータファイルと、
+ * ハッシュ値とデータファイル上の位置の組を追記していく索引ファイルで構成される。
+ * 内容はデータファイルをメモリにマップして、複製せずに参照する{@link ByteBuffer}として返される。
+ * それぞれの内容はこのオブジェクトで最初に読み出す際にハッシュ値を検証し、
+ * 一致しないものはキャッシュに存在しないものとして扱う。
+ * </p>
+ * <p>
+ * 追記はロックファイルの排他ロックを取得して行い、索引の読み出しは共有ロックを取得して行うため、
+ * 同じディレクトリを複数のプロセスから同時に利用できる。
+ * ただし、ファイルのロックはプロセス単位で管理されるため、
+ * 同一のプロセス内では、ディレクトリごとに単一のインスタンスを共有して利用すること。
+ * </p>
+ * <p>
+ * ファイルは追記のみ行われ、内容が破棄されることはない。
+ * データファイルが{@link #DiskResourceCache(File, long) 容量}に達した場合、以降の内容はキャッシュされない。
+ * 内容を破棄する場合は、このキャッシュを利用するすべてのプロセスを停止してからディレクトリを削除すること。
+ * </p>
+ * <p>
+ * このクラスのメソッドはスレッド安全である。
+ * </p>
+ * @see ResourceStore#setDiskCache(DiskResourceCache)
+ */
+public class DiskResourceCache implements Closeable {
+
+    /**
+     * データファイルの容量の既定値 (バイト)。
+     */
+    public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+
+    private static final String DATA_FILE = "contents.dat"; //$NON-NLS-1$
+
+    private static final String INDEX_FILE = "contents.idx"; //$NON-NLS-1$
+
+    private static final String LOCK_FILE = "contents.lock"; //$NON-NLS-1$
+
+    private static final int INDEX_MAGIC = 0x48524331; // HRC1
+
+    private static final int INDEX_HEADER_SIZE = 8;
+
+    /**
+     * 索引に格納するハッシュ値の長さ ({@link ResourceManifest#computeHash(byte[])}の文字数)。
+     */
+    private static final int HASH_SIZE = 40;
+
+    private static final int RECORD_SIZE = HASH_SIZE + 8 + 4;
+
+    private final File directory;
+
+    private final long capacity;
+
+    private final RandomAccessFile dataFile;
+
+    private final RandomAccessFile indexFile;
+
+    private final RandomAccessFile lockFile;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private long indexPosition;
+
+    private volatile ByteBuffer mapped;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     * 指定のディレクトリが存在しない場合は作成し、すでにキャッシュが存在する場合はその索引を読み出す。
+     * 索引の形式が異なる場合、既存のキャッシュは破棄される。
+     * </p>
+     * @param directory キャッシュを配置するディレクトリ
+     * @param capacity データファイルの最大バイト数
+     * @throws IOException キャッシュの準備に失敗した場合
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合、
+     *     または容量に0以下の値か{@link Integer#MAX_VALUE}を超える値が指定された場合
+     */
+    public DiskResourceCache(File directory, long capacity) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory must not be null"); //$NON-NLS-1$
+        }
+        if (capacity <= 0 || capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity must be in (0, " + Integer.MAX_VALUE + "]"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        if (directory.isDirectory() == false && directory.mkdirs() == false) {
+            throw new IOException(MessageFormat.format(
+                "Failed to create cache directory: {0}", //$NON-NLS-1$
+                directory));
+        }
+        this.directory = directory;
+        this.capacity = capacity;
+        this.lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw"); //$NON-NLS-1$
+        this.dataFile = new RandomAccessFile(new File(directory, DATA_FILE), "rw"); //$NON-NLS-1$
+        this.indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw"); //$NON-NLS-1$
+        boolean succeed = false;
+        try {
+            initialize();
+            succeed = true;
+        }
+        finally {
+            if (succeed == false) {
+                close();
+            }
+        }
+    }
+
+    private synchronized void initialize() throws IOException {
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+            FileChannel index = indexFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            if (index.size() >= INDEX_HEADER_SIZE) {
+                readFully(index, header, 0L);
+                header.flip();
+                if (header.getInt() == INDEX_MAGIC && header.getInt() == RECORD_SIZE) {
+                    indexPosition = INDEX_HEADER_SIZE;
+                    refresh();
+                    return;
+                }
+            }
+            index.truncate(0L);
+            dataFile.getChannel().truncate(0L);
+            header.clear();
+            header.putInt(INDEX_MAGIC);
+            header.putInt(RECORD_SIZE);
+            header.flip();
+            writeFully(index, header, 0L);
+            indexPosition = INDEX_HEADER_SIZE;
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * キャッシュを配置したディレクトリを返す。
+     * @return キャッシュを配置したディレクトリ
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 指定のハッシュ値を持つ内容を返す。
+     * <p>
+     * 返されるバッファは読み出し専用で、メモリにマップしたデータファイルを複製せずに参照する。
+     * このオブジェクトで初めて読み出す内容の場合、返す前にハッシュ値を検証する。
+     * </p>
+     * @param hash 対象の内容のハッシュ値 ({@link ResourceManifest#computeHash(byte[])})
+     * @return 対応する内容、キャッシュに存在しない場合は{@code null}
+     * @throws IOException キャッシュの読み出しに失敗した場合
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public ByteBuffer get(String hash) throws IOException {
+        if (hash == null) {
+            throw new IllegalArgumentException("hash must not be null"); //$NON-NLS-1$
+        }
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            synchronized (this) {
+                FileLock lock = lockFile.getChannel().lock(0L, Long.MAX_VALUE, true);
+                try {
+                    refresh();
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            entry = entries.get(hash);
+            if (entry == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+        }
+        ByteBuffer contents = slice(entry);
+        if (contents == null || (entry.verified == false && verify(hash, entry, contents) == false)) {
+            entries.remove(hash, entry);
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return contents;
+    }
+
+    private boolean verify(String hash, Entry entry, ByteBuffer contents) {
+        assert hash != null;
+        assert entry != null;
+        assert contents != null;
+        if (hash.equals(ResourceManifest.computeHash(contents.duplicate())) == false) {
+            return false;
+        }
+        entry.verified = true;
+        return true;
+    }
+
+    private ByteBuffer slice(Entry entry) throws IOException {
+        assert entry != null;
+        long end = entry.offset + entry.length;
+        ByteBuffer current = mapped;
+        if (current == null || current.capacity() < end) {
+            synchronized (this) {
+                current = mapped;
+                if (current == null || current.capacity() < end) {
+                    FileChannel channel = dataFile.getChannel();
+                    long size = channel.size();
+                    if (size < end) {
+                        return null;
+                    }
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+                    current = map;
+                    mapped = current;
+                }
+            }
+        }
+        ByteBuffer results = current.duplicate();
+        results.position((int) entry.offset);
+        results.limit((int) end);
+        return results.slice();
+    }
+
+    /**
+     * 指定の内容をキャッシュに追加する。
+     * <p>
+     * 指定のハッシュ値を持つ内容がすでにキャッシュされている場合や、
+     * 追加するとデータファイルが容量を超える場合、このメソッドはなにも行わない。
+     * 内容とハッシュ値が対応していることは、呼び出し元で保証すること。
+     * </p>
+     * @param hash 対象の内容のハッシュ値 ({@link ResourceManifest#computeHash(byte[])})
+     * @param contents 対象の内容
+     * @return 追加した場合は{@code true}、追加しなかった場合は{@code false}
+     * @throws IOException キャッシュへの書き出しに失敗した場合
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public boolean put(String hash, byte[] contents) throws IOException {
+        if (hash == null) {
+            throw new IllegalArgumentException("hash must not be null"); //$NON-NLS-1$
+        }
+        if (contents == null) {
+            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        }
+        if (hash.length() != HASH_SIZE || entries.containsKey(hash)) {
+            return false;
+        }
+        synchronized (this) {
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                refresh();
+                if (entries.containsKey(hash)) {
+                    return false;
+                }
+                FileChannel data = dataFile.getChannel();
+                long offset = data.size();
+                if (offset + contents.length > capacity) {
+                    return false;
+                }
+                FileChannel index = indexFile.getChannel();
+                if (index.size() > indexPosition) {
+                    // discards the broken record written by the crashed process
+                    index.truncate(indexPosition);
+                }
+                writeFully(data, ByteBuffer.wrap(contents), offset);
+                ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+                for (int i = 0; i < HASH_SIZE; i++) {
+                    record.put((byte) hash.charAt(i));
+                }
+                record.putLong(offset);
+                record.putInt(contents.length);
+                record.flip();
+                writeFully(index, record, indexPosition);
+                indexPosition += RECORD_SIZE;
+                Entry entry = new Entry(offset, contents.length);
+                entry.verified = true;
+                entries.put(hash, entry);
+                return true;
+            }
+            finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * 索引ファイルに追記された記録を読み出す。
+     * @throws IOException 読み出しに失敗した場合
+     */
+    private void refresh() throws IOException {
+        assert Thread.holdsLock(this);
+        FileChannel index = indexFile.getChannel();
+        long available = index.size() - indexPosition;
+        int count = (int) Math.min(available / RECORD_SIZE, Integer.MAX_VALUE / RECORD_SIZE);
+        if (count <= 0) {
+            return;
+        }
+        ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE);
+        readFully(index, records, indexPosition);
+        records.flip();
+        char[] hash = new char[HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < HASH_SIZE; j++) {
+                hash[j] = (char) (records.get() & 0xff);
+            }
+            long offset = records.getLong();
+            int length = records.getInt();
+            if (offset >= 0 && length >= 0) {
+                entries.put(new String(hash), new Entry(offset, length));
+            }
+        }
+        indexPosition += (long) count * RECORD_SIZE;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        assert channel != null;
+        assert buffer != null;
+        long current = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, current);
+            if (read < 0) {
+                throw new IOException("Unexpected end of cache file"); //$NON-NLS-1$
+            }
+            current += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        assert channel != null;
+        assert buffer != null;
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
+    /**
+     * キャッシュされている内容の数を返す。
+     * <p>
+     * 他のプロセスが追加した内容は、このオブジェクトがそれを検出するまで含まれない。
+     * </p>
+     * @return キャッシュされている内容の数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * キャッシュから内容を返せた回数を返す。
+     * @return キャッシュから内容を返せた回数
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * キャッシュに内容がなかった回数を返す。
+     * @return キャッシュに内容がなかった回数
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * キャッシュのファイルを閉じる。
+     * <p>
+     * 閉じた後にこのオブジェクトを利用してはならない。
+     * すでに返したバッファは、閉じた後も参照できる。
+     * </p>
+     * @throws IOException ファイルを閉じるのに失敗した場合
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException occurred = null;
+        for (RandomAccessFile file : new RandomAccessFile[] { indexFile, dataFile, lockFile }) {
+            if (file == null) {
+                continue;
+            }
+            try {
+                file.close();
+            }
+            catch (IOException e) {
+                occurred = e;
+            }
+        }
+        mapped = null;
+        if (occurred != null) {
+            throw occurred;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format(
+            "DiskResourceCache({0}, size={1})", //$NON-NLS-1$
+            directory,
+            entries.size());
+    }
+
+    /**
+     * データファイル上の内容の位置。
+     */
+    private static final class Entry {
+
+        final long offset;
+
+        final int length;
+
+        volatile boolean verified;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
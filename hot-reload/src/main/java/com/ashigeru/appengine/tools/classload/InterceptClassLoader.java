@@ -15,42 +15,83 @@
  */
 package com.ashigeru.appengine.tools.classload;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 /**
  * 親クラスのクラスロードを阻害して、子クラスを優先してロードを行うクラスローダ。
+ * <p>
+ * このクラスローダは並列にクラスをロードできる。
+ * クラスのロードはバイナリ名ごとに排他制御され、
+ * すでにロード済みのクラスに対するロードはロックを取得せずに完了する。
+ * なお、実行環境がJava SE 7以降である場合、このクラスは
+ * {@code ClassLoader.registerAsParallelCapable()}によって並列ロード可能なクラスローダとして登録される。
+ * このクラスのサブクラスを並列ロード可能にするには、サブクラスでも同様の登録を行う必要がある。
+ * </p>
+ * <p>
+ * 委譲先が{@link ClassLoaderDelegate#getOwnedPrefixes()}で扱うパスの接頭辞を公開している場合、
+ * このクラスローダはそれらを索引にまとめ、クラスやリソースの探索の際には
+ * そのパスを扱う可能性のある委譲先のみに、元の優先順位の順で問い合わせる。
+ * </p>
+ * <p>
+ * {@link #setParentBytesCache(ParentBytesCache)}でキャッシュを設定した場合、
+ * 親クラスローダから読み出したクラスファイルの内容はそのキャッシュに保持され、
+ * 同じキャッシュを共有する他のクラスローダは親からの読み出しを省略する。
+ * </p>
+ * <p>
+ * {@link #setListener(ClassLoadListener)}でリスナーを設定した場合、
+ * 委譲先や親クラスローダへの問い合わせと、クラスごとのロックの取得にかかった時間が通知される。
+ * </p>
  */
 public class InterceptClassLoader extends ClassLoader {
 
+    static {
+        registerAsParallelCapableIfSupported();
+    }
+
     private static final String CLASS_EXTENSION = ".class"; //$NON-NLS-1$
 
     private static final Enumeration<URL> EMPTY = new CompoundEnumeration<URL>();
 
-    private static final String[] EXCLUDES = {
+    private static final PathRules EXCLUDES = PathRules.prefixes(
         "java/", //$NON-NLS-1$
         "javax/", //$NON-NLS-1$
         "com/sun/", //$NON-NLS-1$
-        "sun/", //$NON-NLS-1$
-    };
+        "sun/"); //$NON-NLS-1$
 
     private ClassLoader parent;
 
-    private Pattern includes;
+    private PathRules includes;
 
     private ClassLoaderDelegate[] delegates;
 
-    private Map<String, Class<?>> parentCache = new HashMap<String, Class<?>>();
+    private DelegateRouter router;
+
+    private volatile ParentBytesCache parentBytesCache;
+
+    private volatile ClassLoadListener listener;
+
+    private final ConcurrentMap<String, Class<?>> parentCache =
+        new ConcurrentHashMap<String, Class<?>>();
+
+    private final ConcurrentMap<String, Object> loadingLocks =
+        new ConcurrentHashMap<String, Object>();
 
     /**
      * インスタンスを生成する。
@@ -66,6 +107,25 @@ public class InterceptClassLoader extends ClassLoader {
             ClassLoader parent,
             Pattern includes,
             List<? extends ClassLoaderDelegate> delegates) {
+        this(parent, toRules(includes), delegates);
+    }
+
+    /**
+     * 対象とするパスを規則の集合で指定してインスタンスを生成する。
+     * <p>
+     * {@link PathRules#compile(Collection, Collection)}で生成した規則を利用すると、
+     * 正規表現を利用する場合に比べてパスの判定 ({@link #accepts(String)}) を安価に行える。
+     * </p>
+     * @param parent 親クラスローダ
+     * @param includes このクラスローダーが対象とするパスの規則
+     * @param delegates 実際のクラスロードやリソースのロードを委譲される。
+     *   リストの先頭ほど優先され、クラスやリソースを探しに行く際には先頭から順に探す
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public InterceptClassLoader(
+            ClassLoader parent,
+            PathRules includes,
+            List<? extends ClassLoaderDelegate> delegates) {
         super(parent);
         if (parent == null) {
             throw new IllegalArgumentException("parent must not be null"); //$NON-NLS-1$
@@ -79,6 +139,7 @@ public class InterceptClassLoader extends ClassLoader {
         this.parent = parent;
         this.includes = includes;
         this.delegates = delegates.toArray(new ClassLoaderDelegate[delegates.size()]);
+        this.router = new DelegateRouter(this.delegates);
     }
 
     /**
@@ -91,26 +152,157 @@ public class InterceptClassLoader extends ClassLoader {
         if (path == null) {
             throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
         }
-        for (String prefix : EXCLUDES) {
-            if (path.startsWith(prefix)) {
-                return false;
+        if (EXCLUDES.matches(path)) {
+            return false;
+        }
+        return includes.matches(path);
+    }
+
+    /**
+     * 親クラスローダから読み出したクラスファイルの内容を保持するキャッシュを設定する。
+     * <p>
+     * 同じキャッシュを複数のクラスローダに設定すると、
+     * 親クラスローダのクラスを定義し直す際に、いずれかのクラスローダが読み出した内容が再利用される。
+     * </p>
+     * @param cache 利用するキャッシュ、利用しない場合は{@code null}
+     */
+    public void setParentBytesCache(ParentBytesCache cache) {
+        this.parentBytesCache = cache;
+    }
+
+    /**
+     * クラスやリソースの探索を通知するリスナーを設定する。
+     * <p>
+     * リスナーを設定しない場合、探索の際に時間の計測などは行われない。
+     * </p>
+     * @param listener 設定するリスナー、通知しない場合は{@code null}
+     * @see ClassLoadMetrics
+     * @see ClassLoadRecorder
+     * @see ClassLoadListener#compose(ClassLoadListener...)
+     */
+    public void setListener(ClassLoadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * クラスやリソースの探索を通知するリスナーを返す。
+     * @return 設定されたリスナー、設定されていない場合は{@code null}
+     */
+    public ClassLoadListener getListener() {
+        return listener;
+    }
+
+    private static PathRules toRules(Pattern includes) {
+        if (includes == null) {
+            throw new IllegalArgumentException("includes must not be null"); //$NON-NLS-1$
+        }
+        return PathRules.of(includes);
+    }
+
+    /**
+     * 指定のパスに対応するクラスやリソースを、それぞれの委譲先にあらかじめ取得させる。
+     * <p>
+     * 起動直後に大量のクラスをロードする場合、このメソッドで必要なクラスファイルをまとめて取得しておくことで、
+     * 以降のクラスロードで委譲先が外部のサービスに問い合わせることを避けられる。
+     * このクラスローダが対象としないパスは無視される。
+     * </p>
+     * @param paths 対象のパス一覧、クラスファイルは{@link #toClassFilePath(String)}の形式で指定する
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public void prefetch(Collection<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+        }
+        List<String> targets = new ArrayList<String>();
+        for (String path : paths) {
+            if (accepts(path)) {
+                targets.add(path);
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        Map<ClassLoaderDelegate, List<String>> routed =
+            new IdentityHashMap<ClassLoaderDelegate, List<String>>();
+        for (String path : targets) {
+            for (ClassLoaderDelegate delegate : router.route(path)) {
+                List<String> list = routed.get(delegate);
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    routed.put(delegate, list);
+                }
+                list.add(path);
+            }
+        }
+        for (ClassLoaderDelegate delegate : delegates) {
+            List<String> list = routed.get(delegate);
+            if (list != null) {
+                delegate.prefetch(Collections.unmodifiableList(list));
+            }
+        }
+    }
+
+    /**
+     * 指定の文字列から始まるパスを持つクラスやリソースを、それぞれの委譲先にあらかじめ取得させる。
+     * <p>
+     * それぞれの委譲先に対象のパス一覧を問い合わせ、そのうちこのクラスローダが対象とするものを取得させる。
+     * 一覧を返さない委譲先に対しては、このメソッドはなにも行わない。
+     * </p>
+     * @param prefix 対象のパスの接頭辞 ({@code "com/example/"}など)
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * @see #prefetch(Collection)
+     */
+    public void prefetch(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        for (ClassLoaderDelegate delegate : delegates) {
+            List<String> targets = new ArrayList<String>();
+            for (String path : delegate.listResources(prefix)) {
+                if (accepts(path)) {
+                    targets.add(path);
+                }
+            }
+            if (targets.isEmpty() == false) {
+                delegate.prefetch(Collections.unmodifiableList(targets));
             }
         }
-        return includes.matcher(path).matches();
     }
 
     @Override
-    public synchronized Class<?> loadClass(String binaryName, boolean resolve)
+    public Class<?> loadClass(String binaryName, boolean resolve)
             throws ClassNotFoundException {
+        Class<?> cached = findCachedClass(binaryName);
+        if (cached != null) {
+            return cached;
+        }
+        ClassLoadListener current = listener;
+        long start = current == null ? 0L : System.nanoTime();
+        synchronized (getLoadingLock(binaryName)) {
+            if (current != null) {
+                current.lockAcquired(binaryName, System.nanoTime() - start);
+            }
+            Class<?> loaded = findCachedClass(binaryName);
+            if (loaded != null) {
+                return loaded;
+            }
+            return loadClassWithLock(binaryName, resolve);
+        }
+    }
+
+    private Class<?> findCachedClass(String binaryName) {
+        assert binaryName != null;
         Class<?> loaded = findLoadedClass(binaryName);
         if (loaded != null) {
             return loaded;
         }
-        Class<?> loadedInParent = parentCache.get(binaryName);
-        if (loadedInParent != null) {
-            return loadedInParent;
-        }
+        return parentCache.get(binaryName);
+    }
 
+    private Class<?> loadClassWithLock(String binaryName, boolean resolve)
+            throws ClassNotFoundException {
+        assert binaryName != null;
+        assert Thread.holdsLock(getLoadingLock(binaryName));
         try {
             Class<?> found = findClass(binaryName);
             if (resolve) {
@@ -126,6 +318,22 @@ public class InterceptClassLoader extends ClassLoader {
         return fromParent;
     }
 
+    /**
+     * 指定のバイナリ名を持つクラスをロードする際に利用するロックオブジェクトを返す。
+     * @param binaryName 対象クラスのバイナリ名
+     * @return 対応するロックオブジェクト
+     */
+    private Object getLoadingLock(String binaryName) {
+        assert binaryName != null;
+        Object lock = loadingLocks.get(binaryName);
+        if (lock != null) {
+            return lock;
+        }
+        Object created = new Object();
+        Object other = loadingLocks.putIfAbsent(binaryName, created);
+        return other == null ? created : other;
+    }
+
     @Override
     public URL getResource(String path) {
         URL resource = findResource(path);
@@ -161,23 +369,46 @@ public class InterceptClassLoader extends ClassLoader {
             throw new ClassNotFoundException(binaryName);
         }
 
-        byte[] fromDelegate = findClassBytesFromDelegate(binaryName);
+        ByteBuffer fromDelegate = findClassBytesFromDelegate(binaryName, path);
         if (fromDelegate != null) {
-            return defineClass(binaryName, fromDelegate, 0, fromDelegate.length, null);
+            return defineClass(binaryName, fromDelegate, null);
         }
 
-        byte[] fromParent = findClassBytesFromParent(binaryName);
+        ClassLoadListener current = listener;
+        long start = current == null ? 0L : System.nanoTime();
+        ByteBuffer fromParent = findClassBytesFromParent(path);
+        if (current != null) {
+            current.parentLookup(
+                path,
+                fromParent != null,
+                fromParent == null ? 0L : fromParent.remaining(),
+                System.nanoTime() - start);
+        }
         if (fromParent != null) {
-            return defineClass(binaryName, fromParent, 0, fromParent.length, null);
+            return defineClass(binaryName, fromParent, null);
         }
 
         throw new ClassNotFoundException(binaryName);
     }
 
-    private byte[] findClassBytesFromDelegate(String binaryName) {
+    private ByteBuffer findClassBytesFromDelegate(String binaryName, String path) {
         assert binaryName != null;
-        for (ClassLoaderDelegate delegate : delegates) {
-            byte[] bytes = delegate.findClass(binaryName);
+        assert path != null;
+        ClassLoadListener current = listener;
+        for (ClassLoaderDelegate delegate : router.route(path)) {
+            if (delegate.isKnownMissing(path)) {
+                continue;
+            }
+            long start = current == null ? 0L : System.nanoTime();
+            ByteBuffer bytes = delegate.findClassBuffer(binaryName);
+            if (current != null) {
+                current.delegateLookup(
+                    delegate,
+                    path,
+                    bytes != null,
+                    bytes == null ? 0L : bytes.remaining(),
+                    System.nanoTime() - start);
+            }
             if (bytes != null) {
                 return bytes;
             }
@@ -185,36 +416,46 @@ public class InterceptClassLoader extends ClassLoader {
         return null;
     }
 
-    private byte[] findClassBytesFromParent(String binaryName) {
-        assert binaryName != null;
-        String path = toClassFilePath(binaryName);
-        InputStream in = parent.getResourceAsStream(path);
-        if (in == null) {
-            return null;
+    private ByteBuffer findClassBytesFromCache(ParentBytesCache cache, URL resource) {
+        assert cache != null;
+        assert resource != null;
+        ByteBuffer cached = cache.get(resource);
+        if (cached != null) {
+            return cached;
         }
+        InputStream in;
         try {
-            ByteArrayOutputStream results = new ByteArrayOutputStream();
-            byte[] buf = new byte[1024];
-            while (true) {
-                int read = in.read(buf);
-                if (read == -1) {
-                    break;
-                }
-                results.write(buf, 0, read);
-            }
-            return results.toByteArray();
+            in = resource.openStream();
         }
         catch (IOException e) {
             return null;
         }
-        finally {
-            try {
-                in.close();
-            }
-            catch (IOException e) {
-                // ignored
+        byte[] bytes = ClassLoaderDelegate.readFully(in);
+        if (bytes == null) {
+            return null;
+        }
+        ByteBuffer stored = cache.put(resource, bytes);
+        return stored != null ? stored : ByteBuffer.wrap(bytes);
+    }
+
+    private ByteBuffer findClassBytesFromParent(String path) {
+        assert path != null;
+        ParentBytesCache cache = parentBytesCache;
+        if (cache != null) {
+            URL resource = parent.getResource(path);
+            if (resource != null) {
+                ByteBuffer cached = findClassBytesFromCache(cache, resource);
+                if (cached != null) {
+                    return cached;
+                }
             }
         }
+        InputStream in = parent.getResourceAsStream(path);
+        if (in == null) {
+            return null;
+        }
+        byte[] bytes = ClassLoaderDelegate.readFully(in);
+        return bytes == null ? null : ByteBuffer.wrap(bytes);
     }
 
     @Override
@@ -222,8 +463,16 @@ public class InterceptClassLoader extends ClassLoader {
         if (accepts(path) == false) {
             return null;
         }
-        for (ClassLoaderDelegate delegate : delegates) {
+        ClassLoadListener current = listener;
+        for (ClassLoaderDelegate delegate : router.route(path)) {
+            if (delegate.isKnownMissing(path)) {
+                continue;
+            }
+            long start = current == null ? 0L : System.nanoTime();
             URL found = delegate.findResource(path);
+            if (current != null) {
+                current.delegateLookup(delegate, path, found != null, 0L, System.nanoTime() - start);
+            }
             if (found != null) {
                 return found;
             }
@@ -236,14 +485,23 @@ public class InterceptClassLoader extends ClassLoader {
         if (accepts(path) == false) {
             return EMPTY;
         }
+        ClassLoadListener current = listener;
         List<URL> results = new LinkedList<URL>();
-        for (ClassLoaderDelegate delegate : delegates) {
+        for (ClassLoaderDelegate delegate : router.route(path)) {
+            if (delegate.isKnownMissing(path)) {
+                continue;
+            }
+            long start = current == null ? 0L : System.nanoTime();
+            int size = results.size();
             Iterable<URL> found = delegate.findAllResources(path);
             if (found != null) {
                 for (URL url : found) {
                     results.add(url);
                 }
             }
+            if (current != null) {
+                current.delegateLookup(delegate, path, results.size() > size, 0L, System.nanoTime() - start);
+            }
         }
         return new IteratorEnumeration<URL>(results.iterator());
     }
@@ -252,8 +510,16 @@ public class InterceptClassLoader extends ClassLoader {
         if (accepts(path) == false) {
             return null;
         }
-        for (ClassLoaderDelegate delegate : delegates) {
+        ClassLoadListener current = listener;
+        for (ClassLoaderDelegate delegate : router.route(path)) {
+            if (delegate.isKnownMissing(path)) {
+                continue;
+            }
+            long start = current == null ? 0L : System.nanoTime();
             InputStream found = delegate.findResourceAsStream(path);
+            if (current != null) {
+                current.delegateLookup(delegate, path, found != null, 0L, System.nanoTime() - start);
+            }
             if (found != null) {
                 return found;
             }
@@ -274,6 +540,20 @@ public class InterceptClassLoader extends ClassLoader {
         return binaryName.replace('.', '/') + CLASS_EXTENSION;
     }
 
+    private static void registerAsParallelCapableIfSupported() {
+        try {
+            Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable"); //$NON-NLS-1$
+            register.setAccessible(true);
+            register.invoke(null);
+        }
+        catch (NoSuchMethodException e) {
+            // Java SE 6 or earlier: the VM always locks on this class loader.
+        }
+        catch (Exception e) {
+            // continue without registration, class loading is still correct.
+        }
+    }
+
     /**
      * {@link Iterator}をラップした{@link Enumeration}。
      * @param <E> 列挙する要素の型
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * JARファイル (ZIP形式のファイル) からクラスパス上の情報を取得する。
+ * <p>
+ * インスタンスの生成時にファイル全体を読み出し専用でメモリにマップし、
+ * 末尾の中央ディレクトリを一度だけ解析して、エントリ名の昇順に並べた索引を作成する。
+ * 以降の探索は索引の二分探索で行い、無圧縮のエントリはマップした領域を複製せずに参照する。
+ * 圧縮されたエントリは、読み出すたびに展開される。
+ * </p>
+ * <p>
+ * 索引はファイルのすべてのエントリを含むため、{@link #isKnownMissing(String)}は正確な結果を返す。
+ * {@link #findAllResources(String)}は{@code jar:file:...!/<path>}形式のURLを返す。
+ * </p>
+ * <p>
+ * ZIP64形式のファイルと、2GBを超えるファイルは扱えない。
+ * 生成後にファイルが変更された場合の動作は保証されない。
+ * </p>
+ */
+public class JarClassLoaderDelegate extends ClassLoaderDelegate implements Closeable {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int END_SIZE = 22;
+
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+
+    private static final int CENTRAL_SIZE = 46;
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int LOCAL_SIZE = 30;
+
+    private static final int METHOD_STORED = 0;
+
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final Charset ENCODING = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray(); //$NON-NLS-1$
+
+    private final File file;
+
+    private final String baseUrl;
+
+    private volatile ByteBuffer contents;
+
+    private final String[] names;
+
+    private final int[] headerOffsets;
+
+    private final int[] methods;
+
+    private final int[] compressedSizes;
+
+    private final int[] sizes;
+
+    /**
+     * インスタンスを生成する。
+     * @param file 対象のJARファイル
+     * @throws IOException ファイルの読み出しに失敗した場合、またはファイルの形式が正しくない場合
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public JarClassLoaderDelegate(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file must not be null"); //$NON-NLS-1$
+        }
+        this.file = file;
+        this.baseUrl = "jar:" + file.getAbsoluteFile().toURI().toURL().toExternalForm() + "!/"; //$NON-NLS-1$ //$NON-NLS-2$
+        RandomAccessFile input = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(MessageFormat.format(
+                    "JAR file is too large: {0}", //$NON-NLS-1$
+                    file));
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.contents = buffer;
+        }
+        finally {
+            input.close();
+        }
+        ByteBuffer buffer = contents.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int end = findEnd(buffer);
+        int count = buffer.getShort(end + 10) & 0xffff;
+        long centralOffset = buffer.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || centralOffset == 0xffffffffL) {
+            throw new IOException(MessageFormat.format(
+                "ZIP64 is not supported: {0}", //$NON-NLS-1$
+                file));
+        }
+        List<Entry> entries = new ArrayList<Entry>(count);
+        int offset = (int) centralOffset;
+        for (int i = 0; i < count; i++) {
+            if (offset < 0 || offset + CENTRAL_SIZE > end || buffer.getInt(offset) != CENTRAL_SIGNATURE) {
+                throw new IOException(MessageFormat.format(
+                    "Invalid central directory: {0}", //$NON-NLS-1$
+                    file));
+            }
+            int nameLength = buffer.getShort(offset + 28) & 0xffff;
+            int extraLength = buffer.getShort(offset + 30) & 0xffff;
+            int commentLength = buffer.getShort(offset + 32) & 0xffff;
+            String name = decodeName(buffer, offset + CENTRAL_SIZE, nameLength);
+            if (name.endsWith("/") == false) { //$NON-NLS-1$
+                entries.add(new Entry(
+                    name,
+                    buffer.getInt(offset + 42),
+                    buffer.getShort(offset + 10) & 0xffff,
+                    buffer.getInt(offset + 20),
+                    buffer.getInt(offset + 24)));
+            }
+            offset += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+        }
+        Collections.sort(entries);
+        int size = entries.size();
+        String[] entryNames = new String[size];
+        int[] entryHeaderOffsets = new int[size];
+        int[] entryMethods = new int[size];
+        int[] entryCompressedSizes = new int[size];
+        int[] entrySizes = new int[size];
+        int index = 0;
+        for (Entry entry : entries) {
+            if (index > 0 && entryNames[index - 1].equals(entry.name)) {
+                // duplicate entry, the first one is used
+                continue;
+            }
+            entryNames[index] = entry.name;
+            entryHeaderOffsets[index] = entry.headerOffset;
+            entryMethods[index] = entry.method;
+            entryCompressedSizes[index] = entry.compressedSize;
+            entrySizes[index] = entry.size;
+            index++;
+        }
+        this.names = Arrays.copyOf(entryNames, index);
+        this.headerOffsets = Arrays.copyOf(entryHeaderOffsets, index);
+        this.methods = Arrays.copyOf(entryMethods, index);
+        this.compressedSizes = Arrays.copyOf(entryCompressedSizes, index);
+        this.sizes = Arrays.copyOf(entrySizes, index);
+    }
+
+    private int findEnd(ByteBuffer buffer) throws IOException {
+        assert buffer != null;
+        int limit = buffer.capacity();
+        int min = Math.max(0, limit - END_SIZE - MAX_COMMENT_SIZE);
+        for (int offset = limit - END_SIZE; offset >= min; offset--) {
+            if (buffer.getInt(offset) == END_SIGNATURE) {
+                return offset;
+            }
+        }
+        throw new IOException(MessageFormat.format(
+            "Not a JAR file: {0}", //$NON-NLS-1$
+            file));
+    }
+
+    private static String decodeName(ByteBuffer buffer, int offset, int length) {
+        assert buffer != null;
+        ByteBuffer name = buffer.duplicate();
+        name.position(offset);
+        name.limit(offset + length);
+        return ENCODING.decode(name).toString();
+    }
+
+    /**
+     * 対象のJARファイルを返す。
+     * @return 対象のJARファイル
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * JARファイルに含まれるエントリ (ディレクトリを除く) の数を返す。
+     * @return エントリの数
+     */
+    public int size() {
+        return names.length;
+    }
+
+    @Override
+    public boolean isKnownMissing(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        return Arrays.binarySearch(names, path) < 0;
+    }
+
+    @Override
+    public List<String> listResources(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        int start = Arrays.binarySearch(names, prefix);
+        if (start < 0) {
+            start = -(start + 1);
+        }
+        List<String> results = new ArrayList<String>();
+        for (int i = start; i < names.length && names[i].startsWith(prefix); i++) {
+            results.add(names[i]);
+        }
+        return results;
+    }
+
+    /**
+     * 指定のパスに対応するエントリの内容を返す。
+     * <p>
+     * 無圧縮のエントリの場合、返されるバッファはマップした領域を複製せずに参照する。
+     * </p>
+     * @param path 対象のパス
+     * @return 対応するエントリの内容、存在しない場合や読み出せない場合は{@code null}
+     */
+    private ByteBuffer find(String path) {
+        assert path != null;
+        int index = Arrays.binarySearch(names, path);
+        ByteBuffer buffer = contents;
+        if (index < 0 || buffer == null) {
+            return null;
+        }
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int header = headerOffsets[index];
+        if (header < 0
+                || header + LOCAL_SIZE > buffer.capacity()
+                || buffer.getInt(header) != LOCAL_SIGNATURE) {
+            return null;
+        }
+        int nameLength = buffer.getShort(header + 26) & 0xffff;
+        int extraLength = buffer.getShort(header + 28) & 0xffff;
+        long start = (long) header + LOCAL_SIZE + nameLength + extraLength;
+        long end = start + (compressedSizes[index] & 0xffffffffL);
+        if (end > buffer.capacity()) {
+            return null;
+        }
+        buffer.limit((int) end);
+        buffer.position((int) start);
+        ByteBuffer data = buffer.slice();
+        switch (methods[index]) {
+        case METHOD_STORED:
+            return data;
+        case METHOD_DEFLATED:
+            return inflate(data, sizes[index]);
+        default:
+            return null;
+        }
+    }
+
+    private static ByteBuffer inflate(ByteBuffer data, int size) {
+        assert data != null;
+        if (size < 0) {
+            return null;
+        }
+        byte[] input = new byte[data.remaining()];
+        data.get(input);
+        byte[] results = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int offset = 0;
+            while (offset < size) {
+                int read = inflater.inflate(results, offset, size - offset);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += read;
+            }
+            if (offset != size) {
+                return null;
+            }
+            return ByteBuffer.wrap(results);
+        }
+        catch (DataFormatException e) {
+            return null;
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public byte[] findClass(String binaryName) {
+        ByteBuffer data = findClassBuffer(binaryName);
+        if (data == null) {
+            return null;
+        }
+        byte[] results = new byte[data.remaining()];
+        data.get(results);
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 無圧縮のエントリの場合、返されるバッファはマップした領域を複製せずに参照するため、
+     * クラスの定義までに内容は複製されない。
+     * </p>
+     */
+    @Override
+    public ByteBuffer findClassBuffer(String binaryName) {
+        if (binaryName == null) {
+            throw new IllegalArgumentException("name must not be null"); //$NON-NLS-1$
+        }
+        return find(InterceptClassLoader.toClassFilePath(binaryName));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 返されるURLは{@code jar:file:...!/<path>}形式で、
+     * {@link URL#openStream()}は標準のJARファイルの読み出し機構を利用する。
+     * </p>
+     */
+    @Override
+    public Iterable<URL> findAllResources(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        if (Arrays.binarySearch(names, path) < 0) {
+            return Collections.emptyList();
+        }
+        try {
+            return Collections.singletonList(new URL(baseUrl + encodePath(path)));
+        }
+        catch (MalformedURLException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * URLのパスとして利用できない文字を、UTF-8のバイト列としてパーセントエンコードする。
+     * @param path 対象のパス
+     * @return エンコードしたパス
+     */
+    private static String encodePath(String path) {
+        assert path != null;
+        StringBuilder buf = null;
+        for (int i = 0, n = path.length(); i < n; i++) {
+            char c = path.charAt(i);
+            if (isPathCharacter(c)) {
+                if (buf != null) {
+                    buf.append(c);
+                }
+                continue;
+            }
+            if (buf == null) {
+                buf = new StringBuilder(path.length() + 16);
+                buf.append(path, 0, i);
+            }
+            int end = i + 1;
+            if (Character.isHighSurrogate(c) && end < n && Character.isLowSurrogate(path.charAt(end))) {
+                end++;
+            }
+            byte[] bytes = path.substring(i, end).getBytes(ENCODING);
+            for (byte b : bytes) {
+                buf.append('%');
+                buf.append(HEX[(b >> 4) & 0x0f]);
+                buf.append(HEX[b & 0x0f]);
+            }
+            i = end - 1;
+        }
+        return buf == null ? path : buf.toString();
+    }
+
+    private static boolean isPathCharacter(char c) {
+        if ('a' <= c && c <= 'z' || 'A' <= c && c <= 'Z' || '0' <= c && c <= '9') {
+            return true;
+        }
+        return "/-_.~!$&'()*+,;=:@".indexOf(c) >= 0; //$NON-NLS-1$
+    }
+
+    @Override
+    public InputStream findResourceAsStream(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        ByteBuffer data = find(path);
+        if (data == null) {
+            return null;
+        }
+        return new ByteBufferInputStream(data);
+    }
+
+    /**
+     * マップした領域への参照を破棄する。
+     * <p>
+     * 以降の探索は、いずれも発見できなくなる。
+     * マップした領域はガベージコレクタによって解放される。
+     * </p>
+     */
+    @Override
+    public void close() {
+        contents = null;
+    }
+
+    @Override
+    public String toString() {
+        return "JarClassLoaderDelegate(" + file + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * 中央ディレクトリのエントリ。
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        final String name;
+
+        final int headerOffset;
+
+        final int method;
+
+        final int compressedSize;
+
+        final int size;
+
+        Entry(String name, int headerOffset, int method, int compressedSize, int size) {
+            assert name != null;
+            this.name = name;
+            this.headerOffset = headerOffset;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return name.compareTo(o.name);
+        }
+    }
+}
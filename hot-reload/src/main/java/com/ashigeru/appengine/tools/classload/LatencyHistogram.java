@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 所要時間の分布を、2のべき乗ごとの区間に分けて記録する。
+ * <p>
+ * 記録は区間ごとのカウンタを加算するのみで行われ、ロックを取得しない。
+ * 百分位数は対応する区間の上限として求めるため、最大で2倍程度の誤差を含む。
+ * </p>
+ * <p>
+ * このクラスのオブジェクトは、複数のスレッドから同時に利用できる。
+ * </p>
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * 所要時間を記録する。
+     * @param nanos 所要時間 (ナノ秒)、負の値は{@code 0}として扱う
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        total.addAndGet(value);
+    }
+
+    /**
+     * 記録した回数を返す。
+     * @return 記録した回数
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * 記録した所要時間の合計を返す。
+     * @return 所要時間の合計 (ナノ秒)
+     */
+    public long getTotalNanos() {
+        return total.get();
+    }
+
+    /**
+     * 指定の百分位数に対応する所要時間を返す。
+     * @param percentile 百分位数 ({@code 0.0}から{@code 100.0}まで)
+     * @return 対応する所要時間の上限 (ナノ秒)、記録がない場合は{@code 0}
+     * @throws IllegalArgumentException 百分位数が範囲外である場合
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("percentile must be in [0, 100]"); //$NON-NLS-1$
+        }
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0L;
+        }
+        long threshold = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= threshold) {
+                return upperBound(i);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+
+    /**
+     * 記録をすべて破棄する。
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        total.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram(count=" + getCount() //$NON-NLS-1$
+            + ", p50=" + getPercentile(50.0) //$NON-NLS-1$
+            + ", p99=" + getPercentile(99.0) //$NON-NLS-1$
+            + ")"; //$NON-NLS-1$
+    }
+}
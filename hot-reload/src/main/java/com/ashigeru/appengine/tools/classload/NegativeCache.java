@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 存在しないことが判明したパスを記憶する、容量制限付きのキャッシュ。
+ * <p>
+ * このキャッシュは世代を持ち、{@link #invalidate()}によって世代が進むと、
+ * それまでに記憶した内容はすべて破棄される。
+ * 探索を開始する前に{@link #getGeneration()}で世代を取得しておき、
+ * 探索の結果を{@link #add(String, long)}で記録すると、
+ * 探索中に内容が変更された場合にはその結果は記録されない。
+ * </p>
+ * <p>
+ * このクラスのメソッドはスレッド安全である。
+ * </p>
+ */
+final class NegativeCache {
+
+    private final LinkedHashMap<String, Boolean> entries;
+
+    private long generation;
+
+    /**
+     * インスタンスを生成する。
+     * @param capacity 記憶するパスの最大数
+     * @throws IllegalArgumentException 容量に0以下の値が指定された場合
+     */
+    NegativeCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0"); //$NON-NLS-1$
+        }
+        this.entries = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * 現在の世代を返す。
+     * @return 現在の世代
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 指定のパスが存在しないことが判明している場合のみ{@code true}を返す。
+     * @param path 対象のパス
+     * @return 存在しないことが判明している場合のみ{@code true}
+     */
+    synchronized boolean contains(String path) {
+        assert path != null;
+        return entries.get(path) != null;
+    }
+
+    /**
+     * 指定のパスが存在しないことを記録する。
+     * <p>
+     * 指定の世代が現在の世代と異なる場合、この呼び出しはなにも行わない。
+     * </p>
+     * @param path 対象のパス
+     * @param observed 探索を開始した時点での世代
+     */
+    synchronized void add(String path, long observed) {
+        assert path != null;
+        if (observed != generation) {
+            return;
+        }
+        entries.put(path, Boolean.TRUE);
+    }
+
+    /**
+     * 世代を進め、記憶しているすべての内容を破棄する。
+     */
+    synchronized void invalidate() {
+        generation++;
+        entries.clear();
+    }
+}
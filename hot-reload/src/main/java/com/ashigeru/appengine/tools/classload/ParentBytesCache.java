@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 親クラスローダから読み出したクラスファイルの内容を、ヒープ外のメモリに保持するキャッシュ。
+ * <p>
+ * {@link InterceptClassLoader}は親クラスローダのクラスも自身で定義し直すため、
+ * 新しいクラスローダを生成するたびに同じクラスファイルを親から読み出すことになる。
+ * このキャッシュを複数のクラスローダ ({@link ReloadManager}の各世代など) で共有すると、
+ * 2つ目以降のクラスローダは読み出しを省略し、保持した内容から直接クラスを定義できる。
+ * </p>
+ * <p>
+ * 内容はクラスファイルの位置 ({@link URL}) と、ファイルであればその更新日時をキーとして保持されるため、
+ * 親クラスローダのクラスファイルが置き換えられた場合には新しい内容が読み出される。
+ * 保持する内容の合計が容量を超えた場合、最近利用されていないものから破棄される。
+ * 単一の内容が容量の1/8を超える場合、その内容は保持されない。
+ * </p>
+ * <p>
+ * このクラスのオブジェクトは、複数のスレッドから同時に利用できる。
+ * </p>
+ */
+public final class ParentBytesCache {
+
+    private static final String JAR_SEPARATOR = "!/"; //$NON-NLS-1$
+
+    private final long capacity;
+
+    private final long maxEntryWeight;
+
+    private final LinkedHashMap<String, ByteBuffer> entries =
+        new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+
+    private long weight;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * インスタンスを生成する。
+     * @param capacity 保持する内容の合計の最大バイト数
+     * @throws IllegalArgumentException 容量に0以下の値が指定された場合
+     */
+    public ParentBytesCache(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0"); //$NON-NLS-1$
+        }
+        this.capacity = capacity;
+        this.maxEntryWeight = Math.max(1L, capacity / 8);
+    }
+
+    /**
+     * このキャッシュから内容を取得できた回数を返す。
+     * @return 取得できた回数
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * このキャッシュから内容を取得できなかった回数を返す。
+     * @return 取得できなかった回数
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 現在保持している内容の合計バイト数を返す。
+     * @return 保持している内容の合計バイト数
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * 保持しているすべての内容を破棄する。
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * 指定の位置に対応する内容を返す。
+     * @param resource 対象のクラスファイルの位置
+     * @return 対応する内容の読み出し専用のバッファ、保持していない場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public ByteBuffer get(URL resource) {
+        if (resource == null) {
+            throw new IllegalArgumentException("resource must not be null"); //$NON-NLS-1$
+        }
+        String key = toKey(resource);
+        ByteBuffer found;
+        synchronized (this) {
+            found = entries.get(key);
+        }
+        if (found == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return found.asReadOnlyBuffer();
+    }
+
+    /**
+     * 指定の位置に対応する内容を、ヒープ外のメモリに複製して保持する。
+     * @param resource 対象のクラスファイルの位置
+     * @param contents 対象の内容
+     * @return 保持した内容の読み出し専用のバッファ、大きすぎて保持しなかった場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public ByteBuffer put(URL resource, byte[] contents) {
+        if (resource == null) {
+            throw new IllegalArgumentException("resource must not be null"); //$NON-NLS-1$
+        }
+        if (contents == null) {
+            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        }
+        if (contents.length > maxEntryWeight) {
+            return null;
+        }
+        String key = toKey(resource);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(contents.length);
+        buffer.put(contents);
+        buffer.flip();
+        synchronized (this) {
+            ByteBuffer old = entries.put(key, buffer);
+            if (old != null) {
+                weight -= old.capacity();
+            }
+            weight += buffer.capacity();
+            evict();
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private void evict() {
+        assert Thread.holdsLock(this);
+        Iterator<Map.Entry<String, ByteBuffer>> iter = entries.entrySet().iterator();
+        while (weight > capacity && iter.hasNext()) {
+            Map.Entry<String, ByteBuffer> eldest = iter.next();
+            weight -= eldest.getValue().capacity();
+            iter.remove();
+        }
+    }
+
+    /**
+     * 指定の位置に対応するキャッシュのキーを返す。
+     * <p>
+     * ファイル、またはファイル上のJARに含まれるエントリの場合、そのファイルの更新日時をキーに含める。
+     * </p>
+     * @param resource 対象の位置
+     * @return 対応するキー
+     */
+    static String toKey(URL resource) {
+        assert resource != null;
+        String location = resource.toExternalForm();
+        File file = toFile(resource);
+        if (file == null) {
+            return location;
+        }
+        return location + '@' + file.lastModified();
+    }
+
+    private static File toFile(URL resource) {
+        assert resource != null;
+        URL target = resource;
+        if ("jar".equals(target.getProtocol())) { //$NON-NLS-1$
+            String path = target.getPath();
+            int separator = path.indexOf(JAR_SEPARATOR);
+            if (separator < 0) {
+                return null;
+            }
+            try {
+                target = new URL(path.substring(0, separator));
+            }
+            catch (MalformedURLException e) {
+                return null;
+            }
+        }
+        if ("file".equals(target.getProtocol()) == false) { //$NON-NLS-1$
+            return null;
+        }
+        try {
+            return new File(target.toURI());
+        }
+        catch (URISyntaxException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+/**
+ * パスを対象とするかどうかを判定する規則の集合。
+ * <p>
+ * {@link #compile(Collection, Collection)}で生成した規則は、
+ * 包含と除外のそれぞれのパスの規則を{@link PrefixTrie 接頭辞の木}にまとめて判定する。
+ * パスは、いずれかの包含規則に一致し、かついずれの除外規則にも一致しない場合に対象となる。
+ * それぞれの規則は次のいずれかの形式で指定する。
+ * </p>
+ * <ul>
+ * <li> {@code com/example/} - 指定の文字列から始まるすべてのパス (接頭辞) </li>
+ * <li> {@code com/example/**} - 上記と同様 </li>
+ * <li> {@code com/example/*.class} - ワイルドカードを含むパス。
+ *   {@code *}は{@code /}以外の任意の文字列に、{@code **}は任意の文字列に、{@code ?}は{@code /}以外の任意の1文字に一致する
+ * </li>
+ * </ul>
+ * <p>
+ * 判定の結果がパッケージ (最後の{@code /}までの部分) のみで決まる場合、その結果はパッケージごとに記憶され、
+ * 以降の同じパッケージのパスは規則をたどらずに判定される。
+ * </p>
+ * <p>
+ * {@link #of(Pattern)}で生成した規則は、従来通り正規表現でパス全体を判定する。
+ * </p>
+ * <p>
+ * このクラスのオブジェクトは、複数のスレッドから同時に利用できる。
+ * </p>
+ */
+public final class PathRules {
+
+    private final RuleTrie rules;
+
+    private final Pattern pattern;
+
+    private final String representation;
+
+    private PathRules(RuleTrie rules, Pattern pattern, String representation) {
+        assert rules != null || pattern != null;
+        this.rules = rules;
+        this.pattern = pattern;
+        this.representation = representation;
+    }
+
+    /**
+     * 包含と除外の規則から、接頭辞の木を利用して判定するオブジェクトを生成する。
+     * @param includes 包含するパスの規則
+     * @param excludes 除外するパスの規則
+     * @return 生成したオブジェクト
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public static PathRules compile(Collection<String> includes, Collection<String> excludes) {
+        if (includes == null) {
+            throw new IllegalArgumentException("includes must not be null"); //$NON-NLS-1$
+        }
+        if (excludes == null) {
+            throw new IllegalArgumentException("excludes must not be null"); //$NON-NLS-1$
+        }
+        RuleTrie rules = new RuleTrie();
+        for (String rule : includes) {
+            add(rules, rule, false);
+        }
+        for (String rule : excludes) {
+            add(rules, rule, true);
+        }
+        return new PathRules(rules, null, MessageFormat.format(
+            "PathRules(includes={0}, excludes={1})", //$NON-NLS-1$
+            includes,
+            excludes));
+    }
+
+    /**
+     * 指定の接頭辞から始まるパスのみを対象とするオブジェクトを生成する。
+     * @param prefixes 対象とするパスの接頭辞
+     * @return 生成したオブジェクト
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public static PathRules prefixes(String... prefixes) {
+        if (prefixes == null) {
+            throw new IllegalArgumentException("prefixes must not be null"); //$NON-NLS-1$
+        }
+        return compile(Arrays.asList(prefixes), new ArrayList<String>());
+    }
+
+    /**
+     * 正規表現でパス全体を判定するオブジェクトを生成する。
+     * <p>
+     * このオブジェクトは判定結果を記憶しない。
+     * </p>
+     * @param pattern パス全体に一致させる正規表現
+     * @return 生成したオブジェクト
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public static PathRules of(Pattern pattern) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("pattern must not be null"); //$NON-NLS-1$
+        }
+        return new PathRules(null, pattern, "PathRules(pattern=" + pattern + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private static void add(RuleTrie rules, String rule, boolean exclude) {
+        assert rules != null;
+        if (rule == null) {
+            throw new IllegalArgumentException("rule must not be null"); //$NON-NLS-1$
+        }
+        String body = rule.endsWith("**") && rule.indexOf('*') == rule.length() - 2 //$NON-NLS-1$
+            ? rule.substring(0, rule.length() - 2)
+            : rule;
+        int wildcard = indexOfWildcard(body);
+        String prefix = wildcard < 0 ? body : body.substring(0, wildcard);
+        Pattern glob = wildcard < 0 ? null : toPattern(body.substring(wildcard));
+        rules.add(prefix, new Rule(exclude, glob));
+    }
+
+    private static int indexOfWildcard(String rule) {
+        assert rule != null;
+        for (int i = 0, n = rule.length(); i < n; i++) {
+            char c = rule.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Pattern toPattern(String glob) {
+        assert glob != null;
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0, n = glob.length(); i < n; i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < n && glob.charAt(i + 1) == '*') {
+                    buf.append(".*"); //$NON-NLS-1$
+                    i++;
+                }
+                else {
+                    buf.append("[^/]*"); //$NON-NLS-1$
+                }
+            }
+            else if (c == '?') {
+                buf.append("[^/]"); //$NON-NLS-1$
+            }
+            else {
+                buf.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(buf.toString());
+    }
+
+    /**
+     * 指定のパスが対象となる場合のみ{@code true}を返す。
+     * @param path 対象のパス
+     * @return 対象となる場合のみ{@code true}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public boolean matches(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        if (rules == null) {
+            return pattern.matcher(path).matches();
+        }
+        return rules.find(path).booleanValue();
+    }
+
+    @Override
+    public String toString() {
+        return representation;
+    }
+
+    private static final class Rule {
+
+        final boolean exclude;
+
+        final Pattern glob;
+
+        Rule(boolean exclude, Pattern glob) {
+            this.exclude = exclude;
+            this.glob = glob;
+        }
+    }
+
+    /**
+     * 接頭辞に規則を登録した木。
+     */
+    private static final class RuleTrie extends PrefixTrie<Rule, Boolean> {
+
+        RuleTrie() {
+            return;
+        }
+
+        @Override
+        protected Visitor<Rule, Boolean> createVisitor(final String path) {
+            return new Visitor<Rule, Boolean>() {
+
+                private boolean included;
+
+                private boolean excluded;
+
+                @Override
+                public boolean visit(Rule rule, int offset) {
+                    if (rule.glob == null || rule.glob.matcher(path.substring(offset)).matches()) {
+                        if (rule.exclude) {
+                            excluded = true;
+                        }
+                        else {
+                            included = true;
+                        }
+                    }
+                    // glob rules depend on the rest of the path
+                    return rule.glob == null;
+                }
+
+                @Override
+                public Boolean getResult() {
+                    return Boolean.valueOf(included && excluded == false);
+                }
+            };
+        }
+    }
+}
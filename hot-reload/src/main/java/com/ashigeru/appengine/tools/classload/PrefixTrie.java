@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 接頭辞ごとに値を登録し、パスに一致する接頭辞の値から結果を求める接頭辞の木 (トライ)。
+ * <p>
+ * パスに対しては、その接頭辞となるすべての登録済みの接頭辞の値を、短いものから順に{@link Visitor}に渡して結果を求める。
+ * 結果がパッケージ (最後の{@code /}までの部分) のみで決まる場合、その結果はパッケージごとに記憶され、
+ * 以降の同じパッケージのパスは木をたどらずに同じ結果を返す。
+ * </p>
+ * <p>
+ * 値の登録はこのオブジェクトを共有する前に完了させること。
+ * 登録を完了した後は、複数のスレッドから同時に利用できる。
+ * </p>
+ * @param <V> 接頭辞に登録する値の型
+ * @param <R> パスに対する結果の型
+ */
+abstract class PrefixTrie<V, R> {
+
+    /**
+     * パッケージごとに記憶する結果の最大数。
+     */
+    static final int MAX_MEMOIZED_PACKAGES = 4096;
+
+    private final Node root = new Node();
+
+    private final ConcurrentMap<String, R> packages = new ConcurrentHashMap<String, R>();
+
+    /**
+     * 指定の接頭辞に値を登録する。
+     * <p>
+     * 同じ接頭辞に等しい値が登録済みの場合、なにも行わない。
+     * </p>
+     * @param prefix 対象の接頭辞
+     * @param value 登録する値
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    final void add(String prefix, V value) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("value must not be null"); //$NON-NLS-1$
+        }
+        Node node = root;
+        for (int i = 0, n = prefix.length(); i < n; i++) {
+            node = node.getOrCreate(prefix.charAt(i));
+        }
+        node.addValue(value);
+    }
+
+    /**
+     * 指定のパスに一致する接頭辞の値から、結果を求めて返す。
+     * @param path 対象のパス
+     * @return 求めた結果
+     */
+    final R find(String path) {
+        assert path != null;
+        int packageLength = path.lastIndexOf('/') + 1;
+        String packageName = path.substring(0, packageLength);
+        R memoized = packages.get(packageName);
+        if (memoized != null) {
+            return memoized;
+        }
+        Visitor<V, R> visitor = createVisitor(path);
+        boolean uniform = true;
+        Node node = root;
+        for (int i = 0, n = path.length(); ; i++) {
+            for (Object value : node.values) {
+                @SuppressWarnings("unchecked")
+                V v = (V) value;
+                if (visitor.visit(v, i) == false || i > packageLength) {
+                    uniform = false;
+                }
+            }
+            if (i == packageLength && node.hasChildren()) {
+                // prefixes under this package depend on the file name
+                uniform = false;
+            }
+            if (i == n) {
+                break;
+            }
+            node = node.get(path.charAt(i));
+            if (node == null) {
+                break;
+            }
+        }
+        R result = visitor.getResult();
+        if (uniform && packages.size() < MAX_MEMOIZED_PACKAGES) {
+            packages.putIfAbsent(packageName, result);
+        }
+        return result;
+    }
+
+    /**
+     * 指定のパスに一致する接頭辞の値を受け取る、新しいオブジェクトを生成して返す。
+     * @param path 対象のパス
+     * @return 生成したオブジェクト
+     */
+    protected abstract Visitor<V, R> createVisitor(String path);
+
+    /**
+     * パスに一致する接頭辞の値を順に受け取り、結果を求める。
+     * @param <V> 接頭辞に登録された値の型
+     * @param <R> パスに対する結果の型
+     */
+    interface Visitor<V, R> {
+
+        /**
+         * パスに一致した接頭辞の値を受け取る。
+         * @param value 受け取る値
+         * @param offset パスのうち接頭辞の直後の位置
+         * @return この値による結果がパスのうちパッケージ以降の部分によらない場合のみ{@code true}
+         */
+        boolean visit(V value, int offset);
+
+        /**
+         * これまでに受け取った値から求めた結果を返す。
+         * @return 求めた結果
+         */
+        R getResult();
+    }
+
+    private static final class Node {
+
+        private static final Object[] NO_VALUES = new Object[0];
+
+        private static final char[] NO_KEYS = new char[0];
+
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        Object[] values = NO_VALUES;
+
+        private char[] keys = NO_KEYS;
+
+        private Node[] children = NO_CHILDREN;
+
+        Node() {
+            return;
+        }
+
+        boolean hasChildren() {
+            return keys.length != 0;
+        }
+
+        Node get(char c) {
+            char[] ks = keys;
+            for (int i = 0; i < ks.length; i++) {
+                if (ks[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrCreate(char c) {
+            Node found = get(c);
+            if (found != null) {
+                return found;
+            }
+            Node created = new Node();
+            int size = keys.length;
+            keys = Arrays.copyOf(keys, size + 1);
+            children = Arrays.copyOf(children, size + 1);
+            keys[size] = c;
+            children[size] = created;
+            return created;
+        }
+
+        void addValue(Object value) {
+            assert value != null;
+            for (Object current : values) {
+                if (current.equals(value)) {
+                    return;
+                }
+            }
+            int size = values.length;
+            values = Arrays.copyOf(values, size + 1);
+            values[size] = value;
+        }
+    }
+}
@@ -0,0 +1,757 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * {@link ResourceStore}のリビジョンを監視して、クラスローダの世代を切り替える。
+ * <p>
+ * {@link #acquire()}は現在の世代を返し、その世代は{@link Generation#release()}が呼び出されるまで利用中として扱われる。
+ * リビジョン ({@link ResourceStore#getRevision()}) が変更されていた場合、
+ * このオブジェクトは新しいクラスローダを生成して以降の{@link #acquire()}でそちらを返し、
+ * 古い世代は利用中のものがすべて解放された時点で{@link #onRetired(Generation) 破棄}される。
+ * </p>
+ * <p>
+ * リビジョンの確認は{@link #setCheckInterval(long) 一定の間隔}ごとに、
+ * 単一の小さなエンティティを読み出すのみで行われる。
+ * </p>
+ * <p>
+ * 既定では、各世代のクラスローダは{@link DatastoreClassLoaderDelegate}のみに委譲する
+ * {@link InterceptClassLoader}となる。
+ * 委譲先のみを変更する場合は{@link #createDelegates(String)}を、
+ * クラスローダ自体を変更する場合は{@link #createClassLoader(String)}をオーバーライドすること。
+ * </p>
+ * <p>
+ * 各世代のクラスローダは{@link #getParentBytesCache() 共通のキャッシュ}を共有し、
+ * 親クラスローダのクラスファイルは世代をまたいで一度だけ読み出される。
+ * {@link #setDelegateCacheCapacity(long)}を指定した場合、委譲先から読み出した内容も世代をまたいでキャッシュされ、
+ * 新しい世代の生成時には変更されたファイルのみが破棄される。
+ * </p>
+ * <p>
+ * {@link #setSelectiveReload(boolean) 選択的な再ロード}を有効にした場合、
+ * {@link #createClassLoader(String)}で生成したクラスローダを複数の世代で共有する基底の層とし、
+ * 各世代ではその上に、変更されたクラスとそれらを推移的に参照するクラスのみを定義し直す子の層を重ねる。
+ * パッケージプライベートなアクセスを保つため、子の層ではそれらのクラスと同じパッケージのクラスもすべて定義し直す。
+ * 変更されたクラスは{@link ResourceManifest}のハッシュ値の差分から、
+ * 参照関係はクラスファイルのコンスタントプールから求める。
+ * 影響を受けるクラスが全体の半数を超えた場合や、一覧が{@link ResourceManifest#isComplete() 完全}でない場合は、
+ * 基底の層ごと新しく生成する。
+ * 基底の層を自身のクラスローダとする世代は、その層が他の世代から利用されなくなるまで破棄されない。
+ * </p>
+ * <p>
+ * {@link #setProfileRecording(long) 起動直後の記録}を有効にした場合、
+ * 最初の世代のクラスローダは前回までに記録された{@link ClassLoadProfile}のパスをまとめて先読みし、
+ * 指定の時間の間に委譲先から発見したパスを記録して{@link ResourceStore}の一覧に統合する。
+ * </p>
+ */
+public class ReloadManager {
+
+    /**
+     * リビジョンを確認する間隔の既定値 (ミリ秒)。
+     */
+    public static final long DEFAULT_CHECK_INTERVAL = 1000L;
+
+    /**
+     * 世代間で共有する、親クラスローダのクラスファイルのキャッシュの容量 (バイト)。
+     */
+    public static final long DEFAULT_PARENT_BYTES_CAPACITY = 16L * 1024 * 1024;
+
+    /**
+     * 選択的な再ロードで、子の層で定義し直すクラスが全体に占める割合の上限。
+     */
+    private static final double MAX_AFFECTED_RATIO = 0.5;
+
+    private final ResourceStore store;
+
+    private final ClassLoader parent;
+
+    private final Pattern includes;
+
+    private final ParentBytesCache parentBytesCache =
+        new ParentBytesCache(DEFAULT_PARENT_BYTES_CAPACITY);
+
+    private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+    private volatile boolean selectiveReload;
+
+    private volatile boolean bundleEnabled;
+
+    private volatile CachingClassLoaderDelegate delegateCache;
+
+    private volatile ClassLoadListener listener;
+
+    private volatile long profileRecording;
+
+    private volatile ClassLoadRecorder recorder;
+
+    private volatile long nextCheck;
+
+    private volatile long nextSave;
+
+    private volatile Generation current;
+
+    private final Object checkLock = new Object();
+
+    private final Object swapLock = new Object();
+
+    private long lastNumber;
+
+    private int activeCount;
+
+    private ClassDependencies dependencies;
+
+    private InterceptClassLoader baseLoader;
+
+    private final Map<InterceptClassLoader, BaseLayer> baseLayers =
+        new IdentityHashMap<InterceptClassLoader, BaseLayer>();
+
+    private Map<String, String> baseHashes;
+
+    /**
+     * インスタンスを生成する。
+     * @param store クラスファイルやリソースを保持し、そのリビジョンを公開する
+     * @param parent 各世代のクラスローダの親
+     * @param includes 各世代のクラスローダが対象とするパスの形式
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * @see InterceptClassLoader#InterceptClassLoader(ClassLoader, Pattern, java.util.List)
+     */
+    public ReloadManager(ResourceStore store, ClassLoader parent, Pattern includes) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null"); //$NON-NLS-1$
+        }
+        if (parent == null) {
+            throw new IllegalArgumentException("parent must not be null"); //$NON-NLS-1$
+        }
+        if (includes == null) {
+            throw new IllegalArgumentException("includes must not be null"); //$NON-NLS-1$
+        }
+        this.store = store;
+        this.parent = parent;
+        this.includes = includes;
+    }
+
+    /**
+     * リビジョンを確認する間隔を設定する。
+     * <p>
+     * 初期状態では{@link #DEFAULT_CHECK_INTERVAL}が設定されている。
+     * {@code 0}を指定した場合、{@link #acquire()}のたびにリビジョンを確認する。
+     * </p>
+     * @param millis 確認する間隔 (ミリ秒)
+     * @throws IllegalArgumentException 負の値が指定された場合
+     */
+    public void setCheckInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis must be >= 0"); //$NON-NLS-1$
+        }
+        this.checkInterval = millis;
+        this.nextCheck = 0L;
+    }
+
+    /**
+     * 選択的な再ロードを行うかどうかを設定する。
+     * <p>
+     * 有効にした場合、リビジョンの変更時には変更されたクラスとそれらを推移的に参照するクラスのみを、
+     * 基底の層を親とする新しいクラスローダで定義し直す。
+     * 影響を受けないクラスは世代をまたいで基底の層のものが利用されるため、
+     * 再ロードにかかる時間とクラスの定義に利用される領域は、変更の大きさに比例するようになる。
+     * </p>
+     * <p>
+     * 基底の層のクラスがリフレクションで子の層のクラスを名前で参照する場合、
+     * 定義し直された新しいクラスではなく、基底の層で定義された古いクラスが利用される。
+     * 初期状態では無効となっている。
+     * </p>
+     * @param enabled 有効にする場合は{@code true}
+     */
+    public void setSelectiveReload(boolean enabled) {
+        synchronized (swapLock) {
+            this.selectiveReload = enabled;
+            this.dependencies = null;
+            this.baseLoader = null;
+            this.baseHashes = null;
+        }
+    }
+
+    /**
+     * 各世代のクラスローダで、連結された内容 ({@link ClassBundle}) を利用するかどうかを設定する。
+     * <p>
+     * 有効にした場合、{@link #createClassLoader(String)}が生成するクラスローダは、
+     * 世代のリビジョンに対応する{@link BundleClassLoaderDelegate}に問い合わせた後に
+     * {@link DatastoreClassLoaderDelegate}に問い合わせる。
+     * 初期状態では無効となっている。
+     * </p>
+     * @param enabled 有効にする場合は{@code true}
+     * @see ResourceUploader#setBundle(boolean)
+     */
+    public void setBundleEnabled(boolean enabled) {
+        this.bundleEnabled = enabled;
+    }
+
+    /**
+     * 各世代の{@link DatastoreClassLoaderDelegate}が読み出した内容を、世代をまたいでキャッシュする容量を設定する。
+     * <p>
+     * 正の値を指定した場合、{@link #createDelegates(String)}の既定の実装は、
+     * {@link #getDelegateCache()}と内容を共有する{@link CachingClassLoaderDelegate}で委譲先を包む。
+     * 新しい世代を生成する際には、新しいリビジョンの{@link ResourceManifest}で
+     * {@link CachingClassLoaderDelegate#invalidate(ResourceManifest) 変更されたファイルのみを破棄}する。
+     * 初期状態ではキャッシュしない。
+     * </p>
+     * @param capacity キャッシュに保持する内容の合計の最大バイト数、キャッシュしない場合は{@code 0}
+     */
+    public void setDelegateCacheCapacity(long capacity) {
+        this.delegateCache = capacity <= 0
+            ? null
+            : new CachingClassLoaderDelegate(new DatastoreClassLoaderDelegate(store), capacity);
+    }
+
+    /**
+     * 世代をまたいで共有する、委譲先のキャッシュを返す。
+     * <p>
+     * {@link #createDelegates(String)}をオーバーライドする場合、
+     * {@link CachingClassLoaderDelegate#withDelegate(ClassLoaderDelegate)}で世代ごとの委譲先を包むと、
+     * このオブジェクトが世代ごとに無効化するキャッシュを利用できる。
+     * </p>
+     * @return 共有するキャッシュ、キャッシュしない場合は{@code null}
+     * @see #setDelegateCacheCapacity(long)
+     */
+    public CachingClassLoaderDelegate getDelegateCache() {
+        return delegateCache;
+    }
+
+    /**
+     * 以降に生成する世代のクラスローダに設定するリスナーを設定する。
+     * <p>
+     * {@link #createClassLoader(String)}をオーバーライドする場合、
+     * 生成したクラスローダへのリスナーの設定はオーバーライドしたメソッドで行うこと。
+     * </p>
+     * @param listener 設定するリスナー、設定しない場合は{@code null}
+     * @see InterceptClassLoader#setListener(ClassLoadListener)
+     */
+    public void setListener(ClassLoadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 以降に生成する世代のクラスローダに設定するリスナーを返す。
+     * @return 設定するリスナー、設定しない場合は{@code null}
+     */
+    public ClassLoadListener getListener() {
+        return listener;
+    }
+
+    /**
+     * 最初の世代で、クラスロードの記録と先読みを行う時間を設定する。
+     * <p>
+     * {@code 0}より大きな値を指定した場合、最初の世代を生成する際に
+     * {@link ResourceStore#loadProfile()}で読み出したパスを{@link InterceptClassLoader#prefetch(java.util.Collection)}で先読みし、
+     * さらに指定の時間の間に委譲先から発見されたパスを{@link ClassLoadRecorder}で記録する。
+     * 記録した時間が経過した後の最初の{@link #acquire()}で、
+     * 記録したパスは{@link ResourceStore#mergeProfile(List)}で保存された一覧に統合される。
+     * 統合に失敗した場合は記録を保持したまま、{@link #setCheckInterval(long) 確認の間隔}が経過した後に再度統合を試みる。
+     * </p>
+     * <p>
+     * この設定は、これ以降に最初の世代を生成する場合のみ有効となる。
+     * 初期状態では{@code 0} (記録も先読みも行わない) となっている。
+     * </p>
+     * @param durationMillis 記録を行う時間 (ミリ秒)、行わない場合は{@code 0}
+     * @throws IllegalArgumentException 負の値が指定された場合
+     */
+    public void setProfileRecording(long durationMillis) {
+        if (durationMillis < 0) {
+            throw new IllegalArgumentException("durationMillis must be >= 0"); //$NON-NLS-1$
+        }
+        this.profileRecording = durationMillis;
+    }
+
+    /**
+     * 現在の世代を利用中として返す。
+     * <p>
+     * 前回の確認から{@link #setCheckInterval(long) 一定の時間}が経過していた場合、
+     * このメソッドはリビジョンを確認し、変更されていれば新しい世代を生成してそれを返す。
+     * 確認や世代の生成に失敗した場合は現在の世代をそのまま返し、次の確認の時刻に再度確認する。
+     * 返された世代は、利用を終えた際に必ず{@link Generation#release()}で解放すること。
+     * </p>
+     * @return 現在の世代
+     * @throws RuntimeException 最初の世代の生成に失敗した場合
+     */
+    public Generation acquire() {
+        long now = System.currentTimeMillis();
+        if (current == null || now >= nextCheck) {
+            boolean check;
+            synchronized (checkLock) {
+                check = current == null || now >= nextCheck;
+                if (check) {
+                    nextCheck = now + checkInterval;
+                }
+            }
+            if (check) {
+                try {
+                    checkForUpdates();
+                }
+                catch (RuntimeException e) {
+                    if (current == null) {
+                        throw e;
+                    }
+                    // keeps the current generation until the next check
+                }
+            }
+        }
+        ClassLoadRecorder r = recorder;
+        if (r != null && r.isRecording() == false && now >= nextSave) {
+            saveProfile(r, now);
+        }
+        while (true) {
+            Generation generation = current;
+            if (generation.retain()) {
+                return generation;
+            }
+        }
+    }
+
+    private void saveProfile(ClassLoadRecorder r, long now) {
+        assert r != null;
+        try {
+            if (r.save(store) != null) {
+                recorder = null;
+            }
+        }
+        catch (RuntimeException e) {
+            // keeps the recording until the next check
+            nextSave = now + checkInterval;
+        }
+    }
+
+    /**
+     * 確認の間隔によらず、直ちにリビジョンを確認する。
+     * <p>
+     * リビジョンが変更されていた場合 (または最初の世代がまだ生成されていない場合)、
+     * {@link ResourceStore}が保持するキャッシュを{@link ResourceStore#invalidateCaches() 破棄}して新しい世代を生成し、
+     * 以前の世代を引退させる。
+     * </p>
+     * @return 新しい世代を生成した場合のみ{@code true}
+     */
+    public boolean checkForUpdates() {
+        String revision = store.getRevision();
+        Generation previous;
+        synchronized (swapLock) {
+            previous = current;
+            if (previous != null && equals(previous.getRevision(), revision)) {
+                return false;
+            }
+            store.invalidateCaches();
+            CachingClassLoaderDelegate cache = delegateCache;
+            ResourceManifest manifest = selectiveReload || cache != null ? store.loadManifest() : null;
+            if (cache != null) {
+                cache.invalidate(manifest);
+            }
+            InterceptClassLoader loader;
+            if (selectiveReload) {
+                loader = createLayeredClassLoader(revision, manifest);
+            }
+            else {
+                loader = createClassLoader(revision);
+                baseLoader = null;
+                baseHashes = null;
+            }
+            if (loader == null) {
+                throw new IllegalStateException("createClassLoader returned null"); //$NON-NLS-1$
+            }
+            if (previous == null && profileRecording > 0) {
+                startProfiling(loader);
+            }
+            InterceptClassLoader base = selectiveReload ? baseLoader : null;
+            if (base != null) {
+                BaseLayer layer = baseLayers.get(base);
+                if (layer == null) {
+                    layer = new BaseLayer();
+                    baseLayers.put(base, layer);
+                }
+                layer.users++;
+            }
+            lastNumber++;
+            activeCount++;
+            current = new Generation(lastNumber, revision, loader, base);
+        }
+        if (previous != null) {
+            previous.retire();
+        }
+        return true;
+    }
+
+    private void startProfiling(InterceptClassLoader loader) {
+        assert Thread.holdsLock(swapLock);
+        assert loader != null;
+        ClassLoadRecorder r = new ClassLoadRecorder(profileRecording, ClassLoadProfile.DEFAULT_MAX_PATHS);
+        loader.setListener(ClassLoadListener.compose(loader.getListener(), r));
+        recorder = r;
+        loader.prefetch(store.loadProfile().getPaths());
+    }
+
+    /**
+     * 基底の層と、必要であれば変更の影響を受けるクラスを定義し直す子の層を生成し、最も下の層を返す。
+     * @param revision 対象のリビジョン
+     * @param manifest 対象のリビジョンのファイルの一覧
+     * @return 生成したクラスローダ
+     */
+    private InterceptClassLoader createLayeredClassLoader(String revision, ResourceManifest manifest) {
+        assert Thread.holdsLock(swapLock);
+        assert manifest != null;
+        if (dependencies == null) {
+            dependencies = new ClassDependencies(includes);
+        }
+        Map<String, String> hashes = dependencies.getClassHashes(manifest);
+        if (baseLoader == null || manifest.isComplete() == false) {
+            // the differences cannot be computed from an incomplete manifest
+            return createBaseLoader(revision, hashes);
+        }
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            if (entry.getValue().equals(baseHashes.get(entry.getKey())) == false) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String path : baseHashes.keySet()) {
+            if (hashes.containsKey(path) == false) {
+                changed.add(path);
+            }
+        }
+        if (changed.isEmpty()) {
+            return baseLoader;
+        }
+        dependencies.update(store, manifest);
+        Set<String> affected = expandToPackages(dependencies.getAffected(changed), hashes.keySet());
+        if (affected.size() > dependencies.size() * MAX_AFFECTED_RATIO) {
+            return createBaseLoader(revision, hashes);
+        }
+        List<ClassLoaderDelegate> delegates = createDelegates(revision);
+        if (delegates == null) {
+            throw new IllegalStateException("createDelegates returned null"); //$NON-NLS-1$
+        }
+        InterceptClassLoader loader = new InterceptClassLoader(
+            baseLoader,
+            PathRules.compile(affected, Collections.<String>emptyList()),
+            delegates);
+        loader.setListener(listener);
+        return loader;
+    }
+
+    /**
+     * 指定のクラスファイルと同じパッケージに属するクラスファイルをすべて加えて返す。
+     * <p>
+     * 子の層と基底の層は異なる実行時パッケージを構成するため、パッケージの一部のみを子の層で定義し直すと、
+     * パッケージプライベートなメンバへのアクセスが{@link IllegalAccessError}となる。
+     * </p>
+     * @param affected 子の層で定義し直すクラスファイルのパス
+     * @param classes 対象となるすべてのクラスファイルのパス
+     * @return パッケージ単位に広げたクラスファイルのパス
+     */
+    static Set<String> expandToPackages(Set<String> affected, Collection<String> classes) {
+        assert affected != null;
+        assert classes != null;
+        Set<String> packages = new HashSet<String>();
+        for (String path : affected) {
+            packages.add(getPackagePath(path));
+        }
+        Set<String> results = new HashSet<String>(affected);
+        for (String path : classes) {
+            if (packages.contains(getPackagePath(path))) {
+                results.add(path);
+            }
+        }
+        return results;
+    }
+
+    private static String getPackagePath(String path) {
+        assert path != null;
+        int index = path.lastIndexOf('/');
+        return index < 0 ? "" : path.substring(0, index); //$NON-NLS-1$
+    }
+
+    private InterceptClassLoader createBaseLoader(String revision, Map<String, String> hashes) {
+        assert Thread.holdsLock(swapLock);
+        assert hashes != null;
+        InterceptClassLoader loader = createClassLoader(revision);
+        if (loader == null) {
+            throw new IllegalStateException("createClassLoader returned null"); //$NON-NLS-1$
+        }
+        baseLoader = loader;
+        baseHashes = hashes;
+        return loader;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * まだ破棄されていない世代の数を返す。
+     * <p>
+     * 現在の世代と、引退したがまだ利用中の世代、
+     * および{@link #onRetired(Generation) 基底の層として共有されている}世代の合計となる。
+     * </p>
+     * @return まだ破棄されていない世代の数
+     */
+    public int getActiveGenerationCount() {
+        synchronized (swapLock) {
+            return activeCount;
+        }
+    }
+
+    /**
+     * 各世代のクラスローダで共有する、親クラスローダのクラスファイルのキャッシュを返す。
+     * <p>
+     * {@link #createClassLoader(String)}をオーバーライドする場合、
+     * 生成したクラスローダにこのキャッシュを{@link InterceptClassLoader#setParentBytesCache(ParentBytesCache) 設定}すると、
+     * 世代をまたいで親クラスローダからの読み出しを省略できる。
+     * </p>
+     * @return 共有するキャッシュ
+     */
+    public ParentBytesCache getParentBytesCache() {
+        return parentBytesCache;
+    }
+
+    /**
+     * 指定のリビジョンに対応する新しいクラスローダを生成して返す。
+     * <p>
+     * 既定では、{@link #createDelegates(String)}で生成した委譲先に委譲する
+     * {@link InterceptClassLoader}を生成し、{@link #getParentBytesCache()}と{@link #getListener()}を設定する。
+     * </p>
+     * @param revision 対象のリビジョン、公開されたリビジョンが存在しない場合は{@code null}
+     * @return 生成したクラスローダ
+     */
+    protected InterceptClassLoader createClassLoader(String revision) {
+        List<ClassLoaderDelegate> delegates = createDelegates(revision);
+        if (delegates == null) {
+            throw new IllegalStateException("createDelegates returned null"); //$NON-NLS-1$
+        }
+        InterceptClassLoader loader = new InterceptClassLoader(parent, includes, delegates);
+        loader.setParentBytesCache(parentBytesCache);
+        loader.setListener(listener);
+        return loader;
+    }
+
+    /**
+     * 指定のリビジョンに対応するクラスローダが委譲する、新しい委譲先の一覧を生成して返す。
+     * <p>
+     * 既定では、このオブジェクトの{@link ResourceStore}を参照する{@link DatastoreClassLoaderDelegate}のみを含む。
+     * {@link #setBundleEnabled(boolean)}で有効にした場合、その前に{@link BundleClassLoaderDelegate}も含む。
+     * {@link #setDelegateCacheCapacity(long)}でキャッシュを有効にした場合、
+     * {@link DatastoreClassLoaderDelegate}は世代をまたいで共有するキャッシュで包まれる。
+     * このメソッドは{@link #createClassLoader(String)}の既定の実装と、
+     * {@link #setSelectiveReload(boolean) 選択的な再ロード}の子の層を生成する際に呼び出される。
+     * キャッシュなどを利用する場合は、このメソッドをオーバーライドして世代ごとに新しい委譲先を生成すること。
+     * </p>
+     * @param revision 対象のリビジョン、公開されたリビジョンが存在しない場合は{@code null}
+     * @return 生成した委譲先の一覧
+     */
+    protected List<ClassLoaderDelegate> createDelegates(String revision) {
+        List<ClassLoaderDelegate> delegates = new ArrayList<ClassLoaderDelegate>();
+        if (bundleEnabled) {
+            delegates.add(new BundleClassLoaderDelegate(store, revision));
+        }
+        ClassLoaderDelegate datastore = new DatastoreClassLoaderDelegate(store);
+        CachingClassLoaderDelegate cache = delegateCache;
+        delegates.add(cache == null ? datastore : cache.withDelegate(datastore));
+        return delegates;
+    }
+
+    /**
+     * 引退した世代が解放され、破棄された際に呼び出される。
+     * <p>
+     * {@link #setSelectiveReload(boolean) 選択的な再ロード}で基底の層を自身のクラスローダとする世代は、
+     * 引退して解放された後も、その層を共有する世代がすべて破棄され、
+     * かつ基底の層が新しく生成されたものに置き換えられるまでは破棄されない。
+     * そのため、このメソッドに渡された世代のクラスローダが他の世代から利用されることはない。
+     * </p>
+     * <p>
+     * 既定ではなにも行わない。
+     * </p>
+     * @param generation 破棄された世代
+     */
+    protected void onRetired(Generation generation) {
+        return;
+    }
+
+    private void retired(Generation generation) {
+        assert generation != null;
+        List<Generation> discarded = new ArrayList<Generation>();
+        synchronized (swapLock) {
+            InterceptClassLoader base = generation.base;
+            if (base == null) {
+                discarded.add(generation);
+            }
+            else {
+                BaseLayer layer = baseLayers.get(base);
+                assert layer != null;
+                layer.users--;
+                if (generation.getClassLoader() == base) {
+                    // the later generations may still use the loader as their base layer
+                    layer.deferred.add(generation);
+                }
+                else {
+                    discarded.add(generation);
+                }
+                if (layer.users == 0 && base != baseLoader) {
+                    baseLayers.remove(base);
+                    discarded.addAll(layer.deferred);
+                }
+            }
+            activeCount -= discarded.size();
+        }
+        for (Generation target : discarded) {
+            onRetired(target);
+        }
+    }
+
+    /**
+     * 選択的な再ロードの基底の層を利用する世代の情報。
+     */
+    private static class BaseLayer {
+
+        int users;
+
+        final List<Generation> deferred = new ArrayList<Generation>();
+
+        BaseLayer() {
+            return;
+        }
+    }
+
+    /**
+     * クラスローダの世代。
+     */
+    public final class Generation {
+
+        private final long number;
+
+        private final String revision;
+
+        private final InterceptClassLoader classLoader;
+
+        final InterceptClassLoader base;
+
+        private int references;
+
+        private boolean retired;
+
+        private boolean closed;
+
+        Generation(long number, String revision, InterceptClassLoader classLoader, InterceptClassLoader base) {
+            assert classLoader != null;
+            this.number = number;
+            this.revision = revision;
+            this.classLoader = classLoader;
+            this.base = base;
+        }
+
+        /**
+         * この世代の通し番号を返す。
+         * <p>
+         * 通し番号は最初の世代が{@code 1}で、新しい世代ほど大きい。
+         * </p>
+         * @return この世代の通し番号
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * この世代のリビジョンを返す。
+         * @return この世代のリビジョン、公開されたリビジョンが存在しなかった場合は{@code null}
+         */
+        public String getRevision() {
+            return revision;
+        }
+
+        /**
+         * この世代のクラスローダを返す。
+         * @return この世代のクラスローダ
+         */
+        public InterceptClassLoader getClassLoader() {
+            return classLoader;
+        }
+
+        /**
+         * この世代がすでに引退している場合のみ{@code true}を返す。
+         * @return 引退している場合のみ{@code true}
+         */
+        public synchronized boolean isRetired() {
+            return retired;
+        }
+
+        /**
+         * この世代の利用を終える。
+         * <p>
+         * 引退した世代の利用がすべて終えられた時点で、その世代は破棄される。
+         * </p>
+         * @throws IllegalStateException 利用中でない世代に対して呼び出された場合
+         */
+        public void release() {
+            boolean close;
+            synchronized (this) {
+                if (references <= 0) {
+                    throw new IllegalStateException("generation is not acquired"); //$NON-NLS-1$
+                }
+                references--;
+                close = closeIfDrained();
+            }
+            if (close) {
+                retired(this);
+            }
+        }
+
+        synchronized boolean retain() {
+            if (retired) {
+                return false;
+            }
+            references++;
+            return true;
+        }
+
+        void retire() {
+            boolean close;
+            synchronized (this) {
+                retired = true;
+                close = closeIfDrained();
+            }
+            if (close) {
+                retired(this);
+            }
+        }
+
+        private boolean closeIfDrained() {
+            assert Thread.holdsLock(this);
+            if (retired && closed == false && references == 0) {
+                closed = true;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Generation(number=" + number + ", revision=" + revision + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@link ResourceStore}に保存するファイルの内容を変換する。
+ * <p>
+ * 変換方式は{@link #getId() 識別子}によって区別され、
+ * 保存したエンティティにはその内容を変換した方式の識別子が記録される。
+ * 読み出しの際には記録された識別子に対応する方式で内容を復元するため、
+ * 一度利用した識別子を他の変換方式に割り当ててはならない。
+ * </p>
+ */
+public abstract class ResourceCodec {
+
+    /**
+     * 識別子として利用できる最大の値。
+     */
+    public static final int MAX_ID = 255;
+
+    /**
+     * 内容を変換しない方式。
+     */
+    public static final ResourceCodec NONE = new ResourceCodec(0) {
+
+        @Override
+        public byte[] encode(byte[] contents) {
+            if (contents == null) {
+                throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+            }
+            return contents;
+        }
+
+        @Override
+        public byte[] decode(byte[] encoded) {
+            if (encoded == null) {
+                throw new IllegalArgumentException("encoded must not be null"); //$NON-NLS-1$
+            }
+            return encoded;
+        }
+
+        @Override
+        public InputStream decode(InputStream encoded) {
+            if (encoded == null) {
+                throw new IllegalArgumentException("encoded must not be null"); //$NON-NLS-1$
+            }
+            return encoded;
+        }
+
+        @Override
+        public String toString() {
+            return "NONE"; //$NON-NLS-1$
+        }
+    };
+
+    /**
+     * 内容をDeflate方式 (ZLIB形式) で圧縮する方式。
+     */
+    public static final ResourceCodec DEFLATE = new DeflateCodec(1, Deflater.DEFAULT_COMPRESSION);
+
+    private final int id;
+
+    /**
+     * インスタンスを生成する。
+     * @param id この変換方式の識別子、{@code 0}以上{@link #MAX_ID}以下
+     *     ({@code 0}は{@link #NONE}が、{@code 1}は{@link #DEFLATE}が利用している)
+     * @throws IllegalArgumentException 識別子が範囲外である場合
+     */
+    protected ResourceCodec(int id) {
+        if (id < 0 || id > MAX_ID) {
+            throw new IllegalArgumentException("id must be in [0, " + MAX_ID + "]"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        this.id = id;
+    }
+
+    /**
+     * この変換方式の識別子を返す。
+     * @return この変換方式の識別子
+     */
+    public final int getId() {
+        return id;
+    }
+
+    /**
+     * 指定の内容を変換して返す。
+     * @param contents 変換前の内容
+     * @return 変換後の内容
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public abstract byte[] encode(byte[] contents);
+
+    /**
+     * {@link #encode(byte[])}で変換した内容を復元して返す。
+     * @param encoded 変換後の内容
+     * @return 変換前の内容
+     * @throws IOException 内容を復元できなかった場合
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public abstract byte[] decode(byte[] encoded) throws IOException;
+
+    /**
+     * {@link #encode(byte[])}で変換した内容を、復元しながら読み出すストリームを返す。
+     * @param encoded 変換後の内容を読み出すストリーム
+     * @return 変換前の内容を読み出すストリーム
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public abstract InputStream decode(InputStream encoded);
+
+    /**
+     * Deflate方式で圧縮する変換方式。
+     */
+    static class DeflateCodec extends ResourceCodec {
+
+        private final int level;
+
+        /**
+         * インスタンスを生成する。
+         * @param id この変換方式の識別子
+         * @param level 圧縮レベル
+         */
+        DeflateCodec(int id, int level) {
+            super(id);
+            this.level = level;
+        }
+
+        @Override
+        public byte[] encode(byte[] contents) {
+            if (contents == null) {
+                throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+            }
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(contents);
+                deflater.finish();
+                ByteArrayOutputStream results = new ByteArrayOutputStream(contents.length / 2 + 16);
+                byte[] buf = new byte[4096];
+                while (deflater.finished() == false) {
+                    int count = deflater.deflate(buf);
+                    results.write(buf, 0, count);
+                }
+                return results.toByteArray();
+            }
+            finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public byte[] decode(byte[] encoded) throws IOException {
+            if (encoded == null) {
+                throw new IllegalArgumentException("encoded must not be null"); //$NON-NLS-1$
+            }
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(encoded);
+                ByteArrayOutputStream results = new ByteArrayOutputStream(encoded.length * 3);
+                byte[] buf = new byte[4096];
+                while (inflater.finished() == false) {
+                    int count = inflater.inflate(buf);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("encoded contents are truncated"); //$NON-NLS-1$
+                    }
+                    results.write(buf, 0, count);
+                }
+                return results.toByteArray();
+            }
+            catch (DataFormatException e) {
+                IOException exception = new IOException("encoded contents are broken"); //$NON-NLS-1$
+                exception.initCause(e);
+                throw exception;
+            }
+            finally {
+                inflater.end();
+            }
+        }
+
+        @Override
+        public InputStream decode(InputStream encoded) {
+            if (encoded == null) {
+                throw new IllegalArgumentException("encoded must not be null"); //$NON-NLS-1$
+            }
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(encoded, inflater) {
+
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "DEFLATE(" + level + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+}
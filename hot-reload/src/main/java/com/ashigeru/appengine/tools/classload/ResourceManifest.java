@@ -0,0 +1,842 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.appengine.api.datastore.ConcurrentModificationException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * {@link ResourceStore}に保存されたすべてのファイルの、パス、大きさ、および内容のハッシュ値の一覧。
+ * <p>
+ * 一覧はデータストア上で「カインド名{@code .Manifest}」というカインドの複数のエンティティに分割して保存され、
+ * {@link ResourceStore#loadManifest()}によって分割数を含む状態のエンティティと、分割したエンティティのバッチ取得で読み出せる。
+ * 各ファイルを格納するエンティティはパスのハッシュ値によって決まる。
+ * 分割数は{@link ResourceStore#rebuildManifest()}で再構築する際に一覧の大きさから決まり、
+ * 分割したエンティティがそれぞれ{@link #MAX_SHARD_BYTES}程度を超えないように選ばれる。
+ * </p>
+ * <p>
+ * 分割したエンティティはすべて後述の状態のエンティティを親とする同じエンティティグループに属し、
+ * ファイルの書き出しや削除の際には、一度の操作で変更されるすべての分割と状態とが一度のトランザクションで更新される。
+ * 更新によっていずれかの分割が上限を超える場合、一覧は完全でないものとして記録され、
+ * 次回の再構築でより多くの分割数が選ばれる。
+ * </p>
+ * <p>
+ * 一覧の更新はファイルの書き出しや削除とは不可分でなく、一覧の導入前に保存されたファイルも含まれないため、
+ * 一覧に含まれないことはただちにファイルが存在しないことを意味しない。
+ * {@link ResourceStore#rebuildManifest()}で一覧を再構築すると一覧は「完全」となり、
+ * 以降は書き出しや削除の途中で一覧の更新に失敗しない限り完全な状態が保たれる
+ * ({@link #isComplete()})。一覧が完全かどうかは「カインド名{@code .ManifestStatus}」というカインドに記録される。
+ * </p>
+ * <p>
+ * 同じエンティティには、最後にリビジョンを公開した後に開始された書き出しや削除の数も記録され、
+ * 同期が公開の前に中断された場合でも、次回の同期で公開が必要なことを判定できる
+ * ({@link #hasUnpublishedChanges()})。
+ * </p>
+ * <p>
+ * このクラスのオブジェクトは読み出した時点の一覧を表し、以降の変更は反映されない。
+ * </p>
+ */
+public final class ResourceManifest {
+
+    /**
+     * 一覧を分割して保存するエンティティひとつあたりの、おおよそのバイト数の上限。
+     * <p>
+     * データストアのエンティティの大きさの上限 (1MB) に対して、
+     * パスに含まれる非ASCII文字や保存形式の付加的な情報のための余裕を持たせている。
+     * </p>
+     */
+    public static final int MAX_SHARD_BYTES = 512 * 1024;
+
+    /**
+     * 再構築の際に目安とする、分割したエンティティひとつあたりのバイト数。
+     */
+    private static final int REBUILD_SHARD_BYTES = MAX_SHARD_BYTES / 4;
+
+    /**
+     * パスとハッシュ値の他に、一覧のひとつの要素が占めるおおよそのバイト数。
+     */
+    private static final int ENTRY_OVERHEAD = 16;
+
+    /**
+     * 分割数を状態に記録する前の保存形式で、一覧を分割していたエンティティの数。
+     */
+    private static final int LEGACY_SHARD_COUNT = 16;
+
+    /**
+     * 内容のハッシュ値の計算に利用するアルゴリズム。
+     */
+    public static final String HASH_ALGORITHM = "SHA-1"; //$NON-NLS-1$
+
+    private static final String KIND_SUFFIX = ".Manifest"; //$NON-NLS-1$
+
+    private static final String PROPERTY_PATHS = "p"; //$NON-NLS-1$
+
+    private static final String PROPERTY_SIZES = "s"; //$NON-NLS-1$
+
+    private static final String PROPERTY_HASHES = "h"; //$NON-NLS-1$
+
+    private static final String STATUS_KIND_SUFFIX = ".ManifestStatus"; //$NON-NLS-1$
+
+    private static final String STATUS_NAME = "status"; //$NON-NLS-1$
+
+    private static final String PROPERTY_COMPLETE = "c"; //$NON-NLS-1$
+
+    private static final String PROPERTY_PENDING = "n"; //$NON-NLS-1$
+
+    private static final String PROPERTY_UNPUBLISHED = "u"; //$NON-NLS-1$
+
+    private static final String PROPERTY_SHARDS = "k"; //$NON-NLS-1$
+
+    /**
+     * 一覧の更新が競合した場合に再試行する最大の回数。
+     */
+    private static final int MAX_RETRY = 10;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+    private final SortedMap<String, Entry> entries;
+
+    private final int shardCount;
+
+    private final boolean complete;
+
+    private final long unpublished;
+
+    private ResourceManifest(
+            SortedMap<String, Entry> entries,
+            int shardCount,
+            boolean complete,
+            long unpublished) {
+        assert entries != null;
+        assert shardCount > 0;
+        this.entries = entries;
+        this.shardCount = shardCount;
+        this.complete = complete;
+        this.unpublished = unpublished;
+    }
+
+    /**
+     * この一覧が、読み出した時点で保存されていたすべてのファイルを含むことが保証されている場合のみ{@code true}を返す。
+     * <p>
+     * 一覧が{@link ResourceStore#rebuildManifest()}で再構築された後、
+     * 一覧の更新に失敗した書き出しや削除 (実行中のものを含む) がない場合にのみ完全となる。
+     * 完全でない一覧に含まれないファイルも、データストア上には存在する可能性がある。
+     * </p>
+     * @return 完全な一覧である場合のみ{@code true}
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * 読み出した時点で、最後に公開されたリビジョンの後に開始された書き出しや削除がある場合のみ{@code true}を返す。
+     * <p>
+     * 書き出しや削除は開始する前にこの記録を残し、{@link ResourceStore#publishRevision()}が記録を取り除く。
+     * そのため、書き出した後に公開する前に中断された場合でも、この値は{@code true}のまま残る。
+     * </p>
+     * @return 公開されていない変更がある場合のみ{@code true}
+     */
+    public boolean hasUnpublishedChanges() {
+        return unpublished > 0;
+    }
+
+    /**
+     * 読み出した時点で、この一覧を分割して保存しているエンティティの数を返す。
+     * @return 分割数
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * 指定のパスに対応するファイルが一覧に含まれる場合のみ{@code true}を返す。
+     * @param path 対象のパス
+     * @return 一覧に含まれる場合のみ{@code true}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public boolean contains(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        return entries.containsKey(path);
+    }
+
+    /**
+     * 指定のパスに対応するファイルの情報を返す。
+     * @param path 対象のパス
+     * @return 対応するファイルの情報、一覧に含まれない場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Entry get(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        return entries.get(path);
+    }
+
+    /**
+     * 一覧に含まれるファイルの数を返す。
+     * @return 一覧に含まれるファイルの数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 一覧に含まれるすべてのファイルの情報を、パスの辞書順で返す。
+     * @return 一覧に含まれるすべてのファイルの情報
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * 指定の文字列から始まるパスを、辞書順で返す。
+     * @param prefix 対象のパスの接頭辞
+     * @return 対象のパス一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public List<String> list(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        SortedMap<String, Entry> range = entries.subMap(prefix, prefix + '\uffff');
+        return new ArrayList<String>(range.keySet());
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format(
+            "ResourceManifest(size={0}, shards={1}, complete={2}, unpublished={3})", //$NON-NLS-1$
+            entries.size(),
+            shardCount,
+            complete,
+            unpublished);
+    }
+
+    /**
+     * 指定の内容のハッシュ値を計算し、16進数の小文字で表した文字列として返す。
+     * @param contents 対象の内容
+     * @return 内容のハッシュ値
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public static String computeHash(byte[] contents) {
+        if (contents == null) {
+            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        }
+        MessageDigest digest = createDigest();
+        return toHex(digest.digest(contents));
+    }
+
+    /**
+     * 指定のバッファの残りの内容のハッシュ値を計算し、16進数の小文字で表した文字列として返す。
+     * <p>
+     * 計算の後、バッファの位置は制限の位置まで進む。
+     * </p>
+     * @param contents 対象の内容
+     * @return 内容のハッシュ値
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * @see #computeHash(byte[])
+     */
+    public static String computeHash(ByteBuffer contents) {
+        if (contents == null) {
+            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        }
+        MessageDigest digest = createDigest();
+        digest.update(contents);
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        assert hash != null;
+        char[] results = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            results[i * 2 + 0] = HEX[(hash[i] >> 4) & 0x0f];
+            results[i * 2 + 1] = HEX[hash[i] & 0x0f];
+        }
+        return new String(results);
+    }
+
+    /**
+     * 指定のカインドに保存されたファイルの一覧を、データストアから読み出して返す。
+     * @param service 利用するデータストアサービス
+     * @param kindName ファイルを保存したカインド名
+     * @return 読み出した一覧
+     */
+    static ResourceManifest load(DatastoreService service, String kindName) {
+        assert service != null;
+        assert kindName != null;
+        Key statusKey = createStatusKey(kindName);
+        Entity status = getStatus(service, statusKey);
+        int shardCount = getShardCount(status);
+        List<Key> keys = new ArrayList<Key>();
+        for (int i = 0; i < shardCount; i++) {
+            keys.add(createShardKey(kindName, i));
+        }
+        SortedMap<String, Entry> results = new TreeMap<String, Entry>();
+        for (Entity entity : service.get(null, keys).values()) {
+            results.putAll(decode(entity));
+        }
+        return new ResourceManifest(results, shardCount, isComplete(status), getUnpublished(status));
+    }
+
+    /**
+     * 指定のカインドに保存されたファイルの一覧を、指定の内容で置き換え、完全な一覧として記録する。
+     * <p>
+     * この操作は他の書き出しや削除と同時に行ってはならない。
+     * 公開されていない変更の記録は、再構築の後も引き継がれる。
+     * </p>
+     * @param service 利用するデータストアサービス
+     * @param kindName ファイルを保存したカインド名
+     * @param entries 保存されているすべてのファイルの情報
+     * @return 置き換えた一覧
+     */
+    static ResourceManifest rebuild(DatastoreService service, String kindName, Collection<Entry> entries) {
+        assert service != null;
+        assert kindName != null;
+        assert entries != null;
+        Key statusKey = createStatusKey(kindName);
+        Entity previous = getStatus(service, statusKey);
+        long bytes = estimateSize(entries);
+        int shardCount = (int) Math.max(1L, (bytes + REBUILD_SHARD_BYTES - 1) / REBUILD_SHARD_BYTES);
+        List<Map<String, Entry>> shards = new ArrayList<Map<String, Entry>>();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new TreeMap<String, Entry>());
+        }
+        SortedMap<String, Entry> results = new TreeMap<String, Entry>();
+        for (Entry entry : entries) {
+            shards.get(getShard(entry.getPath(), shardCount)).put(entry.getPath(), entry);
+            results.put(entry.getPath(), entry);
+        }
+        List<Entity> puts = new ArrayList<Entity>();
+        List<Key> deletes = new ArrayList<Key>();
+        for (int i = 0; i < shardCount; i++) {
+            Key key = createShardKey(kindName, i);
+            if (shards.get(i).isEmpty()) {
+                deletes.add(key);
+            }
+            else {
+                puts.add(encode(key, shards.get(i)));
+            }
+        }
+        for (int i = shardCount, n = getShardCount(previous); i < n; i++) {
+            deletes.add(createShardKey(kindName, i));
+        }
+        if (previous != null && previous.getProperty(PROPERTY_SHARDS) == null) {
+            for (int i = 0; i < LEGACY_SHARD_COUNT; i++) {
+                deletes.add(KeyFactory.createKey(kindName + KIND_SUFFIX, "shard:" + i)); //$NON-NLS-1$
+            }
+        }
+        service.delete(null, deletes);
+        for (Entity entity : puts) {
+            // each shard may be close to the size limit of a single call
+            service.put(null, entity);
+        }
+        long unpublished = getUnpublished(previous);
+        Entity status = new Entity(statusKey);
+        status.setUnindexedProperty(PROPERTY_COMPLETE, Boolean.TRUE);
+        status.setUnindexedProperty(PROPERTY_PENDING, Long.valueOf(0L));
+        status.setUnindexedProperty(PROPERTY_UNPUBLISHED, Long.valueOf(unpublished));
+        status.setUnindexedProperty(PROPERTY_SHARDS, Long.valueOf(shardCount));
+        service.put(null, status);
+        return new ResourceManifest(results, shardCount, true, unpublished);
+    }
+
+    /**
+     * 指定のカインドのファイルを書き出したり削除したりする前に呼び出され、
+     * 一覧の更新が完了するまで一覧を完全でないものとして扱うよう記録する。
+     * <p>
+     * 同時に、次にリビジョンを公開するまで公開されていない変更があるものとして記録する。
+     * </p>
+     * <p>
+     * 一覧の更新が完了したら{@link #endUpdate(DatastoreService, String, Collection, Collection)}を呼び出すこと。
+     * 呼び出されなかった場合、一覧は再構築されるまで完全でないものとして扱われる。
+     * </p>
+     * @param service 利用するデータストアサービス
+     * @param kindName ファイルを保存したカインド名
+     * @throws ConcurrentModificationException 再試行しても競合が解消しなかった場合
+     */
+    static void beginUpdate(DatastoreService service, String kindName) {
+        assert service != null;
+        assert kindName != null;
+        updateStatus(service, kindName, +1, +1);
+    }
+
+    /**
+     * {@link #beginUpdate(DatastoreService, String)}の後、ファイルの書き出しや削除が完了した際に呼び出され、
+     * 指定の変更を一覧に反映する。
+     * <p>
+     * 変更されるすべての分割したエンティティと更新の完了の記録は、一度のトランザクションで更新され、
+     * 他のプロセスが同時に更新した場合には再試行する。
+     * いずれかの分割したエンティティが{@link #MAX_SHARD_BYTES}を超える場合、
+     * 分割したエンティティは変更せずに、一覧を完全でないものとして記録する。
+     * </p>
+     * @param service 利用するデータストアサービス
+     * @param kindName ファイルを保存したカインド名
+     * @param puts 追加または上書きするファイルの情報
+     * @param deletes 削除するファイルのパス
+     * @throws ConcurrentModificationException 再試行しても競合が解消しなかった場合
+     */
+    static void endUpdate(
+            DatastoreService service,
+            String kindName,
+            Collection<Entry> puts,
+            Collection<String> deletes) {
+        assert service != null;
+        assert kindName != null;
+        assert puts != null;
+        assert deletes != null;
+        Key statusKey = createStatusKey(kindName);
+        for (int retry = 0; ; retry++) {
+            Transaction txn = service.beginTransaction();
+            try {
+                Entity status = getStatus(service, txn, statusKey);
+                int shardCount = getShardCount(status);
+                Map<Key, ShardUpdate> updates = new HashMap<Key, ShardUpdate>();
+                for (Entry entry : puts) {
+                    getShardUpdate(updates, kindName, entry.getPath(), shardCount).puts.add(entry);
+                }
+                for (String path : deletes) {
+                    getShardUpdate(updates, kindName, path, shardCount).deletes.add(path);
+                }
+                Map<Key, Entity> shards = service.get(txn, updates.keySet());
+                List<Entity> modified = new ArrayList<Entity>();
+                List<Key> emptied = new ArrayList<Key>();
+                boolean overflow = false;
+                for (Map.Entry<Key, ShardUpdate> entry : updates.entrySet()) {
+                    Entity shard = shards.get(entry.getKey());
+                    Map<String, Entry> current = shard == null ? new TreeMap<String, Entry>() : decode(shard);
+                    entry.getValue().applyTo(current);
+                    if (current.isEmpty()) {
+                        emptied.add(entry.getKey());
+                    }
+                    else if (estimateSize(current.values()) > MAX_SHARD_BYTES) {
+                        overflow = true;
+                    }
+                    else {
+                        modified.add(encode(entry.getKey(), current));
+                    }
+                }
+                if (overflow) {
+                    // the next rebuild splits the manifest into more shards
+                    status.setUnindexedProperty(PROPERTY_COMPLETE, Boolean.FALSE);
+                    modified.clear();
+                    emptied.clear();
+                }
+                if (emptied.isEmpty() == false) {
+                    service.delete(txn, emptied);
+                }
+                setPending(status, getPending(status) - 1);
+                modified.add(status);
+                service.put(txn, modified);
+                txn.commit();
+                return;
+            }
+            catch (ConcurrentModificationException e) {
+                if (retry >= MAX_RETRY) {
+                    throw e;
+                }
+            }
+            finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    /**
+     * 公開されていない変更の数を、データストアから読み出して返す。
+     * @param service 利用するデータストアサービス
+     * @param kindName ファイルを保存したカインド名
+     * @return 最後にリビジョンを公開した後に開始された書き出しや削除の数
+     * @see #markPublished(DatastoreService, String, long)
+     */
+    static long getUnpublished(DatastoreService service, String kindName) {
+        assert service != null;
+        assert kindName != null;
+        return getUnpublished(getStatus(service, createStatusKey(kindName)));
+    }
+
+    /**
+     * リビジョンを公開した後に呼び出され、公開した変更の記録を取り除く。
+     * <p>
+     * 公開の前に{@link #getUnpublished(DatastoreService, String)}で読み出した数だけを取り除くため、
+     * 読み出した後に開始された書き出しや削除の記録は残る。
+     * </p>
+     * @param service 利用するデータストアサービス
+     * @param kindName ファイルを保存したカインド名
+     * @param published 公開した変更の数
+     * @throws ConcurrentModificationException 再試行しても競合が解消しなかった場合
+     */
+    static void markPublished(DatastoreService service, String kindName, long published) {
+        assert service != null;
+        assert kindName != null;
+        assert published >= 0;
+        if (published > 0) {
+            updateStatus(service, kindName, 0, -published);
+        }
+    }
+
+    private static void updateStatus(
+            DatastoreService service,
+            String kindName,
+            long pendingDelta,
+            long unpublishedDelta) {
+        assert service != null;
+        assert kindName != null;
+        Key key = createStatusKey(kindName);
+        for (int retry = 0; ; retry++) {
+            Transaction txn = service.beginTransaction();
+            try {
+                Entity status = getStatus(service, txn, key);
+                setPending(status, getPending(status) + pendingDelta);
+                long unpublished = getUnpublished(status) + unpublishedDelta;
+                status.setUnindexedProperty(PROPERTY_UNPUBLISHED, Long.valueOf(Math.max(0L, unpublished)));
+                service.put(txn, status);
+                txn.commit();
+                return;
+            }
+            catch (ConcurrentModificationException e) {
+                if (retry >= MAX_RETRY) {
+                    throw e;
+                }
+            }
+            finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    private static boolean isComplete(Entity status) {
+        if (status == null) {
+            return false;
+        }
+        if (status.getProperty(PROPERTY_SHARDS) == null) {
+            // written before the shard count was recorded, in another layout
+            return false;
+        }
+        return Boolean.TRUE.equals(status.getProperty(PROPERTY_COMPLETE)) && getPending(status) <= 0;
+    }
+
+    private static long getPending(Entity status) {
+        assert status != null;
+        Long pending = (Long) status.getProperty(PROPERTY_PENDING);
+        return pending == null ? 0L : pending.longValue();
+    }
+
+    private static long getUnpublished(Entity status) {
+        if (status == null) {
+            return 0L;
+        }
+        Long unpublished = (Long) status.getProperty(PROPERTY_UNPUBLISHED);
+        return unpublished == null ? 0L : unpublished.longValue();
+    }
+
+    private static void setPending(Entity status, long pending) {
+        assert status != null;
+        status.setUnindexedProperty(PROPERTY_PENDING, Long.valueOf(Math.max(0L, pending)));
+    }
+
+    private static int getShardCount(Entity status) {
+        if (status == null) {
+            return 1;
+        }
+        Long shards = (Long) status.getProperty(PROPERTY_SHARDS);
+        return shards == null ? 1 : (int) Math.max(1L, shards.longValue());
+    }
+
+    private static Entity getStatus(DatastoreService service, Key key) {
+        assert service != null;
+        assert key != null;
+        try {
+            return service.get(null, key);
+        }
+        catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Entity getStatus(DatastoreService service, Transaction txn, Key key) {
+        assert service != null;
+        assert txn != null;
+        assert key != null;
+        try {
+            return service.get(txn, key);
+        }
+        catch (EntityNotFoundException e) {
+            Entity status = new Entity(key);
+            status.setUnindexedProperty(PROPERTY_COMPLETE, Boolean.FALSE);
+            return status;
+        }
+    }
+
+    private static ShardUpdate getShardUpdate(
+            Map<Key, ShardUpdate> updates,
+            String kindName,
+            String path,
+            int shardCount) {
+        assert updates != null;
+        assert kindName != null;
+        assert path != null;
+        Key key = createShardKey(kindName, getShard(path, shardCount));
+        ShardUpdate update = updates.get(key);
+        if (update == null) {
+            update = new ShardUpdate();
+            updates.put(key, update);
+        }
+        return update;
+    }
+
+    private static int getShard(String path, int shardCount) {
+        assert path != null;
+        assert shardCount > 0;
+        return (path.hashCode() & Integer.MAX_VALUE) % shardCount;
+    }
+
+    private static long estimateSize(Entry entry) {
+        assert entry != null;
+        return entry.getPath().length() + entry.getHash().length() + ENTRY_OVERHEAD;
+    }
+
+    private static long estimateSize(Collection<Entry> entries) {
+        assert entries != null;
+        long total = 0L;
+        for (Entry entry : entries) {
+            total += estimateSize(entry);
+        }
+        return total;
+    }
+
+    private static Key createShardKey(String kindName, int index) {
+        assert kindName != null;
+        return KeyFactory.createKey(
+            createStatusKey(kindName),
+            kindName + KIND_SUFFIX,
+            "shard:" + index); //$NON-NLS-1$
+    }
+
+    private static Key createStatusKey(String kindName) {
+        assert kindName != null;
+        return KeyFactory.createKey(kindName + STATUS_KIND_SUFFIX, STATUS_NAME);
+    }
+
+    private static Entity encode(Key key, Map<String, Entry> entries) {
+        assert key != null;
+        assert entries != null;
+        List<String> paths = new ArrayList<String>(entries.size());
+        List<Long> sizes = new ArrayList<Long>(entries.size());
+        List<String> hashes = new ArrayList<String>(entries.size());
+        for (Entry entry : entries.values()) {
+            paths.add(entry.getPath());
+            sizes.add(entry.getSize());
+            hashes.add(entry.getHash());
+        }
+        Entity entity = new Entity(key);
+        entity.setUnindexedProperty(PROPERTY_PATHS, paths);
+        entity.setUnindexedProperty(PROPERTY_SIZES, sizes);
+        entity.setUnindexedProperty(PROPERTY_HASHES, hashes);
+        return entity;
+    }
+
+    private static Map<String, Entry> decode(Entity entity) {
+        assert entity != null;
+        List<?> paths = (List<?>) entity.getProperty(PROPERTY_PATHS);
+        List<?> sizes = (List<?>) entity.getProperty(PROPERTY_SIZES);
+        List<?> hashes = (List<?>) entity.getProperty(PROPERTY_HASHES);
+        Map<String, Entry> results = new TreeMap<String, Entry>();
+        if (paths == null || sizes == null || hashes == null) {
+            return results;
+        }
+        if (paths.size() != sizes.size() || paths.size() != hashes.size()) {
+            throw new IllegalStateException(MessageFormat.format(
+                "Broken manifest: {0}", //$NON-NLS-1$
+                entity.getKey()));
+        }
+        for (int i = 0, n = paths.size(); i < n; i++) {
+            String path = (String) paths.get(i);
+            long size = ((Long) sizes.get(i)).longValue();
+            String hash = (String) hashes.get(i);
+            results.put(path, new Entry(path, size, hash));
+        }
+        return results;
+    }
+
+    /**
+     * 一覧に含まれるファイルの情報。
+     */
+    public static final class Entry {
+
+        private final String path;
+
+        private final long size;
+
+        private final String hash;
+
+        /**
+         * インスタンスを生成する。
+         * @param path ファイルのパス
+         * @param size ファイルの内容のバイト数
+         * @param hash ファイルの内容のハッシュ値 ({@link ResourceManifest#computeHash(byte[])})
+         * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+         */
+        public Entry(String path, long size, String hash) {
+            if (path == null) {
+                throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+            }
+            if (hash == null) {
+                throw new IllegalArgumentException("hash must not be null"); //$NON-NLS-1$
+            }
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        /**
+         * 指定のファイルの内容から、ファイルの情報を作成して返す。
+         * @param path ファイルのパス
+         * @param contents ファイルの内容
+         * @return 作成した情報
+         * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+         */
+        public static Entry of(String path, byte[] contents) {
+            if (path == null) {
+                throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+            }
+            if (contents == null) {
+                throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+            }
+            return new Entry(path, contents.length, computeHash(contents));
+        }
+
+        /**
+         * ファイルのパスを返す。
+         * @return ファイルのパス
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * ファイルの内容のバイト数を返す。
+         * <p>
+         * この値は{@link ResourceCodec}によって変換する前の大きさである。
+         * </p>
+         * @return ファイルの内容のバイト数
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * ファイルの内容のハッシュ値を返す。
+         * @return ファイルの内容のハッシュ値
+         * @see ResourceManifest#computeHash(byte[])
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + path.hashCode();
+            result = prime * result + (int) (size ^ (size >>> 32));
+            result = prime * result + hash.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null) {
+                return false;
+            }
+            if (getClass() != obj.getClass()) {
+                return false;
+            }
+            Entry other = (Entry) obj;
+            return path.equals(other.path)
+                && size == other.size
+                && hash.equals(other.hash);
+        }
+
+        @Override
+        public String toString() {
+            return MessageFormat.format(
+                "{0}(size={1}, hash={2})", //$NON-NLS-1$
+                path,
+                String.valueOf(size),
+                hash);
+        }
+    }
+
+    /**
+     * 分割したエンティティごとの変更内容。
+     */
+    private static class ShardUpdate {
+
+        final List<Entry> puts = new ArrayList<Entry>();
+
+        final List<String> deletes = new ArrayList<String>();
+
+        ShardUpdate() {
+            return;
+        }
+
+        void applyTo(Map<String, Entry> current) {
+            assert current != null;
+            for (String path : deletes) {
+                current.remove(path);
+            }
+            for (Entry entry : puts) {
+                current.put(entry.getPath(), entry);
+            }
+        }
+    }
+}
@@ -15,10 +15,24 @@
  */
 package com.ashigeru.appengine.tools.classload;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
@@ -26,23 +40,219 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 
 /**
  * データストアを利用して小さなデータをパス上に配置する。
+ * <p>
+ * メモリキャッシュサービスを指定してインスタンスを生成した場合、
+ * データストアから読み出した内容はメモリキャッシュにも格納され、以降の読み出しではそちらが優先される。
+ * このオブジェクトを経由した書き出しや削除はメモリキャッシュにも反映される。
+ * メモリキャッシュ上の内容は最後に公開されたリビジョンごとに区別されるため、
+ * {@link #publishRevision()}と{@link #invalidateCaches()}によって他のプロセスからの変更も反映できる。
+ * </p>
+ * <p>
+ * 断片の大きさ ({@link #setFragmentSize(int)}) を超えるファイルは、
+ * 内容を持たないヘッダエンティティと、内容を分割して格納する複数の断片エンティティとして保存される。
+ * 断片エンティティはヘッダエンティティの子として、「カインド名{@code .Fragment}」というカインドに保存される。
+ * このようなファイルは{@link #openStream(String)}を利用すると、
+ * 内容全体をメモリ上に展開せずに、断片ごとに順に読み出せる。
+ * </p>
+ * <p>
+ * {@link #setCodec(ResourceCodec)}で変換方式を指定した場合、ファイルの内容は変換 (圧縮など) してから保存される。
+ * 利用した変換方式はエンティティごとに記録され、読み出しの際に自動的に復元される。
+ * </p>
+ * <p>
+ * {@link #setDiskCache(DiskResourceCache)}でディスク上のキャッシュを指定した場合、
+ * 分割または共有して保存されたファイルの内容は、ヘッダのエンティティに記録されたハッシュ値をキーとしてディスク上にも格納され、
+ * 以降の読み出し (他のプロセスからのものを含む) では分割された内容の代わりに利用される。
+ * ヘッダのエンティティは常にデータストアから読み出すため、キャッシュの有無によってファイルの可視性は変化しない。
+ * </p>
+ * <p>
+ * {@link #setBlobKindName(String)}でカインド名を指定した場合、ファイルの内容はハッシュ値をキーとして別のカインドに保存され、
+ * 同じ内容を持つファイルの間で共有される。
+ * </p>
+ * <p>
+ * このオブジェクトを経由した書き出しや削除は、保存されたファイルの一覧 ({@link ResourceManifest}) にも反映される。
+ * 一覧は{@link #loadManifest()}で読み出せ、{@link #rebuildManifest()}で保存済みのファイルから再構築できる。
+ * </p>
+ * <p>
+ * {@link #publishRevision()}で公開したリビジョンは{@link #getRevision()}で読み出せる。
+ * リビジョンは単一の小さなエンティティとして保存されるため、
+ * 内容が更新されたかどうかを確認する目印 ({@link ReloadManager}などで利用する) として安価に読み出せる。
+ * </p>
+ * <p>
+ * 起動直後にロードされたパスの一覧 ({@link ClassLoadProfile}) も同様に単一のエンティティとして保存され、
+ * {@link #loadProfile()}で読み出し、{@link #mergeProfile(List)}で新しい記録を統合できる。
+ * </p>
+ * <p>
+ * {@link #putBundle(String, Map)}を利用すると、複数のファイルを連結した{@link ClassBundle}を
+ * 「カインド名{@code .Bundle}」というカインドに分割した形式で保存できる。
+ * 保存したものは{@link #loadBundle()}で、個々のファイルを読み出すよりも少ない回数のバッチ取得でまとめて読み出せる。
+ * </p>
+ * <p>
+ * 複数のファイルをまとめて操作する場合、データストアに対する操作は
+ * エンティティの数 ({@link #setMaxBatchCount(int)}) と合計のバイト数 ({@link #setMaxBatchBytes(int)}) の
+ * 上限に収まるように自動的に分割される。
+ * {@link #setExecutor(Executor)}でエグゼキュータを指定した場合、分割した操作は並列に実行される。
+ * </p>
+ * <p>
+ * {@link #getAsync(String)}などの非同期版の操作は、呼び出し元のスレッドを待機させずに結果を{@link Future}として返す。
+ * 非同期の操作はエグゼキュータ上で実行され、エグゼキュータが指定されていない場合は呼び出し時に完了する。
+ * </p>
  */
 public class ResourceStore {
 
+    /**
+     * 断片の大きさの既定値 (バイト数)。
+     */
+    public static final int DEFAULT_FRAGMENT_SIZE = 512 * 1024;
+
+    /**
+     * 断片の大きさとして指定できる最大のバイト数。
+     */
+    public static final int MAX_FRAGMENT_SIZE = 1000 * 1000;
+
+    /**
+     * データストアに対する一度のバッチ操作で扱うエンティティの最大数の既定値。
+     */
+    public static final int DEFAULT_MAX_BATCH_COUNT = 500;
+
+    /**
+     * データストアに対する一度のバッチ書き出しで扱うエンティティの合計の最大バイト数の既定値。
+     */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1000 * 1000;
+
     private static final String PROPERTY_VERSION = "v"; //$NON-NLS-1$
 
     private static final String PROPERTY_CONTENTS = "c"; //$NON-NLS-1$
 
-    private static final Long CURRENT_VERSION = Long.valueOf(1L);
+    private static final String PROPERTY_SIZE = "s"; //$NON-NLS-1$
+
+    private static final String PROPERTY_FRAGMENT_COUNT = "n"; //$NON-NLS-1$
+
+    private static final String PROPERTY_FRAGMENT_TOKEN = "t"; //$NON-NLS-1$
+
+    private static final String PROPERTY_BLOB = "b"; //$NON-NLS-1$
+
+    private static final String PROPERTY_HASH = "h"; //$NON-NLS-1$
+
+    /**
+     * 内容を単一のエンティティに格納する形式。
+     * <p>
+     * {@link #PROPERTY_VERSION}の下位8ビットは格納形式を表し、
+     * その上位8ビットは内容の変換方式 ({@link ResourceCodec#getId()}) を表す。
+     * </p>
+     */
+    private static final long LAYOUT_INLINE = 1L;
+
+    /**
+     * 内容を複数の断片エンティティに分割して格納する形式。
+     */
+    private static final long LAYOUT_CHUNKED = 2L;
+
+    /**
+     * 内容を共有の内容エンティティに格納し、そのキーのみを保持する形式。
+     */
+    private static final long LAYOUT_POINTER = 3L;
+
+    private static final long LAYOUT_MASK = 0xffL;
+
+    private static final int CODEC_SHIFT = 8;
+
+    private static final String FRAGMENT_KIND_SUFFIX = ".Fragment"; //$NON-NLS-1$
+
+    private static final String REVISION_KIND_SUFFIX = ".Revision"; //$NON-NLS-1$
+
+    private static final String REVISION_NAME = "revision"; //$NON-NLS-1$
+
+    private static final String PROPERTY_REVISION = "r"; //$NON-NLS-1$
+
+    private static final String BUNDLE_KIND_SUFFIX = ".Bundle"; //$NON-NLS-1$
+
+    private static final String BUNDLE_NAME = "bundle"; //$NON-NLS-1$
+
+    /**
+     * 一度のバッチ取得で読み出す断片エンティティの最大数。
+     */
+    private static final int MAX_FRAGMENTS_PER_GET = 16;
+
+    /**
+     * ストリームから読み出す際に、一度のバッチ取得で読み出す断片エンティティの数。
+     */
+    private static final int STREAM_FRAGMENTS_PER_GET = 2;
+
+    private static final int MEMCACHE_KEY_VERSION = 2;
+
+    private static final String MEMCACHE_KEY_PREFIX =
+        ResourceStore.class.getName() + ':' + MEMCACHE_KEY_VERSION + ':';
+
+    /**
+     * メモリキャッシュに格納する内容の最大バイト数。
+     */
+    private static final int MEMCACHE_MAX_VALUE_SIZE = 1000 * 1000;
+
+    /**
+     * 削除したファイルの古い内容が、読み出し中の別のリクエストによって
+     * メモリキャッシュに再度追加されることを防ぐ期間 (ミリ秒)。
+     */
+    private static final long MEMCACHE_NO_RE_ADD_MILLIS = 10 * 1000L;
+
+    /**
+     * メモリキャッシュに格納した内容の有効期間 (秒)。
+     * <p>
+     * メモリキャッシュを利用せずに他のプロセスから上書きされた内容が、
+     * リビジョンが公開されないまま古い内容として残り続けることを防ぐ。
+     * </p>
+     */
+    private static final int MEMCACHE_EXPIRATION_SECONDS = 60 * 60;
+
+    /**
+     * まだリビジョンが公開されていないことを表すメモリキャッシュのキーの要素。
+     */
+    private static final String MEMCACHE_NO_REVISION = "-"; //$NON-NLS-1$
+
+    private static final Random TOKENS = new Random();
 
     private DatastoreService service;
 
+    private DatastoreBatch batch;
+
+    private volatile Executor executor;
+
+    private MemcacheService memcache;
+
+    private volatile String memcacheRevision;
+
     private String kindName;
 
+    private volatile NegativeCache missing;
+
+    private volatile int fragmentSize = DEFAULT_FRAGMENT_SIZE;
+
+    private volatile ResourceCodec codec = ResourceCodec.NONE;
+
+    private volatile String blobKindName;
+
+    private volatile DiskResourceCache diskCache;
+
+    private volatile ResourceManifest manifest;
+
+    private final Object manifestLock = new Object();
+
+    private long manifestGeneration;
+
+    private final ConcurrentMap<Integer, ResourceCodec> codecs =
+        new ConcurrentHashMap<Integer, ResourceCodec>();
+    {
+        codecs.put(ResourceCodec.NONE.getId(), ResourceCodec.NONE);
+        codecs.put(ResourceCodec.DEFLATE.getId(), ResourceCodec.DEFLATE);
+    }
+
     /**
      * インスタンスを生成する。
      * @param service 保存に利用するデータストアサービス
@@ -60,6 +270,32 @@ public class ResourceStore {
         }
         this.service = service;
         this.kindName = kindName;
+        this.batch = new DatastoreBatch(service, DEFAULT_MAX_BATCH_COUNT, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * メモリキャッシュを利用するインスタンスを生成する。
+     * <p>
+     * メモリキャッシュ上の内容は、カインド名、パス、保存形式の版、
+     * および{@link #getRevision() 最後に公開されたリビジョン}から計算されるキーで管理され、
+     * 一定の期間が経過すると破棄される。
+     * 新しいリビジョンが公開された場合、{@link #invalidateCaches()}を呼び出した後は
+     * 以前のリビジョンで格納された内容を利用しない。
+     * </p>
+     * @param service 保存に利用するデータストアサービス
+     * @param memcache データストアの手前に配置するメモリキャッシュサービス
+     * @param kindName リソースを保存するカインド名
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public ResourceStore(
+            DatastoreService service,
+            MemcacheService memcache,
+            String kindName) {
+        this(service, kindName);
+        if (memcache == null) {
+            throw new IllegalArgumentException("memcache must not be null"); //$NON-NLS-1$
+        }
+        this.memcache = memcache;
     }
 
     /**
@@ -71,173 +307,1606 @@ public class ResourceStore {
     }
 
     /**
-     * 指定のパスのファイルを保存するためのキーを作成して返す。
-     * @param path 対象のパス
-     * @return 対応するキー
-     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * 存在しないパスを記憶するキャッシュの容量を設定する。
+     * <p>
+     * キャッシュが有効である場合、一度存在しないことが判明したパスに対する読み出しは、
+     * データストアにアクセスせずに{@code null}を返すようになる。
+     * このキャッシュはこのオブジェクトを経由してファイルを書き出した際に破棄されるが、
+     * 他のオブジェクトやプロセスから書き出された内容は検出できないため、
+     * 必要に応じて{@link #invalidateCaches()}を呼び出すこと。
+     * </p>
+     * <p>
+     * 初期状態ではこのキャッシュは無効化されている。
+     * </p>
+     * @param capacity 記憶するパスの最大数、{@code 0}の場合はキャッシュを無効化する
+     * @throws IllegalArgumentException 容量に負の値が指定された場合
      */
-    Key createKey(String path) {
-        assert path != null;
-        String name = mangle(path);
-        return KeyFactory.createKey(getKindName(), name);
+    public void setNegativeCacheCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must be >= 0"); //$NON-NLS-1$
+        }
+        this.missing = capacity == 0 ? null : new NegativeCache(capacity);
     }
 
-    private String mangle(String path) {
-        assert path != null;
-        return '/' + path;
+    /**
+     * ファイルを分割して保存する際の、断片の大きさを設定する。
+     * <p>
+     * この値はファイルを書き出す際にのみ利用され、
+     * 保存済みのファイルはこの値によらず読み出すことができる。
+     * </p>
+     * <p>
+     * 初期状態では{@link #DEFAULT_FRAGMENT_SIZE}が設定されている。
+     * </p>
+     * @param size 断片の最大バイト数
+     * @throws IllegalArgumentException 大きさに0以下の値、
+     *     または{@link #MAX_FRAGMENT_SIZE}を超える値が指定された場合
+     */
+    public void setFragmentSize(int size) {
+        if (size <= 0 || size > MAX_FRAGMENT_SIZE) {
+            throw new IllegalArgumentException("size must be in (0, " + MAX_FRAGMENT_SIZE + "]"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        this.fragmentSize = size;
     }
 
     /**
-     * 指定のパスに対応するファイルの内容をデータストアから読み出して返す。
-     * @param path 対象のパス
-     * @return 対応するファイルの内容、存在しない場合は{@code null}
-     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * データストアに対する一度のバッチ操作で扱うエンティティの最大数を設定する。
+     * <p>
+     * 複数のファイルに対する操作はこの数ごとに分割してデータストアに送られる。
+     * 分割されたファイルの断片もそれぞれ1つのエンティティとして数えられる。
+     * </p>
+     * <p>
+     * 初期状態では{@link #DEFAULT_MAX_BATCH_COUNT}が設定されている。
+     * </p>
+     * @param count 一度に扱うエンティティの最大数
+     * @throws IllegalArgumentException 0以下の値が指定された場合
      */
-    public byte[] get(String path) {
-        if (path == null) {
-            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+    public void setMaxBatchCount(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be > 0"); //$NON-NLS-1$
         }
-        Key key = createKey(path);
-        Entity entity;
-        try {
-            entity = service.get(null, key);
+        batch.setMaxCount(count);
+    }
+
+    /**
+     * データストアに対する一度のバッチ書き出しで扱うエンティティの、合計の最大バイト数を設定する。
+     * <p>
+     * バイト数はエンティティの内容から見積もった値で、単体でこの値を超えるエンティティは単独で書き出される。
+     * 読み出しや削除は、エンティティの数のみで分割される。
+     * </p>
+     * <p>
+     * 初期状態では{@link #DEFAULT_MAX_BATCH_BYTES}が設定されている。
+     * </p>
+     * @param bytes 一度に書き出す合計の最大バイト数
+     * @throws IllegalArgumentException 0以下の値が指定された場合
+     */
+    public void setMaxBatchBytes(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("bytes must be > 0"); //$NON-NLS-1$
         }
-        catch (EntityNotFoundException e) {
-            return null;
+        batch.setMaxBytes(bytes);
+    }
+
+    /**
+     * 分割したバッチ操作や非同期の操作を実行するエグゼキュータを設定する。
+     * <p>
+     * 呼び出し元のスレッドに設定されたApp Engineの実行環境は、エグゼキュータ上のスレッドにも引き継がれる。
+     * 分割した操作の一部がタイムアウトなどで失敗した場合、失敗した部分のみを再度実行する。
+     * </p>
+     * <p>
+     * 初期状態では{@code null}が設定されており、分割した操作は呼び出し元のスレッドで順に実行され、
+     * 非同期の操作は呼び出し時に完了する。
+     * </p>
+     * @param executor 利用するエグゼキュータ、並列に実行しない場合は{@code null}
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+        batch.setExecutor(executor);
+    }
+
+    /**
+     * ファイルの内容を、内容のハッシュ値をキーとする共有のエンティティに保存するよう設定する。
+     * <p>
+     * カインド名を指定した場合、以降に書き出すファイルの内容は指定のカインドに内容のハッシュ値
+     * ({@link ResourceManifest#computeHash(byte[])}) をキーとして保存され、
+     * パスに対応するエンティティにはそのキーのみが保存される。
+     * 同じ内容はパスやカインドをまたいで一度だけ保存され、
+     * すでに保存されている内容を書き出す場合には内容そのものの書き出しを省略する。
+     * </p>
+     * <p>
+     * 内容のエンティティは常に分割した形式 (ヘッダと断片) で保存されるため、存在の確認は内容を読み出さずに行える。
+     * 一方で、このようなファイルの読み出しには追加のバッチ取得が必要になる。
+     * また、どのパスからも参照されなくなった内容のエンティティは削除されない。
+     * </p>
+     * <p>
+     * この値はファイルを書き出す際にのみ利用され、保存済みのファイルはこの値によらず読み出すことができる。
+     * 初期状態では{@code null}が設定されている。
+     * </p>
+     * @param blobKindName 内容を保存するカインド名、内容を共有しない場合は{@code null}
+     */
+    public void setBlobKindName(String blobKindName) {
+        this.blobKindName = blobKindName;
+    }
+
+    /**
+     * 読み出したファイルの内容を格納する、ディスク上のキャッシュを設定する。
+     * <p>
+     * 設定した場合、ファイルを読み出す際にはヘッダのエンティティからそのハッシュ値を求め、
+     * 同じハッシュ値を持つ内容がディスク上にキャッシュされていれば分割された内容を読み出さずにそれを返す。
+     * キャッシュされていなかった内容は、データストアから読み出した後にハッシュ値を検証してキャッシュに追加される。
+     * </p>
+     * <p>
+     * また、このオブジェクトが{@link #loadManifest() 完全な一覧}を保持している場合、
+     * 一覧に含まれるファイルはその一覧に記録されたハッシュ値でキャッシュを検索し、
+     * キャッシュされていればデータストアやメモリキャッシュにアクセスせずにそれを返す。
+     * 一覧に含まれていてもキャッシュされていないファイルは、これまでどおりデータストアから読み出される。
+     * 保持した一覧は{@link #isKnownMissing(String)}と同様に扱われるため、
+     * キャッシュを設定しても読み出せるファイルの範囲は変化しない。
+     * </p>
+     * <p>
+     * キャッシュの読み書きに失敗した場合、そのファイルはキャッシュを利用せずにデータストアから読み出される。
+     * 初期状態では{@code null}が設定されている。
+     * </p>
+     * @param cache 利用するキャッシュ、利用しない場合は{@code null}
+     */
+    public void setDiskCache(DiskResourceCache cache) {
+        this.diskCache = cache;
+    }
+
+    /**
+     * ファイルを書き出す際に、内容の変換に利用する方式を設定する。
+     * <p>
+     * 指定した方式は{@link #registerCodec(ResourceCodec)}と同様に、読み出しの際にも利用できるようになる。
+     * 変換によって内容が小さくならない場合、そのファイルは変換せずに保存される。
+     * 利用した方式は保存したエンティティごとに記録されるため、
+     * この値を変更しても保存済みのファイルはそのまま読み出すことができる。
+     * </p>
+     * <p>
+     * 初期状態では{@link ResourceCodec#NONE}が設定されている。
+     * </p>
+     * @param codec 内容の変換に利用する方式
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合、
+     *     または指定の方式の識別子が他の方式に割り当てられている場合
+     */
+    public void setCodec(ResourceCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null"); //$NON-NLS-1$
         }
-        return fromEntity(entity);
+        registerCodec(codec);
+        this.codec = codec;
     }
 
     /**
-     * 指定のパスに対応するファイルの内容を、データストアに書き出す。
+     * 読み出したファイルの内容を復元する際に利用できる変換方式を追加する。
      * <p>
-     * 指定のパスに対応するファイルが既にデータストア上に存在する場合、新しい内容で上書きする。
+     * {@link ResourceCodec#NONE}と{@link ResourceCodec#DEFLATE}は常に利用できる。
      * </p>
-     * @param path 対象のパス
-     * @param contents 対象のファイルの内容
-     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * @param codec 追加する方式
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合、
+     *     または指定の方式の識別子が他の方式に割り当てられている場合
      */
-    public void put(String path, byte[] contents) {
-        if (path == null) {
-            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+    public void registerCodec(ResourceCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null"); //$NON-NLS-1$
         }
-        if (contents == null) {
-            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        ResourceCodec other = codecs.putIfAbsent(codec.getId(), codec);
+        if (other != null && other != codec) {
+            throw new IllegalArgumentException(MessageFormat.format(
+                "Codec id {0} is already used by {1}", //$NON-NLS-1$
+                codec.getId(),
+                other));
         }
-        Entity entity = toEntity(path, contents);
-        service.put(null, entity);
     }
 
     /**
-     * 指定のパスに対応するデータストア上のデータを削除する。
+     * 指定のパスに対応するファイルが存在しないことが判明している場合のみ{@code true}を返す。
      * <p>
-     * データストア上にそのようなデータが存在しない場合、この呼び出しはなにも行わない。
+     * このメソッドはデータストアにアクセスしない。
+     * {@code false}が返された場合でも、対応するファイルが存在するとは限らない。
      * </p>
      * @param path 対象のパス
+     * @return 存在しないことが判明している場合のみ{@code true}
      * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
      */
-    public void delete(String path) {
+    public boolean isKnownMissing(String path) {
         if (path == null) {
             throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
         }
-        Key key = createKey(path);
-        service.delete((Transaction) null, key);
+        NegativeCache cache = missing;
+        if (cache != null && cache.contains(path)) {
+            return true;
+        }
+        ResourceManifest snapshot = manifest;
+        return snapshot != null && snapshot.isComplete() && snapshot.contains(path) == false;
     }
 
     /**
-     * 指定のパスに対応するファイルの内容をデータストアから読み出して返す。
+     * このカインドに保存されたすべてのファイルの一覧を、データストアから読み出して返す。
      * <p>
-     * この操作によって一度に取得できるファイルの数や、合計のサイズはデータストアの制限に因る。
+     * 読み出した一覧はこのオブジェクトにも保持され、一覧が{@link ResourceManifest#isComplete() 完全}である場合、
+     * 一覧に含まれないパスに対する読み出しはデータストアにアクセスせずに{@code null}を返すようになる
+     * ({@link #isKnownMissing(String)}も{@code true}を返す)。
+     * 完全でない一覧に含まれないパスは、これまでどおりデータストアから読み出される。
+     * 保持した一覧はこのオブジェクトを経由してファイルを書き出したり削除したりした際に破棄されるが、
+     * 他のオブジェクトやプロセスからの変更は検出できないため、
+     * 必要に応じて{@link #invalidateCaches()}を呼び出すこと。
      * </p>
-     * @param paths 対象のパス一覧
-     * @return 対応するファイルの内容、存在しない場合は{@code null}
-     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * @return 保存されたすべてのファイルの一覧
      */
-    public Map<String, byte[]> get(Iterable<String> paths) {
-        if (paths == null) {
-            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+    public ResourceManifest loadManifest() {
+        long generation;
+        synchronized (manifestLock) {
+            generation = manifestGeneration;
         }
-        Map<Key, String> keys = new HashMap<Key, String>();
-        for (String path : paths) {
-            Key key = createKey(path);
-            keys.put(key, path);
+        ResourceManifest loaded = ResourceManifest.load(service, kindName);
+        synchronized (manifestLock) {
+            if (generation == manifestGeneration) {
+                manifest = loaded;
+            }
         }
+        return loaded;
+    }
 
-        Map<Key, Entity> entities = service.get(null, keys.keySet());
-        Map<String, byte[]> contents = new HashMap<String, byte[]>();
-        for (Map.Entry<Key, Entity> entry : entities.entrySet()) {
-            Entity entity = entry.getValue();
-            if (entity != null) {
-                byte[] bytes = fromEntity(entity);
-                if (bytes != null) {
-                    contents.put(keys.get(entry.getKey()), bytes);
+    /**
+     * このカインドに保存されたすべてのファイルを走査して、ファイルの一覧を再構築する。
+     * <p>
+     * 再構築した一覧は{@link ResourceManifest#isComplete() 完全}なものとして記録されるため、
+     * 一覧の導入前に保存されたファイルや、一覧の更新に失敗したファイルを一覧に含めるために利用する。
+     * 内容のハッシュ値が記録されていないファイルは、内容を読み出してハッシュ値を計算する。
+     * </p>
+     * <p>
+     * この操作は他のオブジェクトやプロセスからの書き出しや削除と同時に行ってはならない。
+     * </p>
+     * @return 再構築した一覧
+     */
+    public ResourceManifest rebuildManifest() {
+        List<ResourceManifest.Entry> entries = new ArrayList<ResourceManifest.Entry>();
+        for (Entity entity : service.prepare(new Query(kindName)).asIterable()) {
+            String name = entity.getKey().getName();
+            assert name != null && name.startsWith("/"); //$NON-NLS-1$
+            String path = name.substring(1);
+            Object hash = entity.getProperty(PROPERTY_HASH);
+            Object size = entity.getProperty(PROPERTY_SIZE);
+            if (isPointer(entity) && hash instanceof String && size instanceof Long) {
+                entries.add(new ResourceManifest.Entry(path, ((Long) size).longValue(), (String) hash));
+            }
+            else {
+                byte[] contents = fromEntity(entity);
+                if (contents != null) {
+                    entries.add(ResourceManifest.Entry.of(path, contents));
                 }
             }
         }
-        return contents;
+        ResourceManifest rebuilt = ResourceManifest.rebuild(service, kindName, entries);
+        discardManifest();
+        return rebuilt;
     }
 
     /**
-     * 指定のパスに対応するファイルの内容を、データストアに書き出す。
-     * <p>
-     * 指定のパスに対応するファイルが既にデータストア上に存在する場合、新しい内容で上書きする。
-     * </p>
+     * 最後に公開されたリビジョンをデータストアから読み出して返す。
      * <p>
-     * この操作によって一度に追加できるファイルの数や、合計のサイズはデータストアの制限に因る。
+     * この操作は単一のエンティティをキーで取得するのみで、ファイルの内容や一覧は読み出さない。
      * </p>
-     * @param pathAndContents 対象のパスと内容の一覧
-     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * @return 最後に公開されたリビジョン、まだ公開されていない場合は{@code null}
+     * @see #publishRevision()
      */
-    public void put(Map<String, byte[]> pathAndContents) {
-        if (pathAndContents == null) {
-            throw new IllegalArgumentException("pathAndContents must not be null"); //$NON-NLS-1$
+    public String getRevision() {
+        try {
+            Entity entity = service.get(null, createRevisionKey());
+            return (String) entity.getProperty(PROPERTY_REVISION);
         }
-        List<Entity> entities = new ArrayList<Entity>();
-        for (Map.Entry<String, byte[]> entry : pathAndContents.entrySet()) {
-            Entity entity = toEntity(entry.getKey(), entry.getValue());
-            entities.add(entity);
+        catch (EntityNotFoundException e) {
+            return null;
         }
-        service.put(entities);
     }
 
     /**
-     * 指定のパスに対応するデータストア上のデータを削除する。
+     * 新しいリビジョンを公開し、そのリビジョンを返す。
      * <p>
-     * データストア上にそのようなデータが存在しない場合、この呼び出しはなにも行わない。
+     * 一連のファイルの書き出しや削除が完了した後に呼び出し、
+     * 他のプロセスに内容の変更を通知するために利用する。
+     * このオブジェクトを経由した書き出しや削除は、自動的にはリビジョンを公開しない。
      * </p>
      * <p>
-     * この操作によって一度に削除できるファイルの数はデータストアの制限に因る。
+     * 公開した後、それまでに開始された書き出しや削除を公開されていない変更の記録から取り除く
+     * ({@link ResourceManifest#hasUnpublishedChanges()})。
      * </p>
-     * @param paths 対象のパス一覧
-     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * @return 公開したリビジョン
+     * @see #getRevision()
      */
-    public void delete(Iterable<String> paths) {
-        if (paths == null) {
-            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
-        }
-        List<Key> keys = new ArrayList<Key>();
-        for (String path : paths) {
-            keys.add(createKey(path));
-        }
-        service.delete((Transaction) null, keys);
+    public String publishRevision() {
+        return publishRevision(newRevision());
     }
 
-    private byte[] fromEntity(Entity entity) {
-        assert entity != null;
-        if (entity.hasProperty(PROPERTY_CONTENTS) == false) {
-            return null;
+    /**
+     * 新しいリビジョンの名前を生成して返す。
+     * <p>
+     * 生成したリビジョンは公開されず、{@link #publishRevision(String)}で別途公開する必要がある。
+     * 公開前に{@link #putBundle(String, Map)}などでリビジョンに対応する内容を書き出す場合に利用する。
+     * </p>
+     * @return 生成したリビジョン
+     */
+    public String newRevision() {
+        return Long.toString(System.currentTimeMillis(), Character.MAX_RADIX)
+            + '-'
+            + Long.toString(TOKENS.nextLong() & Long.MAX_VALUE, Character.MAX_RADIX);
+    }
+
+    /**
+     * {@link #newRevision()}で生成したリビジョンを公開し、そのリビジョンを返す。
+     * @param revision 公開するリビジョン
+     * @return 公開したリビジョン
+     * @throws IllegalArgumentException 引数に{@code null}が指定された場合
+     * @see #publishRevision()
+     */
+    public String publishRevision(String revision) {
+        if (revision == null) {
+            throw new IllegalArgumentException("revision must not be null"); //$NON-NLS-1$
         }
-        Blob contents = (Blob) entity.getProperty(PROPERTY_CONTENTS);
-        return contents.getBytes();
+        long unpublished = ResourceManifest.getUnpublished(service, kindName);
+        Entity entity = new Entity(createRevisionKey());
+        entity.setUnindexedProperty(PROPERTY_REVISION, revision);
+        service.put(null, entity);
+        memcacheRevision = revision;
+        // clears the marker only after the revision is visible
+        ResourceManifest.markPublished(service, kindName, unpublished);
+        return revision;
     }
 
-    private Entity toEntity(String path, byte[] contents) {
-        assert path != null;
-        assert contents != null;
-        Key key = createKey(path);
-        Entity entity = new Entity(key);
-        entity.setUnindexedProperty(PROPERTY_CONTENTS, new Blob(contents));
-        entity.setUnindexedProperty(PROPERTY_VERSION, CURRENT_VERSION);
-        return entity;
+    private Key createRevisionKey() {
+        return KeyFactory.createKey(kindName + REVISION_KIND_SUFFIX, REVISION_NAME);
+    }
+
+    /**
+     * 指定のファイル群を連結した{@link ClassBundle}を、データストアに書き出す。
+     * <p>
+     * 連結したバイト列は{@link #setCodec(ResourceCodec) 変換}した後に常に分割した形式で保存され、
+     * 以前に書き出したものは置き換えられる。
+     * この操作はファイルの一覧 ({@link ResourceManifest}) やメモリキャッシュには影響せず、
+     * 個々のファイルは{@link #put(Map)}などで別途書き出す必要がある。
+     * </p>
+     * @param revision 連結した内容に対応するリビジョン、不明な場合は{@code null}
+     * @param pathAndContents 連結するファイルのパスと内容の一覧
+     * @throws IllegalArgumentException {@code pathAndContents}に{@code null}が含まれる場合、
+     *     または連結したバイト列が大きすぎる場合
+     * @see #loadBundle()
+     */
+    public void putBundle(String revision, Map<String, byte[]> pathAndContents) {
+        if (pathAndContents == null) {
+            throw new IllegalArgumentException("pathAndContents must not be null"); //$NON-NLS-1$
+        }
+        byte[] bytes = ClassBundle.encode(pathAndContents);
+        Key key = createBundleKey();
+        List<Entity> entities = new ArrayList<Entity>();
+        toEntities(key, bytes, null, true, entities);
+        Entity header = entities.get(entities.size() - 1);
+        assert header.getKey().equals(key);
+        if (revision != null) {
+            header.setUnindexedProperty(PROPERTY_REVISION, revision);
+        }
+        Entity previous = getBundleHeader();
+        putInOrder(entities);
+        if (previous != null && isChunked(previous)) {
+            batch.delete(getFragmentKeys(previous));
+        }
+    }
+
+    /**
+     * {@link #putBundle(String, Map)}で書き出した{@link ClassBundle}を、データストアから読み出して返す。
+     * <p>
+     * ヘッダエンティティを取得した後に、分割された断片を一定の数ずつまとめたバッチ取得で読み出す。
+     * {@link #setExecutor(Executor)}でエグゼキュータを指定した場合、それぞれのバッチ取得は並列に実行される。
+     * </p>
+     * @return 読み出した内容、書き出されていない場合は{@code null}
+     * @throws IllegalStateException 保存された内容が壊れている場合
+     */
+    public ClassBundle loadBundle() {
+        Entity header = getBundleHeader();
+        if (header == null) {
+            return null;
+        }
+        byte[] bytes = fromEntity(header);
+        if (bytes == null) {
+            // may be overwritten while reading, retry only once
+            header = getBundleHeader();
+            bytes = header == null ? null : fromEntity(header);
+            if (bytes == null) {
+                return null;
+            }
+        }
+        try {
+            return ClassBundle.decode((String) header.getProperty(PROPERTY_REVISION), bytes);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalStateException(MessageFormat.format(
+                "Broken bundle: {0}", //$NON-NLS-1$
+                header.getKey()), e);
+        }
+    }
+
+    /**
+     * {@link #putBundle(String, Map)}で書き出した{@link ClassBundle}に対応するリビジョンを返す。
+     * <p>
+     * この操作はヘッダエンティティを取得するのみで、連結した内容は読み出さない。
+     * </p>
+     * @return 対応するリビジョン、書き出されていない場合やリビジョンが不明な場合は{@code null}
+     */
+    public String getBundleRevision() {
+        Entity header = getBundleHeader();
+        if (header == null) {
+            return null;
+        }
+        return (String) header.getProperty(PROPERTY_REVISION);
+    }
+
+    private Entity getBundleHeader() {
+        try {
+            return service.get(null, createBundleKey());
+        }
+        catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    private Key createBundleKey() {
+        return KeyFactory.createKey(kindName + BUNDLE_KIND_SUFFIX, BUNDLE_NAME);
+    }
+
+    /**
+     * 起動直後にロードされたパスの一覧をデータストアから読み出して返す。
+     * @return 保存された一覧、保存されていない場合は空の一覧
+     * @see ClassLoadRecorder
+     */
+    public ClassLoadProfile loadProfile() {
+        return ClassLoadProfile.load(service, kindName);
+    }
+
+    /**
+     * 起動直後にロードされたパスの記録を、保存された一覧に統合する。
+     * <p>
+     * 統合後の一覧は最大{@link ClassLoadProfile#DEFAULT_MAX_PATHS}個のパスを含む。
+     * 他のプロセスが同時に統合した場合には再試行する。
+     * </p>
+     * @param recorded 記録されたパス
+     * @return 統合した一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     * @see ClassLoadProfile#merge(List, int)
+     */
+    public ClassLoadProfile mergeProfile(List<String> recorded) {
+        if (recorded == null) {
+            throw new IllegalArgumentException("recorded must not be null"); //$NON-NLS-1$
+        }
+        return ClassLoadProfile.update(service, kindName, recorded, ClassLoadProfile.DEFAULT_MAX_PATHS);
+    }
+
+    /**
+     * このオブジェクトが保持しているデータストアの内容に関するキャッシュを破棄する。
+     * <p>
+     * 他のオブジェクトやプロセスからファイルが書き出された場合に呼び出すこと。
+     * </p>
+     * <p>
+     * メモリキャッシュを利用している場合、次回の読み出しの際に最後に公開されたリビジョンを読み出し直し、
+     * それ以前のリビジョンでメモリキャッシュに格納された内容は以降利用しない。
+     * </p>
+     */
+    public void invalidateCaches() {
+        memcacheRevision = null;
+        contentsChanged();
+    }
+
+    private void contentsChanged() {
+        NegativeCache cache = missing;
+        if (cache != null) {
+            cache.invalidate();
+        }
+        discardManifest();
+    }
+
+    private void discardManifest() {
+        synchronized (manifestLock) {
+            manifestGeneration++;
+            manifest = null;
+        }
+    }
+
+    /**
+     * 指定のパスのファイルを保存するためのキーを作成して返す。
+     * @param path 対象のパス
+     * @return 対応するキー
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    Key createKey(String path) {
+        assert path != null;
+        String name = mangle(path);
+        return KeyFactory.createKey(getKindName(), name);
+    }
+
+    private String mangle(String path) {
+        assert path != null;
+        return '/' + path;
+    }
+
+    private Key createFragmentKey(Key header, String token, int index) {
+        assert header != null;
+        assert token != null;
+        return KeyFactory.createKey(header, header.getKind() + FRAGMENT_KIND_SUFFIX, token + ':' + index);
+    }
+
+    /**
+     * 指定のパスに対応するファイルの内容をデータストアから読み出して返す。
+     * @param path 対象のパス
+     * @return 対応するファイルの内容、存在しない場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public byte[] get(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        if (isKnownMissing(path)) {
+            return null;
+        }
+        ByteBuffer contents = load(path);
+        return contents == null ? null : toBytes(contents);
+    }
+
+    /**
+     * 指定のパスに対応するファイルの内容を読み出し、{@link ByteBuffer}で返す。
+     * <p>
+     * {@link #setDiskCache(DiskResourceCache) ディスク上のキャッシュ}に内容が存在する場合、
+     * 返されるバッファはキャッシュのファイルをマップした領域を複製せずに参照する読み出し専用のバッファとなる。
+     * それ以外の場合は、{@link #get(String)}と同様に読み出した内容を包んで返す。
+     * </p>
+     * @param path 対象のパス
+     * @return 対応するファイルの内容、存在しない場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public ByteBuffer getBuffer(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        if (isKnownMissing(path)) {
+            return null;
+        }
+        return load(path);
+    }
+
+    private ByteBuffer load(String path) {
+        assert path != null;
+        ByteBuffer known = getFromDiskByManifest(path);
+        if (known != null) {
+            return known;
+        }
+        NegativeCache cache = missing;
+        long generation = cache == null ? 0L : cache.getGeneration();
+        if (memcache != null) {
+            Object cached = memcache.get(toMemcacheKey(path));
+            if (cached instanceof byte[]) {
+                return ByteBuffer.wrap((byte[]) cached);
+            }
+        }
+        Entity entity = getHeader(path);
+        if (entity == null) {
+            if (cache != null) {
+                cache.add(path, generation);
+            }
+            return null;
+        }
+        String hash = getDiskHash(entity);
+        if (hash != null) {
+            ByteBuffer stored = getFromDisk(hash);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        byte[] contents = fromEntity(entity);
+        if (contents == null && (isChunked(entity) || isPointer(entity))) {
+            // may be overwritten while reading, retry only once
+            Entity retry = getHeader(path);
+            contents = retry == null ? null : fromEntity(retry);
+        }
+        if (contents == null) {
+            return null;
+        }
+        if (memcache != null) {
+            Map<String, byte[]> loaded = new HashMap<String, byte[]>();
+            loaded.put(path, contents);
+            putToMemcache(loaded, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+        putToDisk(hash, contents);
+        return ByteBuffer.wrap(contents);
+    }
+
+    /**
+     * 指定のパスに対応するファイルの内容を読み出すストリームを返す。
+     * <p>
+     * 分割して保存されたファイルの場合、返されるストリームは読み出しの進行に応じて
+     * 断片をデータストアから順に取得する。
+     * ストリームからの読み出し中にファイルが上書きされた場合、
+     * ストリームは{@link IOException}をスローする場合がある。
+     * </p>
+     * @param path 対象のパス
+     * @return 対応するファイルの内容を読み出すストリーム、存在しない場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public InputStream openStream(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        if (isKnownMissing(path)) {
+            return null;
+        }
+        ByteBuffer known = getFromDiskByManifest(path);
+        if (known != null) {
+            return new ByteBufferInputStream(known);
+        }
+        NegativeCache cache = missing;
+        long generation = cache == null ? 0L : cache.getGeneration();
+        if (memcache != null) {
+            Object cached = memcache.get(toMemcacheKey(path));
+            if (cached instanceof byte[]) {
+                return new ByteArrayInputStream((byte[]) cached);
+            }
+        }
+        Entity entity = getHeader(path);
+        if (entity == null) {
+            if (cache != null) {
+                cache.add(path, generation);
+            }
+            return null;
+        }
+        String hash = getDiskHash(entity);
+        if (hash != null) {
+            ByteBuffer stored = getFromDisk(hash);
+            if (stored != null) {
+                return new ByteBufferInputStream(stored);
+            }
+        }
+        if (isPointer(entity)) {
+            entity = getBlob(entity);
+            if (entity == null) {
+                return null;
+            }
+        }
+        if (isChunked(entity)) {
+            return getCodec(entity).decode(new FragmentInputStream(getFragmentKeys(entity)));
+        }
+        byte[] contents = fromEntity(entity);
+        if (contents == null) {
+            return null;
+        }
+        if (memcache != null) {
+            Map<String, byte[]> loaded = new HashMap<String, byte[]>();
+            loaded.put(path, contents);
+            putToMemcache(loaded, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+        return new ByteArrayInputStream(contents);
+    }
+
+    private Entity getHeader(String path) {
+        assert path != null;
+        try {
+            return service.get(null, createKey(path));
+        }
+        catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 指定のパスに対応するファイルの内容を、データストアに書き出す。
+     * <p>
+     * 指定のパスに対応するファイルが既にデータストア上に存在する場合、新しい内容で上書きする。
+     * </p>
+     * @param path 対象のパス
+     * @param contents 対象のファイルの内容
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public void put(String path, byte[] contents) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        if (contents == null) {
+            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        }
+        write(Collections.singletonMap(path, contents));
+    }
+
+    /**
+     * 指定のパスに対応するデータストア上のデータを削除する。
+     * <p>
+     * データストア上にそのようなデータが存在しない場合、この呼び出しはなにも行わない。
+     * </p>
+     * @param path 対象のパス
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public void delete(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        remove(Collections.singletonList(path));
+    }
+
+    /**
+     * 指定のパスに対応するファイルの内容をデータストアから読み出して返す。
+     * <p>
+     * データストアからの取得は、{@link #setMaxBatchCount(int) 一定の数}ごとに分割して行われる。
+     * </p>
+     * @param paths 対象のパス一覧
+     * @return 対応するファイルの内容、存在しない場合は{@code null}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Map<String, byte[]> get(Iterable<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+        }
+        NegativeCache cache = missing;
+        long generation = cache == null ? 0L : cache.getGeneration();
+        List<String> targets = new ArrayList<String>();
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        for (String path : paths) {
+            if (isKnownMissing(path)) {
+                continue;
+            }
+            ByteBuffer known = getFromDiskByManifest(path);
+            if (known != null) {
+                contents.put(path, toBytes(known));
+                continue;
+            }
+            targets.add(path);
+        }
+        if (memcache != null && targets.isEmpty() == false) {
+            contents.putAll(getFromMemcache(targets));
+        }
+        Map<Key, String> keys = new HashMap<Key, String>();
+        for (String path : targets) {
+            if (contents.containsKey(path) == false) {
+                keys.put(createKey(path), path);
+            }
+        }
+        if (keys.isEmpty()) {
+            return contents;
+        }
+
+        Map<Key, Entity> entities = batch.get(keys.keySet());
+        Map<String, byte[]> loaded = new HashMap<String, byte[]>();
+        Map<String, Entity> chunked = new HashMap<String, Entity>();
+        Map<Key, List<String>> pointers = new HashMap<Key, List<String>>();
+        Map<String, String> diskHashes = new HashMap<String, String>();
+        for (Map.Entry<Key, Entity> entry : entities.entrySet()) {
+            Entity entity = entry.getValue();
+            if (entity == null) {
+                continue;
+            }
+            String path = keys.get(entry.getKey());
+            String hash = getDiskHash(entity);
+            if (hash != null) {
+                ByteBuffer stored = getFromDisk(hash);
+                if (stored != null) {
+                    contents.put(path, toBytes(stored));
+                    continue;
+                }
+                diskHashes.put(path, hash);
+            }
+            if (isPointer(entity)) {
+                Key blobKey = (Key) entity.getProperty(PROPERTY_BLOB);
+                List<String> sharing = pointers.get(blobKey);
+                if (sharing == null) {
+                    sharing = new ArrayList<String>();
+                    pointers.put(blobKey, sharing);
+                }
+                sharing.add(path);
+            }
+            else if (isChunked(entity)) {
+                chunked.put(path, entity);
+            }
+            else {
+                byte[] bytes = fromEntity(entity);
+                if (bytes != null) {
+                    loaded.put(path, bytes);
+                }
+            }
+        }
+        Map<String, List<String>> aliases = new HashMap<String, List<String>>();
+        if (pointers.isEmpty() == false) {
+            for (Map.Entry<Key, Entity> entry : batch.get(pointers.keySet()).entrySet()) {
+                // the same contents are shared by several paths, reads them only once
+                List<String> sharing = pointers.get(entry.getKey());
+                String representative = sharing.get(0);
+                chunked.put(representative, entry.getValue());
+                if (sharing.size() > 1) {
+                    aliases.put(representative, sharing.subList(1, sharing.size()));
+                }
+            }
+        }
+        loaded.putAll(fromChunkedEntities(chunked));
+        for (Map.Entry<String, List<String>> entry : aliases.entrySet()) {
+            byte[] bytes = loaded.get(entry.getKey());
+            if (bytes == null) {
+                continue;
+            }
+            for (String alias : entry.getValue()) {
+                loaded.put(alias, bytes);
+            }
+        }
+        if (memcache != null && loaded.isEmpty() == false) {
+            putToMemcache(loaded, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+        for (Map.Entry<String, String> entry : diskHashes.entrySet()) {
+            byte[] bytes = loaded.get(entry.getKey());
+            if (bytes != null) {
+                putToDisk(entry.getValue(), bytes);
+            }
+        }
+        contents.putAll(loaded);
+        if (cache != null) {
+            for (Map.Entry<Key, String> entry : keys.entrySet()) {
+                if (entities.get(entry.getKey()) == null) {
+                    cache.add(entry.getValue(), generation);
+                }
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * 指定のパスに対応するファイルの内容を、データストアに書き出す。
+     * <p>
+     * 指定のパスに対応するファイルが既にデータストア上に存在する場合、新しい内容で上書きする。
+     * </p>
+     * <p>
+     * データストアへの書き出しは、{@link #setMaxBatchCount(int) エンティティの数}と
+     * {@link #setMaxBatchBytes(int) 合計のバイト数}の上限に収まるように分割して行われる。
+     * 分割した書き出しの一部が失敗して例外がスローされた場合、一部のファイルのみが書き出されていることがある。
+     * </p>
+     * @param pathAndContents 対象のパスと内容の一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public void put(Map<String, byte[]> pathAndContents) {
+        if (pathAndContents == null) {
+            throw new IllegalArgumentException("pathAndContents must not be null"); //$NON-NLS-1$
+        }
+        write(pathAndContents);
+    }
+
+    /**
+     * 指定のパスに対応するデータストア上のデータを削除する。
+     * <p>
+     * データストア上にそのようなデータが存在しない場合、この呼び出しはなにも行わない。
+     * </p>
+     * <p>
+     * データストア上の削除は、{@link #setMaxBatchCount(int) 一定の数}ごとに分割して行われる。
+     * </p>
+     * @param paths 対象のパス一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public void delete(Iterable<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+        }
+        remove(toList(paths));
+    }
+
+    /**
+     * 指定の文字列から始まるパスを持つファイルの一覧を返す。
+     * <p>
+     * この操作はキーのみを対象とした範囲検索を行うため、ファイルの内容は読み出さない。
+     * 返されるパスはキーの順序 (パスの辞書順) に整列している。
+     * </p>
+     * @param prefix 対象のパスの接頭辞、すべてのファイルを対象とする場合は空文字列
+     * @return 対象のパス一覧
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public List<String> list(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix must not be null"); //$NON-NLS-1$
+        }
+        Query query = new Query(kindName);
+        query.setKeysOnly();
+        query.addFilter(
+            Entity.KEY_RESERVED_PROPERTY,
+            FilterOperator.GREATER_THAN_OR_EQUAL,
+            createKey(prefix));
+        query.addFilter(
+            Entity.KEY_RESERVED_PROPERTY,
+            FilterOperator.LESS_THAN,
+            createKey(prefix + '\uffff'));
+        List<String> results = new ArrayList<String>();
+        for (Entity entity : service.prepare(query).asIterable()) {
+            String name = entity.getKey().getName();
+            assert name != null && name.startsWith("/"); //$NON-NLS-1$
+            results.add(name.substring(1));
+        }
+        return results;
+    }
+
+    /**
+     * {@link #get(String)}を非同期に実行する。
+     * @param path 対象のパス
+     * @return 対応するファイルの内容、存在しない場合は{@code null}を返す{@link Future}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Future<byte[]> getAsync(final String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        return ApiEnvironments.submit(executor, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return get(path);
+            }
+        });
+    }
+
+    /**
+     * {@link #get(Iterable)}を非同期に実行する。
+     * <p>
+     * 対象のパス一覧は、このメソッドを呼び出した時点の内容が利用される。
+     * </p>
+     * @param paths 対象のパス一覧
+     * @return 対応するファイルの内容を返す{@link Future}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Future<Map<String, byte[]>> getAsync(Iterable<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+        }
+        final List<String> targets = toList(paths);
+        return ApiEnvironments.submit(executor, new Callable<Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> call() {
+                return get(targets);
+            }
+        });
+    }
+
+    /**
+     * {@link #put(String, byte[])}を非同期に実行する。
+     * @param path 対象のパス
+     * @param contents 対象のファイルの内容
+     * @return 書き出しの完了を表す{@link Future}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Future<Void> putAsync(String path, byte[] contents) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        if (contents == null) {
+            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        }
+        return putAsync(Collections.singletonMap(path, contents));
+    }
+
+    /**
+     * {@link #put(Map)}を非同期に実行する。
+     * <p>
+     * 対象のパスと内容の一覧は、このメソッドを呼び出した時点の内容が利用される。
+     * </p>
+     * @param pathAndContents 対象のパスと内容の一覧
+     * @return 書き出しの完了を表す{@link Future}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Future<Void> putAsync(Map<String, byte[]> pathAndContents) {
+        if (pathAndContents == null) {
+            throw new IllegalArgumentException("pathAndContents must not be null"); //$NON-NLS-1$
+        }
+        final Map<String, byte[]> targets = new HashMap<String, byte[]>(pathAndContents);
+        return ApiEnvironments.submit(executor, new Callable<Void>() {
+            @Override
+            public Void call() {
+                write(targets);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@link #delete(String)}を非同期に実行する。
+     * @param path 対象のパス
+     * @return 削除の完了を表す{@link Future}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Future<Void> deleteAsync(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        return deleteAsync(Collections.singletonList(path));
+    }
+
+    /**
+     * {@link #delete(Iterable)}を非同期に実行する。
+     * <p>
+     * 対象のパス一覧は、このメソッドを呼び出した時点の内容が利用される。
+     * </p>
+     * @param paths 対象のパス一覧
+     * @return 削除の完了を表す{@link Future}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Future<Void> deleteAsync(Iterable<String> paths) {
+        if (paths == null) {
+            throw new IllegalArgumentException("paths must not be null"); //$NON-NLS-1$
+        }
+        final List<String> targets = toList(paths);
+        return ApiEnvironments.submit(executor, new Callable<Void>() {
+            @Override
+            public Void call() {
+                remove(targets);
+                return null;
+            }
+        });
+    }
+
+    private static List<String> toList(Iterable<String> paths) {
+        assert paths != null;
+        List<String> results = new ArrayList<String>();
+        for (String path : paths) {
+            results.add(path);
+        }
+        return results;
+    }
+
+    private void write(Map<String, byte[]> pathAndContents) {
+        assert pathAndContents != null;
+        if (pathAndContents.isEmpty()) {
+            return;
+        }
+        String blobKind = blobKindName;
+        List<Key> keys = new ArrayList<Key>();
+        List<Entity> entities = new ArrayList<Entity>();
+        List<ResourceManifest.Entry> manifestEntries = new ArrayList<ResourceManifest.Entry>();
+        Map<Key, byte[]> blobs = new HashMap<Key, byte[]>();
+        for (Map.Entry<String, byte[]> entry : pathAndContents.entrySet()) {
+            Key key = createKey(entry.getKey());
+            ResourceManifest.Entry manifestEntry = ResourceManifest.Entry.of(entry.getKey(), entry.getValue());
+            keys.add(key);
+            manifestEntries.add(manifestEntry);
+            if (blobKind == null) {
+                toEntities(key, entry.getValue(), manifestEntry.getHash(), false, entities);
+            }
+            else {
+                Key blobKey = KeyFactory.createKey(blobKind, manifestEntry.getHash());
+                blobs.put(blobKey, entry.getValue());
+                entities.add(toPointer(key, blobKey, manifestEntry));
+            }
+        }
+        if (blobs.isEmpty() == false) {
+            writeBlobs(blobs);
+        }
+        ResourceManifest.beginUpdate(service, kindName);
+        Map<Key, Entity> previous = batch.get(keys);
+        putInOrder(entities);
+        List<Key> garbage = new ArrayList<Key>();
+        for (Entity entity : previous.values()) {
+            if (isChunked(entity)) {
+                garbage.addAll(getFragmentKeys(entity));
+            }
+        }
+        if (garbage.isEmpty() == false) {
+            batch.delete(garbage);
+        }
+        ResourceManifest.endUpdate(
+            service,
+            kindName,
+            manifestEntries,
+            Collections.<String>emptyList());
+        if (memcache != null) {
+            putToMemcache(pathAndContents, SetPolicy.SET_ALWAYS);
+        }
+        contentsChanged();
+    }
+
+    private void remove(List<String> paths) {
+        assert paths != null;
+        if (paths.isEmpty()) {
+            return;
+        }
+        List<Key> keys = new ArrayList<Key>();
+        for (String path : paths) {
+            keys.add(createKey(path));
+        }
+        ResourceManifest.beginUpdate(service, kindName);
+        Map<Key, Entity> previous = batch.get(keys);
+        List<Key> targets = new ArrayList<Key>(keys);
+        for (Entity entity : previous.values()) {
+            if (isChunked(entity)) {
+                targets.addAll(getFragmentKeys(entity));
+            }
+        }
+        batch.delete(targets);
+        ResourceManifest.endUpdate(
+            service,
+            kindName,
+            Collections.<ResourceManifest.Entry>emptyList(),
+            paths);
+        if (memcache != null) {
+            List<Object> memcacheKeys = new ArrayList<Object>();
+            for (String path : paths) {
+                memcacheKeys.add(toMemcacheKey(path));
+            }
+            memcache.deleteAll(memcacheKeys, MEMCACHE_NO_RE_ADD_MILLIS);
+        }
+        discardManifest();
+    }
+
+    /**
+     * 断片エンティティを先に書き出してから、残りのエンティティを書き出す。
+     * <p>
+     * 分割した書き出しは並列に行われることがあるため、
+     * ヘッダエンティティが対応する断片より先に見えることを防ぐ。
+     * それぞれの書き出しは{@link #setMaxBatchCount(int)}と{@link #setMaxBatchBytes(int)}の範囲に分割され、
+     * 断片とヘッダが同じバッチ操作に含まれることはない。
+     * </p>
+     * @param entities 対象のエンティティ一覧
+     */
+    private void putInOrder(List<Entity> entities) {
+        assert entities != null;
+        List<Entity> fragments = new ArrayList<Entity>();
+        List<Entity> rest = new ArrayList<Entity>();
+        for (Entity entity : entities) {
+            if (entity.getKey().getParent() != null) {
+                fragments.add(entity);
+            }
+            else {
+                rest.add(entity);
+            }
+        }
+        if (fragments.isEmpty() == false) {
+            batch.put(fragments);
+        }
+        batch.put(rest);
+    }
+
+    /**
+     * ヘッダエンティティに記録された内容のハッシュ値を、ディスク上のキャッシュのキーとして返す。
+     * <p>
+     * 内容が単一のエンティティに収まっているファイルもキャッシュに追加し、
+     * 以降は{@link #getFromDiskByManifest(String)}でエンティティの読み出しを省略できるようにする。
+     * </p>
+     * @param header 対象のヘッダエンティティ
+     * @return 内容のハッシュ値、キャッシュを利用しない場合は{@code null}
+     */
+    private String getDiskHash(Entity header) {
+        assert header != null;
+        if (diskCache == null) {
+            return null;
+        }
+        Object hash = header.getProperty(PROPERTY_HASH);
+        return hash instanceof String ? (String) hash : null;
+    }
+
+    /**
+     * 保持している完全な一覧に記録されたハッシュ値で、ディスク上のキャッシュから内容を読み出して返す。
+     * @param path 対象のパス
+     * @return キャッシュされた内容、一覧に含まれないかキャッシュされていない場合は{@code null}
+     */
+    private ByteBuffer getFromDiskByManifest(String path) {
+        assert path != null;
+        if (diskCache == null) {
+            return null;
+        }
+        ResourceManifest snapshot = manifest;
+        if (snapshot == null || snapshot.isComplete() == false) {
+            return null;
+        }
+        ResourceManifest.Entry entry = snapshot.get(path);
+        if (entry == null) {
+            // not in the snapshot, reads from the datastore as usual
+            return null;
+        }
+        return getFromDisk(entry.getHash());
+    }
+
+    private ByteBuffer getFromDisk(String hash) {
+        assert hash != null;
+        DiskResourceCache cache = diskCache;
+        if (cache == null) {
+            return null;
+        }
+        try {
+            return cache.get(hash);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void putToDisk(String hash, byte[] contents) {
+        assert contents != null;
+        DiskResourceCache cache = diskCache;
+        if (cache == null || hash == null) {
+            return;
+        }
+        if (hash.equals(ResourceManifest.computeHash(contents)) == false) {
+            // the file was overwritten while reading
+            return;
+        }
+        try {
+            cache.put(hash, contents);
+        }
+        catch (IOException e) {
+            // ignored, the contents are still available from the datastore
+        }
+    }
+
+    /**
+     * 指定のバッファの残りの内容を配列で返す。
+     * <p>
+     * 書き込み可能な配列全体を包んだバッファの場合は、その配列を複製せずに返す。
+     * </p>
+     * @param buffer 対象のバッファ
+     * @return 対応する配列
+     */
+    private static byte[] toBytes(ByteBuffer buffer) {
+        assert buffer != null;
+        if (buffer.hasArray()
+                && buffer.arrayOffset() == 0
+                && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] results = new byte[buffer.remaining()];
+        buffer.duplicate().get(results);
+        return results;
+    }
+
+    private Object toMemcacheKey(String path) {
+        assert memcache != null;
+        assert path != null;
+        return MEMCACHE_KEY_PREFIX + kindName + ':' + getMemcacheRevision() + ':' + path;
+    }
+
+    private String getMemcacheRevision() {
+        String revision = memcacheRevision;
+        if (revision == null) {
+            revision = getRevision();
+            if (revision == null) {
+                revision = MEMCACHE_NO_REVISION;
+            }
+            memcacheRevision = revision;
+        }
+        return revision;
+    }
+
+    private Map<String, byte[]> getFromMemcache(Collection<String> paths) {
+        assert memcache != null;
+        assert paths != null;
+        Map<Object, String> keys = new HashMap<Object, String>();
+        for (String path : paths) {
+            keys.put(toMemcacheKey(path), path);
+        }
+        Map<Object, Object> cached = memcache.getAll(new ArrayList<Object>(keys.keySet()));
+        Map<String, byte[]> results = new HashMap<String, byte[]>();
+        if (cached == null) {
+            return results;
+        }
+        for (Map.Entry<Object, Object> entry : cached.entrySet()) {
+            String path = keys.get(entry.getKey());
+            if (path != null && entry.getValue() instanceof byte[]) {
+                results.put(path, (byte[]) entry.getValue());
+            }
+        }
+        return results;
+    }
+
+    private void putToMemcache(Map<String, byte[]> pathAndContents, SetPolicy policy) {
+        assert memcache != null;
+        assert pathAndContents != null;
+        assert policy != null;
+        Map<Object, Object> values = new HashMap<Object, Object>();
+        List<Object> oversized = new ArrayList<Object>();
+        for (Map.Entry<String, byte[]> entry : pathAndContents.entrySet()) {
+            Object key = toMemcacheKey(entry.getKey());
+            if (entry.getValue().length <= MEMCACHE_MAX_VALUE_SIZE) {
+                values.put(key, entry.getValue());
+            }
+            else {
+                oversized.add(key);
+            }
+        }
+        if (values.isEmpty() == false) {
+            memcache.putAll(values, Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_SECONDS), policy);
+        }
+        if (policy == SetPolicy.SET_ALWAYS && oversized.isEmpty() == false) {
+            memcache.deleteAll(oversized);
+        }
+    }
+
+    private static long getVersion(Entity entity) {
+        assert entity != null;
+        Object version = entity.getProperty(PROPERTY_VERSION);
+        if (version instanceof Long) {
+            return ((Long) version).longValue();
+        }
+        return LAYOUT_INLINE;
+    }
+
+    private static boolean isChunked(Entity entity) {
+        assert entity != null;
+        return (getVersion(entity) & LAYOUT_MASK) == LAYOUT_CHUNKED;
+    }
+
+    private ResourceCodec getCodec(Entity entity) {
+        assert entity != null;
+        int id = (int) (getVersion(entity) >>> CODEC_SHIFT);
+        ResourceCodec found = codecs.get(id);
+        if (found == null) {
+            throw new IllegalStateException(MessageFormat.format(
+                "Unknown codec (id={0}) for {1}", //$NON-NLS-1$
+                id,
+                entity.getKey()));
+        }
+        return found;
+    }
+
+    private byte[] decode(Entity entity, byte[] stored) {
+        assert entity != null;
+        assert stored != null;
+        try {
+            return getCodec(entity).decode(stored);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(MessageFormat.format(
+                "Failed to decode contents of {0}", //$NON-NLS-1$
+                entity.getKey()), e);
+        }
+    }
+
+    private static boolean isPointer(Entity entity) {
+        assert entity != null;
+        return (getVersion(entity) & LAYOUT_MASK) == LAYOUT_POINTER;
+    }
+
+    private Entity getBlob(Entity pointer) {
+        assert pointer != null;
+        assert isPointer(pointer);
+        try {
+            return service.get(null, (Key) pointer.getProperty(PROPERTY_BLOB));
+        }
+        catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    private byte[] fromEntity(Entity entity) {
+        assert entity != null;
+        if (isPointer(entity)) {
+            Entity blob = getBlob(entity);
+            return blob == null ? null : fromEntity(blob);
+        }
+        if (isChunked(entity)) {
+            List<Key> fragmentKeys = getFragmentKeys(entity);
+            byte[] stored = join(entity, getFragments(fragmentKeys));
+            return stored == null ? null : decode(entity, stored);
+        }
+        if (entity.hasProperty(PROPERTY_CONTENTS) == false) {
+            return null;
+        }
+        Blob contents = (Blob) entity.getProperty(PROPERTY_CONTENTS);
+        return decode(entity, contents.getBytes());
+    }
+
+    /**
+     * 分割して保存されたファイルの内容を、断片をまとめて取得して復元する。
+     * @param headers パスとヘッダエンティティの対応表
+     * @return パスと復元した内容の対応表、断片が欠けていたファイルは含まれない
+     */
+    private Map<String, byte[]> fromChunkedEntities(Map<String, Entity> headers) {
+        assert headers != null;
+        Map<String, byte[]> results = new HashMap<String, byte[]>();
+        if (headers.isEmpty()) {
+            return results;
+        }
+        List<Key> fragmentKeys = new ArrayList<Key>();
+        for (Entity header : headers.values()) {
+            fragmentKeys.addAll(getFragmentKeys(header));
+        }
+        Map<Key, Entity> fragments = getFragments(fragmentKeys);
+        for (Map.Entry<String, Entity> entry : headers.entrySet()) {
+            byte[] stored = join(entry.getValue(), fragments);
+            byte[] contents = stored == null ? null : decode(entry.getValue(), stored);
+            if (contents == null) {
+                // may be overwritten while reading, retry only once
+                Entity retry = getHeader(entry.getKey());
+                contents = retry == null ? null : fromEntity(retry);
+            }
+            if (contents != null) {
+                results.put(entry.getKey(), contents);
+            }
+        }
+        return results;
+    }
+
+    private Map<Key, Entity> getFragments(List<Key> fragmentKeys) {
+        assert fragmentKeys != null;
+        return batch.get(fragmentKeys, MAX_FRAGMENTS_PER_GET);
+    }
+
+    private byte[] join(Entity header, Map<Key, Entity> fragments) {
+        assert header != null;
+        assert fragments != null;
+        long size = ((Long) header.getProperty(PROPERTY_SIZE)).longValue();
+        byte[] results = new byte[(int) size];
+        int offset = 0;
+        for (Key key : getFragmentKeys(header)) {
+            Entity fragment = fragments.get(key);
+            if (fragment == null) {
+                return null;
+            }
+            byte[] bytes = ((Blob) fragment.getProperty(PROPERTY_CONTENTS)).getBytes();
+            if (offset + bytes.length > results.length) {
+                return null;
+            }
+            System.arraycopy(bytes, 0, results, offset, bytes.length);
+            offset += bytes.length;
+        }
+        if (offset != results.length) {
+            return null;
+        }
+        return results;
+    }
+
+    private List<Key> getFragmentKeys(Entity header) {
+        assert header != null;
+        assert isChunked(header);
+        String token = (String) header.getProperty(PROPERTY_FRAGMENT_TOKEN);
+        int count = ((Long) header.getProperty(PROPERTY_FRAGMENT_COUNT)).intValue();
+        List<Key> results = new ArrayList<Key>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(createFragmentKey(header.getKey(), token, i));
+        }
+        return results;
+    }
+
+    private void writeBlobs(Map<Key, byte[]> blobs) {
+        assert blobs != null;
+        Map<Key, Entity> existing = batch.get(blobs.keySet());
+        List<Entity> entities = new ArrayList<Entity>();
+        for (Map.Entry<Key, byte[]> entry : blobs.entrySet()) {
+            if (existing.containsKey(entry.getKey())) {
+                continue;
+            }
+            toEntities(entry.getKey(), entry.getValue(), null, true, entities);
+        }
+        if (entities.isEmpty() == false) {
+            putInOrder(entities);
+        }
+    }
+
+    private static Entity toPointer(Key key, Key blobKey, ResourceManifest.Entry manifestEntry) {
+        assert key != null;
+        assert blobKey != null;
+        assert manifestEntry != null;
+        Entity entity = new Entity(key);
+        entity.setUnindexedProperty(PROPERTY_VERSION, Long.valueOf(LAYOUT_POINTER));
+        entity.setUnindexedProperty(PROPERTY_BLOB, blobKey);
+        entity.setUnindexedProperty(PROPERTY_HASH, manifestEntry.getHash());
+        entity.setUnindexedProperty(PROPERTY_SIZE, Long.valueOf(manifestEntry.getSize()));
+        return entity;
+    }
+
+    private void toEntities(Key key, byte[] raw, String hash, boolean forceChunked, List<Entity> results) {
+        assert key != null;
+        assert raw != null;
+        assert results != null;
+        ResourceCodec encoder = codec;
+        byte[] contents = encoder.encode(raw);
+        if (encoder != ResourceCodec.NONE && contents.length >= raw.length) {
+            // not effective
+            encoder = ResourceCodec.NONE;
+            contents = raw;
+        }
+        long codecBits = ((long) encoder.getId()) << CODEC_SHIFT;
+        Entity entity = new Entity(key);
+        int size = fragmentSize;
+        if (forceChunked == false && contents.length <= size) {
+            entity.setUnindexedProperty(PROPERTY_CONTENTS, new Blob(contents));
+            entity.setUnindexedProperty(PROPERTY_VERSION, Long.valueOf(LAYOUT_INLINE | codecBits));
+            if (hash != null) {
+                entity.setUnindexedProperty(PROPERTY_HASH, hash);
+            }
+            results.add(entity);
+            return;
+        }
+        String token = Long.toString(TOKENS.nextLong() & Long.MAX_VALUE, Character.MAX_RADIX);
+        int count = 0;
+        for (int offset = 0; offset < contents.length; offset += size) {
+            int end = Math.min(contents.length, offset + size);
+            byte[] bytes = new byte[end - offset];
+            System.arraycopy(contents, offset, bytes, 0, bytes.length);
+            Entity fragment = new Entity(createFragmentKey(key, token, count));
+            fragment.setUnindexedProperty(PROPERTY_CONTENTS, new Blob(bytes));
+            results.add(fragment);
+            count++;
+        }
+        entity.setUnindexedProperty(PROPERTY_VERSION, Long.valueOf(LAYOUT_CHUNKED | codecBits));
+        entity.setUnindexedProperty(PROPERTY_SIZE, Long.valueOf(contents.length));
+        entity.setUnindexedProperty(PROPERTY_FRAGMENT_COUNT, Long.valueOf(count));
+        entity.setUnindexedProperty(PROPERTY_FRAGMENT_TOKEN, token);
+        if (hash != null) {
+            entity.setUnindexedProperty(PROPERTY_HASH, hash);
+        }
+        results.add(entity);
+    }
+
+    /**
+     * 断片エンティティを順に取得しながら内容を読み出すストリーム。
+     */
+    private class FragmentInputStream extends InputStream {
+
+        private final LinkedList<Key> rest;
+
+        private final LinkedList<byte[]> fetched = new LinkedList<byte[]>();
+
+        private byte[] current = new byte[0];
+
+        private int offset;
+
+        FragmentInputStream(List<Key> fragmentKeys) {
+            assert fragmentKeys != null;
+            this.rest = new LinkedList<Key>(fragmentKeys);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (prepare() == false) {
+                return -1;
+            }
+            return current[offset++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (prepare() == false) {
+                return -1;
+            }
+            int count = Math.min(len, current.length - offset);
+            System.arraycopy(current, offset, b, off, count);
+            offset += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current.length - offset;
+        }
+
+        @Override
+        public void close() {
+            rest.clear();
+            fetched.clear();
+            current = new byte[0];
+            offset = 0;
+        }
+
+        private boolean prepare() throws IOException {
+            while (offset >= current.length) {
+                if (fetched.isEmpty()) {
+                    if (rest.isEmpty()) {
+                        return false;
+                    }
+                    fetch();
+                }
+                current = fetched.removeFirst();
+                offset = 0;
+            }
+            return true;
+        }
+
+        private void fetch() throws IOException {
+            List<Key> group = new ArrayList<Key>();
+            while (rest.isEmpty() == false && group.size() < STREAM_FRAGMENTS_PER_GET) {
+                group.add(rest.removeFirst());
+            }
+            Map<Key, Entity> fragments = service.get(null, group);
+            for (Key key : group) {
+                Entity fragment = fragments.get(key);
+                if (fragment == null) {
+                    throw new IOException(
+                        "fragment is missing, the resource may be overwritten: " + key); //$NON-NLS-1$
+                }
+                fetched.addLast(((Blob) fragment.getProperty(PROPERTY_CONTENTS)).getBytes());
+            }
+        }
     }
 }
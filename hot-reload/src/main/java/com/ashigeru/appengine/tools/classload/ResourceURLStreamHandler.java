@@ -0,0 +1,245 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+
+/**
+ * 読み出し済みのリソースの内容を返すURLを取り扱う。
+ * <p>
+ * 内容を指定して作成したURLは、作成時に渡された内容をそのまま返すため、
+ * {@link URL#openStream()}で外部のサービスにアクセスすることはない。
+ * {@link ResourceStore}を指定して作成したURLは内容を保持せず、
+ * 開くたびに{@link ResourceStore#openStream(String)}で内容を順に読み出す。
+ * URLの形式は{@code <protocol>://<kind>/<path>}となる。
+ * </p>
+ */
+final class ResourceURLStreamHandler extends URLStreamHandler {
+
+    /**
+     * このハンドラが取り扱うURLのプロトコル名。
+     */
+    static final String PROTOCOL = "resourcestore"; //$NON-NLS-1$
+
+    private final ByteBuffer contents;
+
+    private final ResourceStore store;
+
+    private final String path;
+
+    private ResourceURLStreamHandler(ByteBuffer contents, ResourceStore store, String path) {
+        assert contents != null || store != null;
+        this.contents = contents;
+        this.store = store;
+        this.path = path;
+    }
+
+    /**
+     * 指定の内容を返すURLを作成する。
+     * @param kindName リソースを保存したカインド名
+     * @param path リソースのパス
+     * @param contents リソースの内容
+     * @return 作成したURL
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    static URL createUrl(String kindName, String path, byte[] contents) {
+        if (contents == null) {
+            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        }
+        return createUrl(kindName, path, ByteBuffer.wrap(contents));
+    }
+
+    /**
+     * 指定のバッファの残りの内容を返すURLを作成する。
+     * <p>
+     * 作成したURLはバッファの内容を複製せずに参照するため、以降にバッファの内容を変更してはならない。
+     * </p>
+     * @param kindName リソースを保存したカインド名
+     * @param path リソースのパス
+     * @param contents リソースの内容
+     * @return 作成したURL
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    static URL createUrl(String kindName, String path, ByteBuffer contents) {
+        if (kindName == null) {
+            throw new IllegalArgumentException("kindName must not be null"); //$NON-NLS-1$
+        }
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        if (contents == null) {
+            throw new IllegalArgumentException("contents must not be null"); //$NON-NLS-1$
+        }
+        return createUrl(kindName, path, new ResourceURLStreamHandler(contents.slice(), null, null));
+    }
+
+    /**
+     * 開くたびに指定のストアから内容を読み出すURLを作成する。
+     * <p>
+     * 作成したURLは内容を保持しないため、大きなリソースでもメモリ上に展開せずに順に読み出せる。
+     * URLを開いた時点でリソースが存在しない場合、{@link FileNotFoundException}がスローされる。
+     * </p>
+     * @param store 内容を読み出すストア
+     * @param path リソースのパス
+     * @return 作成したURL
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    static URL createUrl(ResourceStore store, String path) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null"); //$NON-NLS-1$
+        }
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null"); //$NON-NLS-1$
+        }
+        return createUrl(store.getKindName(), path, new ResourceURLStreamHandler(null, store, path));
+    }
+
+    private static URL createUrl(String kindName, String path, ResourceURLStreamHandler handler) {
+        assert kindName != null;
+        assert path != null;
+        assert handler != null;
+        try {
+            return new URL(PROTOCOL, kindName, -1, '/' + path, handler);
+        }
+        catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 指定のURLが保持しているリソースの内容のバイト数を返す。
+     * @param url 対象のURL
+     * @return このハンドラが内容を保持するURLの場合はそのバイト数、それ以外の場合は{@code 0}
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    static long getRetainedSize(URL url) {
+        if (url == null) {
+            throw new IllegalArgumentException("url must not be null"); //$NON-NLS-1$
+        }
+        if (PROTOCOL.equals(url.getProtocol()) == false) {
+            return 0L;
+        }
+        try {
+            return Math.max(url.openConnection().getContentLength(), 0);
+        }
+        catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    @Override
+    protected URLConnection openConnection(URL url) {
+        if (contents == null) {
+            return new StreamConnection(url, store, path);
+        }
+        return new Connection(url, contents);
+    }
+
+    @Override
+    protected synchronized InetAddress getHostAddress(URL url) {
+        // the host part is a kind name
+        return null;
+    }
+
+    @Override
+    protected boolean hostsEqual(URL a, URL b) {
+        String hostA = a.getHost();
+        String hostB = b.getHost();
+        return hostA == null ? hostB == null : hostA.equals(hostB);
+    }
+
+    @Override
+    protected int hashCode(URL url) {
+        return url.toExternalForm().hashCode();
+    }
+
+    @Override
+    protected boolean equals(URL a, URL b) {
+        return a.toExternalForm().equals(b.toExternalForm());
+    }
+
+    /**
+     * 保持している内容を返す接続。
+     */
+    private static class Connection extends URLConnection {
+
+        private final ByteBuffer contents;
+
+        Connection(URL url, ByteBuffer contents) {
+            super(url);
+            assert contents != null;
+            this.contents = contents;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            connect();
+            return new ByteBufferInputStream(contents);
+        }
+
+        @Override
+        public int getContentLength() {
+            return contents.remaining();
+        }
+    }
+
+    /**
+     * 開くたびにストアから内容を読み出す接続。
+     */
+    private static class StreamConnection extends URLConnection {
+
+        private final ResourceStore store;
+
+        private final String path;
+
+        StreamConnection(URL url, ResourceStore store, String path) {
+            super(url);
+            assert store != null;
+            assert path != null;
+            this.store = store;
+            this.path = path;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            // the URL may split the path into a query or a reference
+            InputStream stream = store.openStream(path);
+            if (stream == null) {
+                throw new FileNotFoundException(url.toExternalForm());
+            }
+            return stream;
+        }
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * クラスファイルを含むディレクトリやJARファイルの内容を、{@link ResourceStore}に同期する。
+ * <p>
+ * 同期の際には{@link ResourceStore#loadManifest()}で保存済みのファイルの一覧を読み出し、
+ * 内容のハッシュ値が異なるファイルや新しいファイルのみを書き出して、
+ * 同期元に存在しないファイルを削除する。
+ * 読み出した一覧が{@link ResourceManifest#isComplete() 完全}でない場合、
+ * 同期の前に{@link ResourceStore#rebuildManifest()}で一覧を再構築する。
+ * 書き出しと削除は{@link #setMaxBatchCount(int) 数}と{@link #setMaxBatchBytes(long) 大きさ}の上限ごとに分割して行われ、
+ * エグゼキュータを指定した場合にはそれぞれが並列に実行される。
+ * </p>
+ * <p>
+ * ファイルの一覧は書き出しや削除のたびに更新されるため、
+ * 同期が途中で中断された場合でも、再度同期を行えば残りのファイルのみが処理される。
+ * </p>
+ * <p>
+ * 同期によってファイルが書き出されたり削除されたりした場合、同期の完了後に
+ * {@link ResourceStore#publishRevision(String)}で新しいリビジョンを公開する。
+ * 以前の同期が公開の前に中断されていた場合 ({@link ResourceManifest#hasUnpublishedChanges()})も、
+ * 変更の有無にかかわらず新しいリビジョンを公開する。
+ * </p>
+ * <p>
+ * {@link #setBundle(boolean)}で有効にした場合、同期元のすべてのファイルを連結した{@link ClassBundle}も
+ * {@link ResourceStore#putBundle(String, Map)}で書き出す。
+ * 連結した内容は新しいリビジョンを公開する前に書き出されるため、
+ * 公開されたリビジョンを参照したプロセスが古い内容を読み出すことはない。
+ * </p>
+ */
+public class ResourceUploader {
+
+    /**
+     * 一度のバッチで書き出すファイル数の既定値。
+     */
+    public static final int DEFAULT_MAX_BATCH_COUNT = 100;
+
+    /**
+     * 一度のバッチで書き出す内容の合計バイト数の既定値。
+     */
+    public static final long DEFAULT_MAX_BATCH_BYTES = 900L * 1000;
+
+    private static final String JAR_MANIFEST_DIRECTORY = "META-INF/"; //$NON-NLS-1$
+
+    private final ResourceStore store;
+
+    private final Executor executor;
+
+    private int maxBatchCount = DEFAULT_MAX_BATCH_COUNT;
+
+    private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    private boolean deleteRemoved = true;
+
+    private boolean bundle;
+
+    /**
+     * インスタンスを生成する。
+     * <p>
+     * このコンストラクタで生成したオブジェクトは、すべてのバッチを呼び出し元のスレッドで順に実行する。
+     * </p>
+     * @param store 同期先
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public ResourceUploader(ResourceStore store) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null"); //$NON-NLS-1$
+        }
+        this.store = store;
+        this.executor = null;
+    }
+
+    /**
+     * バッチを並列に実行するインスタンスを生成する。
+     * @param store 同期先
+     * @param executor バッチを実行するエグゼキュータ
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public ResourceUploader(ResourceStore store, Executor executor) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null"); //$NON-NLS-1$
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null"); //$NON-NLS-1$
+        }
+        this.store = store;
+        this.executor = executor;
+    }
+
+    /**
+     * 一度のバッチで書き出すファイルの最大数を設定する。
+     * <p>
+     * 初期状態では{@link #DEFAULT_MAX_BATCH_COUNT}が設定されている。
+     * </p>
+     * @param count 一度に書き出すファイルの最大数
+     * @throws IllegalArgumentException 0以下の値が指定された場合
+     */
+    public void setMaxBatchCount(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be > 0"); //$NON-NLS-1$
+        }
+        this.maxBatchCount = count;
+    }
+
+    /**
+     * 一度のバッチで書き出す内容の合計の最大バイト数を設定する。
+     * <p>
+     * 単一のファイルがこの大きさを超える場合、そのファイルは単独のバッチで書き出される。
+     * 初期状態では{@link #DEFAULT_MAX_BATCH_BYTES}が設定されている。
+     * </p>
+     * @param bytes 一度に書き出す内容の合計の最大バイト数
+     * @throws IllegalArgumentException 0以下の値が指定された場合
+     */
+    public void setMaxBatchBytes(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("bytes must be > 0"); //$NON-NLS-1$
+        }
+        this.maxBatchBytes = bytes;
+    }
+
+    /**
+     * 同期元に存在しないファイルを、同期先から削除するかどうかを設定する。
+     * <p>
+     * 初期状態では削除する。
+     * </p>
+     * @param delete 削除する場合は{@code true}
+     */
+    public void setDeleteRemoved(boolean delete) {
+        this.deleteRemoved = delete;
+    }
+
+    /**
+     * 同期元のすべてのファイルを連結した{@link ClassBundle}を書き出すかどうかを設定する。
+     * <p>
+     * 有効にした場合、同期によってリビジョンが公開された後に、そのリビジョンに対応する連結した内容を書き出す。
+     * 同期元に変更がない場合でも、保存済みの連結した内容が現在のリビジョンに対応していなければ書き出す。
+     * 連結した内容は{@link BundleClassLoaderDelegate}で利用できる。
+     * </p>
+     * <p>
+     * 初期状態では書き出さない。
+     * </p>
+     * @param bundle 書き出す場合は{@code true}
+     */
+    public void setBundle(boolean bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * 指定のディレクトリまたはJARファイルの内容を同期する。
+     * <p>
+     * ディレクトリの場合、そのディレクトリからの相対パスを{@code /}で区切ったものをファイルのパスとする。
+     * JARファイル (ZIP形式のファイル) の場合、ディレクトリを除くエントリの名前をファイルのパスとする。
+     * いずれの場合も、{@code META-INF/}以下のファイルは同期の対象外となる。
+     * </p>
+     * @param source 同期元のディレクトリまたはJARファイル
+     * @return 同期の結果
+     * @throws IOException 同期元の読み出しに失敗した場合、または同期が中断された場合
+     * @throws IllegalArgumentException 引数に{@code null}が含まれる場合
+     */
+    public Result upload(File source) throws IOException {
+        if (source == null) {
+            throw new IllegalArgumentException("source must not be null"); //$NON-NLS-1$
+        }
+        Archive archive = open(source);
+        try {
+            return upload(archive);
+        }
+        finally {
+            archive.close();
+        }
+    }
+
+    private Result upload(final Archive archive) throws IOException {
+        assert archive != null;
+        ResourceManifest manifest = store.loadManifest();
+        if (manifest.isComplete() == false) {
+            manifest = store.rebuildManifest();
+        }
+        List<String> changed = new ArrayList<String>();
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        int unchanged = 0;
+        for (String path : archive.list()) {
+            byte[] contents = archive.read(path);
+            ResourceManifest.Entry entry = manifest.get(path);
+            if (entry != null
+                    && entry.getSize() == contents.length
+                    && entry.getHash().equals(ResourceManifest.computeHash(contents))) {
+                unchanged++;
+            }
+            else {
+                changed.add(path);
+                sizes.put(path, Long.valueOf(contents.length));
+            }
+        }
+        List<String> removed = new ArrayList<String>();
+        if (deleteRemoved) {
+            for (ResourceManifest.Entry entry : manifest.getEntries()) {
+                if (archive.contains(entry.getPath()) == false) {
+                    removed.add(entry.getPath());
+                }
+            }
+        }
+
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (final List<String> batch : split(changed, sizes)) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+                    for (String path : batch) {
+                        try {
+                            contents.put(path, archive.read(path));
+                        }
+                        catch (IOException e) {
+                            throw new UploadFailedException(e);
+                        }
+                    }
+                    store.put(contents);
+                }
+            });
+        }
+        for (int i = 0, n = removed.size(); i < n; i += maxBatchCount) {
+            final List<String> batch = removed.subList(i, Math.min(n, i + maxBatchCount));
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    store.delete(batch);
+                }
+            });
+        }
+        run(tasks);
+        // a previous run may have stopped between writing and publishing
+        boolean publish = tasks.isEmpty() == false || manifest.hasUnpublishedChanges();
+        String revision = publish ? store.newRevision() : null;
+        if (bundle) {
+            if (revision == null) {
+                revision = store.getRevision();
+            }
+            if (revision == null) {
+                revision = store.newRevision();
+                publish = true;
+            }
+            // the bundle must be ready before its revision is published
+            if (revision.equals(store.getBundleRevision()) == false) {
+                putBundle(archive, revision);
+            }
+        }
+        if (publish) {
+            store.publishRevision(revision);
+        }
+        return new Result(changed, removed, unchanged);
+    }
+
+    private void putBundle(Archive archive, String revision) throws IOException {
+        assert archive != null;
+        assert revision != null;
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        for (String path : archive.list()) {
+            contents.put(path, archive.read(path));
+        }
+        store.putBundle(revision, contents);
+    }
+
+    private List<List<String>> split(List<String> paths, Map<String, Long> sizes) {
+        assert paths != null;
+        assert sizes != null;
+        List<List<String>> results = new ArrayList<List<String>>();
+        List<String> current = new ArrayList<String>();
+        long currentBytes = 0;
+        for (String path : paths) {
+            long size = sizes.get(path).longValue();
+            if (current.isEmpty() == false
+                    && (current.size() >= maxBatchCount || currentBytes + size > maxBatchBytes)) {
+                results.add(current);
+                current = new ArrayList<String>();
+                currentBytes = 0;
+            }
+            current.add(path);
+            currentBytes += size;
+        }
+        if (current.isEmpty() == false) {
+            results.add(current);
+        }
+        return results;
+    }
+
+    private void run(List<Runnable> tasks) throws IOException {
+        assert tasks != null;
+        try {
+            if (executor == null) {
+                for (Runnable task : tasks) {
+                    task.run();
+                }
+            }
+            else {
+                ApiEnvironments.runAll(executor, tasks);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("upload was interrupted"); //$NON-NLS-1$
+                }
+            }
+        }
+        catch (UploadFailedException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Archive open(File source) throws IOException {
+        assert source != null;
+        if (source.isDirectory()) {
+            return new DirectoryArchive(source);
+        }
+        if (source.isFile()) {
+            return new ZipArchive(new ZipFile(source));
+        }
+        throw new FileNotFoundException(source.getPath());
+    }
+
+    private static boolean isTarget(String path) {
+        assert path != null;
+        return path.startsWith(JAR_MANIFEST_DIRECTORY) == false;
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        assert input != null;
+        try {
+            ByteArrayOutputStream results = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            while (true) {
+                int read = input.read(buf);
+                if (read < 0) {
+                    break;
+                }
+                results.write(buf, 0, read);
+            }
+            return results.toByteArray();
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * 同期の結果。
+     */
+    public static class Result {
+
+        private final List<String> uploaded;
+
+        private final List<String> deleted;
+
+        private final int unchanged;
+
+        Result(List<String> uploaded, List<String> deleted, int unchanged) {
+            assert uploaded != null;
+            assert deleted != null;
+            this.uploaded = Collections.unmodifiableList(uploaded);
+            this.deleted = Collections.unmodifiableList(deleted);
+            this.unchanged = unchanged;
+        }
+
+        /**
+         * 追加または変更されたために書き出したファイルのパス一覧を返す。
+         * @return 書き出したファイルのパス一覧
+         */
+        public List<String> getUploaded() {
+            return uploaded;
+        }
+
+        /**
+         * 同期元に存在しないために削除したファイルのパス一覧を返す。
+         * @return 削除したファイルのパス一覧
+         */
+        public List<String> getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * 変更がなかったために書き出さなかったファイルの数を返す。
+         * @return 書き出さなかったファイルの数
+         */
+        public int getUnchangedCount() {
+            return unchanged;
+        }
+
+        @Override
+        public String toString() {
+            return MessageFormat.format(
+                "Result(uploaded={0}, deleted={1}, unchanged={2})", //$NON-NLS-1$
+                uploaded.size(),
+                deleted.size(),
+                unchanged);
+        }
+    }
+
+    /**
+     * 同期元のファイル群。
+     */
+    private abstract static class Archive implements Closeable {
+
+        Archive() {
+            return;
+        }
+
+        abstract List<String> list();
+
+        abstract boolean contains(String path);
+
+        abstract byte[] read(String path) throws IOException;
+    }
+
+    /**
+     * ディレクトリ以下のファイル群。
+     */
+    private static class DirectoryArchive extends Archive {
+
+        private final Map<String, File> files = new LinkedHashMap<String, File>();
+
+        DirectoryArchive(File root) {
+            assert root != null;
+            collect(root, ""); //$NON-NLS-1$
+        }
+
+        private void collect(File directory, String prefix) {
+            assert directory != null;
+            assert prefix != null;
+            File[] children = directory.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File child : children) {
+                String path = prefix + child.getName();
+                if (child.isDirectory()) {
+                    collect(child, path + '/');
+                }
+                else if (isTarget(path)) {
+                    files.put(path, child);
+                }
+            }
+        }
+
+        @Override
+        List<String> list() {
+            return new ArrayList<String>(files.keySet());
+        }
+
+        @Override
+        boolean contains(String path) {
+            return files.containsKey(path);
+        }
+
+        @Override
+        byte[] read(String path) throws IOException {
+            File file = files.get(path);
+            if (file == null) {
+                throw new FileNotFoundException(path);
+            }
+            return readFully(new FileInputStream(file));
+        }
+
+        @Override
+        public void close() {
+            return;
+        }
+    }
+
+    /**
+     * ZIP形式のファイルに含まれるファイル群。
+     */
+    private static class ZipArchive extends Archive {
+
+        private final ZipFile zip;
+
+        private final Map<String, ZipEntry> entries = new LinkedHashMap<String, ZipEntry>();
+
+        ZipArchive(ZipFile zip) {
+            assert zip != null;
+            this.zip = zip;
+            Enumeration<? extends ZipEntry> iter = zip.entries();
+            while (iter.hasMoreElements()) {
+                ZipEntry entry = iter.nextElement();
+                if (entry.isDirectory() == false && isTarget(entry.getName())) {
+                    entries.put(entry.getName(), entry);
+                }
+            }
+        }
+
+        @Override
+        List<String> list() {
+            return new ArrayList<String>(entries.keySet());
+        }
+
+        @Override
+        boolean contains(String path) {
+            return entries.containsKey(path);
+        }
+
+        @Override
+        byte[] read(String path) throws IOException {
+            ZipEntry entry = entries.get(path);
+            if (entry == null) {
+                throw new FileNotFoundException(path);
+            }
+            synchronized (zip) {
+                return readFully(zip.getInputStream(entry));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.close();
+        }
+    }
+
+    /**
+     * 並列に実行したバッチの中で発生した入出力例外を運搬する。
+     */
+    private static class UploadFailedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        UploadFailedException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * {@link BundleClassLoaderDelegate}のテスト。
+ */
+public class BundleClassLoaderDelegateTest {
+
+    LocalServiceTestHelper testing;
+    {
+        LocalDatastoreServiceTestConfig datastore = new LocalDatastoreServiceTestConfig();
+        datastore.setBackingStoreLocation("target/testing/datastore");
+        testing = new LocalServiceTestHelper(datastore);
+        testing.setEnvAppId(getClass().getSimpleName());
+    }
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        testing.setUp();
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        testing.tearDown();
+    }
+
+    /**
+     * Test method for {@link BundleClassLoaderDelegate#findClass(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 連結した内容からクラスとリソースを発見できる() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "T");
+        store.setFragmentSize(100);
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < 5; i++) {
+            String name = "com.example.Hello" + i;
+            contents.put(InterceptClassLoader.toClassFilePath(name), Util.createClass(name, "Hello" + i));
+        }
+        contents.put("com/example/hello.txt", "Hello, world!".getBytes());
+        store.putBundle("r1", contents);
+        assertThat(store.getBundleRevision(), is("r1"));
+
+        BundleClassLoaderDelegate delegate = new BundleClassLoaderDelegate(store, "r1");
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(delegate));
+        loader.prefetch(Collections.singletonList("com/example/Hello0.class"));
+        assertThat(delegate.getBundle().size(), is(6));
+
+        datastore.delete(KeyFactory.createKey("T.Bundle", "bundle"));
+        assertThat(store.loadBundle(), is(nullValue()));
+        for (int i = 0; i < 5; i++) {
+            assertThat(
+                "読み出した後はデータストアを参照しない",
+                Util.toString(loader, "com.example.Hello" + i),
+                is("Hello" + i));
+        }
+        assertThat(
+            Util.toString(loader.getResourceAsStream("com/example/hello.txt")),
+            is("Hello, world!"));
+        URL url = loader.getResource("com/example/hello.txt");
+        assertThat(url, is(notNullValue()));
+        assertThat(Util.toString(url.openStream()), is("Hello, world!"));
+        assertThat(delegate.isKnownMissing("com/example/Missing.class"), is(true));
+        assertThat(delegate.listResources("com/example/hello").size(), is(1));
+        try {
+            loader.loadClass("com.example.Missing");
+            fail("含まれないクラスは発見できない");
+        }
+        catch (ClassNotFoundException e) {
+            // ok.
+        }
+    }
+
+    /**
+     * Test method for {@link BundleClassLoaderDelegate#getBundle()}.
+     */
+    @Test
+    public void リビジョンが異なる内容は利用しない() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "T");
+        store.putBundle("r1", Collections.singletonMap("com/example/hello.txt", "r1".getBytes()));
+
+        BundleClassLoaderDelegate stale = new BundleClassLoaderDelegate(store, "r2");
+        assertThat(stale.getBundle(), is(nullValue()));
+        assertThat(stale.findResourceAsStream("com/example/hello.txt"), is(nullValue()));
+        assertThat(stale.isKnownMissing("com/example/hello.txt"), is(true));
+
+        store.putBundle("r2", Collections.singletonMap("com/example/hello.txt", "r2".getBytes()));
+        BundleClassLoaderDelegate current = new BundleClassLoaderDelegate(store, "r2");
+        assertThat(Util.toString(current.findResourceAsStream("com/example/hello.txt")), is("r2"));
+
+        int fragments = 0;
+        Query query = new Query("T.Bundle.Fragment");
+        query.setKeysOnly();
+        for (Entity entity : datastore.prepare(query).asIterable()) {
+            assertThat(entity, is(notNullValue()));
+            fragments++;
+        }
+        assertThat("置き換えられた断片は削除される", fragments, is(1));
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * {@link CachingClassLoaderDelegate}のテスト。
+ */
+public class CachingClassLoaderDelegateTest {
+
+    /**
+     * Test method for {@link CachingClassLoaderDelegate#findClass(String)}.
+     */
+    @Test
+    public void findClass_世代をまたいでキャッシュを利用する() {
+        CountingDelegate delegate = new CountingDelegate();
+        delegate.define("com.example.Hello");
+        CachingClassLoaderDelegate cache = new CachingClassLoaderDelegate(delegate, 1024 * 1024);
+
+        InterceptClassLoader first = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(cache));
+        assertThat(Util.toString(first, "com.example.Hello"), is("Hello"));
+        assertThat(delegate.count, is(1));
+        assertThat(cache.getMissCount(), is(1L));
+        assertThat(cache.getHitCount(), is(0L));
+
+        InterceptClassLoader second = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(cache));
+        assertThat(Util.toString(second, "com.example.Hello"), is("Hello"));
+        assertThat(
+            "次の世代では委譲先に問い合わせない",
+            delegate.count,
+            is(1));
+        assertThat(cache.getMissCount(), is(1L));
+        assertThat(cache.getHitCount(), is(1L));
+
+        assertThat(
+            "存在しないクラスは見つからない",
+            Util.toString(second, "com.example.Missing"),
+            is(nullValue()));
+    }
+
+    /**
+     * Test method for {@link CachingClassLoaderDelegate#findResourceAsStream(String)}.
+     */
+    @Test
+    public void findResourceAsStream_キャッシュを利用する() {
+        CountingDelegate delegate = new CountingDelegate();
+        delegate.add("com/example/a.txt", "hello".getBytes());
+        CachingClassLoaderDelegate cache = new CachingClassLoaderDelegate(delegate, 1024 * 1024);
+
+        assertThat(Util.toString(cache.findResourceAsStream("com/example/a.txt")), is("hello"));
+        assertThat(Util.toString(cache.findResourceAsStream("com/example/a.txt")), is("hello"));
+        assertThat(delegate.count, is(1));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.findResourceAsStream("com/example/missing.txt"), is(nullValue()));
+
+        cache.clear();
+        assertThat(Util.toString(cache.findResourceAsStream("com/example/a.txt")), is("hello"));
+        assertThat(
+            "破棄した後は委譲先に問い合わせる",
+            delegate.count,
+            is(3));
+    }
+
+    /**
+     * Test method for {@link CachingClassLoaderDelegate#findAllResources(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void findAllResources_キャッシュを利用する() throws Exception {
+        MockClassLoaderDelegate delegate = new MockClassLoaderDelegate();
+        delegate.add("com/example/a.txt", "http://example.com/1");
+        delegate.add("com/example/a.txt", "http://example.com/2");
+        CachingClassLoaderDelegate cache = new CachingClassLoaderDelegate(delegate, 1024 * 1024);
+
+        assertThat(
+            list(cache.findAllResources("com/example/a.txt")),
+            is(Arrays.asList(new URL("http://example.com/1"), new URL("http://example.com/2"))));
+        delegate.add("com/example/a.txt", "http://example.com/3");
+        assertThat(
+            "2回目はキャッシュから返す",
+            list(cache.findAllResources("com/example/a.txt")).size(),
+            is(2));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(
+            cache.findResource("com/example/a.txt"),
+            is(new URL("http://example.com/1")));
+    }
+
+    /**
+     * 内容を保持するURLは、その内容のバイト数も重みに含める。
+     */
+    @Test
+    public void findAllResources_URLが保持する内容を重みに含める() {
+        MockClassLoaderDelegate delegate = new MockClassLoaderDelegate();
+        delegate.add("a.txt", ResourceURLStreamHandler.createUrl("T", "a.txt", new byte[10000]));
+        CachingClassLoaderDelegate cache = new CachingClassLoaderDelegate(delegate, 1024 * 1024);
+
+        cache.findAllResources("a.txt");
+        assertThat(cache.getWeight(), is(greaterThan(10000L)));
+    }
+
+    /**
+     * キャッシュの容量を超えた場合、古いものから破棄される。
+     */
+    @Test
+    public void 容量を超えると古いものから破棄される() {
+        CountingDelegate delegate = new CountingDelegate();
+        delegate.add("a", new byte[400]);
+        delegate.add("b", new byte[400]);
+        delegate.add("c", new byte[400]);
+        delegate.add("huge", new byte[5000]);
+        CachingClassLoaderDelegate cache = new CachingClassLoaderDelegate(delegate, 8000);
+
+        drain(cache.findResourceAsStream("a"));
+        drain(cache.findResourceAsStream("b"));
+        drain(cache.findResourceAsStream("a"));
+        assertThat(delegate.count, is(2));
+
+        drain(cache.findResourceAsStream("c"));
+        assertThat(cache.getWeight(), is(lessThanOrEqualTo(8000L)));
+        for (int i = 0; i < 20; i++) {
+            delegate.add("x" + i, new byte[400]);
+            drain(cache.findResourceAsStream("x" + i));
+        }
+        assertThat(cache.getWeight(), is(lessThanOrEqualTo(8000L)));
+
+        int before = delegate.count;
+        assertThat(
+            "容量を超える内容も取得できる",
+            drain(cache.findResourceAsStream("huge")),
+            is(5000));
+        drain(cache.findResourceAsStream("huge"));
+        assertThat(
+            "大きすぎる内容はキャッシュしない",
+            delegate.count,
+            is(before + 2));
+    }
+
+    /**
+     * キャッシュした内容は呼び出し元から変更できない。
+     */
+    @Test
+    public void findClass_キャッシュした内容を公開しない() {
+        CountingDelegate delegate = new CountingDelegate();
+        delegate.define("com.example.Hello");
+        CachingClassLoaderDelegate cache = new CachingClassLoaderDelegate(delegate, 1024 * 1024);
+
+        byte[] first = cache.findClass("com.example.Hello");
+        byte[] original = first.clone();
+        first[0] = (byte) ~first[0];
+        byte[] second = cache.findClass("com.example.Hello");
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(Arrays.equals(second, original), is(true));
+        second[0] = (byte) ~second[0];
+        assertThat(Arrays.equals(cache.findClass("com.example.Hello"), original), is(true));
+        assertThat(cache.findClassBuffer("com.example.Hello").isReadOnly(), is(true));
+    }
+
+    /**
+     * 共有したキャッシュは、委譲先を差し替えても内容を再利用する。
+     */
+    @Test
+    public void withDelegate_キャッシュを共有する() {
+        CountingDelegate delegate = new CountingDelegate();
+        delegate.add("a.txt", "a".getBytes());
+        CachingClassLoaderDelegate cache = new CachingClassLoaderDelegate(delegate, 1024 * 1024);
+        drain(cache.findResourceAsStream("a.txt"));
+
+        CountingDelegate other = new CountingDelegate();
+        other.add("a.txt", "a".getBytes());
+        other.add("b.txt", "b".getBytes());
+        CachingClassLoaderDelegate shared = cache.withDelegate(other);
+        assertThat(Util.toString(shared.findResourceAsStream("a.txt")), is("a"));
+        assertThat(Util.toString(shared.findResourceAsStream("b.txt")), is("b"));
+        assertThat(other.count, is(1));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(2L));
+        assertThat(cache.getWeight(), is(shared.getWeight()));
+    }
+
+    private static int drain(InputStream stream) {
+        assertThat(stream, is(notNullValue()));
+        try {
+            int size = 0;
+            try {
+                while (stream.read() >= 0) {
+                    size++;
+                }
+            }
+            finally {
+                stream.close();
+            }
+            return size;
+        }
+        catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static List<URL> list(Iterable<URL> urls) {
+        List<URL> results = new ArrayList<URL>();
+        for (URL url : urls) {
+            results.add(url);
+        }
+        return results;
+    }
+
+    /**
+     * 内容を取得した回数を数える。
+     */
+    static class CountingDelegate extends MockClassLoaderDelegate {
+
+        int count;
+
+        @Override
+        public InputStream findResourceAsStream(String path) {
+            InputStream found = super.findResourceAsStream(path);
+            if (found != null) {
+                count++;
+            }
+            return found;
+        }
+    }
+}
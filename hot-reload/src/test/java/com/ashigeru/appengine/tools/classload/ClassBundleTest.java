@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * {@link ClassBundle}のテスト。
+ */
+public class ClassBundleTest {
+
+    /**
+     * Test method for {@link ClassBundle#decode(String, byte[])}.
+     */
+    @Test
+    public void 連結した内容を復元する() {
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        contents.put("com/example/B.class", "B".getBytes());
+        contents.put("com/example/A.class", "AA".getBytes());
+        contents.put("com/example/a/empty.txt", new byte[0]);
+        contents.put("org/example/C.class", "CCC".getBytes());
+
+        ClassBundle bundle = ClassBundle.decode("r1", ClassBundle.encode(contents));
+        assertThat(bundle.getRevision(), is("r1"));
+        assertThat(bundle.size(), is(4));
+        assertThat(bundle.getContentSize(), is(6));
+        assertThat(toString(bundle.get("com/example/A.class")), is("AA"));
+        assertThat(toString(bundle.get("com/example/B.class")), is("B"));
+        assertThat(toString(bundle.get("org/example/C.class")), is("CCC"));
+        assertThat(bundle.get("com/example/a/empty.txt").remaining(), is(0));
+        assertThat(bundle.get("com/example/Missing.class"), is(nullValue()));
+        assertThat(bundle.contains("com/example/B.class"), is(true));
+        assertThat(bundle.contains("com/example/Missing.class"), is(false));
+        assertThat(
+            "パスの昇順に並ぶ",
+            bundle.list("com/example/"),
+            is(Arrays.asList("com/example/A.class", "com/example/B.class", "com/example/a/empty.txt")));
+        assertThat(bundle.list("net/").size(), is(0));
+    }
+
+    /**
+     * Test method for {@link ClassBundle#get(String)}.
+     */
+    @Test
+    public void 内容は読み出し専用() {
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        contents.put("A.class", "A".getBytes());
+        ClassBundle bundle = ClassBundle.decode(null, ClassBundle.encode(contents));
+        ByteBuffer buffer = bundle.get("A.class");
+        assertThat(buffer.isReadOnly(), is(true));
+        buffer.get();
+        assertThat("取得したバッファの位置は共有しない", bundle.get("A.class").remaining(), is(1));
+    }
+
+    /**
+     * Test method for {@link ClassBundle#decode(String, byte[])}.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void 形式が正しくない() {
+        ClassBundle.decode(null, "broken bundle".getBytes());
+    }
+
+    private static String toString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * {@link ClassFileReferences}のテスト。
+ */
+public class ClassFileReferencesTest {
+
+    /**
+     * Test method for {@link ClassFileReferences#getReferencedPaths(byte[])}.
+     */
+    @Test
+    public void 参照するクラスを取り出す() {
+        Set<String> paths = ClassFileReferences.getReferencedPaths(
+            Util.createReferringClass("com.example.User", "com.example.Hello"));
+        assertThat(paths.contains("com/example/Hello.class"), is(true));
+        assertThat(paths.contains("java/lang/Object.class"), is(true));
+        assertThat(
+            "自身は含まない",
+            paths.contains("com/example/User.class"),
+            is(false));
+    }
+
+    /**
+     * Test method for {@link ClassFileReferences#getReferencedPaths(byte[])}.
+     */
+    @Test
+    public void 親クラスを取り出す() {
+        Set<String> paths = ClassFileReferences.getReferencedPaths(Util.createClass("com.example.Hello"));
+        assertThat(paths.contains("com/ashigeru/appengine/tools/classload/MockMyName.class"), is(true));
+    }
+
+    /**
+     * Test method for {@link ClassFileReferences#getReferencedPaths(byte[])}.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void クラスファイルでない() {
+        ClassFileReferences.getReferencedPaths(new byte[] { 1, 2, 3, 4, 5 });
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * {@link ClassLoadMetrics}のテスト。
+ */
+public class ClassLoadMetricsTest {
+
+    /**
+     * Test method for {@link InterceptClassLoader#setListener(ClassLoadListener)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 委譲先ごとに集計する() throws Exception {
+        MockClassLoaderDelegate first = new MockClassLoaderDelegate();
+        MockClassLoaderDelegate second = new MockClassLoaderDelegate();
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/.*"),
+            Arrays.asList(first, second));
+        second.define("com.example.Hello");
+        ClassLoadMetrics metrics = new ClassLoadMetrics();
+        loader.setListener(metrics);
+
+        loader.loadClass("com.example.Hello");
+        loader.loadClass(MockMyName.class.getName());
+        assertThat(Util.toString(loader, "com.example.Missing"), is(nullValue()));
+
+        String firstName = first.toString();
+        String secondName = second.toString();
+        assertThat(metrics.getDelegateNames().length, is(2));
+        assertThat(metrics.getHitCount(firstName), is(0L));
+        assertThat(metrics.getMissCount(firstName), is(3L));
+        assertThat(metrics.getHitCount(secondName), is(1L));
+        assertThat(metrics.getMissCount(secondName), is(2L));
+        assertThat(metrics.getBytesTransferred(secondName), greaterThan(0L));
+        assertThat(metrics.getLatency(secondName).getCount(), is(3L));
+
+        assertThat(
+            "委譲先にないクラスは親から読み出す",
+            metrics.getParentHitCount(),
+            is(1L));
+        assertThat(metrics.getParentMissCount(), is(1L));
+        assertThat(metrics.getParentBytesTransferred(), greaterThan(0L));
+        assertThat(metrics.getLockCount(), greaterThanOrEqualTo(3L));
+        assertThat(metrics.getSummary().length, is(4));
+
+        metrics.reset();
+        assertThat(metrics.getDelegateNames().length, is(0));
+        assertThat(metrics.getParentHitCount(), is(0L));
+        assertThat(metrics.getLockCount(), is(0L));
+    }
+
+    /**
+     * Test method for {@link ClassLoadMetrics#register(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void MBeanとして公開する() throws Exception {
+        ClassLoadMetrics metrics = new ClassLoadMetrics();
+        metrics.parentLookup("com/example/Hello.class", true, 100L, 10L);
+        ObjectName name = metrics.register(getClass().getSimpleName());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertThat(server.getAttribute(name, "ParentHitCount"), is((Object) 1L));
+            assertThat(server.getAttribute(name, "ParentBytesTransferred"), is((Object) 100L));
+        }
+        finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * {@link ClassLoadProfile}のテスト。
+ */
+public class ClassLoadProfileTest {
+
+    LocalServiceTestHelper testing;
+    {
+        LocalDatastoreServiceTestConfig datastore = new LocalDatastoreServiceTestConfig();
+        datastore.setBackingStoreLocation("target/testing/datastore");
+        testing = new LocalServiceTestHelper(datastore);
+        testing.setEnvAppId(getClass().getSimpleName());
+    }
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        testing.setUp();
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        testing.tearDown();
+    }
+
+    /**
+     * Test method for {@link ClassLoadProfile#merge(java.util.List, int)}.
+     */
+    @Test
+    public void 記録を統合する() {
+        ClassLoadProfile profile = ClassLoadProfile.empty()
+            .merge(Arrays.asList("a", "b", "c"), 10);
+        assertThat(profile.getPaths(), is(Arrays.asList("a", "b", "c")));
+        assertThat(profile.getWeight("a"), is(ClassLoadProfile.MAX_WEIGHT));
+
+        ClassLoadProfile merged = profile.merge(Arrays.asList("d", "b"), 10);
+        assertThat(
+            "記録されたパスが先、残りはその後に元の順",
+            merged.getPaths(),
+            is(Arrays.asList("d", "b", "a", "c")));
+        assertThat(merged.getWeight("b"), is(ClassLoadProfile.MAX_WEIGHT));
+        assertThat(merged.getWeight("a"), is(ClassLoadProfile.MAX_WEIGHT - 1));
+        assertThat(merged.getWeight("x"), is(0));
+    }
+
+    /**
+     * Test method for {@link ClassLoadProfile#merge(java.util.List, int)}.
+     */
+    @Test
+    public void 記録されないパスは取り除かれる() {
+        ClassLoadProfile profile = ClassLoadProfile.empty()
+            .merge(Arrays.asList("a", "b"), 10);
+        for (int i = 1; i < ClassLoadProfile.MAX_WEIGHT; i++) {
+            profile = profile.merge(Collections.singletonList("a"), 10);
+            assertThat(profile.getWeight("b"), is(ClassLoadProfile.MAX_WEIGHT - i));
+        }
+        profile = profile.merge(Collections.singletonList("a"), 10);
+        assertThat(profile.getPaths(), is(Arrays.asList("a")));
+    }
+
+    /**
+     * Test method for {@link ClassLoadProfile#merge(java.util.List, int)}.
+     */
+    @Test
+    public void 最大数を超えるパスは含めない() {
+        ClassLoadProfile profile = ClassLoadProfile.empty()
+            .merge(Arrays.asList("a", "b"), 3)
+            .merge(Arrays.asList("c", "d"), 3);
+        assertThat(profile.getPaths(), is(Arrays.asList("c", "d", "a")));
+
+        char[] longName = new char[501];
+        Arrays.fill(longName, 'x');
+        assertThat(
+            "長すぎるパスは含めない",
+            ClassLoadProfile.empty().merge(Arrays.asList(new String(longName)), 3).size(),
+            is(0));
+    }
+
+    /**
+     * Test method for {@link ResourceStore#mergeProfile(java.util.List)}.
+     */
+    @Test
+    public void データストアに保存する() {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        assertThat(store.loadProfile().size(), is(0));
+
+        store.mergeProfile(Arrays.asList("com/example/A.class", "com/example/B.class"));
+        store.mergeProfile(Arrays.asList("com/example/C.class", "com/example/A.class"));
+
+        ClassLoadProfile loaded = store.loadProfile();
+        assertThat(loaded.getPaths(), is(Arrays.asList(
+            "com/example/C.class",
+            "com/example/A.class",
+            "com/example/B.class")));
+        assertThat(loaded.getWeight("com/example/B.class"), is(ClassLoadProfile.MAX_WEIGHT - 1));
+        assertThat(
+            "一覧はファイルの一覧に含まれない",
+            store.list("").size(),
+            is(0));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * {@link DatastoreBatch}のテスト。
+ */
+public class DatastoreBatchTest {
+
+    LocalServiceTestHelper testing;
+    {
+        LocalDatastoreServiceTestConfig datastore = new LocalDatastoreServiceTestConfig();
+        datastore.setBackingStoreLocation("target/testing/datastore");
+        testing = new LocalServiceTestHelper(datastore);
+        testing.setEnvAppId(getClass().getSimpleName());
+    }
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        testing.setUp();
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        testing.tearDown();
+    }
+
+    /**
+     * Test method for {@link DatastoreBatch#put(List)}.
+     */
+    @Test
+    public void 数と大きさで分割して書き出せる() {
+        FlakyService flaky = new FlakyService(0);
+        DatastoreBatch batch = new DatastoreBatch(flaky.create(), 3, 300);
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < 10; i++) {
+            entities.add(entity("e" + i, 10));
+        }
+        entities.add(entity("large", 1000));
+        batch.put(entities);
+        assertThat(
+            "3件ずつ4回と、大きなエンティティのみで1回",
+            flaky.calls.get(),
+            is(5));
+        assertThat(count(), is(11));
+    }
+
+    /**
+     * Test method for {@link DatastoreBatch#put(List)}.
+     */
+    @Test
+    public void 失敗したバッチのみを再実行する() {
+        FlakyService flaky = new FlakyService(1);
+        DatastoreBatch batch = new DatastoreBatch(flaky.create(), 2, Integer.MAX_VALUE);
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < 6; i++) {
+            entities.add(entity("e" + i, 10));
+        }
+        entities.add(entity("flaky", 10));
+        batch.put(entities);
+        assertThat(
+            "4回と、失敗した1回の再実行",
+            flaky.calls.get(),
+            is(5));
+        assertThat(count(), is(7));
+    }
+
+    /**
+     * Test method for {@link DatastoreBatch#put(List)}.
+     */
+    @Test
+    public void 失敗し続けた場合は例外をスローする() {
+        FlakyService flaky = new FlakyService(DatastoreBatch.MAX_ATTEMPTS);
+        DatastoreBatch batch = new DatastoreBatch(flaky.create(), 2, Integer.MAX_VALUE);
+        List<Entity> entities = new ArrayList<Entity>();
+        entities.add(entity("e0", 10));
+        entities.add(entity("e1", 10));
+        entities.add(entity("flaky", 10));
+        try {
+            batch.put(entities);
+            fail();
+        }
+        catch (DatastoreTimeoutException e) {
+            // ok.
+        }
+        assertThat(
+            "失敗していないバッチは書き出される",
+            count(),
+            is(2));
+    }
+
+    /**
+     * Test method for {@link DatastoreBatch#get(java.util.Collection)}.
+     */
+    @Test
+    public void 並列に取得して結果をまとめる() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        List<Key> keys = new ArrayList<Key>();
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < 20; i++) {
+            Entity entity = entity("e" + i, 10);
+            keys.add(entity.getKey());
+            if (i % 2 == 0) {
+                entities.add(entity);
+            }
+        }
+        datastore.put(entities);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            DatastoreBatch batch = new DatastoreBatch(datastore, 3, Integer.MAX_VALUE);
+            batch.setExecutor(executor);
+            Map<Key, Entity> results = batch.get(keys);
+            assertThat(results.size(), is(10));
+            assertThat(results.containsKey(KeyFactory.createKey("Testing", "e0")), is(true));
+            assertThat(results.containsKey(KeyFactory.createKey("Testing", "e1")), is(false));
+
+            batch.delete(keys);
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertThat(count(), is(0));
+    }
+
+    private static Entity entity(String name, int size) {
+        Entity entity = new Entity("Testing", name);
+        entity.setUnindexedProperty("c", new Blob(new byte[size]));
+        return entity;
+    }
+
+    private static int count() {
+        return DatastoreServiceFactory.getDatastoreService()
+            .prepare(new Query("Testing"))
+            .countEntities();
+    }
+
+    /**
+     * {@code flaky}という名前のエンティティを含む書き出しを、指定の回数だけ失敗させる。
+     */
+    private static class FlakyService implements InvocationHandler {
+
+        final DatastoreService delegate = DatastoreServiceFactory.getDatastoreService();
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final AtomicInteger failures;
+
+        FlakyService(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        DatastoreService create() {
+            return (DatastoreService) Proxy.newProxyInstance(
+                DatastoreService.class.getClassLoader(),
+                new Class<?>[] { DatastoreService.class },
+                this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("put")) {
+                calls.incrementAndGet();
+                for (Object arg : args) {
+                    if (arg instanceof Iterable<?> && containsFlaky((Iterable<?>) arg)
+                            && failures.getAndDecrement() > 0) {
+                        throw new DatastoreTimeoutException("testing");
+                    }
+                }
+            }
+            try {
+                return method.invoke(delegate, args);
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private boolean containsFlaky(Iterable<?> entities) {
+            for (Object entity : entities) {
+                if (entity instanceof Entity
+                        && "flaky".equals(((Entity) entity).getKey().getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
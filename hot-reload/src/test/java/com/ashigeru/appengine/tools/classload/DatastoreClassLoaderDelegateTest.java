@@ -18,13 +18,22 @@ package com.ashigeru.appengine.tools.classload;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
@@ -119,4 +128,222 @@ public class DatastoreClassLoaderDelegateTest {
             Util.toString(loader.getResourceAsStream("com/example/missing.txt")),
             is(nullValue()));
     }
+
+    /**
+     * Test method for {@link DatastoreClassLoaderDelegate#prefetch(java.util.Collection)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 先読みしたクラスはデータストアを参照せずにロードできる() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "T");
+        store.setNegativeCacheCapacity(100);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            DatastoreClassLoaderDelegate delegate = new DatastoreClassLoaderDelegate(store, executor);
+            delegate.setPrefetchChunkSize(2);
+            InterceptClassLoader loader = new InterceptClassLoader(
+                getClass().getClassLoader(),
+                Pattern.compile("com/example/.*"),
+                Arrays.asList(delegate));
+
+            List<String> paths = new ArrayList<String>();
+            for (int i = 0; i < 5; i++) {
+                String name = "com.example.Hello" + i;
+                store.put(
+                    InterceptClassLoader.toClassFilePath(name),
+                    Util.createClass(name, "Hello" + i));
+                paths.add(InterceptClassLoader.toClassFilePath(name));
+            }
+            store.put("com/example/hello.txt", "Hello, world!".getBytes());
+            store.put("org/example/Other.class", new byte[1]);
+            paths.add("com/example/Missing.class");
+            paths.add("org/example/Other.class");
+
+            loader.prefetch(paths);
+            assertThat(
+                "対象外のパスは先読みしない",
+                delegate.getPrefetchedCount(),
+                is(5));
+            assertThat(
+                "存在しないパスは記憶される",
+                store.isKnownMissing("com/example/Missing.class"),
+                is(true));
+
+            for (String path : paths) {
+                datastore.delete(store.createKey(path));
+            }
+            for (int i = 0; i < 5; i++) {
+                assertThat(
+                    Util.toString(loader, "com.example.Hello" + i),
+                    is("Hello" + i));
+            }
+            assertThat(delegate.getPrefetchedCount(), is(0));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test method for {@link DatastoreClassLoaderDelegate#prefetchAsync(java.util.Collection)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 非同期に先読みできる() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            store.put("com/example/" + i + ".txt", String.valueOf(i).getBytes());
+            paths.add("com/example/" + i + ".txt");
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DatastoreClassLoaderDelegate delegate = new DatastoreClassLoaderDelegate(store, executor);
+            delegate.setPrefetchChunkSize(2);
+            Future<Void> future = delegate.prefetchAsync(paths);
+            assertThat(
+                "エグゼキュータ上の先読みが同じエグゼキュータを待たない",
+                future.get(10, TimeUnit.SECONDS),
+                is(nullValue()));
+            assertThat(delegate.getPrefetchedCount(), is(5));
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        DatastoreClassLoaderDelegate sync = new DatastoreClassLoaderDelegate(store);
+        Future<Void> future = sync.prefetchAsync(paths);
+        assertThat("エグゼキュータがなければ完了済み", future.isDone(), is(true));
+        assertThat(sync.getPrefetchedCount(), is(5));
+    }
+
+    /**
+     * Test method for {@link DatastoreClassLoaderDelegate#listResources(String)}.
+     */
+    @Test
+    public void 接頭辞を指定して先読みできる() {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        DatastoreClassLoaderDelegate delegate = new DatastoreClassLoaderDelegate(store);
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(delegate));
+
+        store.put("com/example/a.txt", "a".getBytes());
+        store.put("com/example/sub/b.txt", "b".getBytes());
+        store.put("com/other/c.txt", "c".getBytes());
+
+        loader.prefetch("com/");
+        assertThat(delegate.getPrefetchedCount(), is(2));
+        assertThat(
+            Util.toString(loader.getResourceAsStream("com/example/sub/b.txt")),
+            is("b"));
+        assertThat(delegate.getPrefetchedCount(), is(1));
+
+        delegate.discardPrefetched();
+        assertThat(delegate.getPrefetchedCount(), is(0));
+        assertThat(
+            "破棄した後はデータストアから読み出す",
+            Util.toString(loader.getResourceAsStream("com/example/a.txt")),
+            is("a"));
+    }
+
+    /**
+     * Test method for {@link DatastoreClassLoaderDelegate#setMaxPrefetchBytes(long)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 先読みした内容は上限まで保持する() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        DatastoreClassLoaderDelegate delegate = new DatastoreClassLoaderDelegate(store);
+        delegate.setMaxPrefetchBytes(10);
+
+        store.put("a.txt", "aaaa".getBytes());
+        store.put("b.txt", "bbbb".getBytes());
+        store.put("c.txt", "cccc".getBytes());
+        delegate.prefetch(Arrays.asList("a.txt", "b.txt", "c.txt"));
+        assertThat(delegate.getPrefetchedCount(), is(2));
+        assertThat(delegate.getPrefetchedBytes(), is(8L));
+
+        for (String path : Arrays.asList("a.txt", "b.txt", "c.txt")) {
+            URL url = delegate.findAllResources(path).iterator().next();
+            assertThat(Util.toString(url.openStream()).length(), is(4));
+        }
+        assertThat("URLに引き渡した内容は保持しない", delegate.getPrefetchedCount(), is(0));
+        assertThat(delegate.getPrefetchedBytes(), is(0L));
+    }
+
+    /**
+     * Test method for {@link DatastoreClassLoaderDelegate#findAllResources(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 登録してあるリソースのURLを取得できる() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "T");
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(new DatastoreClassLoaderDelegate(store)));
+
+        store.put("com/example/hello.txt", "Hello, world!".getBytes());
+
+        URL url = loader.getResource("com/example/hello.txt");
+        assertThat(url, is(notNullValue()));
+        assertThat(url.getProtocol(), is("resourcestore"));
+        assertThat(url.toExternalForm(), is("resourcestore://T/com/example/hello.txt"));
+        assertThat(
+            "同じリソースのURLは等しい",
+            loader.getResource("com/example/hello.txt"),
+            is(url));
+
+        datastore.delete(store.createKey("com/example/hello.txt"));
+        assertThat(
+            "URLは取得済みの内容を返す",
+            Util.toString(url.openStream()),
+            is("Hello, world!"));
+        assertThat(url.openConnection().getContentLength(), is(13));
+
+        store.put("com/example/hello.txt", "Hello, world!".getBytes());
+        Enumeration<URL> urls = loader.getResources("com/example/hello.txt");
+        assertThat(urls.hasMoreElements(), is(true));
+        assertThat(Util.toString(urls.nextElement().openStream()), is("Hello, world!"));
+        assertThat(urls.hasMoreElements(), is(false));
+
+        assertThat(loader.getResource("com/example/missing.txt"), is(nullValue()));
+    }
+
+    /**
+     * Test method for {@link DatastoreClassLoaderDelegate#findAllResources(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 分割されたリソースのURLは内容を保持しない() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "T");
+        store.setFragmentSize(4);
+        DatastoreClassLoaderDelegate delegate = new DatastoreClassLoaderDelegate(store);
+
+        store.put("com/example/hello.txt", "Hello, world!".getBytes());
+        URL url = delegate.findResource("com/example/hello.txt");
+        assertThat(url, is(notNullValue()));
+        assertThat(url.toExternalForm(), is("resourcestore://T/com/example/hello.txt"));
+        assertThat(Util.toString(url.openStream()), is("Hello, world!"));
+        assertThat(ResourceURLStreamHandler.getRetainedSize(url), is(0L));
+
+        store.put("com/example/hello.txt", "Hello, streaming world!".getBytes());
+        assertThat("開くたびに読み出す", Util.toString(url.openStream()), is("Hello, streaming world!"));
+
+        store.put("com/example/a?b#c.txt", "special".getBytes());
+        store.put("com/example/a", "wrong".getBytes());
+        URL special = delegate.findResource("com/example/a?b#c.txt");
+        assertThat("?や#を含む名前もそのまま読み出す", Util.toString(special.openStream()), is("special"));
+    }
 }
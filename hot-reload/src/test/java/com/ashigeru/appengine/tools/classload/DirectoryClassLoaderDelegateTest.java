@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link DirectoryClassLoaderDelegate}のテスト。
+ */
+public class DirectoryClassLoaderDelegateTest {
+
+    private File working;
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        working = new File("target/testing/directory");
+        delete(working);
+        assertThat(working.mkdirs(), is(true));
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        delete(working);
+    }
+
+    /**
+     * Test method for {@link DirectoryClassLoaderDelegate#findClass(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void ディレクトリからクラスとリソースを発見できる() throws Exception {
+        File root = new File(working, "classes");
+        put(root, "com/example/Hello.class", Util.createClass("com.example.Hello", "Hello"));
+        put(root, "com/example/hello.txt", "Hello, world!".getBytes());
+        put(root, "com/example/sub/inner.txt", "inner".getBytes());
+        put(working, "outside.txt", "outside".getBytes());
+
+        DirectoryClassLoaderDelegate delegate = new DirectoryClassLoaderDelegate(root);
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(delegate));
+        assertThat(Util.toString(loader, "com.example.Hello"), is("Hello"));
+        assertThat(
+            Util.toString(loader.getResourceAsStream("com/example/hello.txt")),
+            is("Hello, world!"));
+        URL url = loader.getResource("com/example/sub/inner.txt");
+        assertThat(url, is(notNullValue()));
+        assertThat(url.getProtocol(), is("file"));
+        assertThat(Util.toString(url.openStream()), is("inner"));
+
+        assertThat(delegate.isKnownMissing("com/example/Missing.class"), is(true));
+        assertThat(delegate.isKnownMissing("com/missing/Missing.class"), is(true));
+        assertThat(delegate.isKnownMissing("com/example/hello.txt"), is(false));
+        assertThat("ディレクトリ外は参照しない", delegate.isKnownMissing("../outside.txt"), is(true));
+        assertThat(delegate.isKnownMissing("com/example/../../../outside.txt"), is(true));
+        assertThat(
+            delegate.listResources("com/example/"),
+            is(Arrays.asList(
+                "com/example/Hello.class",
+                "com/example/hello.txt",
+                "com/example/sub/inner.txt")));
+        assertThat(delegate.listResources("com/example/h"), is(Arrays.asList("com/example/hello.txt")));
+        assertThat(delegate.listResources("com/missing/").isEmpty(), is(true));
+    }
+
+    /**
+     * Test method for {@link DirectoryClassLoaderDelegate#clear()}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void ディレクトリの一覧を保持する() throws Exception {
+        File root = new File(working, "classes");
+        put(root, "com/example/hello.txt", "Hello, world!".getBytes());
+
+        DirectoryClassLoaderDelegate delegate = new DirectoryClassLoaderDelegate(root);
+        assertThat(delegate.isKnownMissing("com/example/added.txt"), is(true));
+        put(root, "com/example/added.txt", "added".getBytes());
+        assertThat("一覧は更新されない", delegate.isKnownMissing("com/example/added.txt"), is(true));
+        assertThat(delegate.findResourceAsStream("com/example/added.txt"), is(nullValue()));
+
+        delegate.clear();
+        assertThat(delegate.isKnownMissing("com/example/added.txt"), is(false));
+        assertThat(Util.toString(delegate.findResourceAsStream("com/example/added.txt")), is("added"));
+    }
+
+    private static void put(File root, String path, byte[] content) throws IOException {
+        File file = new File(root, path);
+        assertThat(file.getParentFile().isDirectory() || file.getParentFile().mkdirs(), is(true));
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
+        }
+        if (file.exists()) {
+            assertThat(file.delete(), is(true));
+        }
+    }
+}
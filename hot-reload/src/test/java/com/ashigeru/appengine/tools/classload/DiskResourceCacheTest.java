@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link DiskResourceCache}のテスト。
+ */
+public class DiskResourceCacheTest {
+
+    private File working;
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        working = new File("target/testing/diskcache");
+        delete(working);
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        delete(working);
+    }
+
+    /**
+     * Test method for {@link DiskResourceCache#get(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 追加した内容を読み出す() throws Exception {
+        byte[] hello = "Hello, world!".getBytes();
+        String hash = ResourceManifest.computeHash(hello);
+        DiskResourceCache cache = new DiskResourceCache(working, 1024);
+        try {
+            assertThat(cache.get(hash), is(nullValue()));
+            assertThat(cache.put(hash, hello), is(true));
+            assertThat("同じ内容は追加しない", cache.put(hash, hello), is(false));
+            ByteBuffer stored = cache.get(hash);
+            assertThat(toString(stored), is("Hello, world!"));
+            assertThat(stored.isReadOnly(), is(true));
+            assertThat(cache.size(), is(1));
+            assertThat(cache.getHitCount(), is(1L));
+            assertThat(cache.getMissCount(), is(1L));
+
+            byte[] large = new byte[1024];
+            assertThat(
+                "容量を超える内容は追加しない",
+                cache.put(ResourceManifest.computeHash(large), large),
+                is(false));
+        }
+        finally {
+            cache.close();
+        }
+
+        DiskResourceCache reopened = new DiskResourceCache(working, 1024);
+        try {
+            assertThat("再度開いても読み出せる", toString(reopened.get(hash)), is("Hello, world!"));
+        }
+        finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Test method for {@link DiskResourceCache#get(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 他のインスタンスが追加した内容を読み出す() throws Exception {
+        DiskResourceCache a = new DiskResourceCache(working, 1024);
+        DiskResourceCache b = new DiskResourceCache(working, 1024);
+        try {
+            byte[] first = "first".getBytes();
+            byte[] second = "second".getBytes();
+            a.put(ResourceManifest.computeHash(first), first);
+            assertThat(toString(b.get(ResourceManifest.computeHash(first))), is("first"));
+            b.put(ResourceManifest.computeHash(second), second);
+            assertThat(toString(a.get(ResourceManifest.computeHash(second))), is("second"));
+            assertThat(toString(a.get(ResourceManifest.computeHash(first))), is("first"));
+        }
+        finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    /**
+     * Test method for {@link DiskResourceCache#get(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 壊れた内容は読み出さない() throws Exception {
+        byte[] hello = "Hello, world!".getBytes();
+        String hash = ResourceManifest.computeHash(hello);
+        DiskResourceCache cache = new DiskResourceCache(working, 1024);
+        try {
+            cache.put(hash, hello);
+        }
+        finally {
+            cache.close();
+        }
+
+        RandomAccessFile data = new RandomAccessFile(new File(working, "contents.dat"), "rw");
+        try {
+            data.seek(0);
+            data.write('h');
+        }
+        finally {
+            data.close();
+        }
+
+        DiskResourceCache reopened = new DiskResourceCache(working, 1024);
+        try {
+            assertThat(reopened.get(hash), is(nullValue()));
+            assertThat("壊れた内容は置き換えられる", reopened.put(hash, hello), is(true));
+            assertThat(toString(reopened.get(hash)), is("Hello, world!"));
+        }
+        finally {
+            reopened.close();
+        }
+    }
+
+    private static String toString(ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+
+    private static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
+        }
+        if (file.exists()) {
+            assertThat(file.delete(), is(true));
+        }
+    }
+}
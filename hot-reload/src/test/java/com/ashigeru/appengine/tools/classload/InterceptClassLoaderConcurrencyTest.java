@@ -0,0 +1,306 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link InterceptClassLoader}の並列ロードに関するテスト。
+ */
+public class InterceptClassLoaderConcurrencyTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    ExecutorService executor;
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Test method for {@link InterceptClassLoader#loadClass(String, boolean)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void loadClass_ロード中の別クラスを待たない() throws Exception {
+        BlockingClassLoaderDelegate delegate =
+            new BlockingClassLoaderDelegate("com/example/Slow.class");
+        final InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(delegate));
+
+        delegate.define("com.example.Slow");
+        delegate.define("com.example.Fast");
+
+        Future<Class<?>> slow = executor.submit(load(loader, "com.example.Slow"));
+        assertThat(
+            "ロードが開始される",
+            delegate.entered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+            is(true));
+
+        Future<Class<?>> fast = executor.submit(load(loader, "com.example.Fast"));
+        Class<?> fastClass = get(fast);
+        assertThat(
+            "ロード中の別クラスを待たずにロードできる",
+            fastClass.getClassLoader(),
+            sameInstance((Object) loader));
+        assertThat(
+            "遅いロードはまだ完了していない",
+            slow.isDone(),
+            is(false));
+
+        delegate.released.countDown();
+        Class<?> slowClass = get(slow);
+        assertThat(
+            "待機していたロードも完了する",
+            slowClass.getClassLoader(),
+            sameInstance((Object) loader));
+    }
+
+    /**
+     * Test method for {@link InterceptClassLoader#loadClass(String, boolean)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void loadClass_同一クラスの並列ロード() throws Exception {
+        CountingClassLoaderDelegate delegate = new CountingClassLoaderDelegate();
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(delegate));
+
+        delegate.define("com.example.Hello");
+
+        int threads = 16;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Future<Class<?>>> futures = new ArrayList<Future<Class<?>>>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(load(loader, "com.example.Hello", barrier)));
+        }
+        Set<Class<?>> results = new HashSet<Class<?>>();
+        for (Future<Class<?>> future : futures) {
+            results.add(get(future));
+        }
+
+        assertThat(
+            "すべてのスレッドが同一のクラスを得る",
+            results.size(),
+            is(1));
+        assertThat(
+            "クラスのバイナリは一度だけ取得される",
+            delegate.count.get(),
+            is(1));
+    }
+
+    /**
+     * Test method for {@link InterceptClassLoader#loadClass(String, boolean)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void loadClass_親子のローダ間でデッドロックしない() throws Exception {
+        MockClassLoaderDelegate dParent = new MockClassLoaderDelegate();
+        InterceptClassLoader parent = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(dParent));
+
+        MockClassLoaderDelegate delegate = new MockClassLoaderDelegate();
+        InterceptClassLoader loader = new InterceptClassLoader(
+            parent,
+            Pattern.compile(".*"),
+            Arrays.asList(delegate));
+
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            String name = "com.example.C" + i;
+            names.add(name);
+            dParent.define(name);
+            if (i % 2 == 0) {
+                delegate.define(name);
+            }
+        }
+
+        int threads = 16;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Future<Class<?>>> futures = new ArrayList<Future<Class<?>>>();
+        Random random = new Random(12345);
+        for (int i = 0; i < threads; i++) {
+            List<String> order = new ArrayList<String>(names);
+            Collections.shuffle(order, random);
+            InterceptClassLoader target = i % 2 == 0 ? loader : parent;
+            futures.add(executor.submit(loadAll(target, order, barrier)));
+        }
+        for (Future<Class<?>> future : futures) {
+            get(future);
+        }
+
+        for (String name : names) {
+            Class<?> klass = loader.loadClass(name);
+            assertThat(
+                "子ローダでは子クラスローダで定義される",
+                klass.getClassLoader(),
+                sameInstance((Object) loader));
+            assertThat(
+                "親ローダで定義されたクラスとは異なる",
+                klass,
+                not(sameInstance((Object) parent.loadClass(name))));
+            assertThat(
+                "スーパークラスも子クラスローダで定義される",
+                klass.getSuperclass().getClassLoader(),
+                sameInstance((Object) loader));
+        }
+    }
+
+    private static Callable<Class<?>> load(
+            final ClassLoader loader,
+            final String binaryName) {
+        return new Callable<Class<?>>() {
+            @Override
+            public Class<?> call() throws Exception {
+                return loader.loadClass(binaryName);
+            }
+        };
+    }
+
+    private static Callable<Class<?>> load(
+            final ClassLoader loader,
+            final String binaryName,
+            final CyclicBarrier barrier) {
+        return new Callable<Class<?>>() {
+            @Override
+            public Class<?> call() throws Exception {
+                barrier.await();
+                return loader.loadClass(binaryName);
+            }
+        };
+    }
+
+    private static Callable<Class<?>> loadAll(
+            final ClassLoader loader,
+            final List<String> binaryNames,
+            final CyclicBarrier barrier) {
+        return new Callable<Class<?>>() {
+            @Override
+            public Class<?> call() throws Exception {
+                barrier.await();
+                Class<?> last = null;
+                for (String name : binaryNames) {
+                    last = loader.loadClass(name);
+                }
+                return last;
+            }
+        };
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (TimeoutException e) {
+            throw new AssertionError("class loading may be deadlocked"); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * 特定のパスの読み出しを外部から解放されるまで待機する。
+     */
+    static class BlockingClassLoaderDelegate extends MockClassLoaderDelegate {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        final CountDownLatch released = new CountDownLatch(1);
+
+        private final String blockingPath;
+
+        BlockingClassLoaderDelegate(String blockingPath) {
+            this.blockingPath = blockingPath;
+        }
+
+        @Override
+        public InputStream findResourceAsStream(String path) {
+            if (path.equals(blockingPath)) {
+                entered.countDown();
+                try {
+                    released.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return super.findResourceAsStream(path);
+        }
+    }
+
+    /**
+     * クラスのバイナリを取得した回数を数える。
+     */
+    static class CountingClassLoaderDelegate extends MockClassLoaderDelegate {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public InputStream findResourceAsStream(String path) {
+            count.incrementAndGet();
+            try {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.findResourceAsStream(path);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.*;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
@@ -126,6 +127,121 @@ public class InterceptClassLoaderTest {
             sameInstance((Object) loader));
     }
 
+    /**
+     * Test method for {@link InterceptClassLoader#setParentBytesCache(ParentBytesCache)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void loadClass_親のクラスファイルを共有する() throws Exception {
+        ParentBytesCache cache = new ParentBytesCache(1024 * 1024);
+        String name = MockMyName.class.getName();
+        Pattern includes = Pattern.compile(Pattern.quote(InterceptClassLoader.toClassFilePath(name)));
+
+        InterceptClassLoader first = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            includes,
+            new ArrayList<ClassLoaderDelegate>());
+        first.setParentBytesCache(cache);
+        Class<?> firstClass = first.loadClass(name);
+        assertThat(firstClass.getClassLoader(), sameInstance((Object) first));
+        assertThat(Util.toString(first, name), is("MockMyName"));
+        assertThat(cache.getHitCount(), is(0L));
+        assertThat(cache.getWeight(), greaterThan(0L));
+
+        InterceptClassLoader second = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            includes,
+            new ArrayList<ClassLoaderDelegate>());
+        second.setParentBytesCache(cache);
+        Class<?> secondClass = second.loadClass(name);
+        assertThat(
+            "別のクラスローダで定義し直す",
+            secondClass.getClassLoader(),
+            sameInstance((Object) second));
+        assertThat(secondClass, not(sameInstance((Object) firstClass)));
+        assertThat(Util.toString(second, name), is("MockMyName"));
+        assertThat(
+            "2つ目のクラスローダはキャッシュを利用する",
+            cache.getHitCount(),
+            is(1L));
+    }
+
+    /**
+     * Test method for {@link InterceptClassLoader#loadClass(String, boolean)}.
+     */
+    @Test
+    public void loadClass_規則の集合でフィルタ() {
+        MockClassLoaderDelegate delegate = new MockClassLoaderDelegate();
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            PathRules.compile(
+                Arrays.asList("com/example/", "java/"),
+                Arrays.asList("com/example/internal/")),
+            Arrays.asList(delegate));
+
+        delegate.define("com.example.Hello");
+        delegate.define("com.example.internal.Hello");
+
+        assertThat(
+            "規則に一致するクラスはロードできる",
+            Util.toString(loader, "com.example.Hello"),
+            is("Hello"));
+        assertThat(
+            "除外されたクラスはロードできない",
+            Util.toString(loader, "com.example.internal.Hello"),
+            is(nullValue()));
+        assertThat(
+            "規約で禁止されているパスは規則によらず対象外",
+            loader.accepts("java/lang/String.class"),
+            is(false));
+    }
+
+    /**
+     * Test method for {@link InterceptClassLoader#loadClass(String, boolean)}.
+     */
+    @Test
+    public void loadClass_接頭辞で委譲先を絞り込む() {
+        MockClassLoaderDelegate app = new MockClassLoaderDelegate();
+        MockClassLoaderDelegate lib = new MockClassLoaderDelegate();
+        MockClassLoaderDelegate any = new MockClassLoaderDelegate();
+        app.own("com/example/app/");
+        lib.own("com/example/lib/", "com/example/app/Generated");
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(app, lib, any));
+
+        app.define("com.example.app.A", "app");
+        lib.define("com.example.app.A", "lib");
+        lib.define("com.example.app.Generated", "lib");
+        lib.define("com.example.lib.B", "lib");
+        any.define("com.example.lib.B", "any");
+        any.define("com.example.other.C", "any");
+
+        assertThat(Util.toString(loader, "com.example.app.A"), is("app"));
+        assertThat(Util.toString(loader, "com.example.app.Generated"), is("lib"));
+        assertThat(
+            "優先順位は変わらない",
+            Util.toString(loader, "com.example.lib.B"),
+            is("lib"));
+        assertThat(Util.toString(loader, "com.example.other.C"), is("any"));
+
+        assertThat(
+            app.requested,
+            is(Arrays.asList(
+                "com/example/app/A.class",
+                "com/example/app/Generated.class")));
+        assertThat(
+            lib.requested,
+            is(Arrays.asList(
+                "com/example/app/Generated.class",
+                "com/example/lib/B.class")));
+        assertThat(
+            "接頭辞を公開しない委譲先にはすべて問い合わせる",
+            any.requested,
+            is(Arrays.asList("com/example/other/C.class")));
+    }
+
     /**
      * Test method for {@link InterceptClassLoader#loadClass(String, boolean)}.
      */
@@ -485,6 +601,73 @@ public class InterceptClassLoaderTest {
             is("2"));
     }
 
+    /**
+     * Test method for {@link InterceptClassLoader#loadClass(String, boolean)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 存在しないことが判明している委譲先は問い合わせない() throws Exception {
+        MockClassLoaderDelegate delegate1 = new MockClassLoaderDelegate();
+        MockClassLoaderDelegate delegate2 = new MockClassLoaderDelegate();
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(delegate1, delegate2));
+
+        delegate1.define("com.example.A", "1");
+        delegate2.define("com.example.A", "2");
+        delegate1.markMissing("com/example/A.class");
+        delegate1.add("com/example/a.txt", bytes("1"));
+        delegate2.add("com/example/a.txt", bytes("2"));
+        delegate1.add("com/example/a.txt", "http://example.com/1");
+        delegate2.add("com/example/a.txt", "http://example.com/2");
+        delegate1.markMissing("com/example/a.txt");
+
+        assertThat(
+            "クラスは次の委譲先から探す",
+            Util.toString(loader, "com.example.A"),
+            is("2"));
+        assertThat(
+            "リソースは次の委譲先から探す",
+            Util.toString(loader.getResourceAsStream("com/example/a.txt")),
+            is("2"));
+        assertThat(
+            "リソースの位置は次の委譲先から探す",
+            list(loader.getResources("com/example/a.txt")),
+            is(urlList("http://example.com/2")));
+    }
+
+    /**
+     * Test method for {@link InterceptClassLoader#loadClass(String, boolean)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void loadClass_委譲先のバッファからクラスを定義する() throws Exception {
+        byte[] content = Util.createClass("com.example.Buffer", "buffer");
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(content.length + 10);
+        buffer.position(10);
+        buffer.put(content);
+        buffer.position(10);
+        ClassLoaderDelegate delegate = new ClassLoaderDelegate() {
+            @Override
+            protected ByteBuffer findClassBuffer(String binaryName) {
+                if (binaryName.equals("com.example.Buffer")) {
+                    return buffer.duplicate();
+                }
+                return null;
+            }
+            @Override
+            protected byte[] findClass(String binaryName) {
+                throw new AssertionError(binaryName);
+            }
+        };
+        InterceptClassLoader loader = new InterceptClassLoader(
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"),
+            Arrays.asList(delegate));
+        assertThat(Util.toString(loader, "com.example.Buffer"), is("buffer"));
+    }
+
     private static byte[] bytes(String string) {
         return string.getBytes();
     }
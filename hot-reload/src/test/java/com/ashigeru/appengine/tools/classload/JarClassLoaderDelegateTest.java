@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link JarClassLoaderDelegate}のテスト。
+ */
+public class JarClassLoaderDelegateTest {
+
+    private File working;
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        working = new File("target/testing/jar");
+        delete(working);
+        assertThat(working.mkdirs(), is(true));
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        delete(working);
+    }
+
+    /**
+     * Test method for {@link JarClassLoaderDelegate#findClass(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void JARファイルからクラスとリソースを発見できる() throws Exception {
+        File file = new File(working, "test.jar");
+        ZipOutputStream output = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            output.putNextEntry(new ZipEntry("com/"));
+            output.putNextEntry(new ZipEntry("com/example/"));
+            put(output, "com/example/Hello.class", Util.createClass("com.example.Hello", "deflated"), false);
+            put(output, "com/example/Stored.class", Util.createClass("com.example.Stored", "stored"), true);
+            put(output, "com/example/hello.txt", "Hello, world!".getBytes(), true);
+            put(output, "com/example/sub/inner.txt", "inner".getBytes(), false);
+            output.setComment("comment");
+        }
+        finally {
+            output.close();
+        }
+
+        JarClassLoaderDelegate delegate = new JarClassLoaderDelegate(file);
+        try {
+            assertThat("ディレクトリは含まない", delegate.size(), is(4));
+            InterceptClassLoader loader = new InterceptClassLoader(
+                getClass().getClassLoader(),
+                Pattern.compile("com/example/.*"),
+                Arrays.asList(delegate));
+            assertThat(Util.toString(loader, "com.example.Hello"), is("deflated"));
+            assertThat(Util.toString(loader, "com.example.Stored"), is("stored"));
+            assertThat(
+                Util.toString(loader.getResourceAsStream("com/example/hello.txt")),
+                is("Hello, world!"));
+            assertThat(
+                Util.toString(loader.getResourceAsStream("com/example/sub/inner.txt")),
+                is("inner"));
+
+            URL url = loader.getResource("com/example/hello.txt");
+            assertThat(url, is(notNullValue()));
+            assertThat(url.getProtocol(), is("jar"));
+            assertThat(Util.toString(url.openStream()), is("Hello, world!"));
+
+            assertThat(delegate.isKnownMissing("com/example/Missing.class"), is(true));
+            assertThat(delegate.isKnownMissing("com/example/"), is(true));
+            assertThat(delegate.isKnownMissing("com/example/hello.txt"), is(false));
+            assertThat(
+                delegate.listResources("com/example/"),
+                is(Arrays.asList(
+                    "com/example/Hello.class",
+                    "com/example/Stored.class",
+                    "com/example/hello.txt",
+                    "com/example/sub/inner.txt")));
+            assertThat(delegate.listResources("com/example/sub/").size(), is(1));
+            Iterator<URL> missing = delegate.findAllResources("com/example/missing.txt").iterator();
+            assertThat(missing.hasNext(), is(false));
+            try {
+                loader.loadClass("com.example.Missing");
+                fail("含まれないクラスは発見できない");
+            }
+            catch (ClassNotFoundException e) {
+                // ok.
+            }
+        }
+        finally {
+            delegate.close();
+        }
+        assertThat(
+            "閉じた後は発見できない",
+            delegate.findResourceAsStream("com/example/hello.txt"),
+            is(nullValue()));
+    }
+
+    /**
+     * Test method for {@link JarClassLoaderDelegate#findAllResources(String)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void URLとして利用できない文字を含むリソースを発見できる() throws Exception {
+        File file = new File(working, "special.jar");
+        String name = "com/example/a b%25#?\u3042.txt";
+        ZipOutputStream output = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            put(output, name, "special".getBytes(), false);
+            put(output, "com/example/a b%.txt", "wrong".getBytes(), false);
+        }
+        finally {
+            output.close();
+        }
+
+        JarClassLoaderDelegate delegate = new JarClassLoaderDelegate(file);
+        try {
+            URL url = delegate.findAllResources(name).iterator().next();
+            assertThat(Util.toString(url.openStream()), is("special"));
+        }
+        finally {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Test method for {@link JarClassLoaderDelegate#JarClassLoaderDelegate(File)}.
+     * @throws Exception if occur
+     */
+    @Test(expected = IOException.class)
+    public void JARファイルでない場合は失敗する() throws Exception {
+        File file = new File(working, "broken.jar");
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write("Hello, world!".getBytes());
+        }
+        finally {
+            output.close();
+        }
+        new JarClassLoaderDelegate(file);
+    }
+
+    private static void put(ZipOutputStream output, String name, byte[] content, boolean stored)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        output.putNextEntry(entry);
+        output.write(content);
+        output.closeEntry();
+    }
+
+    private static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
+        }
+        if (file.exists()) {
+            assertThat(file.delete(), is(true));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * {@link LatencyHistogram}のテスト。
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Test method for {@link LatencyHistogram#getPercentile(double)}.
+     */
+    @Test
+    public void 百分位数を求める() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentile(50.0), is(0L));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100L);
+        }
+        histogram.record(10000L);
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getTotalNanos(), is(99L * 100 + 10000));
+        assertThat(histogram.getPercentile(50.0), is(127L));
+        assertThat(histogram.getPercentile(99.0), is(127L));
+        assertThat(histogram.getPercentile(100.0), is(16383L));
+
+        histogram.record(0L);
+        histogram.record(-1L);
+        assertThat(histogram.getPercentile(0.0), is(0L));
+
+        histogram.reset();
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getTotalNanos(), is(0L));
+    }
+
+    /**
+     * Test method for {@link LatencyHistogram#getPercentile(double)}.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void 範囲外の百分位数() {
+        new LatencyHistogram().getPercentile(101.0);
+    }
+}
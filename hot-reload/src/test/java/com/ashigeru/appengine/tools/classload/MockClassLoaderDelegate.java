@@ -19,10 +19,16 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Mock implementation of {@link ClassLoaderDelegate};
@@ -35,6 +41,12 @@ public class MockClassLoaderDelegate extends ClassLoaderDelegate {
     private Map<String, LinkedList<URL>> locations =
         new HashMap<String, LinkedList<URL>>();
 
+    private Set<String> missing = new HashSet<String>();
+
+    private Collection<String> owned;
+
+    final List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+
     /**
      * 指定の名前のクラスを追加する。
      * <p>
@@ -80,21 +92,57 @@ public class MockClassLoaderDelegate extends ClassLoaderDelegate {
      * @param url 対応する位置
      */
     void add(String path, String url) {
-        LinkedList<URL> list = locations.get(path);
-        if (list == null) {
-            list = new LinkedList<URL>();
-            locations.put(path, list);
-        }
         try {
-            list.addLast(new URL(url));
+            add(path, new URL(url));
         }
         catch (MalformedURLException e) {
             throw new AssertionError(e);
         }
     }
 
+    /**
+     * 検出可能な位置を追加する。
+     * @param path 配置するパス
+     * @param url 対応する位置
+     */
+    void add(String path, URL url) {
+        LinkedList<URL> list = locations.get(path);
+        if (list == null) {
+            list = new LinkedList<URL>();
+            locations.put(path, list);
+        }
+        list.addLast(url);
+    }
+
+    /**
+     * 指定のパスが存在しないことが判明しているものとして扱う。
+     * @param path 対象のパス
+     */
+    void markMissing(String path) {
+        missing.add(path);
+    }
+
+    /**
+     * 指定の接頭辞から始まるパスのみを扱うものとして公開する。
+     * @param prefixes 扱うパスの接頭辞
+     */
+    void own(String... prefixes) {
+        owned = Arrays.asList(prefixes);
+    }
+
+    @Override
+    public Collection<String> getOwnedPrefixes() {
+        return owned;
+    }
+
+    @Override
+    public boolean isKnownMissing(String path) {
+        return missing.contains(path);
+    }
+
     @Override
     public InputStream findResourceAsStream(String path) {
+        requested.add(path);
         LinkedList<byte[]> list = contents.get(path);
         if (list == null) {
             return null;
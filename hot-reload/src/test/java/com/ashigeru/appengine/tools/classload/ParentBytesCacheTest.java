@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * {@link ParentBytesCache}のテスト。
+ */
+public class ParentBytesCacheTest {
+
+    /**
+     * Test method for {@link ParentBytesCache#get(URL)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 保持した内容を取得できる() throws Exception {
+        ParentBytesCache cache = new ParentBytesCache(1024);
+        URL resource = new URL("http://example.com/Hello.class");
+        assertThat(cache.get(resource), is(nullValue()));
+        assertThat(cache.getMissCount(), is(1L));
+
+        cache.put(resource, new byte[] { 1, 2, 3 });
+        ByteBuffer found = cache.get(resource);
+        assertThat(toBytes(found), is(new byte[] { 1, 2, 3 }));
+        assertThat("ヒープ外に保持する", found.isDirect(), is(true));
+        assertThat(found.isReadOnly(), is(true));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getWeight(), is(3L));
+
+        found.get();
+        assertThat("読み出しは他の利用者に影響しない", toBytes(cache.get(resource)), is(new byte[] { 1, 2, 3 }));
+    }
+
+    /**
+     * Test method for {@link ParentBytesCache#put(URL, byte[])}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 容量を超えたら古いものから破棄() throws Exception {
+        ParentBytesCache cache = new ParentBytesCache(80);
+        URL a = new URL("http://example.com/A.class");
+        URL b = new URL("http://example.com/B.class");
+        URL c = new URL("http://example.com/C.class");
+        cache.put(a, new byte[10]);
+        cache.put(b, new byte[10]);
+        assertThat(
+            "容量の1/8を超える内容は保持しない",
+            cache.put(c, new byte[11]),
+            is(nullValue()));
+
+        for (int i = 0; i < 7; i++) {
+            cache.get(a);
+            cache.put(new URL("http://example.com/X" + i + ".class"), new byte[10]);
+        }
+        assertThat(cache.getWeight(), is(80L));
+        assertThat(cache.get(a), is(notNullValue()));
+        assertThat(cache.get(b), is(nullValue()));
+
+        cache.clear();
+        assertThat(cache.getWeight(), is(0L));
+        assertThat(cache.get(a), is(nullValue()));
+    }
+
+    /**
+     * Test method for {@link ParentBytesCache#get(URL)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void ファイルが更新されたら別の内容として扱う() throws Exception {
+        File file = File.createTempFile("cache", ".class");
+        file.deleteOnExit();
+        write(file, new byte[] { 1 });
+        file.setLastModified(100000L);
+        URL resource = file.toURI().toURL();
+
+        ParentBytesCache cache = new ParentBytesCache(1024);
+        cache.put(resource, new byte[] { 1 });
+        assertThat(cache.get(resource), is(notNullValue()));
+
+        write(file, new byte[] { 2 });
+        file.setLastModified(200000L);
+        assertThat(cache.get(resource), is(nullValue()));
+    }
+
+    private static void write(File file, byte[] contents) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] results = new byte[buffer.remaining()];
+        buffer.duplicate().get(results);
+        return results;
+    }
+}
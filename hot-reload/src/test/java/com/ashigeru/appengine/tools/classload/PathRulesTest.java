@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * {@link PathRules}のテスト。
+ */
+public class PathRulesTest {
+
+    /**
+     * Test method for {@link PathRules#matches(String)}.
+     */
+    @Test
+    public void 接頭辞で判定できる() {
+        PathRules rules = PathRules.compile(
+            Arrays.asList("com/example/", "org/example/**"),
+            Arrays.asList("com/example/internal/"));
+
+        assertThat(rules.matches("com/example/Hello.class"), is(true));
+        assertThat(rules.matches("com/example/sub/Hello.class"), is(true));
+        assertThat(rules.matches("org/example/Hello.class"), is(true));
+        assertThat(rules.matches("com/other/Hello.class"), is(false));
+        assertThat(rules.matches("com/exampleX/Hello.class"), is(false));
+        assertThat(rules.matches("Hello.class"), is(false));
+        assertThat(
+            "除外を優先",
+            rules.matches("com/example/internal/Hello.class"),
+            is(false));
+
+        assertThat(
+            "記憶した結果でも同じ",
+            rules.matches("com/example/internal/Other.class"),
+            is(false));
+        assertThat(rules.matches("com/example/World.class"), is(true));
+    }
+
+    /**
+     * Test method for {@link PathRules#matches(String)}.
+     */
+    @Test
+    public void ワイルドカードで判定できる() {
+        PathRules rules = PathRules.compile(
+            Arrays.asList("com/example/*.class", "com/**/resources/*.txt"),
+            Arrays.asList("com/example/*Test.class"));
+
+        assertThat(rules.matches("com/example/Hello.class"), is(true));
+        assertThat(
+            "*は/に一致しない",
+            rules.matches("com/example/sub/Hello.class"),
+            is(false));
+        assertThat(rules.matches("com/example/hello.txt"), is(false));
+        assertThat(rules.matches("com/example/HelloTest.class"), is(false));
+        assertThat(
+            "**は/にも一致する",
+            rules.matches("com/a/b/resources/hello.txt"),
+            is(true));
+        assertThat(rules.matches("com/a/b/resources/hello.properties"), is(false));
+
+        // same package, decision depends on the file name
+        assertThat(rules.matches("com/example/World.class"), is(true));
+        assertThat(rules.matches("com/example/WorldTest.class"), is(false));
+    }
+
+    /**
+     * Test method for {@link PathRules#matches(String)}.
+     */
+    @Test
+    public void ファイル名の接頭辞で判定できる() {
+        PathRules rules = PathRules.compile(
+            Arrays.asList("com/example/"),
+            Arrays.asList("com/example/Hidden"));
+
+        assertThat(rules.matches("com/example/Visible.class"), is(true));
+        assertThat(
+            "パッケージの記憶に影響されない",
+            rules.matches("com/example/Hidden.class"),
+            is(false));
+        assertThat(rules.matches("com/example/HiddenToo.class"), is(false));
+        assertThat(rules.matches("com/example/Other.class"), is(true));
+    }
+
+    /**
+     * Test method for {@link PathRules#of(Pattern)}.
+     */
+    @Test
+    public void 正規表現で判定できる() {
+        PathRules rules = PathRules.of(Pattern.compile("com/example/[A-Z].*"));
+        assertThat(rules.matches("com/example/Hello.class"), is(true));
+        assertThat(rules.matches("com/example/hello.txt"), is(false));
+    }
+
+    /**
+     * Test method for {@link PathRules#compile(java.util.Collection, java.util.Collection)}.
+     */
+    @Test
+    public void 包含がなければすべて対象外() {
+        PathRules rules = PathRules.compile(
+            Collections.<String>emptyList(),
+            Collections.<String>emptyList());
+        assertThat(rules.matches("com/example/Hello.class"), is(false));
+
+        PathRules all = PathRules.compile(
+            Arrays.asList("**"),
+            Collections.<String>emptyList());
+        assertThat(all.matches("com/example/Hello.class"), is(true));
+        assertThat(all.matches("Hello.class"), is(true));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * {@link PrefixTrie}のテスト。
+ */
+public class PrefixTrieTest {
+
+    /**
+     * Test method for {@link PrefixTrie#find(String)}.
+     */
+    @Test
+    public void 一致する接頭辞の値を短い順に受け取る() {
+        Collecting trie = new Collecting();
+        trie.add("com/", "a");
+        trie.add("com/example/", "b");
+        trie.add("com/example/", "b");
+        trie.add("org/", "c");
+
+        assertThat(trie.find("com/example/Hello.class"), is("[a, b]"));
+        assertThat(trie.find("com/other/Hello.class"), is("[a]"));
+        assertThat(trie.find("net/Hello.class"), is("[]"));
+        assertThat(trie.calls, is(3));
+    }
+
+    /**
+     * Test method for {@link PrefixTrie#find(String)}.
+     */
+    @Test
+    public void パッケージのみで決まる結果を記憶する() {
+        Collecting trie = new Collecting();
+        trie.add("com/example/", "a");
+        trie.add("com/example/Hello", "b");
+
+        assertThat(trie.find("org/Hello.class"), is("[]"));
+        assertThat(trie.find("org/World.class"), is("[]"));
+        assertThat("同じパッケージは記憶した結果を返す", trie.calls, is(1));
+
+        assertThat(trie.find("com/example/Hello.class"), is("[a, b]"));
+        assertThat(trie.find("com/example/World.class"), is("[a]"));
+        assertThat("ファイル名に依存する場合は記憶しない", trie.calls, is(3));
+
+        assertThat(trie.find("com/example/sub/Hello.class"), is("[a]"));
+        assertThat(trie.find("com/example/sub/World.class"), is("[a]"));
+        assertThat(trie.calls, is(4));
+    }
+
+    /**
+     * 一致した値の一覧を文字列で返す。
+     */
+    private static class Collecting extends PrefixTrie<String, String> {
+
+        int calls;
+
+        Collecting() {
+            return;
+        }
+
+        @Override
+        protected Visitor<String, String> createVisitor(String path) {
+            calls++;
+            final List<String> values = new ArrayList<String>();
+            return new Visitor<String, String>() {
+
+                @Override
+                public boolean visit(String value, int offset) {
+                    values.add(value);
+                    return true;
+                }
+
+                @Override
+                public String getResult() {
+                    return values.toString();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * {@link ReloadManager}のテスト。
+ */
+public class ReloadManagerTest {
+
+    LocalServiceTestHelper testing;
+    {
+        LocalDatastoreServiceTestConfig datastore = new LocalDatastoreServiceTestConfig();
+        datastore.setBackingStoreLocation("target/testing/datastore");
+        testing = new LocalServiceTestHelper(datastore);
+        testing.setEnvAppId(getClass().getSimpleName());
+    }
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        testing.setUp();
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        testing.tearDown();
+    }
+
+    /**
+     * Test method for {@link ResourceStore#publishRevision()}.
+     */
+    @Test
+    public void リビジョンを公開できる() {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        assertThat(store.getRevision(), is(nullValue()));
+        String first = store.publishRevision();
+        assertThat(store.getRevision(), is(first));
+        String second = store.publishRevision();
+        assertThat(second, not(first));
+        assertThat(store.getRevision(), is(second));
+        assertThat(
+            "リビジョンはファイルの一覧に含まれない",
+            store.list("").size(),
+            is(0));
+    }
+
+    /**
+     * Test method for {@link ReloadManager#acquire()}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void リビジョンの変更で新しい世代に切り替わる() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v1"));
+        store.publishRevision();
+
+        final List<ReloadManager.Generation> retired = new ArrayList<ReloadManager.Generation>();
+        ReloadManager manager = new ReloadManager(
+                store,
+                getClass().getClassLoader(),
+                Pattern.compile("com/example/.*")) {
+            @Override
+            protected void onRetired(Generation generation) {
+                retired.add(generation);
+            }
+        };
+        manager.setCheckInterval(0);
+
+        ReloadManager.Generation first = manager.acquire();
+        assertThat(first.getNumber(), is(1L));
+        assertThat(Util.toString(first.getClassLoader(), "com.example.Hello"), is("v1"));
+        first.release();
+
+        ReloadManager.Generation same = manager.acquire();
+        assertThat("リビジョンが変わらなければ同じ世代", same, is(sameInstance(first)));
+
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v2"));
+        assertThat(
+            "リビジョンを公開するまでは切り替わらない",
+            manager.checkForUpdates(),
+            is(false));
+        store.publishRevision();
+
+        ReloadManager.Generation second = manager.acquire();
+        assertThat(second.getNumber(), is(2L));
+        assertThat(Util.toString(second.getClassLoader(), "com.example.Hello"), is("v2"));
+        assertThat(first.isRetired(), is(true));
+        assertThat(
+            "利用中の世代は破棄されない",
+            retired.size(),
+            is(0));
+        assertThat(manager.getActiveGenerationCount(), is(2));
+        assertThat(
+            "引退した世代も利用中は使える",
+            Util.toString(same.getClassLoader(), "com.example.Hello"),
+            is("v1"));
+
+        same.release();
+        assertThat(retired.size(), is(1));
+        assertThat(retired.get(0), is(sameInstance(first)));
+        assertThat(manager.getActiveGenerationCount(), is(1));
+
+        second.release();
+        assertThat(second.isRetired(), is(false));
+        assertThat(manager.getActiveGenerationCount(), is(1));
+    }
+
+    /**
+     * Test method for {@link ReloadManager#setSelectiveReload(boolean)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 変更されたクラスと参照元のみを定義し直す() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v1"));
+        store.put("com/example/User.class", Util.createReferringClass("com.example.User", "com.example.Hello"));
+        store.put("com/example/other/Other1.class", Util.createClass("com.example.other.Other1", "o1"));
+        store.put("com/example/other/Other2.class", Util.createClass("com.example.other.Other2", "o2"));
+        store.put("com/example/other/Other3.class", Util.createClass("com.example.other.Other3", "o3"));
+        store.rebuildManifest();
+        String firstRevision = store.publishRevision();
+
+        final List<String> revisions = new ArrayList<String>();
+        ReloadManager manager = new ReloadManager(
+                store,
+                getClass().getClassLoader(),
+                Pattern.compile("com/example/.*")) {
+            @Override
+            protected List<ClassLoaderDelegate> createDelegates(String revision) {
+                revisions.add(revision);
+                return super.createDelegates(revision);
+            }
+        };
+        manager.setCheckInterval(0);
+        manager.setSelectiveReload(true);
+
+        ReloadManager.Generation first = manager.acquire();
+        ClassLoader firstLoader = first.getClassLoader();
+        assertThat(Util.toString(firstLoader, "com.example.User"), is("v1"));
+        Class<?> other = firstLoader.loadClass("com.example.other.Other1");
+        first.release();
+
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v2"));
+        String secondRevision = store.publishRevision();
+
+        ReloadManager.Generation second = manager.acquire();
+        ClassLoader secondLoader = second.getClassLoader();
+        assertThat(secondLoader, not(sameInstance(firstLoader)));
+        assertThat(
+            "参照元のクラスも定義し直す",
+            Util.toString(secondLoader, "com.example.User"),
+            is("v2"));
+        assertThat(
+            secondLoader.loadClass("com.example.User"),
+            not(sameInstance((Object) firstLoader.loadClass("com.example.User"))));
+        assertThat(
+            "影響を受けないクラスは共有する",
+            secondLoader.loadClass("com.example.other.Other1"),
+            sameInstance((Object) other));
+        assertThat(
+            "以前の世代は変更前のまま",
+            Util.toString(firstLoader, "com.example.User"),
+            is("v1"));
+        assertThat(
+            "子の層も同じ方法で委譲先を生成する",
+            revisions,
+            is(Arrays.asList(firstRevision, secondRevision)));
+        second.release();
+    }
+
+    /**
+     * Test method for {@link ReloadManager#setDelegateCacheCapacity(long)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 委譲先のキャッシュは変更されたファイルのみ破棄する() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v1"));
+        store.put("com/example/Other.class", Util.createClass("com.example.Other", "o1"));
+        store.rebuildManifest();
+        store.publishRevision();
+
+        ReloadManager manager = new ReloadManager(
+            store,
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"));
+        manager.setCheckInterval(0);
+        manager.setDelegateCacheCapacity(1024 * 1024);
+        CachingClassLoaderDelegate cache = manager.getDelegateCache();
+
+        ReloadManager.Generation first = manager.acquire();
+        assertThat(Util.toString(first.getClassLoader(), "com.example.Hello"), is("v1"));
+        assertThat(Util.toString(first.getClassLoader(), "com.example.Other"), is("o1"));
+        first.release();
+        assertThat(cache.getMissCount(), is(2L));
+
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v2"));
+        store.publishRevision();
+
+        ReloadManager.Generation second = manager.acquire();
+        assertThat(
+            "変更されたクラスは読み出し直す",
+            Util.toString(second.getClassLoader(), "com.example.Hello"),
+            is("v2"));
+        assertThat(Util.toString(second.getClassLoader(), "com.example.Other"), is("o1"));
+        second.release();
+        assertThat(cache.getMissCount(), is(3L));
+        assertThat("変更されていないクラスはキャッシュから返す", cache.getHitCount(), is(1L));
+    }
+
+    /**
+     * Test method for {@link ReloadManager#onRetired(ReloadManager.Generation)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 基底の層を共有する世代は利用されなくなるまで破棄しない() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v1"));
+        store.put("com/example/other/Other1.class", Util.createClass("com.example.other.Other1", "o1"));
+        store.put("com/example/other/Other2.class", Util.createClass("com.example.other.Other2", "o2"));
+        store.rebuildManifest();
+        store.publishRevision();
+
+        final List<ReloadManager.Generation> retired = new ArrayList<ReloadManager.Generation>();
+        ReloadManager manager = new ReloadManager(
+                store,
+                getClass().getClassLoader(),
+                Pattern.compile("com/example/.*")) {
+            @Override
+            protected void onRetired(Generation generation) {
+                retired.add(generation);
+            }
+        };
+        manager.setCheckInterval(0);
+        manager.setSelectiveReload(true);
+
+        ReloadManager.Generation first = manager.acquire();
+        first.release();
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v2"));
+        store.publishRevision();
+
+        ReloadManager.Generation second = manager.acquire();
+        assertThat(second.getClassLoader().getParent(), is(sameInstance((Object) first.getClassLoader())));
+        second.release();
+        assertThat("基底の層として利用中の世代は破棄しない", retired.size(), is(0));
+        assertThat(manager.getActiveGenerationCount(), is(2));
+
+        manager.setSelectiveReload(false);
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v3"));
+        store.publishRevision();
+
+        ReloadManager.Generation third = manager.acquire();
+        third.release();
+        assertThat(
+            "基底の層が置き換えられた後に破棄する",
+            new HashSet<ReloadManager.Generation>(retired),
+            is((Set<ReloadManager.Generation>) new HashSet<ReloadManager.Generation>(Arrays.asList(first, second))));
+        assertThat(manager.getActiveGenerationCount(), is(1));
+    }
+
+    /**
+     * Test method for {@link ReloadManager#expandToPackages(java.util.Set, java.util.Collection)}.
+     */
+    @Test
+    public void 子の層はパッケージを分割しない() {
+        Set<String> expanded = ReloadManager.expandToPackages(
+            new HashSet<String>(Arrays.asList("com/example/A.class", "Top.class")),
+            Arrays.asList(
+                "com/example/A.class",
+                "com/example/B.class",
+                "com/example/sub/C.class",
+                "com/other/D.class",
+                "Top.class",
+                "Default.class"));
+        assertThat(expanded, is((Set<String>) new HashSet<String>(Arrays.asList(
+            "com/example/A.class",
+            "com/example/B.class",
+            "Top.class",
+            "Default.class"))));
+    }
+
+    /**
+     * Test method for {@link ReloadManager#acquire()}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 確認の間隔内ではリビジョンを読み出さない() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        ReloadManager manager = new ReloadManager(
+            store,
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"));
+        manager.setCheckInterval(60 * 1000L);
+
+        ReloadManager.Generation first = manager.acquire();
+        assertThat(first.getRevision(), is(nullValue()));
+        first.release();
+
+        store.publishRevision();
+        ReloadManager.Generation next = manager.acquire();
+        assertThat(next, is(sameInstance(first)));
+        next.release();
+
+        assertThat(manager.checkForUpdates(), is(true));
+        ReloadManager.Generation updated = manager.acquire();
+        assertThat(updated.getRevision(), is(store.getRevision()));
+        updated.release();
+    }
+
+    /**
+     * Test method for {@link ReloadManager#acquire()}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 確認に失敗しても現在の世代を返す() throws Exception {
+        final boolean[] fail = new boolean[1];
+        ResourceStore store = new ResourceStore(
+                DatastoreServiceFactory.getDatastoreService(),
+                "T") {
+            @Override
+            public String getRevision() {
+                if (fail[0]) {
+                    throw new IllegalStateException("testing");
+                }
+                return super.getRevision();
+            }
+        };
+        ReloadManager manager = new ReloadManager(
+            store,
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"));
+        manager.setCheckInterval(0L);
+
+        ReloadManager.Generation first = manager.acquire();
+        first.release();
+
+        fail[0] = true;
+        store.publishRevision();
+        ReloadManager.Generation next = manager.acquire();
+        assertThat(next, is(sameInstance(first)));
+        next.release();
+
+        fail[0] = false;
+        ReloadManager.Generation updated = manager.acquire();
+        assertThat("次の確認で切り替わる", updated, is(not(sameInstance(first))));
+        updated.release();
+    }
+
+    /**
+     * Test method for {@link ReloadManager#acquire()}.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void 最初の世代の生成に失敗() {
+        ResourceStore store = new ResourceStore(
+                DatastoreServiceFactory.getDatastoreService(),
+                "T") {
+            @Override
+            public String getRevision() {
+                throw new IllegalStateException("testing");
+            }
+        };
+        ReloadManager manager = new ReloadManager(
+            store,
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"));
+        manager.acquire();
+    }
+
+    /**
+     * Test method for {@link ReloadManager#setProfileRecording(long)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 起動直後にロードしたパスを記録する() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v1"));
+        store.publishRevision();
+        store.mergeProfile(Arrays.asList("com/example/Hello.class"));
+        store.mergeProfile(Collections.<String>emptyList());
+
+        ReloadManager manager = new ReloadManager(
+            store,
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"));
+        manager.setProfileRecording(100L);
+
+        ReloadManager.Generation first = manager.acquire();
+        assertThat(Util.toString(first.getClassLoader(), "com.example.Hello"), is("v1"));
+        first.release();
+        assertThat(
+            "記録中は保存しない",
+            store.loadProfile().getWeight("com/example/Hello.class"),
+            is(ClassLoadProfile.MAX_WEIGHT - 1));
+
+        Thread.sleep(200L);
+        manager.acquire().release();
+        assertThat(
+            "記録したパスの重みが戻る",
+            store.loadProfile().getWeight("com/example/Hello.class"),
+            is(ClassLoadProfile.MAX_WEIGHT));
+    }
+
+    /**
+     * Test method for {@link ReloadManager#setProfileRecording(long)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 記録の統合に失敗しても世代を返す() throws Exception {
+        final boolean[] fail = { true };
+        ResourceStore store = new ResourceStore(
+                DatastoreServiceFactory.getDatastoreService(),
+                "T") {
+            @Override
+            public ClassLoadProfile mergeProfile(List<String> recorded) {
+                if (fail[0]) {
+                    throw new IllegalStateException("testing");
+                }
+                return super.mergeProfile(recorded);
+            }
+        };
+        store.put("com/example/Hello.class", Util.createClass("com.example.Hello", "v1"));
+        store.publishRevision();
+
+        ReloadManager manager = new ReloadManager(
+            store,
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"));
+        manager.setCheckInterval(0L);
+        manager.setProfileRecording(100L);
+
+        ReloadManager.Generation first = manager.acquire();
+        assertThat(Util.toString(first.getClassLoader(), "com.example.Hello"), is("v1"));
+        first.release();
+
+        Thread.sleep(200L);
+        ReloadManager.Generation next = manager.acquire();
+        assertThat(next, is(sameInstance(first)));
+        next.release();
+        assertThat(store.loadProfile().getPaths().isEmpty(), is(true));
+
+        fail[0] = false;
+        manager.acquire().release();
+        assertThat(
+            "失敗した記録は次回に統合する",
+            store.loadProfile().getPaths(),
+            is(Arrays.asList("com/example/Hello.class")));
+    }
+
+    /**
+     * Test method for {@link ReloadManager.Generation#release()}.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void 解放しすぎ() {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        ReloadManager manager = new ReloadManager(
+            store,
+            getClass().getClassLoader(),
+            Pattern.compile("com/example/.*"));
+        ReloadManager.Generation generation = manager.acquire();
+        generation.release();
+        generation.release();
+    }
+}
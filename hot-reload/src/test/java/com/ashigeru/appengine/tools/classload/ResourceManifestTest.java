@@ -0,0 +1,286 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * {@link ResourceManifest}のテスト。
+ */
+public class ResourceManifestTest {
+
+    LocalServiceTestHelper testing;
+    {
+        LocalDatastoreServiceTestConfig datastore = new LocalDatastoreServiceTestConfig();
+        datastore.setBackingStoreLocation("target/testing/datastore");
+        testing = new LocalServiceTestHelper(datastore);
+        testing.setEnvAppId(getClass().getSimpleName());
+    }
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        testing.setUp();
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        testing.tearDown();
+    }
+
+    /**
+     * Test method for {@link ResourceManifest#computeHash(byte[])}.
+     */
+    @Test
+    public void computeHash() {
+        assertThat(
+            ResourceManifest.computeHash("abc".getBytes()),
+            is("a9993e364706816aba3e25717850c26c9cd0d89d"));
+    }
+
+    /**
+     * 書き出しや削除が一覧に反映される。
+     */
+    @Test
+    public void 書き出しや削除が一覧に反映される() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "Testing");
+        assertThat(store.loadManifest().size(), is(0));
+
+        store.put("a.txt", "a".getBytes());
+        Map<String, byte[]> map = new HashMap<String, byte[]>();
+        for (int i = 0; i < 50; i++) {
+            map.put("com/example/" + i + ".txt", String.valueOf(i).getBytes());
+        }
+        store.put(map);
+        store.put("a.txt", "abc".getBytes());
+
+        ResourceManifest manifest = store.loadManifest();
+        assertThat(manifest.size(), is(51));
+        assertThat(
+            manifest.get("a.txt"),
+            is(new ResourceManifest.Entry("a.txt", 3, ResourceManifest.computeHash("abc".getBytes()))));
+        assertThat(manifest.get("com/example/10.txt").getSize(), is(2L));
+        assertThat(manifest.list("com/example/").size(), is(50));
+        assertThat(
+            "一覧は分割して保存される",
+            datastore.prepare(new Query("Testing.Manifest")).countEntities(),
+            is(lessThanOrEqualTo(manifest.getShardCount())));
+
+        store.delete("a.txt");
+        store.delete(Arrays.asList("com/example/0.txt", "com/example/1.txt", "missing.txt"));
+        manifest = store.loadManifest();
+        assertThat(manifest.size(), is(48));
+        assertThat(manifest.contains("a.txt"), is(false));
+        assertThat(manifest.contains("com/example/0.txt"), is(false));
+        assertThat(manifest.contains("com/example/2.txt"), is(true));
+
+        store.delete(map.keySet());
+        assertThat(store.loadManifest().size(), is(0));
+        assertThat(
+            "空になった分割は削除される",
+            datastore.prepare(new Query("Testing.Manifest")).countEntities(),
+            is(0));
+    }
+
+    /**
+     * 一覧の大きさから分割数を決める。
+     */
+    @Test
+    public void 一覧の大きさから分割数を決める() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceManifest rebuilt = ResourceManifest.rebuild(datastore, "Testing", entries(5000));
+        assertThat(rebuilt.getShardCount(), is(greaterThan(1)));
+
+        ResourceManifest manifest = ResourceManifest.load(datastore, "Testing");
+        assertThat(manifest.size(), is(5000));
+        assertThat(manifest.isComplete(), is(true));
+        assertThat(manifest.getShardCount(), is(rebuilt.getShardCount()));
+        assertThat(
+            datastore.prepare(new Query("Testing.Manifest")).countEntities(),
+            is(lessThanOrEqualTo(rebuilt.getShardCount())));
+
+        ResourceManifest.beginUpdate(datastore, "Testing");
+        ResourceManifest.endUpdate(
+            datastore,
+            "Testing",
+            Arrays.asList(ResourceManifest.Entry.of("a.txt", "a".getBytes())),
+            Arrays.asList("com/example/0/Resource.class"));
+        manifest = ResourceManifest.load(datastore, "Testing");
+        assertThat(manifest.size(), is(5000));
+        assertThat(manifest.contains("a.txt"), is(true));
+        assertThat(manifest.isComplete(), is(true));
+
+        rebuilt = ResourceManifest.rebuild(datastore, "Testing", entries(1));
+        assertThat(rebuilt.getShardCount(), is(1));
+        assertThat(
+            "使われなくなった分割は削除される",
+            datastore.prepare(new Query("Testing.Manifest")).countEntities(),
+            is(1));
+    }
+
+    /**
+     * 分割の上限を超える更新は、一覧を完全でないものとして記録する。
+     */
+    @Test
+    public void 分割の上限を超える更新は一覧を完全でないものとして記録する() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceManifest.rebuild(datastore, "Testing", entries(1));
+        assertThat(ResourceManifest.load(datastore, "Testing").isComplete(), is(true));
+
+        ResourceManifest.beginUpdate(datastore, "Testing");
+        ResourceManifest.endUpdate(
+            datastore,
+            "Testing",
+            entries(ResourceManifest.MAX_SHARD_BYTES / 50),
+            Arrays.<String>asList());
+        ResourceManifest manifest = ResourceManifest.load(datastore, "Testing");
+        assertThat(manifest.isComplete(), is(false));
+        assertThat(manifest.size(), is(1));
+    }
+
+    /**
+     * 公開されていない変更が記録される。
+     */
+    @Test
+    public void 公開されていない変更が記録される() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "Testing");
+        assertThat(store.loadManifest().hasUnpublishedChanges(), is(false));
+
+        store.put("a.txt", "a".getBytes());
+        assertThat(store.loadManifest().hasUnpublishedChanges(), is(true));
+        assertThat(
+            "再構築しても記録は残る",
+            store.rebuildManifest().hasUnpublishedChanges(),
+            is(true));
+
+        store.publishRevision();
+        assertThat(store.loadManifest().hasUnpublishedChanges(), is(false));
+
+        store.delete("a.txt");
+        assertThat(store.loadManifest().hasUnpublishedChanges(), is(true));
+    }
+
+    /**
+     * 読み出した一覧を利用して存在しないパスを判定できる。
+     */
+    @Test
+    public void 読み出した一覧で存在しないパスを判定できる() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "Testing");
+        store.put("a.txt", "a".getBytes());
+
+        assertThat(
+            "一覧を読み出すまでは判定できない",
+            store.isKnownMissing("b.txt"),
+            is(false));
+        assertThat(
+            "再構築するまでは完全な一覧ではない",
+            store.loadManifest().isComplete(),
+            is(false));
+        assertThat(store.isKnownMissing("b.txt"), is(false));
+
+        assertThat(store.rebuildManifest().isComplete(), is(true));
+        assertThat(store.loadManifest().isComplete(), is(true));
+        assertThat(store.isKnownMissing("a.txt"), is(false));
+        assertThat(store.isKnownMissing("b.txt"), is(true));
+
+        ResourceStore other = new ResourceStore(datastore, "Testing");
+        other.put("b.txt", "b".getBytes());
+        assertThat(
+            "他のオブジェクトからの変更は検出できない",
+            store.get("b.txt"),
+            is(nullValue()));
+
+        store.invalidateCaches();
+        assertThat(new String(store.get("b.txt")), is("b"));
+
+        assertThat("書き出しの後も完全な一覧が保たれる", store.loadManifest().isComplete(), is(true));
+        store.put("c.txt", "c".getBytes());
+        assertThat(
+            "書き出すと保持した一覧は破棄される",
+            new String(store.get("c.txt")),
+            is("c"));
+    }
+
+    /**
+     * 一覧に含まれないファイルも、一覧が完全でなければ読み出せる。
+     */
+    @Test
+    public void 一覧に含まれないファイルを読み出せる() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "Testing");
+        store.put("a.txt", "a".getBytes());
+        store.rebuildManifest();
+
+        // a file written in the format before the manifest was introduced
+        Entity legacy = new Entity(store.createKey("legacy.txt"));
+        legacy.setUnindexedProperty("c", new Blob("legacy".getBytes()));
+        legacy.setUnindexedProperty("v", 1L);
+        datastore.put(legacy);
+        ResourceManifest.beginUpdate(datastore, "Testing");
+
+        ResourceManifest manifest = store.loadManifest();
+        assertThat("一覧の更新が完了していない", manifest.isComplete(), is(false));
+        assertThat(manifest.contains("legacy.txt"), is(false));
+        assertThat(store.isKnownMissing("legacy.txt"), is(false));
+        assertThat(new String(store.get("legacy.txt")), is("legacy"));
+
+        manifest = store.rebuildManifest();
+        assertThat(manifest.isComplete(), is(true));
+        assertThat(
+            manifest.get("legacy.txt"),
+            is(new ResourceManifest.Entry("legacy.txt", 6, ResourceManifest.computeHash("legacy".getBytes()))));
+        assertThat(manifest.contains("a.txt"), is(true));
+        assertThat(store.loadManifest().isComplete(), is(true));
+    }
+
+    private static List<ResourceManifest.Entry> entries(int count) {
+        List<ResourceManifest.Entry> results = new ArrayList<ResourceManifest.Entry>();
+        for (int i = 0; i < count; i++) {
+            String path = "com/example/" + i + "/Resource.class";
+            results.add(ResourceManifest.Entry.of(path, path.getBytes()));
+        }
+        return results;
+    }
+}
@@ -18,9 +18,24 @@ package com.ashigeru.appengine.tools.classload;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import org.junit.After;
 import org.junit.Before;
@@ -28,8 +43,13 @@ import org.junit.Test;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 
 /**
@@ -41,7 +61,8 @@ public class ResourceStoreTest {
     {
         LocalDatastoreServiceTestConfig datastore = new LocalDatastoreServiceTestConfig();
         datastore.setBackingStoreLocation("target/testing/datastore");
-        testing = new LocalServiceTestHelper(datastore);
+        LocalMemcacheServiceTestConfig memcache = new LocalMemcacheServiceTestConfig();
+        testing = new LocalServiceTestHelper(datastore, memcache);
         testing.setEnvAppId(getClass().getSimpleName());
     }
 
@@ -255,6 +276,622 @@ public class ResourceStoreTest {
         assertThat(conv(store.get("d.txt")), is(nullValue()));
     }
 
+    /**
+     * 存在しないパスを記憶できる。
+     */
+    @Test
+    public void 存在しないパスを記憶できる() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "A");
+        ResourceStore other = new ResourceStore(datastore, "A");
+        store.setNegativeCacheCapacity(100);
+
+        assertThat(store.isKnownMissing("a.txt"), is(false));
+        assertThat(conv(store.get("a.txt")), is(nullValue()));
+        assertThat(
+            "一度存在しないと判明したパスは記憶される",
+            store.isKnownMissing("a.txt"),
+            is(true));
+
+        other.put("a.txt", conv("a"));
+        assertThat(
+            "他のオブジェクトからの変更は検出されない",
+            conv(store.get("a.txt")),
+            is(nullValue()));
+
+        store.invalidateCaches();
+        assertThat(
+            "キャッシュを破棄すると変更が反映される",
+            conv(store.get("a.txt")),
+            is("a"));
+
+        Map<String, byte[]> get = store.get(Arrays.asList("a.txt", "b.txt"));
+        assertThat(get.size(), is(1));
+        assertThat(
+            "一括取得でも存在しないパスは記憶される",
+            store.isKnownMissing("b.txt"),
+            is(true));
+
+        store.put("b.txt", conv("b"));
+        assertThat(
+            "自身を経由した変更ではキャッシュが破棄される",
+            store.isKnownMissing("b.txt"),
+            is(false));
+        assertThat(conv(store.get("b.txt")), is("b"));
+    }
+
+    /**
+     * 存在しないパスの記憶には上限がある。
+     */
+    @Test
+    public void 存在しないパスの記憶には上限がある() {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "A");
+        store.setNegativeCacheCapacity(2);
+
+        store.get("a.txt");
+        store.get("b.txt");
+        store.get("c.txt");
+        assertThat(store.isKnownMissing("a.txt"), is(false));
+        assertThat(store.isKnownMissing("b.txt"), is(true));
+        assertThat(store.isKnownMissing("c.txt"), is(true));
+    }
+
+    /**
+     * メモリキャッシュを経由してリソースを取得できる。
+     */
+    @Test
+    public void メモリキャッシュを経由してリソースを取得できる() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        ResourceStore store = new ResourceStore(datastore, memcache, "A");
+
+        store.put("a.txt", conv("a"));
+        store.put("b.txt", conv("b"));
+        datastore.delete(store.createKey("a.txt"));
+        assertThat(
+            "書き出した内容はメモリキャッシュから取得できる",
+            conv(store.get("a.txt")),
+            is("a"));
+
+        store.put("a.txt", conv("A"));
+        assertThat(
+            "上書きした内容はメモリキャッシュにも反映される",
+            conv(store.get("a.txt")),
+            is("A"));
+
+        store.delete("b.txt");
+        assertThat(
+            "削除した内容はメモリキャッシュからも取得できない",
+            conv(store.get("b.txt")),
+            is(nullValue()));
+
+        new ResourceStore(datastore, "A").put("c.txt", conv("c"));
+        Map<String, byte[]> get = store.get(Arrays.asList("a.txt", "b.txt", "c.txt"));
+        assertThat(get.size(), is(2));
+        assertThat(conv(get.get("a.txt")), is("A"));
+        assertThat(conv(get.get("c.txt")), is("c"));
+
+        datastore.delete(store.createKey("c.txt"));
+        assertThat(
+            "データストアから読み出した内容もメモリキャッシュに格納される",
+            conv(store.get("c.txt")),
+            is("c"));
+
+        store.delete(Arrays.asList("a.txt", "c.txt"));
+        assertThat(conv(store.get("a.txt")), is(nullValue()));
+        assertThat(conv(store.get("c.txt")), is(nullValue()));
+    }
+
+    /**
+     * 新しいリビジョンが公開された後は、以前のメモリキャッシュの内容を利用しない。
+     */
+    @Test
+    public void 新しいリビジョンが公開された後はメモリキャッシュの内容を利用しない() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        ResourceStore store = new ResourceStore(datastore, memcache, "A");
+        store.put("a.txt", conv("a"));
+        assertThat(conv(store.get("a.txt")), is("a"));
+
+        ResourceStore writer = new ResourceStore(datastore, "A");
+        writer.put("a.txt", conv("A"));
+        assertThat("リビジョンの公開前はメモリキャッシュを利用する", conv(store.get("a.txt")), is("a"));
+
+        writer.publishRevision();
+        store.invalidateCaches();
+        assertThat(conv(store.get("a.txt")), is("A"));
+    }
+
+    /**
+     * 大きなリソースを分割して保存できる。
+     * @throws Exception if occur
+     */
+    @Test
+    public void 大きなリソースを分割して保存できる() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "Testing");
+        store.setFragmentSize(4);
+
+        store.put("a.txt", conv("0123456789"));
+        assertThat(conv(store.get("a.txt")), is("0123456789"));
+        assertThat(
+            "ストリームで読み出せる",
+            Util.toString(store.openStream("a.txt")),
+            is("0123456789"));
+        assertThat(
+            "ヘッダのみがもとのカインドに保存される",
+            datastore.prepare(new Query("Testing")).countEntities(),
+            is(1));
+        assertThat(
+            "断片は別のカインドに保存される",
+            datastore.prepare(new Query("Testing.Fragment")).countEntities(),
+            is(3));
+
+        store.put("a.txt", conv("abcdef"));
+        assertThat(conv(store.get("a.txt")), is("abcdef"));
+        assertThat(
+            "上書きすると古い断片は削除される",
+            datastore.prepare(new Query("Testing.Fragment")).countEntities(),
+            is(2));
+
+        Map<String, byte[]> map = new HashMap<String, byte[]>();
+        map.put("b.txt", conv("b"));
+        map.put("c.txt", conv("ccccccccc"));
+        store.put(map);
+        Map<String, byte[]> get = store.get(Arrays.asList("a.txt", "b.txt", "c.txt", "d.txt"));
+        assertThat(get.size(), is(3));
+        assertThat(conv(get.get("a.txt")), is("abcdef"));
+        assertThat(conv(get.get("b.txt")), is("b"));
+        assertThat(conv(get.get("c.txt")), is("ccccccccc"));
+        assertThat(Util.toString(store.openStream("b.txt")), is("b"));
+        assertThat(store.openStream("d.txt"), is(nullValue()));
+
+        store.put("a.txt", conv("a"));
+        assertThat(conv(store.get("a.txt")), is("a"));
+        store.delete(Arrays.asList("a.txt", "b.txt", "c.txt"));
+        assertThat(
+            "削除すると断片も削除される",
+            datastore.prepare(new Query("Testing.Fragment")).countEntities(),
+            is(0));
+        assertThat(
+            datastore.prepare(new Query("Testing")).countEntities(),
+            is(0));
+    }
+
+    /**
+     * 分割されたリソースは断片ごとに読み出せる。
+     * @throws Exception if occur
+     */
+    @Test
+    public void 分割されたリソースは断片ごとに読み出せる() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "A");
+        store.setFragmentSize(3);
+
+        byte[] contents = new byte[100];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+        store.put("a.bin", contents);
+
+        InputStream stream = store.openStream("a.bin");
+        try {
+            byte[] buf = new byte[7];
+            int offset = 0;
+            while (true) {
+                int read = stream.read(buf);
+                if (read < 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    assertThat(buf[i], is(contents[offset + i]));
+                }
+                offset += read;
+            }
+            assertThat(offset, is(contents.length));
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * 内容を圧縮して保存できる。
+     * @throws Exception if occur
+     */
+    @Test
+    public void 内容を圧縮して保存できる() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore plain = new ResourceStore(datastore, "A");
+        plain.put("plain.txt", conv(repeat("plain", 100)));
+
+        ResourceStore store = new ResourceStore(datastore, "A");
+        store.setCodec(ResourceCodec.DEFLATE);
+        store.put("a.txt", conv(repeat("hello", 1000)));
+        store.put("b.txt", conv("b"));
+
+        assertThat(conv(store.get("a.txt")), is(repeat("hello", 1000)));
+        assertThat(
+            "縮まない内容はそのまま保存される",
+            conv(store.get("b.txt")),
+            is("b"));
+        assertThat(
+            "変換方式を変えても保存済みの内容を読み出せる",
+            conv(store.get("plain.txt")),
+            is(repeat("plain", 100)));
+        assertThat(
+            "圧縮した内容は変換方式を指定しなくても読み出せる",
+            conv(plain.get("a.txt")),
+            is(repeat("hello", 1000)));
+        assertThat(Util.toString(plain.openStream("a.txt")), is(repeat("hello", 1000)));
+    }
+
+    /**
+     * 圧縮した内容を分割して保存できる。
+     * @throws Exception if occur
+     */
+    @Test
+    public void 圧縮した内容を分割して保存できる() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "Testing");
+        store.setCodec(ResourceCodec.DEFLATE);
+        store.setFragmentSize(4);
+
+        String contents = repeat("0123456789", 100);
+        store.put("a.txt", conv(contents));
+        assertThat(
+            datastore.prepare(new Query("Testing.Fragment")).countEntities(),
+            is(greaterThan(1)));
+        assertThat(conv(store.get("a.txt")), is(contents));
+        assertThat(Util.toString(store.openStream("a.txt")), is(contents));
+        assertThat(
+            conv(store.get(Arrays.asList("a.txt")).get("a.txt")),
+            is(contents));
+    }
+
+    /**
+     * 独自の変換方式を追加できる。
+     * @throws Exception if occur
+     */
+    @Test
+    public void 独自の変換方式を追加できる() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceCodec best = new ResourceCodec.DeflateCodec(100, Deflater.BEST_COMPRESSION);
+        ResourceStore store = new ResourceStore(datastore, "A");
+        store.setCodec(best);
+        store.put("a.txt", conv(repeat("a", 100)));
+
+        ResourceStore other = new ResourceStore(datastore, "A");
+        try {
+            other.get("a.txt");
+            fail("未登録の変換方式では読み出せない");
+        }
+        catch (IllegalStateException e) {
+            // ok.
+        }
+        other.registerCodec(best);
+        assertThat(conv(other.get("a.txt")), is(repeat("a", 100)));
+
+        try {
+            other.registerCodec(new ResourceCodec.DeflateCodec(1, Deflater.BEST_SPEED));
+            fail("識別子が重複する");
+        }
+        catch (IllegalArgumentException e) {
+            // ok.
+        }
+    }
+
+    /**
+     * 接頭辞を指定してパスの一覧を取得できる。
+     */
+    @Test
+    public void 接頭辞を指定してパスの一覧を取得できる() {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore store = new ResourceStore(datastore, "Testing");
+        store.setFragmentSize(2);
+        store.put("com/example/b.txt", conv("bbbbbb"));
+        store.put("com/example/a.txt", conv("a"));
+        store.put("com/example2/c.txt", conv("c"));
+        store.put("org/example/d.txt", conv("d"));
+        new ResourceStore(datastore, "Other").put("com/example/e.txt", conv("e"));
+
+        assertThat(
+            store.list("com/example/"),
+            is(Arrays.asList("com/example/a.txt", "com/example/b.txt")));
+        assertThat(
+            store.list("com/"),
+            is(Arrays.asList("com/example/a.txt", "com/example/b.txt", "com/example2/c.txt")));
+        assertThat(store.list("").size(), is(4));
+        assertThat(store.list("net/").size(), is(0));
+    }
+
+    /**
+     * 同じ内容を共有して保存できる。
+     * @throws Exception if occur
+     */
+    @Test
+    public void 同じ内容を共有して保存できる() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore a = new ResourceStore(datastore, "Testing");
+        a.setBlobKindName("Blob");
+        ResourceStore b = new ResourceStore(datastore, "Other");
+        b.setBlobKindName("Blob");
+        b.setCodec(ResourceCodec.DEFLATE);
+
+        Map<String, byte[]> map = new HashMap<String, byte[]>();
+        map.put("a.txt", conv("hello"));
+        map.put("b.txt", conv("hello"));
+        map.put("c.txt", conv("world"));
+        a.put(map);
+        b.put("d.txt", conv("hello"));
+        assertThat(
+            "同じ内容は一度だけ保存される",
+            datastore.prepare(new Query("Blob")).countEntities(),
+            is(2));
+        assertThat(datastore.prepare(new Query("Testing")).countEntities(), is(3));
+
+        assertThat(conv(a.get("a.txt")), is("hello"));
+        assertThat(conv(a.get("c.txt")), is("world"));
+        assertThat(conv(b.get("d.txt")), is("hello"));
+        assertThat(Util.toString(a.openStream("b.txt")), is("hello"));
+        Map<String, byte[]> get = a.get(Arrays.asList("a.txt", "b.txt", "c.txt", "d.txt"));
+        assertThat(get.size(), is(3));
+        assertThat("同じ内容を共有するパスはすべて含まれる", conv(get.get("a.txt")), is("hello"));
+        assertThat(conv(get.get("b.txt")), is("hello"));
+        assertThat(conv(get.get("c.txt")), is("world"));
+
+        a.put("a.txt", conv("world"));
+        assertThat(conv(a.get("a.txt")), is("world"));
+        assertThat(datastore.prepare(new Query("Blob")).countEntities(), is(2));
+
+        a.delete(Arrays.asList("a.txt", "b.txt"));
+        assertThat(a.get("a.txt"), is(nullValue()));
+        assertThat(
+            "共有された内容は削除されない",
+            conv(b.get("d.txt")),
+            is("hello"));
+
+        ResourceStore plain = new ResourceStore(datastore, "Testing");
+        assertThat(
+            "共有の設定によらず読み出せる",
+            conv(plain.get("c.txt")),
+            is("world"));
+    }
+
+    /**
+     * 多数のファイルを分割して並列に操作できる。
+     * @throws Exception if occur
+     */
+    @Test
+    public void 多数のファイルを分割して並列に操作できる() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "Testing");
+        store.setFragmentSize(10);
+        store.setMaxBatchCount(7);
+        store.setMaxBatchBytes(200);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            store.setExecutor(executor);
+            Map<String, byte[]> contents = new HashMap<String, byte[]>();
+            for (int i = 0; i < 50; i++) {
+                contents.put(i + ".txt", conv(repeat(String.valueOf(i), i)));
+            }
+            store.put(contents);
+
+            Map<String, byte[]> loaded = store.get(contents.keySet());
+            assertThat(loaded.size(), is(50));
+            for (int i = 0; i < 50; i++) {
+                assertThat(conv(loaded.get(i + ".txt")), is(repeat(String.valueOf(i), i)));
+            }
+            store.delete(contents.keySet());
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertThat(store.get(Arrays.asList("0.txt", "49.txt")).size(), is(0));
+        assertThat(
+            "断片も残らない",
+            DatastoreServiceFactory.getDatastoreService()
+                .prepare(new Query("Testing.Fragment"))
+                .countEntities(),
+            is(0));
+    }
+
+    /**
+     * 断片を上限の範囲で分割して書き出し、ヘッダを最後に書き出す。
+     */
+    @Test
+    public void 断片を分割して書き出した後にヘッダを書き出す() {
+        final List<List<String>> puts = new ArrayList<List<String>>();
+        final List<Long> sizes = new ArrayList<Long>();
+        final DatastoreService delegate = DatastoreServiceFactory.getDatastoreService();
+        DatastoreService datastore = (DatastoreService) Proxy.newProxyInstance(
+            DatastoreService.class.getClassLoader(),
+            new Class<?>[] { DatastoreService.class },
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("put") && args[args.length - 1] instanceof Iterable<?>) {
+                        List<String> kinds = new ArrayList<String>();
+                        long size = 0;
+                        for (Object entity : (Iterable<?>) args[args.length - 1]) {
+                            kinds.add(((Entity) entity).getKind());
+                            size += DatastoreBatch.estimateSize((Entity) entity);
+                        }
+                        puts.add(kinds);
+                        sizes.add(size);
+                    }
+                    try {
+                        return method.invoke(delegate, args);
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+        ResourceStore store = new ResourceStore(datastore, "Testing");
+        store.setFragmentSize(10);
+        store.setMaxBatchBytes(300);
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        contents.put("a.txt", conv(repeat("a", 100)));
+        contents.put("b.txt", conv("b"));
+        store.put(contents);
+
+        assertThat(puts.size(), is(greaterThan(2)));
+        for (int i = 0, n = puts.size(); i < n - 1; i++) {
+            assertThat("最後以外は断片のみ", new HashSet<String>(puts.get(i)), is(Collections.singleton("Testing.Fragment")));
+            assertThat("上限の範囲で分割する", sizes.get(i), lessThanOrEqualTo(300L));
+        }
+        assertThat(
+            "ヘッダは最後にまとめて書き出す",
+            new HashSet<String>(puts.get(puts.size() - 1)),
+            is(Collections.singleton("Testing")));
+        assertThat(conv(store.get("a.txt")), is(repeat("a", 100)));
+    }
+
+    /**
+     * 非同期に操作できる。
+     * @throws Exception if occur
+     */
+    @Test
+    public void 非同期に操作できる() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            MemcacheServiceFactory.getMemcacheService(),
+            "Testing");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            store.setExecutor(executor);
+            store.setMaxBatchCount(1);
+            Future<Void> put = store.putAsync("a.txt", conv("a"));
+            Map<String, byte[]> contents = new HashMap<String, byte[]>();
+            contents.put("b.txt", conv("b"));
+            contents.put("c.txt", conv("c"));
+            Future<Void> putAll = store.putAsync(contents);
+            contents.clear();
+            put.get();
+            putAll.get();
+
+            Future<byte[]> get = store.getAsync("a.txt");
+            Future<Map<String, byte[]>> getAll = store.getAsync(Arrays.asList("b.txt", "c.txt", "d.txt"));
+            assertThat(conv(get.get()), is("a"));
+            Map<String, byte[]> loaded = getAll.get();
+            assertThat(loaded.size(), is(2));
+            assertThat(conv(loaded.get("c.txt")), is("c"));
+
+            store.deleteAsync("a.txt").get();
+            store.deleteAsync(Arrays.asList("b.txt", "c.txt")).get();
+            assertThat(store.getAsync("a.txt").get(), is(nullValue()));
+            assertThat(store.getAsync(Arrays.asList("b.txt", "c.txt")).get().size(), is(0));
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        store.setExecutor(null);
+        Future<Void> put = store.putAsync("e.txt", conv("e"));
+        assertThat("エグゼキュータがなければ完了済み", put.isDone(), is(true));
+        assertThat(conv(store.get("e.txt")), is("e"));
+    }
+
+    /**
+     * Test method for {@link ResourceStore#setDiskCache(DiskResourceCache)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void ディスク上のキャッシュから読み出せる() throws Exception {
+        File directory = new File("target/testing/storecache");
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore writer = new ResourceStore(datastore, "T");
+        writer.setBlobKindName("TB");
+        writer.put("a.txt", conv("a"));
+        writer.put("b.txt", conv("b"));
+
+        DiskResourceCache cache = new DiskResourceCache(directory, DiskResourceCache.DEFAULT_CAPACITY);
+        try {
+            ResourceStore store = new ResourceStore(datastore, "T");
+            store.setDiskCache(cache);
+            assertThat(conv(store.get("a.txt")), is("a"));
+            assertThat(store.get(Arrays.asList("a.txt", "b.txt")).size(), is(2));
+            assertThat(cache.size(), is(2));
+
+            datastore.delete(KeyFactory.createKey("TB", ResourceManifest.computeHash(conv("a"))));
+            datastore.delete(KeyFactory.createKey("TB", ResourceManifest.computeHash(conv("b"))));
+            ResourceStore other = new ResourceStore(datastore, "T");
+            other.setDiskCache(cache);
+            assertThat("共有された内容を参照しない", conv(other.get("a.txt")), is("a"));
+            assertThat(Util.toString(other.openStream("b.txt")), is("b"));
+            ByteBuffer buffer = other.getBuffer("a.txt");
+            assertThat("マップした領域を参照する", buffer.isDirect(), is(true));
+            assertThat(buffer.isReadOnly(), is(true));
+            assertThat(buffer.remaining(), is(1));
+            assertThat(buffer.get(buffer.position()), is((byte) 'a'));
+            assertThat(other.get(Arrays.asList("a.txt", "b.txt")).size(), is(2));
+
+            writer.put("a.txt", conv("a2"));
+            assertThat("ハッシュ値が異なる内容は利用しない", conv(other.get("a.txt")), is("a2"));
+            writer.put("c.txt", conv("c"));
+            assertThat("キャッシュによって可視性は変化しない", conv(other.get("c.txt")), is("c"));
+            datastore.delete(store.createKey("b.txt"));
+            assertThat("削除されたファイルは読み出せない", other.get("b.txt"), is(nullValue()));
+        }
+        finally {
+            cache.close();
+            for (File file : directory.listFiles()) {
+                assertThat(file.delete(), is(true));
+            }
+        }
+    }
+
+    /**
+     * Test method for {@link ResourceStore#setDiskCache(DiskResourceCache)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 完全な一覧のハッシュ値でディスク上のキャッシュから読み出せる() throws Exception {
+        File directory = new File("target/testing/storecache");
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        ResourceStore writer = new ResourceStore(datastore, "T");
+        writer.put("a.txt", conv("a"));
+        writer.put("b.txt", conv("b"));
+        writer.rebuildManifest();
+
+        DiskResourceCache cache = new DiskResourceCache(directory, DiskResourceCache.DEFAULT_CAPACITY);
+        try {
+            ResourceStore store = new ResourceStore(datastore, "T");
+            store.setDiskCache(cache);
+            assertThat(store.loadManifest().isComplete(), is(true));
+            assertThat(conv(store.get("a.txt")), is("a"));
+            assertThat("単一のエンティティに収まる内容もキャッシュする", cache.size(), is(1));
+
+            datastore.delete(store.createKey("a.txt"));
+            assertThat("データストアにアクセスしない", conv(store.get("a.txt")), is("a"));
+            assertThat(Util.toString(store.openStream("a.txt")), is("a"));
+            assertThat("キャッシュされていない内容はデータストアから読み出す", conv(store.get("b.txt")), is("b"));
+            assertThat(store.get(Arrays.asList("a.txt", "b.txt")).size(), is(2));
+
+            store.invalidateCaches();
+            assertThat("一覧を破棄した後はデータストアを参照する", store.get("a.txt"), is(nullValue()));
+        }
+        finally {
+            cache.close();
+            for (File file : directory.listFiles()) {
+                assertThat(file.delete(), is(true));
+            }
+        }
+    }
+
+    private static String repeat(String string, int count) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            buf.append(string);
+        }
+        return buf.toString();
+    }
+
     private byte[] conv(String string) {
         return string.getBytes();
     }
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2010 @ashigeru.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.ashigeru.appengine.tools.classload;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * {@link ResourceUploader}のテスト。
+ */
+public class ResourceUploaderTest {
+
+    LocalServiceTestHelper testing;
+    {
+        LocalDatastoreServiceTestConfig datastore = new LocalDatastoreServiceTestConfig();
+        datastore.setBackingStoreLocation("target/testing/datastore");
+        testing = new LocalServiceTestHelper(datastore);
+        testing.setEnvAppId(getClass().getSimpleName());
+    }
+
+    private File working;
+
+    /**
+     * テストを初期化する。
+     * @throws Exception if occur
+     */
+    @Before
+    public void setUp() throws Exception {
+        testing.setUp();
+        working = new File("target/testing/uploader");
+        delete(working);
+        assertThat(working.mkdirs(), is(true));
+    }
+
+    /**
+     * テストの情報を破棄する。
+     * @throws Exception 例外が発生した場合
+     */
+    @After
+    public void tearDown() throws Exception {
+        testing.tearDown();
+        delete(working);
+    }
+
+    /**
+     * Test method for {@link ResourceUploader#upload(File)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void ディレクトリの変更のみを同期できる() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        File root = new File(working, "classes");
+        write(new File(root, "com/example/A.class"), "A");
+        write(new File(root, "com/example/B.class"), "B");
+        write(new File(root, "com/example/c.txt"), "C");
+        write(new File(root, "META-INF/MANIFEST.MF"), "M");
+
+        ResourceUploader uploader = new ResourceUploader(store);
+        uploader.setMaxBatchCount(2);
+        ResourceUploader.Result first = uploader.upload(root);
+        assertThat(first.getUploaded().size(), is(3));
+        assertThat(first.getDeleted().size(), is(0));
+        assertThat(first.getUnchangedCount(), is(0));
+        assertThat(new String(store.get("com/example/A.class")), is("A"));
+        assertThat(
+            "META-INF以下は対象外",
+            store.get("META-INF/MANIFEST.MF"),
+            is(nullValue()));
+
+        write(new File(root, "com/example/A.class"), "A2");
+        assertThat(new File(root, "com/example/B.class").delete(), is(true));
+        write(new File(root, "com/example/d/D.class"), "D");
+
+        ResourceUploader.Result second = uploader.upload(root);
+        assertThat(
+            new TreeSet<String>(second.getUploaded()),
+            is(set("com/example/A.class", "com/example/d/D.class")));
+        assertThat(second.getDeleted(), is(Arrays.asList("com/example/B.class")));
+        assertThat(second.getUnchangedCount(), is(1));
+        assertThat(new String(store.get("com/example/A.class")), is("A2"));
+        assertThat(store.get("com/example/B.class"), is(nullValue()));
+        assertThat(new String(store.get("com/example/d/D.class")), is("D"));
+
+        String revision = store.getRevision();
+        assertThat("同期によってリビジョンが公開される", revision, is(notNullValue()));
+        ResourceUploader.Result third = uploader.upload(root);
+        assertThat(
+            "変更がなければなにも書き出さない",
+            third.getUploaded().size() + third.getDeleted().size(),
+            is(0));
+        assertThat(third.getUnchangedCount(), is(3));
+        assertThat(
+            "変更がなければリビジョンを公開しない",
+            store.getRevision(),
+            is(revision));
+    }
+
+    /**
+     * Test method for {@link ResourceUploader#upload(File)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 公開の前に中断された同期を公開する() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        File root = new File(working, "classes");
+        write(new File(root, "com/example/A.class"), "A");
+
+        ResourceUploader uploader = new ResourceUploader(store);
+        uploader.upload(root);
+        String revision = store.getRevision();
+
+        // writes the same contents without publishing, as an interrupted run would do
+        store.put("com/example/A.class", "A".getBytes());
+        ResourceUploader.Result result = uploader.upload(root);
+        assertThat(result.getUploaded().size(), is(0));
+        assertThat(store.getRevision(), not(revision));
+        assertThat(store.loadManifest().hasUnpublishedChanges(), is(false));
+    }
+
+    /**
+     * Test method for {@link ResourceUploader#upload(File)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void JARファイルを並列に同期できる() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        store.put("com/example/Old.class", "old".getBytes());
+        store.put("com/example/Same.class", "same".getBytes());
+
+        File jar = new File(working, "app.jar");
+        ZipOutputStream output = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            output.putNextEntry(new ZipEntry("com/example/"));
+            output.closeEntry();
+            for (int i = 0; i < 10; i++) {
+                output.putNextEntry(new ZipEntry("com/example/C" + i + ".class"));
+                output.write(("C" + i).getBytes());
+                output.closeEntry();
+            }
+            output.putNextEntry(new ZipEntry("com/example/Same.class"));
+            output.write("same".getBytes());
+            output.closeEntry();
+        }
+        finally {
+            output.close();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            ResourceUploader uploader = new ResourceUploader(store, executor);
+            uploader.setMaxBatchBytes(4);
+            ResourceUploader.Result result = uploader.upload(jar);
+            assertThat(result.getUploaded().size(), is(10));
+            assertThat(result.getDeleted(), is(Arrays.asList("com/example/Old.class")));
+            assertThat(result.getUnchangedCount(), is(1));
+        }
+        finally {
+            executor.shutdown();
+        }
+        for (int i = 0; i < 10; i++) {
+            assertThat(new String(store.get("com/example/C" + i + ".class")), is("C" + i));
+        }
+        assertThat(store.get("com/example/Old.class"), is(nullValue()));
+        assertThat(store.loadManifest().size(), is(11));
+        assertThat("同期の前に一覧を再構築する", store.loadManifest().isComplete(), is(true));
+    }
+
+    /**
+     * Test method for {@link ResourceUploader#setBundle(boolean)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 連結した内容を書き出す() throws Exception {
+        ResourceStore store = new ResourceStore(
+            DatastoreServiceFactory.getDatastoreService(),
+            "T");
+        File root = new File(working, "classes");
+        write(new File(root, "com/example/A.class"), "A");
+        write(new File(root, "com/example/b.txt"), "B");
+
+        ResourceUploader uploader = new ResourceUploader(store);
+        uploader.upload(root);
+        String revision = store.getRevision();
+        assertThat("既定では書き出さない", store.getBundleRevision(), is(nullValue()));
+
+        uploader.setBundle(true);
+        uploader.upload(root);
+        assertThat(
+            "変更がなければ現在のリビジョンに対応させる",
+            store.getBundleRevision(),
+            is(revision));
+        ClassBundle bundle = store.loadBundle();
+        assertThat(bundle.size(), is(2));
+        assertThat(bundle.contains("com/example/A.class"), is(true));
+
+        write(new File(root, "com/example/C.class"), "C");
+        uploader.upload(root);
+        assertThat(store.getRevision(), not(revision));
+        assertThat(store.getBundleRevision(), is(store.getRevision()));
+        assertThat(store.loadBundle().size(), is(3));
+    }
+
+    /**
+     * Test method for {@link ResourceUploader#setBundle(boolean)}.
+     * @throws Exception if occur
+     */
+    @Test
+    public void 連結した内容はリビジョンの公開前に書き出す() throws Exception {
+        final List<String> published = new ArrayList<String>();
+        ResourceStore store = new ResourceStore(
+                DatastoreServiceFactory.getDatastoreService(),
+                "T") {
+            @Override
+            public String publishRevision(String revision) {
+                published.add(getBundleRevision());
+                return super.publishRevision(revision);
+            }
+        };
+        File root = new File(working, "classes");
+        write(new File(root, "com/example/A.class"), "A");
+
+        ResourceUploader uploader = new ResourceUploader(store);
+        uploader.setBundle(true);
+        uploader.upload(root);
+        write(new File(root, "com/example/B.class"), "B");
+        uploader.upload(root);
+
+        assertThat(published.size(), is(2));
+        assertThat(published.get(1), is(store.getRevision()));
+        assertThat(store.loadBundle().size(), is(2));
+    }
+
+    private static Set<String> set(String... values) {
+        return new TreeSet<String>(Arrays.asList(values));
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        File parent = file.getParentFile();
+        if (parent.isDirectory() == false) {
+            assertThat(parent.mkdirs(), is(true));
+        }
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(contents.getBytes());
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
+        }
+        if (file.exists()) {
+            assertThat(file.delete(), is(true));
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.util.Scanner;
 import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtMethod;
+import javassist.CtNewConstructor;
 import javassist.Modifier;
 
 /**
@@ -79,6 +80,36 @@ class Util {
         }
     }
 
+    /**
+     * 指定の名前で、{@code toString()}メソッドが別のクラスのインスタンスの{@code toString()}の結果を返すようなクラスを生成して返す。
+     * @param className 生成するクラスの名称
+     * @param referenceName 参照するクラスの名称
+     * @return 生成したクラスを表すバイナリ
+     */
+    public static byte[] createReferringClass(String className, String referenceName) {
+        try {
+            ClassPool pool = new ClassPool(true);
+            CtClass reference = pool.makeClass(referenceName);
+            reference.setModifiers(Modifier.PUBLIC);
+            reference.addConstructor(CtNewConstructor.defaultConstructor(reference));
+            CtClass created = pool.makeClass(className);
+            created.setModifiers(Modifier.PUBLIC);
+            CtMethod toString = new CtMethod(
+                pool.get("java.lang.String"),
+                "toString",
+                new CtClass[0],
+                created);
+            toString.setBody(MessageFormat.format(
+                "return new {0}().toString();",
+                referenceName));
+            created.addMethod(toString);
+            return created.toBytecode();
+        }
+        catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
     /**
      * 指定のクラスをロードし、インスタンス化したものに{@code toString()}を実行した結果を返す。
      * @param loader 対象のローダ